@@ -16,7 +16,12 @@
 
 package de.cosmocode.palava.core;
 
+import java.util.Map;
+import java.util.concurrent.Future;
+
 import com.google.common.base.Preconditions;
+import com.google.common.base.Predicate;
+import com.google.common.collect.Multimap;
 
 import de.cosmocode.collections.Procedure;
 
@@ -35,6 +40,43 @@ public abstract class AbstractRegistry implements Registry {
         register(Key.get(type), listener);
     }
     
+    @Override
+    public <T> void register(Class<T> type, T listener, int priority) {
+        Preconditions.checkNotNull(type, "Type");
+        Preconditions.checkNotNull(listener, "Listener");
+        register(Key.get(type), listener, priority);
+    }
+    
+    @Override
+    public <T> void register(Key<T> key, T listener) {
+        Preconditions.checkNotNull(key, "Key");
+        Preconditions.checkNotNull(listener, "Listener");
+        register(key, listener, priorityOf(listener));
+    }
+    
+    @Override
+    public <T> void registerWeak(Class<T> type, T listener) {
+        Preconditions.checkNotNull(type, "Type");
+        Preconditions.checkNotNull(listener, "Listener");
+        registerWeak(Key.get(type), listener);
+    }
+    
+    /**
+     * Registers all listeners one by one. Implementations should override
+     * this method to apply the batch atomically.
+     */
+    @Override
+    public void registerAll(Multimap<? extends Key<?>, ?> listeners) {
+        Preconditions.checkNotNull(listeners, "Listeners");
+        for (Map.Entry<? extends Key<?>, ?> entry : listeners.entries()) {
+            registerChecked(entry.getKey(), entry.getValue());
+        }
+    }
+    
+    private <T> void registerChecked(Key<T> key, Object listener) {
+        register(key, checkInstance(key, listener));
+    }
+    
     @Override
     public <T> Iterable<T> getListeners(Class<T> type) {
         Preconditions.checkNotNull(type, "Type");
@@ -53,6 +95,12 @@ public abstract class AbstractRegistry implements Registry {
         return silentProxy(Key.get(type));
     }
     
+    @Override
+    public <T> T asyncProxy(Class<T> type) {
+        Preconditions.checkNotNull(type, "Type");
+        return asyncProxy(Key.get(type));
+    }
+    
     @Override
     public <T> void notify(Class<T> type, Procedure<? super T> command) {
         Preconditions.checkNotNull(type, "Type");
@@ -74,16 +122,111 @@ public abstract class AbstractRegistry implements Registry {
         notifySilently(Key.get(type), command);
     }
     
+    @Override
+    public <T> void notifyMatching(Class<T> type, Predicate<? super Object> predicate, 
+        Procedure<? super T> command) {
+        Preconditions.checkNotNull(type, "Type");
+        Preconditions.checkNotNull(predicate, "Predicate");
+        Preconditions.checkNotNull(command, "Command");
+        for (T listener : find(type, predicate)) {
+            command.apply(listener);
+        }
+    }
+    
+    @Override
+    public <T> Future<Void> notifyAsync(Class<T> type, Procedure<? super T> command) {
+        Preconditions.checkNotNull(type, "Type");
+        Preconditions.checkNotNull(command, "Command");
+        return notifyAsync(Key.get(type), command);
+    }
+    
+    @Override
+    public <T> Future<Void> notifyConcurrently(Class<T> type, Procedure<? super T> command) {
+        Preconditions.checkNotNull(type, "Type");
+        Preconditions.checkNotNull(command, "Command");
+        return notifyConcurrently(Key.get(type), command);
+    }
+    
+    @Override
+    public <T> void notifyParallel(Class<T> type, Procedure<? super T> command) {
+        Preconditions.checkNotNull(type, "Type");
+        Preconditions.checkNotNull(command, "Command");
+        notifyParallel(Key.get(type), command);
+    }
+    
+    @Override
+    public <T> void notifySilentlyParallel(Class<T> type, Procedure<? super T> command) {
+        Preconditions.checkNotNull(type, "Type");
+        Preconditions.checkNotNull(command, "Command");
+        notifySilentlyParallel(Key.get(type), command);
+    }
+    
     @Override
     public <T> boolean remove(Class<T> type, T listener) {
         Preconditions.checkNotNull(type, "Type");
         return remove(Key.get(type), listener);
     }
     
+    /**
+     * Removes all listeners one by one. Implementations should override
+     * this method to apply the batch atomically.
+     */
+    @Override
+    public boolean removeAll(Iterable<?> listeners) {
+        Preconditions.checkNotNull(listeners, "Listeners");
+        boolean removed = false;
+        for (Object listener : listeners) {
+            if (remove(listener)) {
+                removed = true;
+            }
+        }
+        return removed;
+    }
+    
     @Override
     public <T> Iterable<T> removeAll(Class<T> type) {
         Preconditions.checkNotNull(type, "Type");
         return removeAll(Key.get(type));
     }
+    
+    /**
+     * Provides the priority of the specified listener as defined by {@link Priority}.
+     * 
+     * @param listener the listener
+     * @return the annotated priority or {@link Priority#DEFAULT}
+     */
+    static int priorityOf(Object listener) {
+        final Priority priority = listener.getClass().getAnnotation(Priority.class);
+        return priority == null ? Priority.DEFAULT : priority.value();
+    }
+    
+    /**
+     * Checks whether the specified key has been selected for parallel notification
+     * using {@link Parallel}.
+     * 
+     * @param key the binding key
+     * @return true if the type of key is annotated with {@link Parallel}, false otherwise
+     */
+    static boolean isParallel(Key<?> key) {
+        return key.getType().isAnnotationPresent(Parallel.class);
+    }
+    
+    /**
+     * Checks that the specified listener may be registered for key.
+     * 
+     * @param <T> the generic type
+     * @param key the binding key
+     * @param listener the listener
+     * @return listener, cast to the key's type
+     * @throws NullPointerException if key or listener is null
+     * @throws IllegalArgumentException if listener is not an instance of the key's type
+     */
+    static <T> T checkInstance(Key<T> key, Object listener) {
+        Preconditions.checkNotNull(key, "Key");
+        Preconditions.checkNotNull(listener, "Listener");
+        Preconditions.checkArgument(key.getType().isInstance(listener), "%s is not an instance of %s", 
+            listener, key.getType());
+        return key.getType().cast(listener);
+    }
 
 }
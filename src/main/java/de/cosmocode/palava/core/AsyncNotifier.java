@@ -0,0 +1,121 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.cosmocode.palava.core;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import de.cosmocode.collections.Procedure;
+import de.cosmocode.palava.core.Registry.Key;
+
+/**
+ * Dispatches notifications asynchronously on behalf of a {@link Registry}.
+ * See {@link Registry#notifyAsync(Key, Procedure)} for details.
+ *
+ * @since 2.12
+ * @author Willi Schoenborn
+ */
+final class AsyncNotifier {
+
+    private static final Logger LOG = LoggerFactory.getLogger(AsyncNotifier.class);
+
+    private volatile Executor executor;
+    
+    /**
+     * Lazy holder for the executor which is used if no executor has been set.
+     *
+     * @since 2.12
+     * @author Willi Schoenborn
+     */
+    private static final class DefaultExecutor {
+        
+        private static final Executor INSTANCE = Executors.newCachedThreadPool(
+            new ThreadFactoryBuilder().setNameFormat("palava-registry-async-%d").setDaemon(true).build()
+        );
+        
+    }
+    
+    public void setExecutor(Executor executor) {
+        this.executor = Preconditions.checkNotNull(executor, "Executor");
+    }
+    
+    private Executor getExecutor() {
+        final Executor current = executor;
+        return current == null ? DefaultExecutor.INSTANCE : current;
+    }
+    
+    /**
+     * Submits a notification of the specified listeners.
+     * 
+     * @param <T> the generic type
+     * @param key the binding key
+     * @param listeners a snapshot of all listeners which should be notified
+     * @param command the command being invoked on every listener
+     * @return a future which completes when all listeners have been notified
+     */
+    public <T> Future<Void> submit(final Key<T> key, final List<? extends T> listeners,
+        final Procedure<? super T> command) {
+        
+        if (listeners.isEmpty()) {
+            return Futures.immediateFuture(null);
+        }
+        
+        final FutureTask<Void> task = new FutureTask<Void>(new Callable<Void>() {
+            
+            @Override
+            public Void call() {
+                List<Throwable> failures = null;
+                for (T listener : listeners) {
+                    LOG.trace("notifying {} for {}", listener, key);
+                    try {
+                        command.apply(listener);
+                        /*CHECKSTYLE:OFF*/
+                    } catch (RuntimeException e) {
+                        /*CHECKSTYLE:ON*/
+                        if (failures == null) {
+                            failures = Lists.newArrayList();
+                        }
+                        failures.add(e);
+                    }
+                }
+                if (failures == null) {
+                    return null;
+                } else {
+                    throw new NotificationException(key, failures);
+                }
+            }
+            
+        });
+        
+        getExecutor().execute(task);
+        return task;
+    }
+    
+}
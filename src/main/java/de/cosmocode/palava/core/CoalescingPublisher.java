@@ -0,0 +1,314 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.cosmocode.palava.core;
+
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import de.cosmocode.collections.Procedure;
+import de.cosmocode.palava.core.Registry.Key;
+import de.cosmocode.palava.core.lifecycle.Disposable;
+import de.cosmocode.palava.core.lifecycle.LifecycleException;
+
+/**
+ * A publisher on top of a {@link Registry} which coalesces high-frequency
+ * notifications for the same {@link Key}.
+ * 
+ * <p>
+ *   Notifications are delivered on a background lane using
+ *   {@link Registry#notifySilently(Key, Procedure)}. All notifications for a key
+ *   which arrive within the configured window, or while the previous delivery
+ *   for that key is still running, collapse into a single delivery of the
+ *   latest command. This is intended for state-changed style events,
+ *   where listeners are only interested in the most recent state.
+ *   Deliveries for the same key never overlap and happen in notification order,
+ *   even if the lane uses multiple threads.
+ *   Keys without a pending notification occupy no memory.
+ * </p>
+ *
+ * @since 2.12
+ * @author Willi Schoenborn
+ */
+public final class CoalescingPublisher implements Disposable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CoalescingPublisher.class);
+    
+    // marks a drained slot which has been removed and must not be used anymore
+    private static final Procedure<Object> RETIRED = new Procedure<Object>() {
+        
+        @Override
+        public void apply(Object input) {
+            throw new UnsupportedOperationException();
+        }
+        
+    };
+    
+    private final Registry registry;
+    
+    private final long window;
+    
+    private final TimeUnit unit;
+    
+    private final ScheduledExecutorService lane;
+    
+    private final boolean owned;
+    
+    private final ConcurrentMap<Key<?>, Slot<?>> slots = Maps.newConcurrentMap();
+    
+    private final AtomicLong notifications = new AtomicLong();
+    
+    private final AtomicLong merged = new AtomicLong();
+    
+    private final AtomicLong deliveries = new AtomicLong();
+    
+    private volatile boolean disposed;
+    
+    /**
+     * Creates a new publisher which uses its own background thread.
+     * 
+     * @param registry the registry being notified
+     * @param window the time to wait for further notifications before delivering
+     * @param unit the unit of window
+     * @throws NullPointerException if registry or unit is null
+     * @throws IllegalArgumentException if window is negative
+     */
+    public CoalescingPublisher(Registry registry, long window, TimeUnit unit) {
+        this(registry, window, unit, Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("palava-coalescing-publisher-%d").setDaemon(true).build()
+        ), true);
+    }
+
+    /**
+     * Creates a new publisher which delivers using the specified executor.
+     * The executor will not be shut down by {@link #dispose()}.
+     * 
+     * @param registry the registry being notified
+     * @param window the time to wait for further notifications before delivering
+     * @param unit the unit of window
+     * @param lane the executor used for delivery
+     * @throws NullPointerException if registry, unit or lane is null
+     * @throws IllegalArgumentException if window is negative
+     */
+    public CoalescingPublisher(Registry registry, long window, TimeUnit unit, ScheduledExecutorService lane) {
+        this(registry, window, unit, lane, false);
+    }
+    
+    private CoalescingPublisher(Registry registry, long window, TimeUnit unit, 
+        ScheduledExecutorService lane, boolean owned) {
+        Preconditions.checkArgument(window >= 0, "Window must not be negative, but was %s", window);
+        this.registry = Preconditions.checkNotNull(registry, "Registry");
+        this.window = window;
+        this.unit = Preconditions.checkNotNull(unit, "Unit");
+        this.lane = Preconditions.checkNotNull(lane, "Lane");
+        this.owned = owned;
+    }
+    
+    /**
+     * Schedules a notification of all listeners for the specified type.
+     * 
+     * <p>
+     *   Using this method is equivalent to: <br />
+     *   {@code publisher.notify(Key.get(type), command);}
+     * </p>
+     * 
+     * @param <T> the generic type
+     * @param type the type's class
+     * @param command the command being invoked on every listener
+     * @throws NullPointerException if type or command is null
+     * @throws IllegalStateException if this publisher has been disposed
+     */
+    public <T> void notify(Class<T> type, Procedure<? super T> command) {
+        Preconditions.checkNotNull(type, "Type");
+        notify(Key.get(type), command);
+    }
+    
+    /**
+     * Schedules a notification of all listeners for the specified binding key.
+     * If a notification for the same key is already pending, it will be replaced
+     * by this one.
+     * 
+     * @param <T> the generic type
+     * @param key the binding key
+     * @param command the command being invoked on every listener
+     * @throws NullPointerException if key or command is null
+     * @throws IllegalStateException if this publisher has been disposed
+     */
+    public <T> void notify(Key<T> key, Procedure<? super T> command) {
+        Preconditions.checkNotNull(key, "Key");
+        Preconditions.checkNotNull(command, "Command");
+        Preconditions.checkState(!disposed, "%s has been disposed", this);
+        notifications.incrementAndGet();
+        while (true) {
+            final Slot<T> slot = slotOf(key);
+            final Procedure<? super T> previous = slot.pending.get();
+            if (previous == RETIRED) {
+                // the slot has been drained concurrently, its successor takes over
+                slots.remove(key, slot);
+            } else if (slot.pending.compareAndSet(previous, command)) {
+                if (previous == null) {
+                    slot.schedule();
+                } else {
+                    LOG.trace("Merged notification for {}", key);
+                    merged.incrementAndGet();
+                }
+                return;
+            }
+        }
+    }
+    
+    private <T> Slot<T> slotOf(Key<T> key) {
+        @SuppressWarnings("unchecked")
+        final Slot<T> slot = (Slot<T>) slots.get(key);
+        if (slot == null) {
+            final Slot<T> created = new Slot<T>(key);
+            @SuppressWarnings("unchecked")
+            final Slot<T> existing = (Slot<T>) slots.putIfAbsent(key, created);
+            return existing == null ? created : existing;
+        } else {
+            return slot;
+        }
+    }
+    
+    /**
+     * Returns the number of notifications this publisher received.
+     * 
+     * @return the number of received notifications
+     */
+    public long getNotifications() {
+        return notifications.get();
+    }
+    
+    /**
+     * Returns the number of notifications which have been merged
+     * into another notification and were therefore never delivered.
+     * 
+     * @return the number of merged notifications
+     */
+    public long getMerged() {
+        return merged.get();
+    }
+    
+    /**
+     * Returns the number of deliveries this publisher made.
+     * 
+     * @return the number of deliveries
+     */
+    public long getDeliveries() {
+        return deliveries.get();
+    }
+    
+    /**
+     * Shuts down the background lane, if it is owned by this publisher.
+     * Pending notifications will be discarded, further notifications are rejected.
+     */
+    @Override
+    public void dispose() throws LifecycleException {
+        disposed = true;
+        if (owned) {
+            lane.shutdownNow();
+        }
+        slots.clear();
+    }
+    
+    @Override
+    public String toString() {
+        return String.format("CoalescingPublisher [registry=%s, window=%s %s]", registry, window, unit);
+    }
+    
+    /**
+     * Holds the pending notification of a single key. A slot is scheduled once
+     * and keeps rescheduling itself until it has been drained. It then retires,
+     * so a later notification starts a new slot which cannot overtake this one.
+     *
+     * @since 2.12
+     * @author Willi Schoenborn
+     * @param <T> the generic type
+     */
+    private final class Slot<T> implements Runnable {
+        
+        private final Key<T> key;
+        
+        private final AtomicReference<Procedure<? super T>> pending = new AtomicReference<Procedure<? super T>>();
+        
+        // set until the slot retires, guarantees a single scheduled or running task per slot
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        
+        public Slot(Key<T> key) {
+            this.key = key;
+        }
+        
+        private void retire() {
+            pending.set(RETIRED);
+            slots.remove(key, this);
+        }
+        
+        public void schedule() {
+            if (scheduled.compareAndSet(false, true)) {
+                try {
+                    lane.schedule(this, window, unit);
+                } catch (RejectedExecutionException e) {
+                    // keeps the slot consistent, e.g. if a lane not owned by us has been shut down
+                    pending.set(null);
+                    scheduled.set(false);
+                    throw e;
+                }
+            }
+        }
+        
+        @Override
+        public void run() {
+            final Procedure<? super T> command = pending.getAndSet(null);
+            try {
+                if (command != null) {
+                    deliveries.incrementAndGet();
+                    registry.notifySilently(key, command);
+                }
+            } finally {
+                if (disposed) {
+                    retire();
+                } else if (pending.compareAndSet(null, RETIRED)) {
+                    // drained, notifications from now on go to a new slot
+                    slots.remove(key, this);
+                } else {
+                    // arrived during delivery, still delivered by this slot
+                    try {
+                        lane.schedule(this, window, unit);
+                    } catch (RejectedExecutionException e) {
+                        LOG.warn("Discarding pending notification for {}, lane rejected it", key);
+                        retire();
+                    }
+                }
+            }
+        }
+        
+    }
+
+}
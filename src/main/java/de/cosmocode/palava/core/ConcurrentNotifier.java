@@ -0,0 +1,330 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.core;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import de.cosmocode.collections.Procedure;
+import de.cosmocode.palava.core.Registry.Key;
+
+/**
+ * Notifies every listener as a task of its own on behalf of a {@link Registry}.
+ * See {@link Registry#notifyConcurrently(Key, Procedure)} for details.
+ * 
+ * <p>
+ *   Every key owns a lane which runs at most {@link #setLimit(int) limit} listener
+ *   invocations at the same time, across all concurrent notifications of that key.
+ *   Excess invocations are queued by the lane instead of blocking a thread, a worker
+ *   finishing an invocation picks up the next queued one of its lane. A lane only starts
+ *   a worker if there are more queued invocations than idle workers and is discarded
+ *   once all its invocations finished.
+ * </p>
+ *
+ * @since 2.12
+ * @author Willi Schoenborn
+ */
+final class ConcurrentNotifier {
+
+    static final int DEFAULT_LIMIT = 16;
+    
+    private static final Logger LOG = LoggerFactory.getLogger(ConcurrentNotifier.class);
+    
+    // pending count of a lane which has been discarded
+    private static final int RETIRED = -1;
+    
+    private final ConcurrentMap<Key<?>, Lane> lanes = Maps.newConcurrentMap();
+    
+    private volatile Executor executor;
+    
+    private volatile int limit = DEFAULT_LIMIT;
+    
+    /**
+     * Lazy holder for the executor which is used if no executor has been set.
+     *
+     * @since 2.12
+     * @author Willi Schoenborn
+     */
+    private static final class DefaultExecutor {
+        
+        private static final Executor INSTANCE = Executors.newCachedThreadPool(
+            new ThreadFactoryBuilder().setNameFormat("palava-registry-concurrent-%d").setDaemon(true).build()
+        );
+        
+    }
+    
+    public void setExecutor(Executor executor) {
+        this.executor = Preconditions.checkNotNull(executor, "Executor");
+    }
+    
+    private Executor getExecutor() {
+        final Executor current = executor;
+        return current == null ? DefaultExecutor.INSTANCE : current;
+    }
+    
+    public void setLimit(int limit) {
+        Preconditions.checkArgument(limit > 0, "Limit must be positive, but was %s", limit);
+        this.limit = limit;
+    }
+    
+    private Lane laneOf(Key<?> key) {
+        final Lane lane = lanes.get(key);
+        if (lane == null) {
+            final Lane created = new Lane(key);
+            final Lane existing = lanes.putIfAbsent(key, created);
+            return existing == null ? created : existing;
+        } else {
+            return lane;
+        }
+    }
+    
+    /**
+     * Submits one invocation per listener.
+     * 
+     * @param <T> the generic type
+     * @param key the binding key
+     * @param listeners a snapshot of all listeners which should be notified
+     * @param command the command being invoked on every listener
+     * @return a future which completes when all listeners have been notified
+     */
+    public <T> Future<Void> submit(Key<T> key, List<? extends T> listeners, Procedure<? super T> command) {
+        if (listeners.isEmpty()) {
+            return Futures.immediateFuture(null);
+        }
+        
+        final Completion completion = new Completion(key, listeners.size());
+        Lane lane = laneOf(key);
+        for (T listener : listeners) {
+            final Invocation<T> invocation = new Invocation<T>(key, listener, command, completion);
+            while (!lane.add(invocation)) {
+                // discarded concurrently
+                lanes.remove(key, lane);
+                lane = laneOf(key);
+            }
+        }
+        return completion.future;
+    }
+    
+    /**
+     * Tracks the outstanding invocations of a single notification.
+     *
+     * @since 2.12
+     * @author Willi Schoenborn
+     */
+    private static final class Completion {
+        
+        private final AtomicInteger remaining;
+        
+        private final List<Throwable> failures = Collections.synchronizedList(Lists.<Throwable>newArrayList());
+        
+        private final FutureTask<Void> future;
+        
+        public Completion(final Key<?> key, int size) {
+            this.remaining = new AtomicInteger(size);
+            this.future = new FutureTask<Void>(new Callable<Void>() {
+                
+                @Override
+                public Void call() {
+                    if (failures.isEmpty()) {
+                        return null;
+                    } else {
+                        throw new NotificationException(key, failures);
+                    }
+                }
+                
+            });
+        }
+        
+        public void fail(Throwable e) {
+            failures.add(e);
+        }
+        
+        public void done() {
+            if (remaining.decrementAndGet() == 0) {
+                // completes the future, the callable runs on this thread
+                future.run();
+            }
+        }
+        
+    }
+    
+    /**
+     * A single listener invocation.
+     *
+     * @since 2.12
+     * @author Willi Schoenborn
+     * @param <T> the generic listener type
+     */
+    private static final class Invocation<T> implements Runnable {
+        
+        private final Key<T> key;
+        
+        private final T listener;
+        
+        private final Procedure<? super T> command;
+        
+        private final Completion completion;
+        
+        public Invocation(Key<T> key, T listener, Procedure<? super T> command, Completion completion) {
+            this.key = key;
+            this.listener = listener;
+            this.command = command;
+            this.completion = completion;
+        }
+        
+        @Override
+        public void run() {
+            try {
+                if (completion.future.isCancelled()) return;
+                LOG.trace("notifying {} for {}", listener, key);
+                command.apply(listener);
+                /*CHECKSTYLE:OFF*/
+            } catch (RuntimeException e) {
+                /*CHECKSTYLE:ON*/
+                completion.fail(e);
+            } catch (Error e) {
+                completion.fail(e);
+                throw e;
+            } finally {
+                completion.done();
+            }
+        }
+        
+    }
+    
+    /**
+     * Runs the invocations of a single key with bounded concurrency.
+     *
+     * @since 2.12
+     * @author Willi Schoenborn
+     */
+    private final class Lane implements Runnable {
+        
+        private final Key<?> key;
+        
+        private final Queue<Runnable> queue = new ConcurrentLinkedQueue<Runnable>();
+        
+        // number of invocations in queue
+        private final AtomicInteger queued = new AtomicInteger();
+        
+        // number of running workers
+        private final AtomicInteger active = new AtomicInteger();
+        
+        // number of running workers which are not invoking a listener
+        private final AtomicInteger idle = new AtomicInteger();
+        
+        // number of added but unfinished invocations, RETIRED once this lane has been discarded
+        private final AtomicInteger pending = new AtomicInteger();
+        
+        public Lane(Key<?> key) {
+            this.key = key;
+        }
+        
+        /**
+         * Adds the specified invocation.
+         * 
+         * @param invocation the invocation
+         * @return false if this lane has been discarded and invocation has not been added
+         */
+        public boolean add(Runnable invocation) {
+            while (true) {
+                final int current = pending.get();
+                if (current == RETIRED) return false;
+                if (pending.compareAndSet(current, current + 1)) break;
+            }
+            queue.add(invocation);
+            queued.incrementAndGet();
+            schedule();
+            return true;
+        }
+        
+        /**
+         * Starts workers as long as there are less idle workers than queued invocations
+         * and the limit has not been reached. Concurrent calls may start a surplus
+         * worker, which stops as soon as it finds the queue empty.
+         */
+        private void schedule() {
+            while (true) {
+                final int current = active.get();
+                if (current >= limit || idle.get() >= queued.get()) return;
+                if (active.compareAndSet(current, current + 1)) {
+                    idle.incrementAndGet();
+                    try {
+                        getExecutor().execute(this);
+                        /*CHECKSTYLE:OFF*/
+                    } catch (RuntimeException e) {
+                        /*CHECKSTYLE:ON*/
+                        idle.decrementAndGet();
+                        active.decrementAndGet();
+                        throw e;
+                    }
+                }
+            }
+        }
+        
+        /**
+         * Discards this lane once all invocations have finished.
+         */
+        private void finish() {
+            if (pending.decrementAndGet() == 0 && pending.compareAndSet(0, RETIRED)) {
+                lanes.remove(key, this);
+            }
+        }
+        
+        @Override
+        public void run() {
+            try {
+                Runnable invocation;
+                while ((invocation = queue.poll()) != null) {
+                    queued.decrementAndGet();
+                    idle.decrementAndGet();
+                    try {
+                        invocation.run();
+                    } finally {
+                        idle.incrementAndGet();
+                        finish();
+                    }
+                }
+            } finally {
+                idle.decrementAndGet();
+                active.decrementAndGet();
+                // an invocation may have been queued after the last poll or this worker died
+                schedule();
+            }
+        }
+        
+    }
+    
+}
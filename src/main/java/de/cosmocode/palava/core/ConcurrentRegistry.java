@@ -0,0 +1,785 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.core;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Function;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Predicate;
+import com.google.common.base.Predicates;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.LinkedHashMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Multimap;
+import com.google.common.collect.SetMultimap;
+import com.google.common.primitives.Ints;
+import com.google.common.primitives.Longs;
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+
+import de.cosmocode.collections.Procedure;
+
+/**
+ * A copy-on-write implementation of the {@link Registry} interface which is
+ * optimized for read-dominated notify traffic.
+ * 
+ * <p>
+ *   Listeners are stored as immutable arrays per {@link Key}. Every modification
+ *   replaces the array of the affected key, which allows notify and
+ *   getListeners to run without any locking and without allocation.
+ *   Iterations always operate on the snapshot which was current when they started,
+ *   concurrent modifications will never cause a {@link java.util.ConcurrentModificationException}.
+ * </p>
+ *
+ * @since 2.12
+ * @author Willi Schoenborn
+ */
+final class ConcurrentRegistry extends AbstractRegistry implements Topology {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ConcurrentRegistry.class);
+    
+    private static final Object[] EMPTY = {};
+    
+    private static final int[] NO_PRIORITIES = {};
+    
+    private static final long[] NO_SEQUENCES = {};
+    
+    // maximum number of collected listeners being expunged per operation
+    private static final int EXPUNGE_LIMIT = 64;
+
+    private final ConcurrentMap<Key<?>, Object[]> mapping = new ConcurrentHashMap<Key<?>, Object[]>();
+    
+    private final ConcurrentMap<Class<?>, Set<Key<?>>> types = new ConcurrentHashMap<Class<?>, Set<Key<?>>>();
+    
+    private final Object lock = new Object();
+    
+    // guarded by lock, the priorities of the listeners in mapping using the same order
+    private final Map<Key<?>, int[]> priorities = Maps.newHashMap();
+    
+    // guarded by lock, the registration sequences of the listeners in mapping using the same order
+    private final Map<Key<?>, long[]> sequences = Maps.newHashMap();
+    
+    // guarded by lock
+    private long sequence;
+    
+    // guarded by lock, reverse index of mapping, weak listeners are matched by identity
+    private final SetMultimap<Object, Key<?>> keys = HashMultimap.create();
+    
+    private volatile FailureLog failures = new FailureLog();
+    
+    private final ProxyCache proxies = new ProxyCache(this, failures);
+    
+    private final AsyncNotifier async = new AsyncNotifier();
+    
+    private final ParallelNotifier parallel = new ParallelNotifier();
+    
+    private final ConcurrentNotifier concurrent = new ConcurrentNotifier();
+    
+    private final ReferenceQueue<Object> queue = new ReferenceQueue<Object>();
+    
+    private final DispatchCache tables = new DispatchCache(new Function<Key<?>, Object[]>() {
+        
+        @Override
+        public Object[] apply(Key<?> key) {
+            return flatten(key);
+        }
+        
+    });
+    
+    // modified while holding lock
+    private final MetaIndex metas = new MetaIndex(lock, new Function<Class<?>, Iterable<Key<?>>>() {
+        
+        @Override
+        public Iterable<Key<?>> apply(Class<?> type) {
+            final Set<Key<?>> keys = types.get(type);
+            return keys == null ? ImmutableList.<Key<?>>of() : keys;
+        }
+        
+    });
+    
+    private volatile boolean hierarchical;
+    
+    public ConcurrentRegistry() {
+        
+    }
+    
+    @Inject(optional = true)
+    void setAsyncExecutor(@AsyncExecutor Executor executor) {
+        async.setExecutor(executor);
+    }
+    
+    @Inject(optional = true)
+    void setParallelExecutor(@ParallelExecutor Executor executor) {
+        parallel.setExecutor(executor);
+    }
+    
+    @Inject(optional = true)
+    void setParallelThreshold(@Named(CoreConfig.REGISTRY_PARALLEL_THRESHOLD) int threshold) {
+        parallel.setThreshold(threshold);
+    }
+    
+    @Inject(optional = true)
+    void setConcurrentExecutor(@ConcurrentExecutor Executor executor) {
+        concurrent.setExecutor(executor);
+    }
+    
+    @Inject(optional = true)
+    void setConcurrencyLimit(@Named(CoreConfig.REGISTRY_CONCURRENCY_LIMIT) int limit) {
+        concurrent.setLimit(limit);
+    }
+    
+    @Inject(optional = true)
+    void setFailureLog(FailureLog failures) {
+        this.failures = Preconditions.checkNotNull(failures, "Failures");
+        proxies.setFailureLog(failures);
+    }
+    
+    @Inject(optional = true)
+    void setHierarchical(@Named(CoreConfig.REGISTRY_HIERARCHICAL) boolean hierarchical) {
+        this.hierarchical = hierarchical;
+    }
+    
+    private Object[] snapshot(Key<?> key) {
+        final Object[] listeners = mapping.get(key);
+        return listeners == null ? EMPTY : listeners;
+    }
+    
+    /**
+     * Provides the elements being notified for the specified key.
+     */
+    private Object[] dispatch(Key<?> key) {
+        return hierarchical ? tables.get(key) : snapshot(key);
+    }
+    
+    /**
+     * Computes the dispatch table of the specified key, starting with
+     * the listeners registered for key itself.
+     */
+    private Object[] flatten(Key<?> key) {
+        final List<Object[]> elements = Lists.newArrayList();
+        final List<int[]> order = Lists.newArrayList();
+        synchronized (lock) {
+            collect(key, elements, order);
+            for (Key<?> candidate : tables.candidates(key)) {
+                if (!candidate.equals(key)) {
+                    collect(candidate, elements, order);
+                }
+            }
+        }
+        return DispatchCache.flatten(elements, order);
+    }
+    
+    // requires lock
+    private void collect(Key<?> key, List<Object[]> elements, List<int[]> order) {
+        final Object[] array = snapshot(key);
+        elements.add(array);
+        order.add(array.length == 0 ? NO_PRIORITIES : priorities.get(key));
+    }
+    
+    // requires lock
+    private void update(Key<?> key, Object[] listeners, int[] order, long[] registrations) {
+        tables.invalidate(key);
+        if (listeners.length == 0) {
+            mapping.remove(key);
+            priorities.remove(key);
+            sequences.remove(key);
+            final Set<Key<?>> keys = types.get(key.getType());
+            if (keys != null && keys.remove(key)) {
+                metas.remove(key);
+                tables.remove(key);
+                if (keys.isEmpty()) {
+                    types.remove(key.getType());
+                }
+            }
+        } else {
+            priorities.put(key, order);
+            sequences.put(key, registrations);
+            if (mapping.put(key, listeners) == null) {
+                Set<Key<?>> keys = types.get(key.getType());
+                if (keys == null) {
+                    keys = Collections.newSetFromMap(new ConcurrentHashMap<Key<?>, Boolean>());
+                    types.put(key.getType(), keys);
+                }
+                if (keys.add(key)) {
+                    metas.add(key);
+                    tables.add(key);
+                }
+            }
+        }
+    }
+    
+    private <T> List<T> copy(Key<T> key) {
+        return live(dispatch(key));
+    }
+    
+    /**
+     * Copies all listeners in the specified elements, unwrapping weakly
+     * referenced ones and skipping those which have been garbage collected.
+     */
+    private static <T> List<T> live(Object[] elements) {
+        @SuppressWarnings("unchecked")
+        final Iterable<T> listeners = (Iterable<T>) Iterables.filter(
+            Iterables.transform(Arrays.asList(elements), WeakListener.UNWRAP), Predicates.notNull());
+        return ImmutableList.copyOf(listeners);
+    }
+    
+    private static int indexOf(Object[] listeners, Object listener) {
+        for (int i = 0; i < listeners.length; i++) {
+            if (WeakListener.matches(listeners[i], listener)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+    
+    /**
+     * Inserts the element behind all elements with lower priority or with equal
+     * priority and an earlier registration. Requires lock.
+     */
+    private void insert(Key<?> key, Object element, int priority, long registration) {
+        final Object[] listeners = snapshot(key);
+        final int[] order = listeners.length == 0 ? NO_PRIORITIES : priorities.get(key);
+        final long[] registrations = listeners.length == 0 ? NO_SEQUENCES : sequences.get(key);
+        int index = listeners.length;
+        while (index > 0 && precedes(priority, registration, order[index - 1], registrations[index - 1])) {
+            index--;
+        }
+        
+        final Object[] copy = new Object[listeners.length + 1];
+        System.arraycopy(listeners, 0, copy, 0, index);
+        System.arraycopy(listeners, index, copy, index + 1, listeners.length - index);
+        copy[index] = element;
+        
+        final int[] orderCopy = new int[order.length + 1];
+        System.arraycopy(order, 0, orderCopy, 0, index);
+        System.arraycopy(order, index, orderCopy, index + 1, order.length - index);
+        orderCopy[index] = priority;
+        
+        final long[] registrationsCopy = new long[registrations.length + 1];
+        System.arraycopy(registrations, 0, registrationsCopy, 0, index);
+        System.arraycopy(registrations, index, registrationsCopy, index + 1, registrations.length - index);
+        registrationsCopy[index] = registration;
+        
+        keys.put(element, key);
+        update(key, copy, orderCopy, registrationsCopy);
+    }
+    
+    /**
+     * Checks whether an element with the specified priority and registration is
+     * notified before another one. Elements keep their original registration when
+     * their priority changes.
+     */
+    private static boolean precedes(int priority, long registration, int otherPriority, long otherRegistration) {
+        return priority < otherPriority || priority == otherPriority && registration < otherRegistration;
+    }
+    
+    // requires lock
+    private void delete(Key<?> key, Object[] listeners, int index) {
+        final int[] order = priorities.get(key);
+        final long[] registrations = sequences.get(key);
+        
+        final Object[] copy = new Object[listeners.length - 1];
+        System.arraycopy(listeners, 0, copy, 0, index);
+        System.arraycopy(listeners, index + 1, copy, index, listeners.length - index - 1);
+        
+        final int[] orderCopy = new int[order.length - 1];
+        System.arraycopy(order, 0, orderCopy, 0, index);
+        System.arraycopy(order, index + 1, orderCopy, index, order.length - index - 1);
+        
+        final long[] registrationsCopy = new long[registrations.length - 1];
+        System.arraycopy(registrations, 0, registrationsCopy, 0, index);
+        System.arraycopy(registrations, index + 1, registrationsCopy, index, registrations.length - index - 1);
+        
+        keys.remove(listeners[index], key);
+        update(key, copy, orderCopy, registrationsCopy);
+    }
+
+    /**
+     * Removes collected weak listeners. Does at most {@link #EXPUNGE_LIMIT}
+     * removals to keep the overhead per operation bounded.
+     */
+    private void expunge() {
+        for (int i = 0; i < EXPUNGE_LIMIT; i++) {
+            final Reference<?> reference = queue.poll();
+            if (reference == null) return;
+            final WeakListener listener = WeakListener.class.cast(reference);
+            LOG.trace("Expunging collected listener from {}", listener.getKey());
+            synchronized (lock) {
+                final Object[] listeners = snapshot(listener.getKey());
+                for (int index = 0; index < listeners.length; index++) {
+                    if (listeners[index] == listener) {
+                        delete(listener.getKey(), listeners, index);
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public <T> void register(Key<T> key, T listener, int priority) {
+        Preconditions.checkNotNull(key, "Key");
+        Preconditions.checkNotNull(listener, "Listener");
+        LOG.trace("Registering {} for {}", listener, key);
+        expunge();
+        synchronized (lock) {
+            final Object[] listeners = snapshot(key);
+            final int index = indexOf(listeners, listener);
+            long registration = sequence++;
+            if (index != -1) {
+                if (listeners[index] instanceof WeakListener) {
+                    // replaces a weak registration
+                    delete(key, listeners, index);
+                } else if (priorities.get(key)[index] == priority) {
+                    return;
+                } else {
+                    // changes the priority, keeping the original registration
+                    registration = sequences.get(key)[index];
+                    delete(key, listeners, index);
+                }
+            }
+            insert(key, listener, priority, registration);
+        }
+    }
+    
+    @Override
+    public void registerAll(Multimap<? extends Key<?>, ?> listeners) {
+        Preconditions.checkNotNull(listeners, "Listeners");
+        // validate the whole batch and group it by key before touching any state
+        final Map<Key<?>, List<Object>> batch = Maps.newLinkedHashMap();
+        for (Map.Entry<? extends Key<?>, ?> entry : listeners.entries()) {
+            final Key<?> key = entry.getKey();
+            final Object listener = checkInstance(key, entry.getValue());
+            List<Object> list = batch.get(key);
+            if (list == null) {
+                list = Lists.newArrayList();
+                batch.put(key, list);
+            }
+            list.add(listener);
+        }
+        LOG.trace("Registering {} listeners", Integer.valueOf(listeners.size()));
+        expunge();
+        synchronized (lock) {
+            for (Map.Entry<Key<?>, List<Object>> entry : batch.entrySet()) {
+                merge(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+    
+    /**
+     * Registers all specified listeners for key using a single copy of the
+     * current arrays. Requires lock.
+     */
+    private void merge(Key<?> key, List<Object> batch) {
+        final Object[] current = snapshot(key);
+        final List<Object> listeners = Lists.newArrayList(current);
+        final List<Integer> order = Lists.newArrayList(Ints.asList(
+            current.length == 0 ? NO_PRIORITIES : priorities.get(key)));
+        final List<Long> registrations = Lists.newArrayList(Longs.asList(
+            current.length == 0 ? NO_SEQUENCES : sequences.get(key)));
+        for (Object listener : batch) {
+            final int priority = priorityOf(listener);
+            long registration = sequence++;
+            int index = 0;
+            while (index < listeners.size() && !WeakListener.matches(listeners.get(index), listener)) {
+                index++;
+            }
+            if (index < listeners.size()) {
+                final Object element = listeners.get(index);
+                if (element instanceof WeakListener) {
+                    // replaces a weak registration
+                    keys.remove(element, key);
+                } else if (order.get(index).intValue() == priority) {
+                    continue;
+                } else {
+                    // changes the priority, keeping the original registration
+                    registration = registrations.get(index).longValue();
+                    keys.remove(element, key);
+                }
+                listeners.remove(index);
+                order.remove(index);
+                registrations.remove(index);
+            }
+            index = listeners.size();
+            while (index > 0 && precedes(priority, registration, 
+                order.get(index - 1).intValue(), registrations.get(index - 1).longValue())) {
+                index--;
+            }
+            listeners.add(index, listener);
+            order.add(index, Integer.valueOf(priority));
+            registrations.add(index, Long.valueOf(registration));
+            keys.put(listener, key);
+        }
+        update(key, listeners.toArray(), Ints.toArray(order), Longs.toArray(registrations));
+    }
+    
+    @Override
+    public <T> void registerWeak(Key<T> key, T listener) {
+        Preconditions.checkNotNull(key, "Key");
+        Preconditions.checkNotNull(listener, "Listener");
+        LOG.trace("Weakly registering {} for {}", listener, key);
+        expunge();
+        synchronized (lock) {
+            if (indexOf(snapshot(key), listener) == -1) {
+                insert(key, new WeakListener(key, listener, queue), priorityOf(listener), sequence++);
+            }
+        }
+    }
+
+    @Override
+    public <T> Iterable<T> getListeners(final Key<T> key) {
+        Preconditions.checkNotNull(key, "Key");
+        return new Iterable<T>() {
+            
+            @Override
+            public Iterator<T> iterator() {
+                @SuppressWarnings("unchecked")
+                final Iterator<T> listeners = (Iterator<T>) Iterators.filter(
+                    Iterators.transform(Iterators.forArray(snapshot(key)), WeakListener.UNWRAP),
+                    Predicates.notNull());
+                return listeners;
+            }
+            
+        };
+    }
+
+    @Override
+    public <T> Iterable<T> find(final Class<T> type, final Predicate<? super Object> predicate) {
+        Preconditions.checkNotNull(type, "Type");
+        Preconditions.checkNotNull(predicate, "Predicate");
+        
+        return new Iterable<T>() {
+            
+            @Override
+            public Iterator<T> iterator() {
+                final Iterable<Key<?>> indexed = metas.lookup(type, predicate);
+                final Iterable<Key<?>> keys = indexed == null ? types.get(type) : indexed;
+                if (keys == null) {
+                    return ImmutableList.<T>of().iterator();
+                }
+                
+                return new AbstractIterator<T>() {
+                    
+                    private final Iterator<Key<?>> iterator = keys.iterator();
+                    
+                    private Object[] current = EMPTY;
+                    
+                    private int index;
+                    
+                    @Override
+                    protected T computeNext() {
+                        while (true) {
+                            while (index == current.length) {
+                                if (!iterator.hasNext()) {
+                                    return endOfData();
+                                }
+                                final Key<?> key = iterator.next();
+                                if (predicate.apply(key.getMeta())) {
+                                    current = snapshot(key);
+                                    index = 0;
+                                }
+                            }
+                            @SuppressWarnings("unchecked")
+                            final T listener = (T) WeakListener.unwrap(current[index++]);
+                            if (listener != null) {
+                                return listener;
+                            }
+                        }
+                    }
+                    
+                };
+            }
+            
+        };
+    }
+
+    @Override
+    public <T> T proxy(Key<T> key) {
+        return proxies.get(key, ProxyMode.NOTIFY);
+    }
+    
+    @Override
+    public <T> T silentProxy(Key<T> key) {
+        return proxies.get(key, ProxyMode.SILENT);
+    }
+    
+    @Override
+    public <T> T asyncProxy(Key<T> key) {
+        return proxies.get(key, ProxyMode.ASYNC);
+    }
+    
+    @Override
+    public <T> void notify(Key<T> key, Procedure<? super T> command) {
+        Preconditions.checkNotNull(key, "Key");
+        Preconditions.checkNotNull(command, "Command");
+        if (isParallel(key)) {
+            notifyParallel(key, command);
+            return;
+        }
+        LOG.trace("Notifying all listeners for {} using {}", key, command);
+        expunge();
+        for (Object element : dispatch(key)) {
+            @SuppressWarnings("unchecked")
+            final T typed = (T) WeakListener.unwrap(element);
+            if (typed == null) continue;
+            LOG.trace("notifying {} for {}", typed, key);
+            command.apply(typed);
+        }
+    }
+
+    @Override
+    public <T> void notifySilent(Key<T> key, Procedure<? super T> command) {
+        notifySilently(key, command);
+    }
+
+    @Override
+    public <T> void notifySilently(Key<T> key, Procedure<? super T> command) {
+        Preconditions.checkNotNull(key, "Key");
+        Preconditions.checkNotNull(command, "Command");
+        if (isParallel(key)) {
+            notifySilentlyParallel(key, command);
+            return;
+        }
+        LOG.trace("Notifying all listeners for {} using {}", key, command);
+        expunge();
+        for (Object element : dispatch(key)) {
+            @SuppressWarnings("unchecked")
+            final T typed = (T) WeakListener.unwrap(element);
+            if (typed == null) continue;
+            LOG.trace("notifying {} for {}", typed, key);
+            try {
+                command.apply(typed);
+                /*CHECKSTYLE:OFF*/
+            } catch (RuntimeException e) {
+                /*CHECKSTYLE:ON*/
+                failures.report(key, typed, e);
+            }
+        }
+    }
+
+    @Override
+    public <T> Future<Void> notifyAsync(Key<T> key, Procedure<? super T> command) {
+        Preconditions.checkNotNull(key, "Key");
+        Preconditions.checkNotNull(command, "Command");
+        LOG.trace("Asynchronously notifying all listeners for {} using {}", key, command);
+        return async.submit(key, copy(key), command);
+    }
+    
+    @Override
+    public <T> Future<Void> notifyConcurrently(Key<T> key, Procedure<? super T> command) {
+        Preconditions.checkNotNull(key, "Key");
+        Preconditions.checkNotNull(command, "Command");
+        LOG.trace("Concurrently notifying all listeners for {} using {}", key, command);
+        return concurrent.submit(key, copy(key), command);
+    }
+
+    @Override
+    public <T> void notifyParallel(Key<T> key, Procedure<? super T> command) {
+        Preconditions.checkNotNull(key, "Key");
+        Preconditions.checkNotNull(command, "Command");
+        LOG.trace("Notifying all listeners for {} in parallel using {}", key, command);
+        parallel.notify(key, copy(key), command, null);
+    }
+    
+    @Override
+    public <T> void notifySilentlyParallel(Key<T> key, Procedure<? super T> command) {
+        Preconditions.checkNotNull(key, "Key");
+        Preconditions.checkNotNull(command, "Command");
+        LOG.trace("Notifying all listeners for {} in parallel using {}", key, command);
+        parallel.notify(key, copy(key), command, failures);
+    }
+
+    @Override
+    public <T> boolean remove(Key<T> key, T listener) {
+        Preconditions.checkNotNull(key, "Key");
+        Preconditions.checkNotNull(listener, "Listener");
+        LOG.trace("Removing {} from {}", listener, key);
+        synchronized (lock) {
+            final Object[] listeners = snapshot(key);
+            final int index = indexOf(listeners, listener);
+            if (index == -1) {
+                return false;
+            }
+            delete(key, listeners, index);
+            return true;
+        }
+    }
+
+    @Override
+    public <T> boolean remove(T listener) {
+        Preconditions.checkNotNull(listener, "Listener");
+        LOG.trace("Removing {}", listener);
+        boolean removed = false;
+        synchronized (lock) {
+            final List<Key<?>> candidates = ImmutableList.copyOf(Iterables.concat(
+                keys.get(listener), keys.get(WeakListener.probe(listener))));
+            for (Key<?> key : candidates) {
+                final Object[] listeners = snapshot(key);
+                final int index = indexOf(listeners, listener);
+                if (index == -1) {
+                    continue;
+                }
+                delete(key, listeners, index);
+                removed = true;
+            }
+        }
+        return removed;
+    }
+    
+    @Override
+    public boolean removeAll(Iterable<?> listeners) {
+        Preconditions.checkNotNull(listeners, "Listeners");
+        final List<?> copy = ImmutableList.copyOf(listeners);
+        LOG.trace("Removing {} listeners", Integer.valueOf(copy.size()));
+        boolean removed = false;
+        synchronized (lock) {
+            // groups the listeners by the keys they are registered for
+            final SetMultimap<Key<?>, Object> candidates = LinkedHashMultimap.create();
+            for (Object listener : copy) {
+                for (Key<?> key : keys.get(listener)) {
+                    candidates.put(key, listener);
+                }
+                for (Key<?> key : keys.get(WeakListener.probe(listener))) {
+                    candidates.put(key, listener);
+                }
+            }
+            for (Map.Entry<Key<?>, Collection<Object>> entry : candidates.asMap().entrySet()) {
+                if (filter(entry.getKey(), entry.getValue())) {
+                    removed = true;
+                }
+            }
+        }
+        return removed;
+    }
+    
+    /**
+     * Removes all specified listeners from key using a single copy of the
+     * current arrays. Requires lock.
+     */
+    private boolean filter(Key<?> key, Collection<Object> removals) {
+        final Object[] listeners = snapshot(key);
+        if (listeners.length == 0) {
+            return false;
+        }
+        final int[] order = priorities.get(key);
+        final long[] registrations = sequences.get(key);
+        final Object[] copy = new Object[listeners.length];
+        final int[] orderCopy = new int[order.length];
+        final long[] registrationsCopy = new long[registrations.length];
+        int size = 0;
+        for (int i = 0; i < listeners.length; i++) {
+            if (matchesAny(listeners[i], removals)) {
+                keys.remove(listeners[i], key);
+            } else {
+                copy[size] = listeners[i];
+                orderCopy[size] = order[i];
+                registrationsCopy[size] = registrations[i];
+                size++;
+            }
+        }
+        if (size == listeners.length) {
+            return false;
+        }
+        update(key, Arrays.copyOf(copy, size), Arrays.copyOf(orderCopy, size), 
+            Arrays.copyOf(registrationsCopy, size));
+        return true;
+    }
+    
+    private static boolean matchesAny(Object element, Collection<Object> listeners) {
+        for (Object listener : listeners) {
+            if (WeakListener.matches(element, listener)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public <T> Iterable<T> removeAll(Key<T> key) {
+        Preconditions.checkNotNull(key, "Key");
+        LOG.trace("Removing all listeners from {}", key);
+        final Object[] listeners;
+        synchronized (lock) {
+            listeners = mapping.get(key);
+            if (listeners != null) {
+                for (Object element : listeners) {
+                    keys.remove(element, key);
+                }
+            }
+            update(key, EMPTY, NO_PRIORITIES, NO_SEQUENCES);
+        }
+        if (listeners == null) {
+            return ImmutableList.of();
+        } else {
+            return live(listeners);
+        }
+    }
+
+    @Override
+    public List<Key<?>> getKeys(Class<?> type, Predicate<? super Object> predicate) {
+        Preconditions.checkNotNull(type, "Type");
+        Preconditions.checkNotNull(predicate, "Predicate");
+        final Iterable<Key<?>> indexed = metas.lookup(type, predicate);
+        final Iterable<Key<?>> keys = indexed == null ? types.get(type) : indexed;
+        final Iterable<Key<?>> candidates = keys == null ? ImmutableList.<Key<?>>of() : keys;
+        final ImmutableList.Builder<Key<?>> builder = ImmutableList.builder();
+        for (Key<?> key : candidates) {
+            if (predicate.apply(key.getMeta())) {
+                builder.add(key);
+            }
+        }
+        return builder.build();
+    }
+
+    @Override
+    public List<Object> getDispatch(Key<?> key) {
+        Preconditions.checkNotNull(key, "Key");
+        return live(dispatch(key));
+    }
+
+    @Override
+    public Map<Key<?>, List<Object>> getTopology() {
+        final ImmutableMap.Builder<Key<?>, List<Object>> builder = ImmutableMap.builder();
+        for (Map.Entry<Key<?>, Object[]> entry : mapping.entrySet()) {
+            builder.put(entry.getKey(), live(entry.getValue()));
+        }
+        return builder.build();
+    }
+
+}
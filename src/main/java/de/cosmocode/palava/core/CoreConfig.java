@@ -33,6 +33,14 @@ public final class CoreConfig {
     
     public static final String REINJECTABLE_ASPECTS = PREFIX + "reinjectableAspects";
     
+    public static final String REGISTRY_PARALLEL_THRESHOLD = PREFIX + "registry.parallelThreshold";
+    
+    public static final String REGISTRY_HIERARCHICAL = PREFIX + "registry.hierarchical";
+    
+    public static final String REGISTRY_CONCURRENCY_LIMIT = PREFIX + "registry.concurrencyLimit";
+    
+    public static final String REGISTRY_FAILURE_INTERVAL = PREFIX + "registry.failureInterval";
+    
     private CoreConfig() {
         
     }
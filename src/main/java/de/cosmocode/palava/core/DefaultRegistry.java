@@ -16,25 +16,46 @@
 
 package de.cosmocode.palava.core;
 
+import com.google.common.base.Function;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Predicate;
-import com.google.common.base.Throwables;
+import com.google.common.base.Predicates;
 import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.HashBasedTable;
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
+import com.google.common.collect.Iterators;
 import com.google.common.collect.LinkedHashMultimap;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Multimap;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Multimaps;
 import com.google.common.collect.SetMultimap;
+import com.google.common.collect.Sets;
+import com.google.common.collect.Table;
+import com.google.common.primitives.Ints;
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
 import de.cosmocode.collections.Procedure;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.lang.reflect.InvocationHandler;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
 import java.util.Iterator;
-import java.util.Map.Entry;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
 
 /**
  * Default implementation of the {@link Registry} interface.
@@ -42,45 +63,328 @@ import java.util.Map.Entry;
  * @author Willi Schoenborn
  * @since 2.0
  */
-final class DefaultRegistry extends AbstractRegistry {
+final class DefaultRegistry extends AbstractRegistry implements Topology {
 
     private static final Logger LOG = LoggerFactory.getLogger(DefaultRegistry.class);
-
-    private static final Method TO_STRING;
-    private static final Method EQUALS;
-    private static final Method HASHCODE;
-
-    static {
-        try {
-            TO_STRING = Object.class.getMethod("toString");
-            EQUALS = Object.class.getMethod("equals", Object.class);
-            HASHCODE = Object.class.getMethod("hashCode");
-        } catch (NoSuchMethodException e) {
-            throw new ExceptionInInitializerError(e);
-        }
-    }
+    
+    // maximum number of collected listeners being expunged per operation
+    private static final int EXPUNGE_LIMIT = 64;
+    
+    private static final Object[] EMPTY = {};
 
     private final Multimap<Key<? extends Object>, Object> mapping;
 
+    // guarded by mapping
+    private final SetMultimap<Class<?>, Key<?>> types = LinkedHashMultimap.create();
+    
+    // immutable copies of types, republished on every change, read without locking
+    private final ConcurrentMap<Class<?>, Set<Key<?>>> typed = new ConcurrentHashMap<Class<?>, Set<Key<?>>>();
+    
+    // modified while holding mapping
+    private final MetaIndex metas;
+    
+    // guarded by mapping
+    private final Table<Key<?>, Object, Integer> priorities = HashBasedTable.create();
+    
+    // guarded by mapping, reverse index of mapping, weak listeners are matched by identity
+    private final SetMultimap<Object, Key<?>> keys = HashMultimap.create();
+    
+    // listeners per key in notification order, rebuilt on every modification
+    private final ConcurrentMap<Key<?>, Object[]> sorted = new ConcurrentHashMap<Key<?>, Object[]>();
+
+    private volatile FailureLog failures = new FailureLog();
+
+    private final ProxyCache proxies = new ProxyCache(this, failures);
+
+    private final AsyncNotifier async = new AsyncNotifier();
+    
+    private final ParallelNotifier parallel = new ParallelNotifier();
+    
+    private final ConcurrentNotifier concurrent = new ConcurrentNotifier();
+    
+    private final ReferenceQueue<Object> queue = new ReferenceQueue<Object>();
+    
+    private final DispatchCache tables = new DispatchCache(new Function<Key<?>, Object[]>() {
+        
+        @Override
+        public Object[] apply(Key<?> key) {
+            return flatten(key);
+        }
+        
+    });
+    
+    private volatile boolean hierarchical;
+
     public DefaultRegistry() {
         final SetMultimap<Key<? extends Object>, Object> multimap = LinkedHashMultimap.create();
         this.mapping = Multimaps.synchronizedSetMultimap(multimap);
+        this.metas = new MetaIndex(mapping, new Function<Class<?>, Iterable<Key<?>>>() {
+            
+            @Override
+            public Iterable<Key<?>> apply(Class<?> type) {
+                return types.get(type);
+            }
+            
+        });
+    }
+
+    @Inject(optional = true)
+    void setAsyncExecutor(@AsyncExecutor Executor executor) {
+        async.setExecutor(executor);
+    }
+    
+    @Inject(optional = true)
+    void setParallelExecutor(@ParallelExecutor Executor executor) {
+        parallel.setExecutor(executor);
+    }
+    
+    @Inject(optional = true)
+    void setParallelThreshold(@Named(CoreConfig.REGISTRY_PARALLEL_THRESHOLD) int threshold) {
+        parallel.setThreshold(threshold);
+    }
+    
+    @Inject(optional = true)
+    void setConcurrentExecutor(@ConcurrentExecutor Executor executor) {
+        concurrent.setExecutor(executor);
+    }
+    
+    @Inject(optional = true)
+    void setConcurrencyLimit(@Named(CoreConfig.REGISTRY_CONCURRENCY_LIMIT) int limit) {
+        concurrent.setLimit(limit);
+    }
+    
+    @Inject(optional = true)
+    void setFailureLog(FailureLog failures) {
+        this.failures = Preconditions.checkNotNull(failures, "Failures");
+        proxies.setFailureLog(failures);
+    }
+
+    @Inject(optional = true)
+    void setHierarchical(@Named(CoreConfig.REGISTRY_HIERARCHICAL) boolean hierarchical) {
+        this.hierarchical = hierarchical;
+    }
+
+    private Object[] elements(Key<?> key) {
+        final Object[] elements = sorted.get(key);
+        return elements == null ? EMPTY : elements;
+    }
+    
+    /**
+     * Provides the elements being notified for the specified key.
+     */
+    private Object[] dispatch(Key<?> key) {
+        return hierarchical ? tables.get(key) : elements(key);
+    }
+    
+    private <T> List<T> snapshot(Key<T> key) {
+        return live(dispatch(key));
+    }
+    
+    /**
+     * Computes the dispatch table of the specified key, starting with
+     * the listeners registered for key itself.
+     */
+    private Object[] flatten(Key<?> key) {
+        final List<Object[]> elements = Lists.newArrayList();
+        final List<int[]> order = Lists.newArrayList();
+        synchronized (mapping) {
+            collect(key, elements, order);
+            for (Key<?> candidate : tables.candidates(key)) {
+                if (!candidate.equals(key)) {
+                    collect(candidate, elements, order);
+                }
+            }
+        }
+        return DispatchCache.flatten(elements, order);
+    }
+    
+    // requires lock on mapping
+    private void collect(Key<?> key, List<Object[]> elements, List<int[]> order) {
+        final Object[] array = elements(key);
+        final int[] priority = new int[array.length];
+        for (int i = 0; i < array.length; i++) {
+            priority[i] = priorities.get(key, array[i]);
+        }
+        elements.add(array);
+        order.add(priority);
+    }
+    
+    /**
+     * Copies all listeners in the specified elements, unwrapping weakly
+     * referenced ones and skipping those which have been garbage collected.
+     */
+    private static <T> List<T> live(Object[] elements) {
+        @SuppressWarnings("unchecked")
+        final Iterable<T> listeners = (Iterable<T>) Iterables.filter(
+            Iterables.transform(Arrays.asList(elements), WeakListener.UNWRAP), Predicates.notNull());
+        return ImmutableList.copyOf(listeners);
+    }
+    
+    /**
+     * Removes collected weak listeners. Does at most {@link #EXPUNGE_LIMIT}
+     * removals to keep the overhead per operation bounded.
+     */
+    private void expunge() {
+        for (int i = 0; i < EXPUNGE_LIMIT; i++) {
+            final Reference<?> reference = queue.poll();
+            if (reference == null) return;
+            final WeakListener listener = WeakListener.class.cast(reference);
+            LOG.trace("Expunging collected listener from {}", listener.getKey());
+            synchronized (mapping) {
+                if (removeElement(listener.getKey(), listener)) {
+                    rebuild(listener.getKey());
+                }
+            }
+        }
+    }
+    
+    /**
+     * Rebuilds the notification order of the specified key. Sorting is stable,
+     * listeners with equal priorities stay in registration order.
+     * Requires lock on mapping.
+     */
+    private void rebuild(final Key<?> key) {
+        final Collection<Object> elements = mapping.get(key);
+        tables.invalidate(key);
+        if (elements.isEmpty()) {
+            sorted.remove(key);
+            return;
+        }
+        final Object[] array = elements.toArray();
+        Arrays.sort(array, new Comparator<Object>() {
+            
+            @Override
+            public int compare(Object left, Object right) {
+                return Ints.compare(priorities.get(key, left), priorities.get(key, right));
+            }
+            
+        });
+        sorted.put(key, array);
+    }
+    
+    // requires lock on mapping
+    private void publish(Class<?> type) {
+        final Set<Key<?>> current = types.get(type);
+        if (current.isEmpty()) {
+            typed.remove(type);
+        } else {
+            typed.put(type, ImmutableSet.copyOf(current));
+        }
+    }
+    
+    // requires lock on mapping, does not rebuild the notification order
+    private void putElement(Key<?> key, Object element, int priority) {
+        if (mapping.put(key, element)) {
+            if (types.put(key.getType(), key)) {
+                publish(key.getType());
+                metas.add(key);
+                tables.add(key);
+            }
+            keys.put(element, key);
+        }
+        priorities.put(key, element, priority);
+    }
+    
+    // requires lock on mapping, does not rebuild the notification order
+    private boolean removeElement(Key<?> key, Object element) {
+        if (!mapping.remove(key, element)) {
+            return false;
+        }
+        priorities.remove(key, element);
+        keys.remove(element, key);
+        if (!mapping.containsKey(key) && types.remove(key.getType(), key)) {
+            publish(key.getType());
+            metas.remove(key);
+            tables.remove(key);
+        }
+        return true;
+    }
+    
+    // requires lock on mapping, removes listener from all keys it is registered for
+    private void removeElements(Object listener, Set<Key<?>> touched) {
+        final WeakListener probe = WeakListener.probe(listener);
+        for (Key<?> key : ImmutableList.copyOf(keys.get(listener))) {
+            if (removeElement(key, listener)) {
+                touched.add(key);
+            }
+        }
+        for (Key<?> key : ImmutableList.copyOf(keys.get(probe))) {
+            if (removeElement(key, probe)) {
+                touched.add(key);
+            }
+        }
     }
 
     @Override
-    public <T> void register(Key<T> key, T listener) {
+    public <T> void register(Key<T> key, T listener, int priority) {
         Preconditions.checkNotNull(key, "Key");
         Preconditions.checkNotNull(listener, "Listener");
         LOG.trace("Registering {} for {}", listener, key);
-        mapping.put(key, listener);
+        expunge();
+        synchronized (mapping) {
+            // replaces a weak registration of the same listener
+            removeElement(key, WeakListener.probe(listener));
+            putElement(key, listener, priority);
+            rebuild(key);
+        }
+    }
+    
+    @Override
+    public void registerAll(Multimap<? extends Key<?>, ?> listeners) {
+        Preconditions.checkNotNull(listeners, "Listeners");
+        // validate the whole batch before touching any state
+        final List<Map.Entry<Key<?>, Object>> entries = Lists.newArrayList();
+        for (Map.Entry<? extends Key<?>, ?> entry : listeners.entries()) {
+            final Key<?> key = entry.getKey();
+            entries.add(Maps.<Key<?>, Object>immutableEntry(key, checkInstance(key, entry.getValue())));
+        }
+        LOG.trace("Registering {} listeners", Integer.valueOf(entries.size()));
+        expunge();
+        synchronized (mapping) {
+            final Set<Key<?>> touched = Sets.newLinkedHashSet();
+            for (Map.Entry<Key<?>, Object> entry : entries) {
+                final Key<?> key = entry.getKey();
+                final Object listener = entry.getValue();
+                removeElement(key, WeakListener.probe(listener));
+                putElement(key, listener, priorityOf(listener));
+                touched.add(key);
+            }
+            for (Key<?> key : touched) {
+                rebuild(key);
+            }
+        }
+    }
+    
+    @Override
+    public <T> void registerWeak(Key<T> key, T listener) {
+        Preconditions.checkNotNull(key, "Key");
+        Preconditions.checkNotNull(listener, "Listener");
+        LOG.trace("Weakly registering {} for {}", listener, key);
+        expunge();
+        synchronized (mapping) {
+            if (mapping.containsEntry(key, listener) || mapping.containsEntry(key, WeakListener.probe(listener))) {
+                return;
+            }
+            putElement(key, new WeakListener(key, listener, queue), priorityOf(listener));
+            rebuild(key);
+        }
     }
 
     @Override
-    public <T> Iterable<T> getListeners(Key<T> key) {
+    public <T> Iterable<T> getListeners(final Key<T> key) {
         Preconditions.checkNotNull(key, "Key");
-        @SuppressWarnings("unchecked")
-        final Iterable<T> listeners = (Iterable<T>) mapping.get(key);
-        return Iterables.unmodifiableIterable(listeners);
+        return new Iterable<T>() {
+            
+            @Override
+            public Iterator<T> iterator() {
+                @SuppressWarnings("unchecked")
+                final Iterator<T> listeners = (Iterator<T>) Iterators.filter(
+                    Iterators.transform(Iterators.forArray(elements(key)), WeakListener.UNWRAP),
+                    Predicates.notNull());
+                return listeners;
+            }
+            
+        };
     }
 
     @Override
@@ -92,23 +396,29 @@ final class DefaultRegistry extends AbstractRegistry {
 
             @Override
             public Iterator<T> iterator() {
+                final Iterable<Key<?>> indexed = metas.lookup(type, predicate);
+                final List<Key<?>> keys = ImmutableList.copyOf(indexed == null ? typed(type) : indexed);
+                
                 return new AbstractIterator<T>() {
 
-                    private final Iterator<Entry<Key<?>, Object>> iterator =
-                        mapping.entries().iterator();
+                    private final Iterator<Key<?>> iterator = keys.iterator();
+                    
+                    private Iterator<Object> listeners = ImmutableList.of().iterator();
 
                     @Override
                     protected T computeNext() {
-                        while (iterator.hasNext()) {
-                            final Entry<Key<?>, Object> entry = iterator.next();
-                            final Key<?> key = entry.getKey();
-                            if (key.getType() == type && predicate.apply(key.getMeta())) {
-                                @SuppressWarnings("unchecked")
-                                final T listener = (T) entry.getValue();
-                                return listener;
+                        while (!listeners.hasNext()) {
+                            if (!iterator.hasNext()) {
+                                return endOfData();
+                            }
+                            final Key<?> key = iterator.next();
+                            if (predicate.apply(key.getMeta())) {
+                                listeners = live(elements(key)).iterator();
                             }
                         }
-                        return endOfData();
+                        @SuppressWarnings("unchecked")
+                        final T listener = (T) listeners.next();
+                        return listener;
                     }
 
                 };
@@ -119,139 +429,33 @@ final class DefaultRegistry extends AbstractRegistry {
 
     @Override
     public <T> T proxy(final Key<T> key) {
-        return proxy(key, false);
+        return proxies.get(key, ProxyMode.NOTIFY);
     }
 
     @Override
     public <T> T silentProxy(Key<T> key) {
-        return proxy(key, true);
+        return proxies.get(key, ProxyMode.SILENT);
     }
-
-    private <T> T proxy(Key<T> key, boolean silent) {
-        Preconditions.checkNotNull(key, "Key");
-        Preconditions.checkArgument(key.getType().isInterface(), "Type must be an interface");
-        Preconditions.checkArgument(!key.getType().isAnnotation(), "Type must not be an annotation");
-
-        final ClassLoader loader = getClass().getClassLoader();
-        final Class<?>[] interfaces = {key.getType()};
-        final InvocationHandler handler = new ProxyHandler<T>(key, silent);
-
-        @SuppressWarnings("unchecked")
-        final T proxy = (T) java.lang.reflect.Proxy.newProxyInstance(loader, interfaces, handler);
-        LOG.debug("Created proxy for {}", key);
-        return proxy;
-    }
-
-    /**
-     * Inner class allowing to encapsulate proxy invocation handling.
-     *
-     * @param <T>
-     * @author Willi Schoenborn
-     */
-    private final class ProxyHandler<T> implements InvocationHandler {
-
-        private final Key<T> key;
-
-        private final boolean silent;
-
-        public ProxyHandler(Key<T> key, boolean silent) {
-            this.key = Preconditions.checkNotNull(key, "Key");
-            this.silent = silent;
-        }
-
-        @Override
-        public Object invoke(Object proxy, final Method method, final Object[] args) {
-            if (method.equals(TO_STRING)) {
-                return String.format("%s.proxy(%s)", DefaultRegistry.this, key);
-            } else if (method.equals(EQUALS)) {
-                return equals(args[0]);
-            } else if (method.equals(HASHCODE)) {
-                return hashCode();
-            } else if (method.getReturnType() == void.class) {
-                final Procedure<T> procedure = new Procedure<T>() {
-
-                    @Override
-                    public void apply(T listener) {
-                        try {
-                            method.invoke(listener, args);
-                        } catch (IllegalAccessException e) {
-                            throw new AssertionError(e);
-                        } catch (InvocationTargetException e) {
-                            throw propagate(e.getCause(), method.getExceptionTypes());
-                        }
-                    }
-
-                };
-                if (silent) {
-                    DefaultRegistry.this.notifySilently(key, procedure);
-                } else {
-                    DefaultRegistry.this.notify(key, procedure);
-                }
-                return null;
-            } else {
-                throw new IllegalStateException(String.format("%s must return void", method));
-            }
-        }
-
-        private RuntimeException propagate(Throwable throwable, Class<?>[] types) {
-            Throwables.propagateIfPossible(throwable);
-
-            @SuppressWarnings("unchecked")
-            final Class<? extends RuntimeException>[] exceptionTypes = Class[].class.cast(types);
-
-            for (Class<? extends RuntimeException> type : exceptionTypes) {
-                Throwables.propagateIfInstanceOf(throwable, type);
-            }
-
-            throw Throwables.propagate(throwable);
-        }
-
-        @Override
-        public int hashCode() {
-            final int prime = 31;
-            int result = 1;
-            result = prime * result + getOuterType().hashCode();
-            result = prime * result + ((key == null) ? 0 : key.hashCode());
-            return result;
-        }
-
-        @Override
-        public boolean equals(Object obj) {
-            if (this == obj) {
-                return true;
-            }
-            if (obj == null) {
-                return false;
-            }
-            if (!(obj instanceof ProxyHandler<?>)) {
-                return false;
-            }
-            final ProxyHandler<?> other = (ProxyHandler<?>) obj;
-            if (!getOuterType().equals(other.getOuterType())) {
-                return false;
-            }
-            if (key == null) {
-                if (other.key != null) {
-                    return false;
-                }
-            } else if (!key.equals(other.key)) {
-                return false;
-            }
-            return true;
-        }
-
-        private DefaultRegistry getOuterType() {
-            return DefaultRegistry.this;
-        }
-
+    
+    @Override
+    public <T> T asyncProxy(Key<T> key) {
+        return proxies.get(key, ProxyMode.ASYNC);
     }
 
     @Override
     public <T> void notify(Key<T> key, Procedure<? super T> command) {
         Preconditions.checkNotNull(key, "Key");
         Preconditions.checkNotNull(command, "Command");
+        if (isParallel(key)) {
+            notifyParallel(key, command);
+            return;
+        }
         LOG.trace("Notifying all listeners for {} using {}", key, command);
-        for (T listener : getListeners(key)) {
+        expunge();
+        for (Object element : dispatch(key)) {
+            @SuppressWarnings("unchecked")
+            final T listener = (T) WeakListener.unwrap(element);
+            if (listener == null) continue;
             LOG.trace("notifying {} for {}", listener, key);
             command.apply(listener);
         }
@@ -266,40 +470,157 @@ final class DefaultRegistry extends AbstractRegistry {
     public <T> void notifySilently(Key<T> key, Procedure<? super T> command) {
         Preconditions.checkNotNull(key, "Key");
         Preconditions.checkNotNull(command, "Command");
+        if (isParallel(key)) {
+            notifySilentlyParallel(key, command);
+            return;
+        }
         LOG.trace("Notifying all listeners for {} using {}", key, command);
-        for (T listener : getListeners(key)) {
+        expunge();
+        for (Object element : dispatch(key)) {
+            @SuppressWarnings("unchecked")
+            final T listener = (T) WeakListener.unwrap(element);
+            if (listener == null) continue;
             LOG.trace("notifying {} for {}", listener, key);
             try {
                 command.apply(listener);
                 /*CHECKSTYLE:OFF*/
             } catch (RuntimeException e) {
                 /*CHECKSTYLE:ON*/
-                LOG.error("Notifying listener failed", e);
+                failures.report(key, listener, e);
             }
         }
     }
 
+    @Override
+    public <T> Future<Void> notifyAsync(Key<T> key, Procedure<? super T> command) {
+        Preconditions.checkNotNull(key, "Key");
+        Preconditions.checkNotNull(command, "Command");
+        LOG.trace("Asynchronously notifying all listeners for {} using {}", key, command);
+        return async.submit(key, snapshot(key), command);
+    }
+    
+    @Override
+    public <T> Future<Void> notifyConcurrently(Key<T> key, Procedure<? super T> command) {
+        Preconditions.checkNotNull(key, "Key");
+        Preconditions.checkNotNull(command, "Command");
+        LOG.trace("Concurrently notifying all listeners for {} using {}", key, command);
+        return concurrent.submit(key, snapshot(key), command);
+    }
+
+    @Override
+    public <T> void notifyParallel(Key<T> key, Procedure<? super T> command) {
+        Preconditions.checkNotNull(key, "Key");
+        Preconditions.checkNotNull(command, "Command");
+        LOG.trace("Notifying all listeners for {} in parallel using {}", key, command);
+        parallel.notify(key, snapshot(key), command, null);
+    }
+    
+    @Override
+    public <T> void notifySilentlyParallel(Key<T> key, Procedure<? super T> command) {
+        Preconditions.checkNotNull(key, "Key");
+        Preconditions.checkNotNull(command, "Command");
+        LOG.trace("Notifying all listeners for {} in parallel using {}", key, command);
+        parallel.notify(key, snapshot(key), command, failures);
+    }
+
     @Override
     public <T> boolean remove(Key<T> key, T listener) {
         Preconditions.checkNotNull(key, "Key");
         Preconditions.checkNotNull(listener, "Listener");
         LOG.trace("Removing {} from {}", listener, key);
-        return mapping.remove(key, listener);
+        synchronized (mapping) {
+            if (removeElement(key, listener) || removeElement(key, WeakListener.probe(listener))) {
+                rebuild(key);
+                return true;
+            } else {
+                return false;
+            }
+        }
     }
 
     @Override
     public <T> boolean remove(T listener) {
         Preconditions.checkNotNull(listener, "Listener");
         LOG.trace("Removing {}", listener);
-        return mapping.values().removeAll(ImmutableSet.of(listener));
+        synchronized (mapping) {
+            final Set<Key<?>> touched = Sets.newHashSet();
+            removeElements(listener, touched);
+            for (Key<?> key : touched) {
+                rebuild(key);
+            }
+            return !touched.isEmpty();
+        }
+    }
+    
+    @Override
+    public boolean removeAll(Iterable<?> listeners) {
+        Preconditions.checkNotNull(listeners, "Listeners");
+        final List<?> copy = ImmutableList.copyOf(listeners);
+        LOG.trace("Removing {} listeners", Integer.valueOf(copy.size()));
+        synchronized (mapping) {
+            final Set<Key<?>> touched = Sets.newHashSet();
+            for (Object listener : copy) {
+                removeElements(listener, touched);
+            }
+            for (Key<?> key : touched) {
+                rebuild(key);
+            }
+            return !touched.isEmpty();
+        }
     }
 
     @Override
-    @SuppressWarnings("unchecked")
     public <T> Iterable<T> removeAll(Key<T> key) {
         Preconditions.checkNotNull(key, "Key");
         LOG.trace("Removing all listeners from {}", key);
-        return (Iterable<T>) mapping.removeAll(key);
+        synchronized (mapping) {
+            if (types.remove(key.getType(), key)) {
+                publish(key.getType());
+                metas.remove(key);
+                tables.remove(key);
+            }
+            priorities.row(key).clear();
+            for (Object element : mapping.removeAll(key)) {
+                keys.remove(element, key);
+            }
+            final Object[] removed = sorted.remove(key);
+            return DefaultRegistry.<T>live(removed == null ? EMPTY : removed);
+        }
+    }
+
+    private Set<Key<?>> typed(Class<?> type) {
+        final Set<Key<?>> snapshot = typed.get(type);
+        return snapshot == null ? ImmutableSet.<Key<?>>of() : snapshot;
+    }
+
+    @Override
+    public List<Key<?>> getKeys(Class<?> type, Predicate<? super Object> predicate) {
+        Preconditions.checkNotNull(type, "Type");
+        Preconditions.checkNotNull(predicate, "Predicate");
+        final Iterable<Key<?>> indexed = metas.lookup(type, predicate);
+        final Iterable<Key<?>> candidates = indexed == null ? typed(type) : indexed;
+        final ImmutableList.Builder<Key<?>> builder = ImmutableList.builder();
+        for (Key<?> key : candidates) {
+            if (predicate.apply(key.getMeta())) {
+                builder.add(key);
+            }
+        }
+        return builder.build();
+    }
+
+    @Override
+    public List<Object> getDispatch(Key<?> key) {
+        Preconditions.checkNotNull(key, "Key");
+        return live(dispatch(key));
+    }
+
+    @Override
+    public Map<Key<?>, List<Object>> getTopology() {
+        final ImmutableMap.Builder<Key<?>, List<Object>> builder = ImmutableMap.builder();
+        for (Map.Entry<Key<?>, Object[]> entry : sorted.entrySet()) {
+            builder.put(entry.getKey(), live(entry.getValue()));
+        }
+        return builder.build();
     }
 
 }
@@ -16,21 +16,159 @@
 
 package de.cosmocode.palava.core;
 
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Preconditions;
 import com.google.inject.Binder;
 import com.google.inject.Module;
+import com.google.inject.Provider;
 import com.google.inject.Singleton;
 
+import de.cosmocode.palava.core.SealableRegistry.Policy;
+
 /**
  * Binds the {@link Registry} to the {@link DefaultRegistry}.
+ * 
+ * <p>
+ *   Use {@link #concurrent()} to bind a registry which is optimized
+ *   for read-dominated notify traffic or {@link #sharded()} to bind a registry
+ *   which is optimized for heavy register/remove churn instead. Use {@link #instrumented()}
+ *   to decorate the registry with an {@link InstrumentedRegistry} and {@link #sealed(Policy)}
+ *   to freeze its topology once the framework has been started. Use {@link #timeout(long, TimeUnit, boolean)}
+ *   to enforce a deadline per listener invocation.
+ * </p>
  *
  * @since 2.3
  * @author Willi Schoenborn
  */
 public final class DefaultRegistryModule implements Module {
 
+    private final Class<? extends Registry> implementation;
+    
+    private final boolean instrumented;
+    
+    // null if not sealable
+    private final Policy policy;
+    
+    // in nanoseconds, zero if no deadline is enforced
+    private final long timeout;
+    
+    private final boolean quarantine;
+    
+    public DefaultRegistryModule() {
+        this(DefaultRegistry.class, false, null, 0, false);
+    }
+    
+    private DefaultRegistryModule(Class<? extends Registry> implementation, boolean instrumented, Policy policy,
+        long timeout, boolean quarantine) {
+        this.implementation = Preconditions.checkNotNull(implementation, "Implementation");
+        this.instrumented = instrumented;
+        this.policy = policy;
+        this.timeout = timeout;
+        this.quarantine = quarantine;
+    }
+    
+    /**
+     * Creates a module which binds the {@link Registry} to a lock-free
+     * copy-on-write implementation. Notifying listeners neither locks nor
+     * allocates, while every register/remove copies the listeners of the
+     * affected key. Use this module if notifications heavily outnumber
+     * registrations.
+     * 
+     * @since 2.12
+     * @return a new module binding the concurrent registry
+     */
+    public static DefaultRegistryModule concurrent() {
+        return new DefaultRegistryModule(ConcurrentRegistry.class, false, null, 0, false);
+    }
+    
+    /**
+     * Creates a module which binds the {@link Registry} to an implementation
+     * which stripes keys across independently locked segments. Registrations,
+     * removals and notifications of keys in different segments do not contend.
+     * Use this module if listeners are registered and removed frequently
+     * from many threads.
+     * 
+     * @since 2.12
+     * @return a new module binding the sharded registry
+     */
+    public static DefaultRegistryModule sharded() {
+        return new DefaultRegistryModule(ShardedRegistry.class, false, null, 0, false);
+    }
+    
+    /**
+     * Creates a module which binds the same implementation as this module
+     * decorated by an {@link InstrumentedRegistry}, recording dispatch statistics
+     * which are exposed by the {@link RegistryMonitorModule}.
+     * 
+     * @since 2.12
+     * @return a new module binding an instrumented registry
+     */
+    public DefaultRegistryModule instrumented() {
+        return new DefaultRegistryModule(implementation, true, policy, timeout, quarantine);
+    }
+    
+    /**
+     * Creates a module which binds the same implementation as this module
+     * decorated by a {@link SealableRegistry}, which compiles all registrations
+     * into immutable tables on {@link de.cosmocode.palava.core.event.PostFrameworkStart}.
+     * Use this module if all listeners are registered during boot.
+     * 
+     * @since 2.12
+     * @param policy the policy for modifications after sealing
+     * @return a new module binding a sealable registry
+     * @throws NullPointerException if policy is null
+     */
+    public DefaultRegistryModule sealed(Policy policy) {
+        Preconditions.checkNotNull(policy, "Policy");
+        return new DefaultRegistryModule(implementation, instrumented, policy, timeout, quarantine);
+    }
+    
+    /**
+     * Creates a module which binds the same implementation as this module
+     * decorated by a {@link TimeoutRegistry}, which abandons listeners exceeding
+     * the specified deadline per invocation.
+     * 
+     * @since 2.12
+     * @param deadline the global deadline per listener invocation
+     * @param unit the unit of deadline
+     * @param quarantineOverruns true if overrun listeners should be skipped by further notifications
+     * @return a new module binding a registry enforcing deadlines
+     * @throws NullPointerException if unit is null
+     * @throws IllegalArgumentException if deadline is not positive
+     */
+    public DefaultRegistryModule timeout(long deadline, TimeUnit unit, boolean quarantineOverruns) {
+        Preconditions.checkArgument(deadline > 0, "Deadline must be positive, but was %s", deadline);
+        Preconditions.checkNotNull(unit, "Unit");
+        return new DefaultRegistryModule(implementation, instrumented, policy, unit.toNanos(deadline), 
+            quarantineOverruns);
+    }
+
     @Override
     public void configure(Binder binder) {
-        binder.bind(Registry.class).to(DefaultRegistry.class).in(Singleton.class);
+        if (instrumented || policy != null || timeout > 0) {
+            binder.bind(implementation).in(Singleton.class);
+            final Provider<? extends Registry> provider = binder.getProvider(implementation);
+            final Provider<FailureLog> failures = binder.getProvider(FailureLog.class);
+            binder.bind(Registry.class).toProvider(new Provider<Registry>() {
+                
+                @Override
+                public Registry get() {
+                    Registry registry = provider.get();
+                    if (policy != null) {
+                        registry = new SealableRegistry(registry, policy, failures.get());
+                    }
+                    if (timeout > 0) {
+                        registry = new TimeoutRegistry(registry, timeout, TimeUnit.NANOSECONDS, quarantine, 
+                            failures.get());
+                    }
+                    return instrumented ? new InstrumentedRegistry(registry) : registry;
+                }
+                
+            }).in(Singleton.class);
+        } else {
+            binder.bind(Registry.class).to(implementation).in(Singleton.class);
+        }
     }
 
 }
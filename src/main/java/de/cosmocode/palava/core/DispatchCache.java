@@ -0,0 +1,263 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.core;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.base.Function;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.primitives.Ints;
+
+import de.cosmocode.palava.core.Registry.Key;
+
+/**
+ * Caches flattened dispatch tables used for hierarchical notification.
+ * 
+ * <p>
+ *   The dispatch table of a key contains all listeners registered for
+ *   keys with the same meta information whose type is the key's type or
+ *   one of its subtypes, ordered by priority and free of duplicates.
+ *   Tables are computed lazily by a loader.
+ * </p>
+ * 
+ * <p>
+ *   The owning registry announces keys gaining their first or losing their last
+ *   listener using {@link #add(Key)} and {@link #remove(Key)}, which maintain an index
+ *   from every supertype of a registered key to the key. Loaders use this index by
+ *   calling {@link #candidates(Key)}. {@link #invalidate(Key)} discards only the tables of
+ *   the supertypes of a modified key. Keys without any candidates have an empty table,
+ *   which is never cached.
+ * </p>
+ *
+ * @since 2.12
+ * @author Willi Schoenborn
+ */
+final class DispatchCache {
+
+    private static final Comparator<Candidate> BY_PRIORITY = new Comparator<Candidate>() {
+        
+        @Override
+        public int compare(Candidate left, Candidate right) {
+            return Ints.compare(left.priority, right.priority);
+        }
+        
+    };
+    
+    private static final Object[] EMPTY = {};
+    
+    private final ConcurrentMap<Key<?>, Object[]> tables = Maps.newConcurrentMap();
+    
+    // modified while holding the lock of the owning registry, registered keys per key of a supertype
+    private final ConcurrentMap<Key<?>, Set<Key<?>>> candidates = Maps.newConcurrentMap();
+    
+    // guarded by the lock of the owning registry, the supertype keys of every registered key
+    private final Map<Key<?>, List<Key<?>>> supertypes = Maps.newHashMap();
+    
+    private final AtomicLong generation = new AtomicLong();
+    
+    private final Function<Key<?>, Object[]> loader;
+    
+    public DispatchCache(Function<Key<?>, Object[]> loader) {
+        this.loader = Preconditions.checkNotNull(loader, "Loader");
+    }
+    
+    /**
+     * Provides the dispatch table of the specified key, loading it if necessary.
+     * 
+     * @param key the binding key
+     * @return the dispatch table, containing listeners and weak references to listeners
+     */
+    public Object[] get(Key<?> key) {
+        final Object[] cached = tables.get(key);
+        if (cached != null) {
+            return cached;
+        } else if (!candidates.containsKey(key)) {
+            return EMPTY;
+        }
+        
+        final long current = generation.get();
+        final Object[] table = loader.apply(key);
+        tables.put(key, table);
+        if (generation.get() != current) {
+            // modified concurrently, the table may already be stale
+            tables.remove(key, table);
+        }
+        return table;
+    }
+    
+    /**
+     * Provides all registered keys whose listeners are part of the dispatch table
+     * of the specified key, including key itself if it is registered.
+     * Requires the lock of the owning registry.
+     * 
+     * @param key the notified key
+     * @return all keys included by key, in registration order
+     */
+    public Set<Key<?>> candidates(Key<?> key) {
+        final Set<Key<?>> keys = candidates.get(key);
+        return keys == null ? Collections.<Key<?>>emptySet() : keys;
+    }
+    
+    /**
+     * Adds the specified key, which gained its first listener, to the dispatch
+     * tables of all its supertypes. Requires the lock of the owning registry.
+     * 
+     * @param key the registered key
+     */
+    public void add(Key<?> key) {
+        final List<Key<?>> indices = Lists.newArrayList();
+        for (Class<?> type : supertypesOf(key.getType())) {
+            final Key<?> index = keyOf(type, key.getMeta());
+            Set<Key<?>> keys = candidates.get(index);
+            if (keys == null) {
+                keys = Sets.newLinkedHashSet();
+                candidates.put(index, keys);
+            }
+            keys.add(key);
+            indices.add(index);
+        }
+        supertypes.put(key, indices);
+        invalidate(key);
+    }
+    
+    /**
+     * Removes the specified key, which lost its last listener, from the dispatch
+     * tables of all its supertypes. Requires the lock of the owning registry.
+     * 
+     * @param key the unregistered key
+     */
+    public void remove(Key<?> key) {
+        invalidate(key);
+        final List<Key<?>> indices = supertypes.remove(key);
+        if (indices == null) return;
+        for (Key<?> index : indices) {
+            final Set<Key<?>> keys = candidates.get(index);
+            keys.remove(key);
+            if (keys.isEmpty()) {
+                candidates.remove(index);
+            }
+        }
+    }
+    
+    /**
+     * Discards the cached dispatch tables containing the listeners of the specified key.
+     * Requires the lock of the owning registry.
+     * 
+     * @param key the modified key
+     */
+    public void invalidate(Key<?> key) {
+        generation.incrementAndGet();
+        final List<Key<?>> indices = supertypes.get(key);
+        if (indices == null) {
+            tables.remove(key);
+        } else {
+            for (Key<?> index : indices) {
+                tables.remove(index);
+            }
+        }
+    }
+    
+    /**
+     * Provides the specified type, all its superclasses and all implemented interfaces.
+     */
+    static Set<Class<?>> supertypesOf(Class<?> type) {
+        final Set<Class<?>> supertypes = Sets.newLinkedHashSet();
+        collect(type, supertypes);
+        // interfaces are assignable to object as well
+        supertypes.add(Object.class);
+        return supertypes;
+    }
+    
+    private static void collect(Class<?> type, Set<Class<?>> supertypes) {
+        if (type == null || !supertypes.add(type)) return;
+        collect(type.getSuperclass(), supertypes);
+        for (Class<?> implemented : type.getInterfaces()) {
+            collect(implemented, supertypes);
+        }
+    }
+    
+    /**
+     * Provides the key of the specified type and meta information.
+     */
+    @SuppressWarnings("unchecked")
+    static Key<?> keyOf(Class<?> type, Object meta) {
+        return meta == null ? Key.get((Class<Object>) type) : Key.get((Class<Object>) type, meta);
+    }
+    
+    /**
+     * Merges the notification order of multiple keys into a single dispatch table.
+     * Listeners are stable sorted by priority, listeners registered for multiple keys
+     * are kept once, using their first position. Collected weak listeners are dropped.
+     * 
+     * @param elements the elements of every key, each in notification order
+     * @param priorities the priorities of every key, parallel to elements
+     * @return the flattened dispatch table
+     */
+    static Object[] flatten(List<Object[]> elements, List<int[]> priorities) {
+        final List<Candidate> candidates = Lists.newArrayList();
+        for (int i = 0; i < elements.size(); i++) {
+            final Object[] array = elements.get(i);
+            final int[] order = priorities.get(i);
+            for (int j = 0; j < array.length; j++) {
+                candidates.add(new Candidate(array[j], order[j]));
+            }
+        }
+        
+        final Candidate[] sorted = candidates.toArray(new Candidate[candidates.size()]);
+        Arrays.sort(sorted, BY_PRIORITY);
+        
+        final Set<Object> seen = Sets.newHashSet();
+        final List<Object> table = Lists.newArrayListWithCapacity(sorted.length);
+        for (Candidate candidate : sorted) {
+            final Object listener = WeakListener.unwrap(candidate.element);
+            if (listener != null && seen.add(listener)) {
+                table.add(candidate.element);
+            }
+        }
+        return table.toArray();
+    }
+    
+    /**
+     * A registered element and its priority.
+     *
+     * @since 2.12
+     * @author Willi Schoenborn
+     */
+    private static final class Candidate {
+        
+        private final Object element;
+        
+        private final int priority;
+        
+        public Candidate(Object element, int priority) {
+            this.element = element;
+            this.priority = priority;
+        }
+        
+    }
+    
+}
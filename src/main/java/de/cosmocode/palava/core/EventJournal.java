@@ -0,0 +1,437 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.core;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import de.cosmocode.collections.Procedure;
+import de.cosmocode.palava.core.lifecycle.Disposable;
+import de.cosmocode.palava.core.lifecycle.LifecycleException;
+
+/**
+ * An append-only log of binary records, stored in memory mapped segment files.
+ * 
+ * <p>
+ *   {@link #append(ByteBuffer)} copies a record into the current segment and returns
+ *   its offset, it never waits for the disk. A dedicated flusher thread forces all
+ *   modified segments to disk once per configured interval, which makes every record
+ *   appended during that interval durable using a single flush (group commit).
+ *   Callers which need durability can wait for it using {@link #awaitFlushed(long, long, TimeUnit)}.
+ * </p>
+ * 
+ * <p>
+ *   Offsets are positions in the logical stream of all segments. Each segment
+ *   is named after the offset of its first record. Every record carries its length and
+ *   a checksum. On startup the journal continues after the last intact record of the
+ *   latest segment, records torn by a crash are discarded.
+ * </p>
+ * 
+ * <p>
+ *   Segments are kept until they are released using {@link #truncate(long)}, e.g. once
+ *   their records have been replayed into a snapshot.
+ * </p>
+ *
+ * @since 2.12
+ * @author Willi Schoenborn
+ */
+public final class EventJournal implements Disposable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(EventJournal.class);
+    
+    private static final ThreadFactory FACTORY = new ThreadFactoryBuilder()
+        .setNameFormat("palava-event-journal-%d").setDaemon(true).build();
+    
+    private static final String SUFFIX = ".journal";
+    
+    // length and checksum
+    private static final int HEADER = 8;
+    
+    private final File directory;
+    
+    private final int segmentSize;
+    
+    private final long interval;
+    
+    // base offset -> segment
+    private final NavigableMap<Long, MappedByteBuffer> segments = new ConcurrentSkipListMap<Long, MappedByteBuffer>();
+    
+    // guarded by this
+    private final CRC32 checksum = new CRC32();
+    
+    // guarded by this
+    private MappedByteBuffer current;
+    
+    // guarded by this
+    private long base;
+    
+    // the offset behind the last appended record, written while holding this
+    private volatile long end;
+    
+    // the offset behind the last record forced to disk
+    private volatile long flushed;
+    
+    private final Object flushLock = new Object();
+    
+    private final Thread flusher;
+    
+    private volatile boolean running = true;
+    
+    /**
+     * Opens the journal in the specified directory and starts its flusher thread.
+     * 
+     * @param directory the directory containing the segment files, created if necessary
+     * @param segmentSize the size of a segment in bytes
+     * @param interval the maximum time between two flushes
+     * @param unit the unit of interval
+     * @throws NullPointerException if directory or unit is null
+     * @throws IllegalArgumentException if segmentSize or interval is not positive
+     * @throws IOException if creating or mapping a segment failed
+     */
+    public EventJournal(File directory, int segmentSize, long interval, TimeUnit unit) throws IOException {
+        Preconditions.checkNotNull(directory, "Directory");
+        Preconditions.checkArgument(segmentSize > HEADER, "Segment size %s is too small", segmentSize);
+        Preconditions.checkArgument(interval > 0, "Interval %s must be positive", interval);
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.interval = Preconditions.checkNotNull(unit, "Unit").toNanos(interval);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException(String.format("Unable to create %s", directory));
+        }
+        recover();
+        this.flusher = FACTORY.newThread(new Runnable() {
+            
+            @Override
+            public void run() {
+                flush();
+            }
+            
+        });
+        flusher.start();
+    }
+    
+    private void recover() throws IOException {
+        final File[] files = directory.listFiles(new FileFilter() {
+            
+            @Override
+            public boolean accept(File file) {
+                return file.getName().endsWith(SUFFIX);
+            }
+            
+        });
+        for (File file : files) {
+            final String name = file.getName();
+            final long offset;
+            try {
+                offset = Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+            } catch (NumberFormatException e) {
+                LOG.warn("Ignoring {}", file);
+                continue;
+            }
+            segments.put(offset, map(file, file.length()));
+        }
+        
+        if (segments.isEmpty()) {
+            roll(0L);
+            return;
+        }
+        
+        base = segments.lastKey();
+        current = segments.lastEntry().getValue();
+        int position = 0;
+        while (valid(current, position, null)) {
+            position += HEADER + current.getInt(position);
+        }
+        // discards torn and stale records behind the last intact one
+        for (int i = position; i < current.capacity(); i++) {
+            current.put(i, (byte) 0);
+        }
+        current.position(position);
+        end = base + position;
+        flushed = end;
+        LOG.info("Recovered {} segments of {}, continuing at {}", new Object[] {segments.size(), directory, end});
+    }
+    
+    private static MappedByteBuffer map(File file, long size) throws IOException {
+        Preconditions.checkArgument(size <= Integer.MAX_VALUE, "%s is too large", file);
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            return raf.getChannel().map(MapMode.READ_WRITE, 0, size);
+        } finally {
+            raf.close();
+        }
+    }
+    
+    // requires this or construction
+    private void roll(long offset) throws IOException {
+        final File file = fileOf(offset);
+        LOG.debug("Rolling {} to {}", directory, file);
+        final MappedByteBuffer segment = map(file, segmentSize);
+        segments.put(offset, segment);
+        current = segment;
+        base = offset;
+    }
+    
+    private File fileOf(long offset) {
+        return new File(directory, String.format("%020d%s", offset, SUFFIX));
+    }
+    
+    /**
+     * Checks whether the segment contains an intact record at position.
+     * 
+     * @param segment the segment
+     * @param position the position of the record
+     * @param scratch a buffer used to copy the record or null to use a temporary one
+     * @return true if the record is intact
+     */
+    private static boolean valid(ByteBuffer segment, int position, byte[] scratch) {
+        if (position > segment.capacity() - HEADER) return false;
+        final int length = segment.getInt(position);
+        if (length <= 0 || length > segment.capacity() - HEADER - position) return false;
+        final byte[] bytes = scratch == null ? new byte[length] : scratch;
+        final ByteBuffer view = segment.duplicate();
+        view.position(position + HEADER);
+        view.get(bytes, 0, length);
+        final CRC32 crc = new CRC32();
+        crc.update(bytes, 0, length);
+        return (int) crc.getValue() == segment.getInt(position + 4);
+    }
+    
+    /**
+     * Appends the remaining bytes of the specified record. Does not wait for the disk.
+     * 
+     * @param record the record
+     * @return the offset of the appended record
+     * @throws NullPointerException if record is null
+     * @throws IllegalArgumentException if record is empty or exceeds the segment size
+     * @throws IllegalStateException if this journal has been disposed
+     * @throws IOException if creating the next segment failed
+     */
+    public synchronized long append(ByteBuffer record) throws IOException {
+        Preconditions.checkNotNull(record, "Record");
+        Preconditions.checkState(running, "%s has been disposed", this);
+        final int length = record.remaining();
+        Preconditions.checkArgument(length > 0, "Record must not be empty");
+        Preconditions.checkArgument(length <= segmentSize - HEADER, "Record of %s bytes exceeds the segment size", 
+            length);
+        
+        if (current.remaining() < HEADER + length) {
+            roll(end);
+        }
+        
+        checksum.reset();
+        if (record.hasArray()) {
+            checksum.update(record.array(), record.arrayOffset() + record.position(), length);
+        } else {
+            final byte[] bytes = new byte[length];
+            record.duplicate().get(bytes);
+            checksum.update(bytes, 0, length);
+        }
+        
+        final long offset = end;
+        current.putInt(length);
+        current.putInt((int) checksum.getValue());
+        current.put(record);
+        end = base + current.position();
+        return offset;
+    }
+    
+    /**
+     * Reads all records starting at the specified offset up to the current end
+     * of this journal. The buffer passed to reader is only valid during the call.
+     * Records before {@link #getStart()} have been truncated and are skipped.
+     * 
+     * @param offset an offset returned by {@link #append(ByteBuffer)} or {@link #replay(long, Procedure)}, or 0
+     * @param reader the procedure invoked with every record
+     * @return the offset behind the last record read
+     * @throws NullPointerException if reader is null
+     * @throws IllegalArgumentException if offset is negative or beyond the end of this journal
+     */
+    public long replay(long offset, Procedure<? super ByteBuffer> reader) {
+        Preconditions.checkNotNull(reader, "Reader");
+        final long limit = end;
+        Preconditions.checkArgument(offset >= 0 && offset <= limit, "Offset %s is out of bounds", offset);
+        long next = Math.max(offset, segments.firstKey());
+        byte[] scratch = new byte[0];
+        while (next < limit) {
+            final Map.Entry<Long, MappedByteBuffer> entry = segments.floorEntry(next);
+            if (entry == null) {
+                LOG.warn("No segment contains offset {}", next);
+                break;
+            }
+            final MappedByteBuffer segment = entry.getValue();
+            final int position = (int) (next - entry.getKey());
+            final Long following = segments.higherKey(entry.getKey());
+            if (position > segment.capacity() - HEADER || segment.getInt(position) == 0) {
+                if (following == null) break;
+                // the remainder of this segment is unused
+                next = following;
+                continue;
+            }
+            final int length = segment.getInt(position);
+            if (length > scratch.length && length <= segment.capacity()) {
+                scratch = new byte[length];
+            }
+            if (!valid(segment, position, scratch)) {
+                LOG.warn("Corrupted record at {}, stopping replay", next);
+                break;
+            }
+            reader.apply(ByteBuffer.wrap(scratch, 0, length));
+            next += HEADER + length;
+        }
+        return next;
+    }
+    
+    /**
+     * Deletes all segments which only contain records before the specified offset.
+     * The current segment and records which have not been forced to disk yet are
+     * always retained. Java offers no way to unmap a segment explicitly, its mapping
+     * is released once the segment has been garbage collected.
+     * 
+     * @param offset the offset of the first record which has to be retained
+     * @return the offset of the first retained record, see {@link #getStart()}
+     * @throws IllegalArgumentException if offset is negative
+     */
+    public synchronized long truncate(long offset) {
+        Preconditions.checkArgument(offset >= 0, "Offset %s must not be negative", offset);
+        final long limit = Math.min(offset, flushed);
+        while (true) {
+            final long first = segments.firstKey();
+            final Long following = segments.higherKey(first);
+            if (following == null || following > limit) break;
+            segments.remove(first);
+            final File file = fileOf(first);
+            if (file.delete()) {
+                LOG.debug("Deleted {}", file);
+            } else {
+                LOG.warn("Unable to delete {}, deleting it on exit", file);
+                file.deleteOnExit();
+            }
+        }
+        return segments.firstKey();
+    }
+    
+    /**
+     * Provides the offset of the first record which has not been truncated.
+     * 
+     * @return the start of this journal
+     */
+    public long getStart() {
+        return segments.firstKey();
+    }
+    
+    /**
+     * Provides the offset behind the last appended record.
+     * 
+     * @return the end of this journal
+     */
+    public long getEnd() {
+        return end;
+    }
+    
+    /**
+     * Provides the offset behind the last record which has been forced to disk.
+     * 
+     * @return the durable end of this journal
+     */
+    public long getFlushed() {
+        return flushed;
+    }
+    
+    /**
+     * Waits until all records up to the specified offset have been forced to disk.
+     * 
+     * @param offset the offset
+     * @param timeout the maximum time to wait
+     * @param unit the unit of timeout
+     * @return true if offset is durable, false if the timeout elapsed
+     * @throws InterruptedException if the current thread has been interrupted while waiting
+     */
+    public boolean awaitFlushed(long offset, long timeout, TimeUnit unit) throws InterruptedException {
+        Preconditions.checkNotNull(unit, "Unit");
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        synchronized (flushLock) {
+            while (flushed <= offset && flushed < end) {
+                final long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) return false;
+                TimeUnit.NANOSECONDS.timedWait(flushLock, remaining);
+            }
+            return true;
+        }
+    }
+    
+    private void flush() {
+        while (running) {
+            LockSupport.parkNanos(interval);
+            force();
+        }
+        force();
+        LOG.debug("Flusher of {} stopped", this);
+    }
+    
+    private void force() {
+        final long target = end;
+        if (target == flushed) return;
+        // forces every segment which may contain records appended since the last flush
+        for (MappedByteBuffer segment : segments.tailMap(segments.floorKey(flushed), true).values()) {
+            segment.force();
+        }
+        synchronized (flushLock) {
+            flushed = target;
+            flushLock.notifyAll();
+        }
+    }
+    
+    /**
+     * Stops the flusher thread after forcing all appended records to disk.
+     */
+    @Override
+    public void dispose() throws LifecycleException {
+        running = false;
+        LockSupport.unpark(flusher);
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new LifecycleException(e);
+        }
+    }
+    
+    @Override
+    public String toString() {
+        return String.format("EventJournal [directory=%s, segmentSize=%s]", directory, segmentSize);
+    }
+    
+}
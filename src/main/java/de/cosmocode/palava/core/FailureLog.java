@@ -0,0 +1,362 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.core;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.MapMaker;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+
+import de.cosmocode.collections.Procedure;
+import de.cosmocode.palava.core.Registry.Key;
+import de.cosmocode.palava.core.lifecycle.Disposable;
+import de.cosmocode.palava.core.lifecycle.Initializable;
+
+/**
+ * Aggregates failures of silent notifications, like {@link Registry#notifySilently(Key, Procedure)}.
+ * 
+ * <p>
+ *   Failures are aggregated per key, listener and exception type. The first failure
+ *   of an aggregate is logged including its stack trace. Further failures are only
+ *   counted and summarized at most once per interval, using the latest failure as a sample.
+ *   This keeps a listener which breaks during an event storm from flooding the logs.
+ *   Pending summaries are written by {@link #dispose()} and, once their interval passed,
+ *   by the next failure of the same aggregate. Between {@link #initialize()} and
+ *   {@link #dispose()} a background task writes them even if no further failure occurs.
+ *   Aggregates are available using {@link #getFailures()}, e.g. for health checks.
+ * </p>
+ * 
+ * <p>
+ *   Registries use the bound instance of this class, listeners are held weakly.
+ * </p>
+ *
+ * @since 2.12
+ * @author Willi Schoenborn
+ */
+@Singleton
+public final class FailureLog implements Initializable, Disposable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(FailureLog.class);
+    
+    private static final long DEFAULT_INTERVAL = 60;
+    
+    // period of the background task writing pending summaries
+    private static final long FLUSH_PERIOD = 1;
+    
+    // weak identity keys, failures never prevent listeners from being collected
+    private final ConcurrentMap<Object, ConcurrentMap<Signature, Failure>> listeners = 
+        new MapMaker().weakKeys().makeMap();
+    
+    private volatile long interval = TimeUnit.SECONDS.toNanos(DEFAULT_INTERVAL);
+    
+    // guarded by this, running between initialize and dispose
+    private ScheduledExecutorService flusher;
+    
+    /**
+     * Sets the minimum interval between two summaries of the same aggregate.
+     * 
+     * @param seconds the interval in seconds
+     * @throws IllegalArgumentException if seconds is negative
+     */
+    @Inject(optional = true)
+    public void setInterval(@Named(CoreConfig.REGISTRY_FAILURE_INTERVAL) long seconds) {
+        Preconditions.checkArgument(seconds >= 0, "Interval must not be negative, but was %s", seconds);
+        this.interval = TimeUnit.SECONDS.toNanos(seconds);
+    }
+    
+    /**
+     * Reports a failed listener invocation.
+     * 
+     * @param key the notified key
+     * @param listener the failed listener
+     * @param e the failure
+     * @throws NullPointerException if key, listener or e is null
+     */
+    public void report(Key<?> key, Object listener, Throwable e) {
+        Preconditions.checkNotNull(key, "Key");
+        Preconditions.checkNotNull(listener, "Listener");
+        Preconditions.checkNotNull(e, "Throwable");
+        
+        ConcurrentMap<Signature, Failure> failures = listeners.get(listener);
+        if (failures == null) {
+            final ConcurrentMap<Signature, Failure> created = Maps.newConcurrentMap();
+            final ConcurrentMap<Signature, Failure> existing = listeners.putIfAbsent(listener, created);
+            failures = existing == null ? created : existing;
+        }
+        
+        final Signature signature = new Signature(key, e.getClass());
+        final Failure failure = failures.get(signature);
+        if (failure == null) {
+            final Failure created = new Failure(key, listener.toString(), e);
+            final Failure existing = failures.putIfAbsent(signature, created);
+            if (existing == null) {
+                LOG.error(String.format("Notifying %s for %s failed", listener, key), e);
+                return;
+            } else {
+                existing.record(e, interval);
+            }
+        } else {
+            failure.record(e, interval);
+        }
+    }
+    
+    /**
+     * Provides all aggregated failures.
+     * 
+     * @return an immutable snapshot of all failures
+     */
+    public List<Failure> getFailures() {
+        final ImmutableList.Builder<Failure> builder = ImmutableList.builder();
+        for (Map<Signature, Failure> failures : listeners.values()) {
+            builder.addAll(failures.values());
+        }
+        return builder.build();
+    }
+    
+    /**
+     * Discards all aggregated failures.
+     */
+    public void reset() {
+        listeners.clear();
+    }
+    
+    /**
+     * Writes the summaries of all aggregates with pending failures.
+     * 
+     * @param force true to ignore the interval of each aggregate
+     */
+    void flush(boolean force) {
+        for (Map<Signature, Failure> failures : listeners.values()) {
+            for (Failure failure : failures.values()) {
+                failure.summarize(interval, force);
+            }
+        }
+    }
+    
+    /**
+     * Starts the background task writing pending summaries. Does nothing
+     * if the task is already running.
+     */
+    @Override
+    public synchronized void initialize() {
+        if (flusher != null) return;
+        flusher = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("palava-failure-log-%d").setDaemon(true).build());
+        flusher.scheduleWithFixedDelay(new Runnable() {
+            
+            @Override
+            public void run() {
+                flush(false);
+            }
+            
+        }, FLUSH_PERIOD, FLUSH_PERIOD, TimeUnit.SECONDS);
+    }
+    
+    /**
+     * Stops the background task and writes the summaries of all aggregates
+     * with pending failures, regardless of their interval.
+     */
+    @Override
+    public void dispose() {
+        synchronized (this) {
+            if (flusher != null) {
+                flusher.shutdown();
+                flusher = null;
+            }
+        }
+        flush(true);
+    }
+    
+    /**
+     * Identifies an aggregate of a single listener.
+     *
+     * @since 2.12
+     * @author Willi Schoenborn
+     */
+    private static final class Signature {
+        
+        private final Key<?> key;
+        
+        private final Class<?> type;
+        
+        public Signature(Key<?> key, Class<?> type) {
+            this.key = key;
+            this.type = type;
+        }
+        
+        @Override
+        public int hashCode() {
+            return 31 * key.hashCode() + type.hashCode();
+        }
+        
+        @Override
+        public boolean equals(Object that) {
+            if (this == that) {
+                return true;
+            } else if (that instanceof Signature) {
+                final Signature other = Signature.class.cast(that);
+                return key.equals(other.key) && type == other.type;
+            } else {
+                return false;
+            }
+        }
+        
+    }
+    
+    /**
+     * The failures of a single listener for a single key and exception type.
+     *
+     * @since 2.12
+     * @author Willi Schoenborn
+     */
+    public static final class Failure {
+        
+        private final Key<?> key;
+        
+        private final String listener;
+        
+        private final Class<? extends Throwable> type;
+        
+        private final long first = System.currentTimeMillis();
+        
+        private final AtomicLong count = new AtomicLong(1);
+        
+        // failures since the last log statement
+        private final AtomicLong pending = new AtomicLong();
+        
+        private final AtomicLong reported = new AtomicLong(System.nanoTime());
+        
+        private final AtomicReference<Throwable> sample;
+        
+        private volatile long last = first;
+        
+        private Failure(Key<?> key, String listener, Throwable e) {
+            this.key = key;
+            this.listener = listener;
+            this.type = e.getClass();
+            this.sample = new AtomicReference<Throwable>(e);
+        }
+        
+        private void record(Throwable e, long interval) {
+            count.incrementAndGet();
+            pending.incrementAndGet();
+            sample.set(e);
+            last = System.currentTimeMillis();
+            summarize(interval, false);
+        }
+        
+        private void summarize(long interval, boolean force) {
+            if (pending.get() == 0) return;
+            final long now = System.nanoTime();
+            final long previous = reported.get();
+            if (!force && now - previous < interval) return;
+            if (!reported.compareAndSet(previous, now)) return;
+            final long suppressed = pending.getAndSet(0);
+            if (suppressed == 0) return;
+            LOG.error(String.format("Notifying %s for %s failed %s more time(s) with %s within %s seconds, " + 
+                "%s time(s) in total, sample attached", listener, key, suppressed, type.getName(), 
+                TimeUnit.NANOSECONDS.toSeconds(now - previous), count.get()), sample.get());
+        }
+        
+        public Key<?> getKey() {
+            return key;
+        }
+        
+        /**
+         * Provides the string representation of the listener at the time
+         * it failed for the first time.
+         * 
+         * @return the listener's name
+         */
+        public String getListener() {
+            return listener;
+        }
+        
+        public Class<? extends Throwable> getType() {
+            return type;
+        }
+        
+        /**
+         * Provides the total number of failures of this aggregate.
+         * 
+         * @return the number of failures
+         */
+        public long getCount() {
+            return count.get();
+        }
+        
+        /**
+         * Provides the number of failures which have not been summarized in the log yet.
+         * 
+         * @return the number of pending failures
+         */
+        public long getPending() {
+            return pending.get();
+        }
+        
+        /**
+         * Provides the time of the first failure.
+         * 
+         * @return the time of the first failure in milliseconds since the epoch
+         */
+        public long getFirstOccurrence() {
+            return first;
+        }
+        
+        /**
+         * Provides the time of the latest failure.
+         * 
+         * @return the time of the latest failure in milliseconds since the epoch
+         */
+        public long getLastOccurrence() {
+            return last;
+        }
+        
+        /**
+         * Provides the latest failure of this aggregate.
+         * 
+         * @return the latest failure
+         */
+        public Throwable getSample() {
+            return sample.get();
+        }
+        
+        @Override
+        public String toString() {
+            return String.format("Failure [key=%s, listener=%s, type=%s, count=%s]", 
+                key, listener, type.getName(), getCount());
+        }
+        
+    }
+    
+}
@@ -16,8 +16,11 @@
 
 package de.cosmocode.palava.core;
 
+import java.util.concurrent.Future;
+
 import com.google.common.base.Predicate;
 import com.google.common.collect.ForwardingObject;
+import com.google.common.collect.Multimap;
 
 import de.cosmocode.collections.Procedure;
 
@@ -79,6 +82,52 @@ public abstract class ForwardingRegistry extends ForwardingObject implements Reg
         delegate().notifySilently(key, command);
     }
 
+    @Override
+    public <T> Future<Void> notifyAsync(Class<T> type, Procedure<? super T> command) {
+        return delegate().notifyAsync(type, command);
+    }
+    
+    @Override
+    public <T> Future<Void> notifyAsync(Key<T> key, Procedure<? super T> command) {
+        return delegate().notifyAsync(key, command);
+    }
+    
+    @Override
+    public <T> void notifyMatching(Class<T> type, Predicate<? super Object> predicate, 
+        Procedure<? super T> command) {
+        delegate().notifyMatching(type, predicate, command);
+    }
+    
+    @Override
+    public <T> Future<Void> notifyConcurrently(Class<T> type, Procedure<? super T> command) {
+        return delegate().notifyConcurrently(type, command);
+    }
+
+    @Override
+    public <T> Future<Void> notifyConcurrently(Key<T> key, Procedure<? super T> command) {
+        return delegate().notifyConcurrently(key, command);
+    }
+
+    @Override
+    public <T> void notifyParallel(Class<T> type, Procedure<? super T> command) {
+        delegate().notifyParallel(type, command);
+    }
+    
+    @Override
+    public <T> void notifyParallel(Key<T> key, Procedure<? super T> command) {
+        delegate().notifyParallel(key, command);
+    }
+    
+    @Override
+    public <T> void notifySilentlyParallel(Class<T> type, Procedure<? super T> command) {
+        delegate().notifySilentlyParallel(type, command);
+    }
+    
+    @Override
+    public <T> void notifySilentlyParallel(Key<T> key, Procedure<? super T> command) {
+        delegate().notifySilentlyParallel(key, command);
+    }
+
     @Override
     public <T> T proxy(Class<T> type) {
         return delegate().proxy(type);
@@ -99,6 +148,16 @@ public abstract class ForwardingRegistry extends ForwardingObject implements Reg
         return delegate().silentProxy(key);
     }
 
+    @Override
+    public <T> T asyncProxy(Class<T> type) {
+        return delegate().asyncProxy(type);
+    }
+    
+    @Override
+    public <T> T asyncProxy(Key<T> key) {
+        return delegate().asyncProxy(key);
+    }
+
     @Override
     public <T> void register(Class<T> type, T listener) {
         delegate().register(type, listener);
@@ -109,6 +168,31 @@ public abstract class ForwardingRegistry extends ForwardingObject implements Reg
         delegate().register(key, listener);
     }
 
+    @Override
+    public <T> void register(Class<T> type, T listener, int priority) {
+        delegate().register(type, listener, priority);
+    }
+    
+    @Override
+    public <T> void register(Key<T> key, T listener, int priority) {
+        delegate().register(key, listener, priority);
+    }
+    
+    @Override
+    public <T> void registerWeak(Class<T> type, T listener) {
+        delegate().registerWeak(type, listener);
+    }
+    
+    @Override
+    public <T> void registerWeak(Key<T> key, T listener) {
+        delegate().registerWeak(key, listener);
+    }
+
+    @Override
+    public void registerAll(Multimap<? extends Key<?>, ?> listeners) {
+        delegate().registerAll(listeners);
+    }
+
     @Override
     public <T> boolean remove(Class<T> type, T listener) {
         return delegate().remove(type, listener);
@@ -124,6 +208,11 @@ public abstract class ForwardingRegistry extends ForwardingObject implements Reg
         return delegate().remove(listener);
     }
 
+    @Override
+    public boolean removeAll(Iterable<?> listeners) {
+        return delegate().removeAll(listeners);
+    }
+    
     @Override
     public <T> Iterable<T> removeAll(Class<T> type) {
         return delegate().removeAll(type);
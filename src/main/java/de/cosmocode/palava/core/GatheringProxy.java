@@ -0,0 +1,228 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.core;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+
+import com.google.common.base.Defaults;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+import de.cosmocode.palava.core.Reducer.Reduction;
+import de.cosmocode.palava.core.Registry.Key;
+
+/**
+ * Creates scatter-gather proxies, which invoke a method on all listeners of a {@link Key}
+ * and combine their results using a {@link Reducer}.
+ * 
+ * <p>
+ *   Unlike {@link Registry#proxy(Key)} a gathering proxy supports non-void methods.
+ *   Every invocation is dispatched to the listeners registered at invocation time, 
+ *   their results are passed to a new {@link Reduction} whose result is returned.
+ *   As soon as the reduction is decided, e.g. by the first non-null result, remaining
+ *   listeners are skipped, or cancelled if they are invoked in parallel. The same reducer
+ *   is used for all methods of the proxy, void methods are simply invoked on all listeners.
+ *   Null results of methods returning primitives are converted to their default value.
+ * </p>
+ * 
+ * <p>
+ *   A failing listener aborts the invocation and its exception is propagated to the caller,
+ *   like {@link Registry#proxy(Key)} does.
+ * </p>
+ *
+ * @since 2.12
+ * @author Willi Schoenborn
+ */
+public final class GatheringProxy {
+
+    private GatheringProxy() {
+        
+    }
+    
+    /**
+     * Creates a gathering proxy which invokes all listeners sequentially
+     * in notification order on the calling thread.
+     * 
+     * @param <T> the generic type
+     * @param registry the registry providing the listeners
+     * @param key the binding key
+     * @param reducer the reducer combining the results of every invocation
+     * @return a new proxy
+     * @throws NullPointerException if registry, key or reducer is null
+     * @throws IllegalArgumentException if the key's type is not an interface
+     */
+    public static <T> T create(Registry registry, Key<T> key, Reducer<?, ?> reducer) {
+        return newProxy(registry, key, reducer, null);
+    }
+    
+    /**
+     * Creates a gathering proxy which invokes all listeners in parallel using
+     * the specified executor. Results are reduced in the order of completion
+     * on the calling thread. Once the reduction is decided, all pending
+     * invocations are cancelled and interrupted.
+     * 
+     * @param <T> the generic type
+     * @param registry the registry providing the listeners
+     * @param key the binding key
+     * @param reducer the reducer combining the results of every invocation
+     * @param executor the executor used to invoke the listeners
+     * @return a new proxy
+     * @throws NullPointerException if registry, key, reducer or executor is null
+     * @throws IllegalArgumentException if the key's type is not an interface
+     */
+    public static <T> T create(Registry registry, Key<T> key, Reducer<?, ?> reducer, Executor executor) {
+        Preconditions.checkNotNull(executor, "Executor");
+        return newProxy(registry, key, reducer, executor);
+    }
+    
+    private static <T> T newProxy(Registry registry, Key<T> key, Reducer<?, ?> reducer, Executor executor) {
+        Preconditions.checkNotNull(registry, "Registry");
+        Preconditions.checkNotNull(key, "Key");
+        Preconditions.checkNotNull(reducer, "Reducer");
+        Preconditions.checkArgument(key.getType().isInterface(), "Type must be an interface");
+        Preconditions.checkArgument(!key.getType().isAnnotation(), "Type must not be an annotation");
+        
+        final ClassLoader loader = GatheringProxy.class.getClassLoader();
+        final Class<?>[] interfaces = {key.getType()};
+        final InvocationHandler handler = new Handler<T>(registry, key, reducer, executor);
+        
+        @SuppressWarnings("unchecked")
+        final T proxy = (T) java.lang.reflect.Proxy.newProxyInstance(loader, interfaces, handler);
+        return proxy;
+    }
+    
+    /**
+     * {@link InvocationHandler} of gathering proxies.
+     *
+     * @since 2.12
+     * @author Willi Schoenborn
+     * @param <T> the generic proxy type
+     */
+    private static final class Handler<T> implements InvocationHandler {
+        
+        private final Registry registry;
+        
+        private final Key<T> key;
+        
+        private final Reducer<?, ?> reducer;
+        
+        // null if listeners are invoked sequentially
+        private final Executor executor;
+        
+        public Handler(Registry registry, Key<T> key, Reducer<?, ?> reducer, Executor executor) {
+            this.registry = registry;
+            this.key = key;
+            this.reducer = reducer;
+            this.executor = executor;
+            for (Method method : key.getType().getMethods()) {
+                if (!Modifier.isPublic(method.getDeclaringClass().getModifiers())) {
+                    method.setAccessible(true);
+                }
+            }
+        }
+        
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            if (method.getDeclaringClass() == Object.class) {
+                final String name = method.getName();
+                if ("toString".equals(name)) {
+                    return String.format("GatheringProxy(%s, %s)", registry, key);
+                } else if ("equals".equals(name)) {
+                    return Boolean.valueOf(proxy == args[0]);
+                } else {
+                    return Integer.valueOf(System.identityHashCode(proxy));
+                }
+            }
+            
+            @SuppressWarnings("unchecked")
+            final Reduction<Object, Object> reduction = (Reduction<Object, Object>) reducer.newReduction();
+            final List<T> listeners = ImmutableList.copyOf(registry.getListeners(key));
+            if (executor == null || listeners.size() < 2) {
+                for (T listener : listeners) {
+                    if (reduction.add(invokeListener(listener, method, args))) {
+                        break;
+                    }
+                }
+            } else {
+                gather(listeners, method, args, reduction);
+            }
+            
+            if (method.getReturnType() == void.class) {
+                return null;
+            }
+            final Object result = reduction.getResult();
+            return result == null ? Defaults.defaultValue(method.getReturnType()) : result;
+        }
+        
+        private void gather(List<T> listeners, final Method method, final Object[] args, 
+            Reduction<Object, Object> reduction) {
+            
+            final CompletionService<Object> service = new ExecutorCompletionService<Object>(executor);
+            final List<Future<Object>> futures = Lists.newArrayListWithCapacity(listeners.size());
+            try {
+                for (final T listener : listeners) {
+                    futures.add(service.submit(new Callable<Object>() {
+                        
+                        @Override
+                        public Object call() {
+                            return invokeListener(listener, method, args);
+                        }
+                        
+                    }));
+                }
+                for (int i = 0; i < futures.size(); i++) {
+                    if (reduction.add(service.take().get())) {
+                        break;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw ProxyHandler.propagate(e, method.getExceptionTypes());
+            } catch (ExecutionException e) {
+                throw ProxyHandler.propagate(e.getCause(), method.getExceptionTypes());
+            } finally {
+                // cancels all invocations which are still pending
+                for (Future<Object> future : futures) {
+                    future.cancel(true);
+                }
+            }
+        }
+        
+        private Object invokeListener(T listener, Method method, Object[] args) {
+            try {
+                return method.invoke(listener, args);
+            } catch (IllegalAccessException e) {
+                throw new AssertionError(e);
+            } catch (InvocationTargetException e) {
+                throw ProxyHandler.propagate(e.getCause(), method.getExceptionTypes());
+            }
+        }
+        
+    }
+    
+}
@@ -0,0 +1,597 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.core;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Predicate;
+import com.google.common.base.Predicates;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.MapMaker;
+import com.google.common.collect.Maps;
+
+import de.cosmocode.collections.Procedure;
+
+/**
+ * A {@link Registry} decorator which records dispatch metrics.
+ * 
+ * <p>
+ *   For every notified {@link Key} the number of notifications and failed
+ *   listener invocations are counted. For every listener the latency of each
+ *   invocation is recorded in a lock-free histogram. Listeners exceeding the
+ *   configured slow threshold are flagged and logged once. Recording costs two
+ *   {@link System#nanoTime()} calls and a few atomic increments per listener
+ *   invocation, which is cheap enough to be used in production.
+ * </p>
+ * 
+ * <p>
+ *   Failures are counted for all notify methods, including {@link #notifySilently(Key, Procedure)},
+ *   whose failures would otherwise only show up in the logs. Proxies created
+ *   by this registry are instrumented as well.
+ * </p>
+ * 
+ * <p>
+ *   Statistics are recorded for a bounded number of keys, 1024 by default.
+ *   Keys notified for the first time after the limit has been reached are
+ *   not recorded until {@link #reset()} is called.
+ * </p>
+ *
+ * @since 2.12
+ * @author Willi Schoenborn
+ */
+public final class InstrumentedRegistry extends ForwardingRegistry {
+
+    private static final Logger LOG = LoggerFactory.getLogger(InstrumentedRegistry.class);
+    
+    private static final long DEFAULT_SLOW_THRESHOLD = 100;
+    
+    private static final int DEFAULT_MAX_KEYS = 1024;
+    
+    private final Registry registry;
+    
+    private final long slowThreshold;
+    
+    private final int maxKeys;
+    
+    // keys are held strongly, the number of recorded keys is bounded instead
+    private final ConcurrentMap<Key<?>, KeyStatistics> keys = Maps.newConcurrentMap();
+    
+    private final AtomicInteger recorded = new AtomicInteger();
+    
+    private final AtomicBoolean exhausted = new AtomicBoolean();
+    
+    // weak identity keys, statistics never prevent listeners from being collected
+    private final ConcurrentMap<Object, ListenerStatistics> listeners = new MapMaker().weakKeys().makeMap();
+    
+    private final ProxyCache proxies = new ProxyCache(this);
+    
+    /**
+     * Creates a new {@link InstrumentedRegistry} using a slow threshold of 100 milliseconds.
+     * 
+     * @param registry the backing registry
+     * @throws NullPointerException if registry is null
+     */
+    public InstrumentedRegistry(Registry registry) {
+        this(registry, DEFAULT_SLOW_THRESHOLD, TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * Creates a new {@link InstrumentedRegistry}.
+     * 
+     * @param registry the backing registry
+     * @param slowThreshold the latency above which listeners are flagged as slow
+     * @param unit the unit of slowThreshold
+     * @throws NullPointerException if registry or unit is null
+     * @throws IllegalArgumentException if slowThreshold is negative
+     */
+    public InstrumentedRegistry(Registry registry, long slowThreshold, TimeUnit unit) {
+        this(registry, slowThreshold, unit, DEFAULT_MAX_KEYS);
+    }
+    
+    /**
+     * Creates a new {@link InstrumentedRegistry}.
+     * 
+     * @param registry the backing registry
+     * @param slowThreshold the latency above which listeners are flagged as slow
+     * @param unit the unit of slowThreshold
+     * @param maxKeys the maximum number of keys statistics are recorded for
+     * @throws NullPointerException if registry or unit is null
+     * @throws IllegalArgumentException if slowThreshold is negative or maxKeys is not positive
+     */
+    public InstrumentedRegistry(Registry registry, long slowThreshold, TimeUnit unit, int maxKeys) {
+        this.registry = Preconditions.checkNotNull(registry, "Registry");
+        Preconditions.checkArgument(slowThreshold >= 0, "Slow threshold must not be negative");
+        Preconditions.checkNotNull(unit, "Unit");
+        Preconditions.checkArgument(maxKeys > 0, "Max keys must be positive, but was %s", maxKeys);
+        this.slowThreshold = unit.toNanos(slowThreshold);
+        this.maxKeys = maxKeys;
+    }
+    
+    @Override
+    protected Registry delegate() {
+        return registry;
+    }
+    
+    private KeyStatistics statisticsOf(Key<?> key) {
+        final KeyStatistics statistics = keys.get(key);
+        if (statistics != null) {
+            return statistics;
+        }
+        final KeyStatistics created = new KeyStatistics(key);
+        if (recorded.get() >= maxKeys) {
+            if (exhausted.compareAndSet(false, true)) {
+                LOG.warn("Recording statistics of at most {} keys, ignoring {} and further keys", 
+                    Integer.valueOf(maxKeys), key);
+            }
+            // counted but never published
+            return created;
+        }
+        final KeyStatistics existing = keys.putIfAbsent(key, created);
+        if (existing == null) {
+            recorded.incrementAndGet();
+            return created;
+        } else {
+            return existing;
+        }
+    }
+    
+    private ListenerStatistics statisticsOf(Object listener) {
+        final ListenerStatistics statistics = listeners.get(listener);
+        if (statistics == null) {
+            final ListenerStatistics created = new ListenerStatistics(listener.toString());
+            final ListenerStatistics existing = listeners.putIfAbsent(listener, created);
+            return existing == null ? created : existing;
+        } else {
+            return statistics;
+        }
+    }
+    
+    private <T> Procedure<T> instrument(Key<T> key, Procedure<? super T> command) {
+        Preconditions.checkNotNull(key, "Key");
+        Preconditions.checkNotNull(command, "Command");
+        final KeyStatistics statistics = statisticsOf(key);
+        statistics.notifications.incrementAndGet();
+        return new Instrumented<T>(statistics, command);
+    }
+    
+    @Override
+    public <T> void notify(Class<T> type, Procedure<? super T> command) {
+        Preconditions.checkNotNull(type, "Type");
+        notify(Key.get(type), command);
+    }
+    
+    @Override
+    public <T> void notify(Key<T> key, Procedure<? super T> command) {
+        super.notify(key, instrument(key, command));
+    }
+    
+    @Override
+    @SuppressWarnings("deprecation")
+    public <T> void notifySilent(Class<T> type, Procedure<? super T> command) {
+        Preconditions.checkNotNull(type, "Type");
+        notifySilently(Key.get(type), command);
+    }
+    
+    @Override
+    @SuppressWarnings("deprecation")
+    public <T> void notifySilent(Key<T> key, Procedure<? super T> command) {
+        notifySilently(key, command);
+    }
+    
+    @Override
+    public <T> void notifySilently(Class<T> type, Procedure<? super T> command) {
+        Preconditions.checkNotNull(type, "Type");
+        notifySilently(Key.get(type), command);
+    }
+    
+    @Override
+    public <T> void notifySilently(Key<T> key, Procedure<? super T> command) {
+        super.notifySilently(key, instrument(key, command));
+    }
+    
+    @Override
+    public <T> Future<Void> notifyAsync(Class<T> type, Procedure<? super T> command) {
+        Preconditions.checkNotNull(type, "Type");
+        return notifyAsync(Key.get(type), command);
+    }
+    
+    @Override
+    public <T> Future<Void> notifyAsync(Key<T> key, Procedure<? super T> command) {
+        return super.notifyAsync(key, instrument(key, command));
+    }
+    
+    /**
+     * Notifies the listeners of every matching key separately, which records statistics
+     * per key, if the backing registry provides its topology. Statistics are recorded for
+     * the key of type otherwise.
+     */
+    @Override
+    public <T> void notifyMatching(Class<T> type, Predicate<? super Object> predicate, 
+        Procedure<? super T> command) {
+        Preconditions.checkNotNull(type, "Type");
+        Preconditions.checkNotNull(predicate, "Predicate");
+        final Topology topology = topologyOf(registry);
+        if (topology == null) {
+            super.notifyMatching(type, predicate, instrument(Key.get(type), command));
+        } else {
+            for (Key<?> found : topology.getKeys(type, predicate)) {
+                @SuppressWarnings("unchecked")
+                final Key<T> key = (Key<T>) found;
+                final Object meta = key.getMeta();
+                // matches exactly this key, unlike notify which may be hierarchical
+                final Predicate<Object> exact = meta == null ? Predicates.isNull() : Meta.equalTo(meta);
+                super.notifyMatching(type, exact, instrument(key, command));
+            }
+        }
+    }
+    
+    private static Topology topologyOf(Registry registry) {
+        Registry current = registry;
+        while (!(current instanceof Topology) && current instanceof ForwardingRegistry) {
+            current = ForwardingRegistry.class.cast(current).delegate();
+        }
+        return current instanceof Topology ? Topology.class.cast(current) : null;
+    }
+    
+    @Override
+    public <T> Future<Void> notifyConcurrently(Class<T> type, Procedure<? super T> command) {
+        Preconditions.checkNotNull(type, "Type");
+        return notifyConcurrently(Key.get(type), command);
+    }
+    
+    @Override
+    public <T> Future<Void> notifyConcurrently(Key<T> key, Procedure<? super T> command) {
+        return super.notifyConcurrently(key, instrument(key, command));
+    }
+    
+    @Override
+    public <T> void notifyParallel(Class<T> type, Procedure<? super T> command) {
+        Preconditions.checkNotNull(type, "Type");
+        notifyParallel(Key.get(type), command);
+    }
+    
+    @Override
+    public <T> void notifyParallel(Key<T> key, Procedure<? super T> command) {
+        super.notifyParallel(key, instrument(key, command));
+    }
+    
+    @Override
+    public <T> void notifySilentlyParallel(Class<T> type, Procedure<? super T> command) {
+        Preconditions.checkNotNull(type, "Type");
+        notifySilentlyParallel(Key.get(type), command);
+    }
+    
+    @Override
+    public <T> void notifySilentlyParallel(Key<T> key, Procedure<? super T> command) {
+        super.notifySilentlyParallel(key, instrument(key, command));
+    }
+    
+    @Override
+    public <T> T proxy(Class<T> type) {
+        Preconditions.checkNotNull(type, "Type");
+        return proxy(Key.get(type));
+    }
+    
+    @Override
+    public <T> T proxy(Key<T> key) {
+        return proxies.get(key, ProxyMode.NOTIFY);
+    }
+    
+    @Override
+    public <T> T silentProxy(Class<T> type) {
+        Preconditions.checkNotNull(type, "Type");
+        return silentProxy(Key.get(type));
+    }
+    
+    @Override
+    public <T> T silentProxy(Key<T> key) {
+        return proxies.get(key, ProxyMode.SILENT);
+    }
+    
+    @Override
+    public <T> T asyncProxy(Class<T> type) {
+        Preconditions.checkNotNull(type, "Type");
+        return asyncProxy(Key.get(type));
+    }
+    
+    @Override
+    public <T> T asyncProxy(Key<T> key) {
+        return proxies.get(key, ProxyMode.ASYNC);
+    }
+    
+    /**
+     * Provides the statistics of all keys which have been notified so far.
+     * 
+     * @return an immutable snapshot of all key statistics
+     */
+    public Map<Key<?>, KeyStatistics> getKeyStatistics() {
+        return ImmutableMap.copyOf(keys);
+    }
+    
+    /**
+     * Provides the statistics of the specified key.
+     * 
+     * @param key the binding key
+     * @return the statistics of key or null if key has not been notified yet
+     * @throws NullPointerException if key is null
+     */
+    public KeyStatistics getKeyStatistics(Key<?> key) {
+        Preconditions.checkNotNull(key, "Key");
+        return keys.get(key);
+    }
+    
+    /**
+     * Provides the statistics of the specified listener.
+     * 
+     * @param listener the listener
+     * @return the statistics of listener or null if listener has not been notified yet
+     * @throws NullPointerException if listener is null
+     */
+    public ListenerStatistics getListenerStatistics(Object listener) {
+        Preconditions.checkNotNull(listener, "Listener");
+        return listeners.get(listener);
+    }
+    
+    /**
+     * Provides all listeners which have been flagged as slow.
+     * 
+     * @return an immutable snapshot of all slow listeners
+     */
+    public List<Object> getSlowListeners() {
+        final ImmutableList.Builder<Object> builder = ImmutableList.builder();
+        for (Map.Entry<Object, ListenerStatistics> entry : listeners.entrySet()) {
+            if (entry.getValue().isSlow()) {
+                builder.add(entry.getKey());
+            }
+        }
+        return builder.build();
+    }
+    
+    /**
+     * Discards all recorded statistics.
+     */
+    public void reset() {
+        keys.clear();
+        recorded.set(0);
+        exhausted.set(false);
+        listeners.clear();
+    }
+    
+    /**
+     * Dispatch statistics of a single {@link Key}.
+     *
+     * @since 2.12
+     * @author Willi Schoenborn
+     */
+    public static final class KeyStatistics {
+        
+        private final Key<?> key;
+        
+        private final long created = System.nanoTime();
+        
+        private final AtomicLong notifications = new AtomicLong();
+        
+        private final AtomicLong invocations = new AtomicLong();
+        
+        private final AtomicLong failures = new AtomicLong();
+        
+        private KeyStatistics(Key<?> key) {
+            this.key = key;
+        }
+        
+        public Key<?> getKey() {
+            return key;
+        }
+        
+        /**
+         * Provides the number of notify calls for this key.
+         * 
+         * @return the number of notifications
+         */
+        public long getNotifications() {
+            return notifications.get();
+        }
+        
+        /**
+         * Provides the average number of notify calls per second since
+         * this key has been notified for the first time.
+         * 
+         * @return the notification rate per second
+         */
+        public double getNotificationRate() {
+            final long elapsed = Math.max(1L, System.nanoTime() - created);
+            return notifications.get() * (double) TimeUnit.SECONDS.toNanos(1) / elapsed;
+        }
+        
+        /**
+         * Provides the number of listener invocations for this key.
+         * 
+         * @return the number of invocations
+         */
+        public long getInvocations() {
+            return invocations.get();
+        }
+        
+        /**
+         * Provides the number of failed listener invocations for this key.
+         * 
+         * @return the number of failures
+         */
+        public long getFailures() {
+            return failures.get();
+        }
+        
+        @Override
+        public String toString() {
+            return String.format("KeyStatistics [key=%s, notifications=%s, invocations=%s, failures=%s]",
+                key, getNotifications(), getInvocations(), getFailures());
+        }
+        
+    }
+    
+    /**
+     * Dispatch statistics of a single listener.
+     *
+     * @since 2.12
+     * @author Willi Schoenborn
+     */
+    public static final class ListenerStatistics {
+        
+        private final String name;
+        
+        private final LatencyHistogram latencies = new LatencyHistogram();
+        
+        private final AtomicLong failures = new AtomicLong();
+        
+        private final AtomicLong slowInvocations = new AtomicLong();
+        
+        private final AtomicBoolean slow = new AtomicBoolean();
+        
+        private ListenerStatistics(String name) {
+            this.name = name;
+        }
+        
+        /**
+         * Provides the string representation of the listener at the time
+         * it has been notified for the first time.
+         * 
+         * @return the listener's name
+         */
+        public String getName() {
+            return name;
+        }
+        
+        public long getInvocations() {
+            return latencies.getCount();
+        }
+        
+        public long getFailures() {
+            return failures.get();
+        }
+        
+        /**
+         * Provides the number of invocations which exceeded the slow threshold.
+         * 
+         * @return the number of slow invocations
+         */
+        public long getSlowInvocations() {
+            return slowInvocations.get();
+        }
+        
+        /**
+         * Checks whether this listener exceeded the slow threshold at least once.
+         * 
+         * @return true if this listener has been flagged as slow
+         */
+        public boolean isSlow() {
+            return slow.get();
+        }
+        
+        public long getMeanLatency(TimeUnit unit) {
+            return latencies.getMean(unit);
+        }
+        
+        public long getMaxLatency(TimeUnit unit) {
+            return latencies.getMax(unit);
+        }
+        
+        /**
+         * Estimates the specified latency percentile. The estimation is
+         * accurate up to a factor of two.
+         * 
+         * @param percentile the percentile, between 0 and 100
+         * @param unit the unit of the result
+         * @return the estimated latency
+         * @throws IllegalArgumentException if percentile is out of range
+         */
+        public long getLatencyPercentile(double percentile, TimeUnit unit) {
+            return latencies.getPercentile(percentile, unit);
+        }
+        
+        @Override
+        public String toString() {
+            return String.format("ListenerStatistics [name=%s, invocations=%s, failures=%s, slow=%s]",
+                name, getInvocations(), getFailures(), isSlow());
+        }
+        
+    }
+    
+    /**
+     * A procedure which records statistics for every invocation of its delegate.
+     *
+     * @since 2.12
+     * @author Willi Schoenborn
+     * @param <T> the generic listener type
+     */
+    private final class Instrumented<T> implements Procedure<T> {
+        
+        private final KeyStatistics statistics;
+        
+        private final Procedure<? super T> delegate;
+        
+        public Instrumented(KeyStatistics statistics, Procedure<? super T> delegate) {
+            this.statistics = statistics;
+            this.delegate = delegate;
+        }
+        
+        @Override
+        public void apply(T listener) {
+            final ListenerStatistics current = statisticsOf(listener);
+            final long start = System.nanoTime();
+            boolean failed = true;
+            try {
+                delegate.apply(listener);
+                failed = false;
+            } finally {
+                final long latency = System.nanoTime() - start;
+                statistics.invocations.incrementAndGet();
+                current.latencies.record(latency);
+                if (failed) {
+                    statistics.failures.incrementAndGet();
+                    current.failures.incrementAndGet();
+                }
+                if (latency > slowThreshold) {
+                    current.slowInvocations.incrementAndGet();
+                    if (current.slow.compareAndSet(false, true)) {
+                        LOG.warn("Listener {} for {} exceeded slow threshold, took {}ms", new Object[] {
+                            listener, statistics.getKey(), TimeUnit.NANOSECONDS.toMillis(latency)
+                        });
+                    }
+                }
+            }
+        }
+        
+        @Override
+        public String toString() {
+            return delegate.toString();
+        }
+        
+    }
+    
+}
@@ -0,0 +1,352 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.core;
+
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+
+import de.cosmocode.collections.Procedure;
+import de.cosmocode.palava.core.SharedMemoryBridge.Codec;
+
+/**
+ * A {@link Registry} decorator which appends the notifications of selected
+ * keys to an {@link EventJournal} before dispatching them.
+ * 
+ * <p>
+ *   Keys are selected using {@link #journal(Key, String, Codec)}, which assigns a
+ *   channel name and a codec converting the commands passed to the notify methods.
+ *   Commands are therefore expected to carry their event. Every notification of a
+ *   selected key results in one record containing the channel name and the encoded
+ *   command. Appending never waits for the disk, see {@link EventJournal}.
+ *   A notification which can not be journaled, e.g. because its codec fails or
+ *   its record is too large, is logged and dispatched anyway.
+ *   Proxies created by this registry notify through it, their invocations are passed
+ *   to the codec like any other command.
+ *   {@link #notifyMatching(Class, com.google.common.base.Predicate, Procedure)} is not journaled.
+ * </p>
+ * 
+ * <p>
+ *   {@link #replay(long, Registry)} decodes all records starting at an offset and notifies
+ *   them silently to any registry, e.g. a fresh instance used for debugging or recovery.
+ * </p>
+ *
+ * @since 2.12
+ * @author Willi Schoenborn
+ */
+public final class JournalingRegistry extends ForwardingRegistry {
+
+    private static final Logger LOG = LoggerFactory.getLogger(JournalingRegistry.class);
+    
+    private final Registry registry;
+    
+    private final EventJournal journal;
+    
+    private final int size;
+    
+    private final ConcurrentMap<Key<?>, Channel<?>> channels = Maps.newConcurrentMap();
+    
+    private final ConcurrentMap<String, Channel<?>> names = Maps.newConcurrentMap();
+    
+    private final ProxyCache proxies = new ProxyCache(this);
+    
+    private final ThreadLocal<ByteBuffer> buffers = new ThreadLocal<ByteBuffer>() {
+        
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocate(size);
+        }
+        
+    };
+    
+    /**
+     * Creates a new journaling registry.
+     * 
+     * @param registry the backing registry
+     * @param journal the journal receiving all records
+     * @param size the maximum size of a record in bytes
+     * @throws NullPointerException if registry or journal is null
+     * @throws IllegalArgumentException if size is not positive
+     */
+    public JournalingRegistry(Registry registry, EventJournal journal, int size) {
+        Preconditions.checkArgument(size > 0, "Size %s must be positive", size);
+        this.registry = Preconditions.checkNotNull(registry, "Registry");
+        this.journal = Preconditions.checkNotNull(journal, "Journal");
+        this.size = size;
+    }
+    
+    @Override
+    protected Registry delegate() {
+        return registry;
+    }
+    
+    /**
+     * Starts journaling all notifications of the specified key.
+     * 
+     * @param <T> the generic listener type
+     * @param key the binding key
+     * @param name the channel name identifying the key in the journal
+     * @param codec the codec converting commands
+     * @throws NullPointerException if key, name or codec is null
+     * @throws IllegalArgumentException if key is already journaled or name is already in use
+     */
+    public <T> void journal(Key<T> key, String name, Codec<Procedure<? super T>> codec) {
+        final Channel<T> channel = new Channel<T>(key, name, codec);
+        Preconditions.checkArgument(names.putIfAbsent(name, channel) == null, "Name %s is already in use", name);
+        if (channels.putIfAbsent(key, channel) != null) {
+            names.remove(name);
+            throw new IllegalArgumentException(String.format("%s is already journaled", key));
+        }
+    }
+    
+    /**
+     * Provides the underlying journal.
+     * 
+     * @return the journal
+     */
+    public EventJournal getJournal() {
+        return journal;
+    }
+    
+    /**
+     * Notifies all records starting at the specified offset to the given registry using
+     * {@link Registry#notifySilently(Key, Procedure)}. Records of unknown channels or
+     * which can't be decoded are skipped.
+     * 
+     * @param offset the offset of the first record, see {@link EventJournal#replay(long, Procedure)}
+     * @param target the registry being notified
+     * @return the offset behind the last replayed record
+     * @throws NullPointerException if target is null
+     * @throws IllegalArgumentException if offset is out of bounds
+     */
+    public long replay(long offset, final Registry target) {
+        Preconditions.checkNotNull(target, "Target");
+        return journal.replay(offset, new Procedure<ByteBuffer>() {
+            
+            @Override
+            public void apply(ByteBuffer record) {
+                final byte[] bytes = new byte[record.getShort()];
+                record.get(bytes);
+                final String name = new String(bytes, Charsets.UTF_8);
+                final Channel<?> channel = names.get(name);
+                if (channel == null) {
+                    LOG.debug("Skipping record of unknown channel {}", name);
+                } else {
+                    channel.replay(record, target);
+                }
+            }
+            
+        });
+    }
+    
+    private <T> void append(Key<T> key, Procedure<? super T> command) {
+        Preconditions.checkNotNull(key, "Key");
+        Preconditions.checkNotNull(command, "Command");
+        @SuppressWarnings("unchecked")
+        final Channel<T> channel = (Channel<T>) channels.get(key);
+        if (channel == null) return;
+        
+        final ByteBuffer buffer = buffers.get();
+        buffer.clear();
+        try {
+            buffer.putShort((short) channel.name.length);
+            buffer.put(channel.name);
+            channel.codec.encode(command, buffer);
+            buffer.flip();
+            journal.append(buffer);
+        } catch (BufferOverflowException e) {
+            LOG.error(String.format("Unable to journal %s for %s, exceeds the maximum size of %s bytes", 
+                command, key, size), e);
+        } catch (IOException e) {
+            LOG.error(String.format("Unable to journal %s for %s", command, key), e);
+            /*CHECKSTYLE:OFF*/
+        } catch (RuntimeException e) {
+            /*CHECKSTYLE:ON*/
+            LOG.error(String.format("Unable to journal %s for %s", command, key), e);
+        }
+    }
+    
+    @Override
+    public <T> T proxy(Class<T> type) {
+        Preconditions.checkNotNull(type, "Type");
+        return proxy(Key.get(type));
+    }
+    
+    @Override
+    public <T> T proxy(Key<T> key) {
+        return proxies.get(key, ProxyMode.NOTIFY);
+    }
+    
+    @Override
+    public <T> T silentProxy(Class<T> type) {
+        Preconditions.checkNotNull(type, "Type");
+        return silentProxy(Key.get(type));
+    }
+    
+    @Override
+    public <T> T silentProxy(Key<T> key) {
+        return proxies.get(key, ProxyMode.SILENT);
+    }
+    
+    @Override
+    public <T> T asyncProxy(Class<T> type) {
+        Preconditions.checkNotNull(type, "Type");
+        return asyncProxy(Key.get(type));
+    }
+    
+    @Override
+    public <T> T asyncProxy(Key<T> key) {
+        return proxies.get(key, ProxyMode.ASYNC);
+    }
+    
+    @Override
+    public <T> void notify(Class<T> type, Procedure<? super T> command) {
+        Preconditions.checkNotNull(type, "Type");
+        notify(Key.get(type), command);
+    }
+    
+    @Override
+    public <T> void notify(Key<T> key, Procedure<? super T> command) {
+        append(key, command);
+        super.notify(key, command);
+    }
+    
+    @Override
+    @SuppressWarnings("deprecation")
+    public <T> void notifySilent(Class<T> type, Procedure<? super T> command) {
+        Preconditions.checkNotNull(type, "Type");
+        notifySilently(Key.get(type), command);
+    }
+    
+    @Override
+    @SuppressWarnings("deprecation")
+    public <T> void notifySilent(Key<T> key, Procedure<? super T> command) {
+        notifySilently(key, command);
+    }
+    
+    @Override
+    public <T> void notifySilently(Class<T> type, Procedure<? super T> command) {
+        Preconditions.checkNotNull(type, "Type");
+        notifySilently(Key.get(type), command);
+    }
+    
+    @Override
+    public <T> void notifySilently(Key<T> key, Procedure<? super T> command) {
+        append(key, command);
+        super.notifySilently(key, command);
+    }
+    
+    @Override
+    public <T> Future<Void> notifyAsync(Class<T> type, Procedure<? super T> command) {
+        Preconditions.checkNotNull(type, "Type");
+        return notifyAsync(Key.get(type), command);
+    }
+    
+    @Override
+    public <T> Future<Void> notifyAsync(Key<T> key, Procedure<? super T> command) {
+        append(key, command);
+        return super.notifyAsync(key, command);
+    }
+    
+    @Override
+    public <T> Future<Void> notifyConcurrently(Class<T> type, Procedure<? super T> command) {
+        Preconditions.checkNotNull(type, "Type");
+        return notifyConcurrently(Key.get(type), command);
+    }
+    
+    @Override
+    public <T> Future<Void> notifyConcurrently(Key<T> key, Procedure<? super T> command) {
+        append(key, command);
+        return super.notifyConcurrently(key, command);
+    }
+    
+    @Override
+    public <T> void notifyParallel(Class<T> type, Procedure<? super T> command) {
+        Preconditions.checkNotNull(type, "Type");
+        notifyParallel(Key.get(type), command);
+    }
+    
+    @Override
+    public <T> void notifyParallel(Key<T> key, Procedure<? super T> command) {
+        append(key, command);
+        super.notifyParallel(key, command);
+    }
+    
+    @Override
+    public <T> void notifySilentlyParallel(Class<T> type, Procedure<? super T> command) {
+        Preconditions.checkNotNull(type, "Type");
+        notifySilentlyParallel(Key.get(type), command);
+    }
+    
+    @Override
+    public <T> void notifySilentlyParallel(Key<T> key, Procedure<? super T> command) {
+        append(key, command);
+        super.notifySilentlyParallel(key, command);
+    }
+    
+    @Override
+    public String toString() {
+        return String.format("JournalingRegistry [registry=%s, journal=%s]", registry, journal);
+    }
+    
+    /**
+     * A journaled key.
+     *
+     * @since 2.12
+     * @author Willi Schoenborn
+     * @param <T> the generic listener type
+     */
+    private static final class Channel<T> {
+        
+        private final Key<T> key;
+        
+        private final byte[] name;
+        
+        private final Codec<Procedure<? super T>> codec;
+        
+        public Channel(Key<T> key, String name, Codec<Procedure<? super T>> codec) {
+            this.key = Preconditions.checkNotNull(key, "Key");
+            this.name = Preconditions.checkNotNull(name, "Name").getBytes(Charsets.UTF_8);
+            this.codec = Preconditions.checkNotNull(codec, "Codec");
+            Preconditions.checkArgument(this.name.length <= Short.MAX_VALUE, "Name %s is too long", name);
+        }
+        
+        void replay(ByteBuffer record, Registry target) {
+            final Procedure<? super T> command;
+            try {
+                command = codec.decode(record);
+                /*CHECKSTYLE:OFF*/
+            } catch (RuntimeException e) {
+                /*CHECKSTYLE:ON*/
+                LOG.warn(String.format("Unable to decode record of %s", key), e);
+                return;
+            }
+            target.notifySilently(key, command);
+        }
+        
+    }
+    
+}
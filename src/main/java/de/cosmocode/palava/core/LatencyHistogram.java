@@ -0,0 +1,104 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.core;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * A lock-free histogram of latencies using power of two nanosecond buckets.
+ * Bucket {@code i} counts all values in {@code [2^(i-1), 2^i)}, which bounds
+ * the relative error of percentiles to a factor of two while recording
+ * costs a single atomic increment.
+ *
+ * @since 2.12
+ * @author Willi Schoenborn
+ */
+final class LatencyHistogram {
+
+    private static final int BUCKETS = Long.SIZE + 1;
+    
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    
+    private final AtomicLong count = new AtomicLong();
+    
+    private final AtomicLong total = new AtomicLong();
+    
+    private final AtomicLong max = new AtomicLong();
+    
+    /**
+     * Records a single value.
+     * 
+     * @param nanos the latency in nanoseconds, negative values are treated as zero
+     */
+    public void record(long nanos) {
+        final long value = Math.max(0L, nanos);
+        buckets.incrementAndGet(Long.SIZE - Long.numberOfLeadingZeros(value));
+        count.incrementAndGet();
+        total.addAndGet(value);
+        
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+    
+    public long getCount() {
+        return count.get();
+    }
+    
+    public long getMax(TimeUnit unit) {
+        return unit.convert(max.get(), TimeUnit.NANOSECONDS);
+    }
+    
+    public long getMean(TimeUnit unit) {
+        final long n = count.get();
+        return n == 0 ? 0L : unit.convert(total.get() / n, TimeUnit.NANOSECONDS);
+    }
+    
+    /**
+     * Estimates the specified percentile. The result is the upper bound of the
+     * bucket containing the percentile, capped by the maximum recorded value.
+     * 
+     * @param percentile the percentile, between 0 and 100
+     * @param unit the unit of the result
+     * @return the estimated latency, 0 if nothing has been recorded yet
+     * @throws IllegalArgumentException if percentile is out of range
+     */
+    public long getPercentile(double percentile, TimeUnit unit) {
+        Preconditions.checkArgument(percentile >= 0 && percentile <= 100, 
+            "Percentile %s must be between 0 and 100", percentile);
+        final long n = count.get();
+        if (n == 0) {
+            return 0L;
+        }
+        final long rank = Math.max(1L, (long) Math.ceil(n * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += buckets.get(i);
+            if (seen >= rank) {
+                final long upper = i == 0 ? 0L : (1L << i) - 1;
+                return unit.convert(Math.min(upper, max.get()), TimeUnit.NANOSECONDS);
+            }
+        }
+        return getMax(unit);
+    }
+    
+}
@@ -0,0 +1,149 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.core;
+
+import com.google.common.base.Function;
+import com.google.common.base.Objects;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Predicate;
+
+import de.cosmocode.collections.Procedure;
+import de.cosmocode.palava.core.Registry.Key;
+
+/**
+ * Static factory methods for predicates on the meta information of {@link Key}s.
+ * 
+ * <p>
+ *   Predicates created by this class are answered using an index by
+ *   {@link Registry#find(Class, Predicate)} and
+ *   {@link Registry#notifyMatching(Class, Predicate, Procedure)}, which only visit
+ *   the keys matching the predicate. Every other predicate is evaluated against
+ *   all keys of the requested type.
+ * </p>
+ *
+ * @since 2.12
+ * @author Willi Schoenborn
+ */
+public final class Meta {
+
+    private Meta() {
+        
+    }
+    
+    /**
+     * Creates a predicate which matches meta information equal to the specified value.
+     * Lookups using this predicate resolve to a single key.
+     * 
+     * @param meta the meta information
+     * @return a predicate matching meta information equal to meta
+     * @throws NullPointerException if meta is null
+     */
+    public static Predicate<Object> equalTo(Object meta) {
+        Preconditions.checkNotNull(meta, "Meta");
+        return new Match(null, meta);
+    }
+    
+    /**
+     * Creates a predicate which matches meta information if the value provided by the
+     * specified extractor is equal to value. Registries maintain a secondary index per
+     * extractor and type, which is built on the first lookup and updated on every
+     * registration afterwards.
+     * 
+     * <p>
+     *   Extractors are never invoked with null and should return null for meta
+     *   information they do not understand. They must be deterministic and should be
+     *   constants, because every new extractor instance results in a new index. Indices
+     *   are discarded once their extractor is no longer referenced.
+     * </p>
+     * 
+     * @param extractor the function extracting the indexed value from meta information
+     * @param value the expected value
+     * @return a predicate matching meta information whose extracted value is equal to value
+     * @throws NullPointerException if extractor or value is null
+     */
+    public static Predicate<Object> where(Function<Object, ?> extractor, Object value) {
+        Preconditions.checkNotNull(extractor, "Extractor");
+        Preconditions.checkNotNull(value, "Value");
+        return new Match(extractor, value);
+    }
+    
+    /**
+     * Implementation of {@link Meta#equalTo(Object)} and {@link Meta#where(Function, Object)}.
+     *
+     * @since 2.12
+     * @author Willi Schoenborn
+     */
+    static final class Match implements Predicate<Object> {
+        
+        // null if meta information is compared directly
+        private final Function<Object, ?> extractor;
+        
+        private final Object value;
+        
+        private Match(Function<Object, ?> extractor, Object value) {
+            this.extractor = extractor;
+            this.value = value;
+        }
+        
+        Function<Object, ?> getExtractor() {
+            return extractor;
+        }
+        
+        Object getValue() {
+            return value;
+        }
+        
+        @Override
+        public boolean apply(Object meta) {
+            if (meta == null) {
+                return false;
+            } else if (extractor == null) {
+                return value.equals(meta);
+            } else {
+                return value.equals(extractor.apply(meta));
+            }
+        }
+        
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(extractor, value);
+        }
+        
+        @Override
+        public boolean equals(Object that) {
+            if (this == that) {
+                return true;
+            } else if (that instanceof Match) {
+                final Match other = Match.class.cast(that);
+                return Objects.equal(extractor, other.extractor) && value.equals(other.value);
+            } else {
+                return false;
+            }
+        }
+        
+        @Override
+        public String toString() {
+            if (extractor == null) {
+                return String.format("Meta.equalTo(%s)", value);
+            } else {
+                return String.format("Meta.where(%s, %s)", extractor, value);
+            }
+        }
+        
+    }
+    
+}
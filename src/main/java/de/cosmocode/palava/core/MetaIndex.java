@@ -0,0 +1,152 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.core;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+
+import com.google.common.base.Function;
+import com.google.common.base.Predicate;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.MapMaker;
+import com.google.common.collect.Maps;
+
+import de.cosmocode.palava.core.Registry.Key;
+
+/**
+ * Index over the meta information of the keys of a registry, used to answer
+ * predicates created by {@link Meta} without visiting every key of a type.
+ * 
+ * <p>
+ *   Lookups never lock once the index for an extractor and type has been built.
+ *   All modifications, including building an index, are done while holding the
+ *   lock of the owning registry, which has to call {@link #add(Key)} and
+ *   {@link #remove(Key)} whenever a key gains its first or loses its last listener.
+ * </p>
+ *
+ * @since 2.12
+ * @author Willi Schoenborn
+ */
+final class MetaIndex {
+
+    // extractor -> type -> extracted value -> keys
+    private final ConcurrentMap<Function<Object, ?>, ConcurrentMap<Class<?>, ConcurrentMap<Object, Set<Key<?>>>>> 
+        indices = new MapMaker().weakKeys().makeMap();
+    
+    private final Object lock;
+    
+    // provides all keys of a type, requires lock
+    private final Function<Class<?>, ? extends Iterable<Key<?>>> keys;
+    
+    public MetaIndex(Object lock, Function<Class<?>, ? extends Iterable<Key<?>>> keys) {
+        this.lock = lock;
+        this.keys = keys;
+    }
+    
+    /**
+     * Adds the specified key to all indices of its type. Requires lock.
+     * 
+     * @param key the key which gained its first listener
+     */
+    void add(Key<?> key) {
+        if (key.getMeta() == null) return;
+        for (ConcurrentMap.Entry<Function<Object, ?>, ConcurrentMap<Class<?>, ConcurrentMap<Object, Set<Key<?>>>>> 
+            entry : indices.entrySet()) {
+            final ConcurrentMap<Object, Set<Key<?>>> values = entry.getValue().get(key.getType());
+            if (values == null) continue;
+            put(values, entry.getKey(), key);
+        }
+    }
+    
+    /**
+     * Removes the specified key from all indices of its type. Requires lock.
+     * 
+     * @param key the key which lost its last listener
+     */
+    void remove(Key<?> key) {
+        if (key.getMeta() == null) return;
+        for (ConcurrentMap.Entry<Function<Object, ?>, ConcurrentMap<Class<?>, ConcurrentMap<Object, Set<Key<?>>>>> 
+            entry : indices.entrySet()) {
+            final ConcurrentMap<Object, Set<Key<?>>> values = entry.getValue().get(key.getType());
+            if (values == null) continue;
+            final Object value = entry.getKey().apply(key.getMeta());
+            if (value == null) continue;
+            final Set<Key<?>> matching = values.get(value);
+            if (matching == null) continue;
+            matching.remove(key);
+            if (matching.isEmpty()) {
+                values.remove(value);
+            }
+        }
+    }
+    
+    /**
+     * Provides the candidate keys of the specified type whose meta information
+     * may satisfy the given predicate.
+     * 
+     * @param type the type's class literal
+     * @param predicate the predicate
+     * @return the candidate keys or null if predicate can't be answered using an index
+     */
+    Iterable<Key<?>> lookup(Class<?> type, Predicate<? super Object> predicate) {
+        if (!(predicate instanceof Meta.Match)) return null;
+        final Meta.Match match = Meta.Match.class.cast(predicate);
+        if (match.getExtractor() == null) {
+            return ImmutableList.<Key<?>>of(Key.get(type, match.getValue()));
+        }
+        final Set<Key<?>> matching = index(type, match.getExtractor()).get(match.getValue());
+        return matching == null ? ImmutableList.<Key<?>>of() : ImmutableList.copyOf(matching);
+    }
+    
+    private ConcurrentMap<Object, Set<Key<?>>> index(Class<?> type, Function<Object, ?> extractor) {
+        final ConcurrentMap<Class<?>, ConcurrentMap<Object, Set<Key<?>>>> types = indices.get(extractor);
+        final ConcurrentMap<Object, Set<Key<?>>> existing = types == null ? null : types.get(type);
+        if (existing != null) return existing;
+        
+        synchronized (lock) {
+            ConcurrentMap<Class<?>, ConcurrentMap<Object, Set<Key<?>>>> current = indices.get(extractor);
+            if (current == null) {
+                current = Maps.newConcurrentMap();
+                indices.put(extractor, current);
+            }
+            ConcurrentMap<Object, Set<Key<?>>> values = current.get(type);
+            if (values == null) {
+                values = Maps.newConcurrentMap();
+                for (Key<?> key : keys.apply(type)) {
+                    if (key.getMeta() == null) continue;
+                    put(values, extractor, key);
+                }
+                // published after being built completely
+                current.put(type, values);
+            }
+            return values;
+        }
+    }
+    
+    private static void put(ConcurrentMap<Object, Set<Key<?>>> values, Function<Object, ?> extractor, Key<?> key) {
+        final Object value = extractor.apply(key.getMeta());
+        if (value == null) return;
+        Set<Key<?>> matching = values.get(value);
+        if (matching == null) {
+            matching = Collections.newSetFromMap(Maps.<Key<?>, Boolean>newConcurrentMap());
+            values.put(value, matching);
+        }
+        matching.add(key);
+    }
+    
+}
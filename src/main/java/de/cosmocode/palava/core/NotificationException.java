@@ -0,0 +1,68 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.cosmocode.palava.core;
+
+import java.util.List;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+
+import de.cosmocode.palava.core.Registry.Key;
+
+/**
+ * Indicates that one or more listeners failed during a notification.
+ * The first failure is used as the cause of this exception,
+ * all failures are available using {@link #getFailures()}.
+ *
+ * @since 2.12
+ * @author Willi Schoenborn
+ */
+public final class NotificationException extends RuntimeException {
+
+    private static final long serialVersionUID = -2318745021943364171L;
+
+    private final transient Key<?> key;
+    
+    private final List<Throwable> failures;
+    
+    public NotificationException(Key<?> key, List<? extends Throwable> failures) {
+        super(String.format("Notifying %s listener(s) for %s failed", failures.size(), key), 
+            failures.isEmpty() ? null : failures.get(0));
+        this.key = Preconditions.checkNotNull(key, "Key");
+        this.failures = ImmutableList.copyOf(failures);
+    }
+    
+    /**
+     * Provides the key of the failed notification.
+     * 
+     * @return the binding key, may be null if this exception has been deserialized
+     */
+    public Key<?> getKey() {
+        return key;
+    }
+    
+    /**
+     * Provides all failures in the order of their occurence.
+     * 
+     * @return an immutable list of all failures
+     */
+    public List<Throwable> getFailures() {
+        return failures;
+    }
+
+}
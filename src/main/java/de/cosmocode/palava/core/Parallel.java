@@ -0,0 +1,46 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.core;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Selects parallel notification for all keys of an annotated listener type.
+ * {@link Registry#notify(Registry.Key, de.cosmocode.collections.Procedure)} and
+ * {@link Registry#notifySilently(Registry.Key, de.cosmocode.collections.Procedure)}
+ * behave like {@link Registry#notifyParallel(Registry.Key, de.cosmocode.collections.Procedure)}
+ * and {@link Registry#notifySilentlyParallel(Registry.Key, de.cosmocode.collections.Procedure)}
+ * for those keys, including proxies.
+ * 
+ * <p>
+ *   Listeners of annotated types are notified in no particular order. Small listener
+ *   sets are still notified sequentially on the calling thread.
+ * </p>
+ *
+ * @since 2.12
+ * @author Willi Schoenborn
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface Parallel {
+
+}
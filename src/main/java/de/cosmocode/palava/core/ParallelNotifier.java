@@ -0,0 +1,213 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.cosmocode.palava.core;
+
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import de.cosmocode.collections.Procedure;
+import de.cosmocode.palava.core.Registry.Key;
+
+/**
+ * Notifies listeners in parallel on behalf of a {@link Registry}.
+ * See {@link Registry#notifyParallel(Key, Procedure)} for details.
+ * 
+ * <p>
+ *   A listener snapshot is split into one chunk per available processor.
+ *   The calling thread notifies the first chunk itself and afterwards runs
+ *   every chunk which has not yet been picked up by the executor. This
+ *   prevents deadlocks if notifications are issued from within the executor.
+ * </p>
+ *
+ * @since 2.12
+ * @author Willi Schoenborn
+ */
+final class ParallelNotifier {
+
+    static final int DEFAULT_THRESHOLD = 32;
+    
+    private static final Logger LOG = LoggerFactory.getLogger(ParallelNotifier.class);
+    
+    private static final int PARALLELISM = Runtime.getRuntime().availableProcessors();
+    
+    private volatile Executor executor;
+    
+    private volatile int threshold = DEFAULT_THRESHOLD;
+    
+    /**
+     * Lazy holder for the executor which is used if no executor has been set.
+     *
+     * @since 2.12
+     * @author Willi Schoenborn
+     */
+    private static final class DefaultExecutor {
+        
+        private static final Executor INSTANCE = Executors.newFixedThreadPool(PARALLELISM,
+            new ThreadFactoryBuilder().setNameFormat("palava-registry-parallel-%d").setDaemon(true).build()
+        );
+        
+    }
+    
+    public void setExecutor(Executor executor) {
+        this.executor = Preconditions.checkNotNull(executor, "Executor");
+    }
+    
+    private Executor getExecutor() {
+        final Executor current = executor;
+        return current == null ? DefaultExecutor.INSTANCE : current;
+    }
+    
+    public void setThreshold(int threshold) {
+        Preconditions.checkArgument(threshold > 0, "Threshold must be positive, but was %s", threshold);
+        this.threshold = threshold;
+    }
+    
+    /**
+     * Notifies the specified listeners.
+     * 
+     * @param <T> the generic type
+     * @param key the binding key
+     * @param listeners a snapshot of all listeners which should be notified
+     * @param command the command being invoked on every listener
+     * @param failures the log failures are reported to, null if the first
+     *        failure should be propagated
+     */
+    public <T> void notify(Key<T> key, List<? extends T> listeners, Procedure<? super T> command, 
+        FailureLog failures) {
+        if (listeners.size() < threshold || PARALLELISM == 1) {
+            final Chunk<T> chunk = new Chunk<T>(key, listeners, command, failures, null);
+            chunk.run();
+            chunk.rethrow();
+            return;
+        }
+        
+        final int size = (listeners.size() + PARALLELISM - 1) / PARALLELISM;
+        final List<? extends List<? extends T>> partitions = Lists.partition(listeners, size);
+        final AtomicReference<RuntimeException> failure = new AtomicReference<RuntimeException>();
+        final List<FutureTask<Void>> tasks = Lists.newArrayListWithCapacity(partitions.size() - 1);
+        
+        for (List<? extends T> partition : partitions.subList(1, partitions.size())) {
+            final Chunk<T> chunk = new Chunk<T>(key, partition, command, failures, failure);
+            final FutureTask<Void> task = new FutureTask<Void>(chunk, null);
+            getExecutor().execute(task);
+            tasks.add(task);
+        }
+        
+        new Chunk<T>(key, partitions.get(0), command, failures, failure).run();
+        
+        boolean interrupted = false;
+        try {
+            for (FutureTask<Void> task : tasks) {
+                // runs the task in this thread if no worker picked it up yet
+                task.run();
+                while (true) {
+                    try {
+                        task.get();
+                        break;
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    } catch (ExecutionException e) {
+                        throw Throwables.propagate(e.getCause());
+                    }
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        
+        final RuntimeException e = failure.get();
+        if (e != null) {
+            throw e;
+        }
+    }
+    
+    /**
+     * Notifies a contiguous part of a listener snapshot.
+     *
+     * @since 2.12
+     * @author Willi Schoenborn
+     * @param <T> the generic listener type
+     */
+    private static final class Chunk<T> implements Runnable {
+        
+        private final Key<T> key;
+        
+        private final List<? extends T> listeners;
+        
+        private final Procedure<? super T> command;
+        
+        // null if not silent
+        private final FailureLog failures;
+        
+        private final AtomicReference<RuntimeException> failure;
+        
+        public Chunk(Key<T> key, List<? extends T> listeners, Procedure<? super T> command, FailureLog failures, 
+            AtomicReference<RuntimeException> failure) {
+            this.key = key;
+            this.listeners = listeners;
+            this.command = command;
+            this.failures = failures;
+            this.failure = failure == null ? new AtomicReference<RuntimeException>() : failure;
+        }
+        
+        @Override
+        public void run() {
+            for (T listener : listeners) {
+                if (failures == null && failure.get() != null) {
+                    // another chunk failed, abort like a sequential notify would
+                    return;
+                }
+                LOG.trace("notifying {} for {}", listener, key);
+                try {
+                    command.apply(listener);
+                    /*CHECKSTYLE:OFF*/
+                } catch (RuntimeException e) {
+                    /*CHECKSTYLE:ON*/
+                    if (failures != null) {
+                        failures.report(key, listener, e);
+                    } else {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            }
+        }
+        
+        public void rethrow() {
+            final RuntimeException e = failure.get();
+            if (e != null) {
+                throw e;
+            }
+        }
+        
+    }
+    
+}
@@ -0,0 +1,54 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.core;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Defines the default notification priority of a listener class.
+ * Listeners with lower values are notified first, listeners with equal
+ * priorities are notified in registration order. Listeners without
+ * this annotation have a priority of {@link #DEFAULT}.
+ * 
+ * <p>
+ *   The priority of a single registration can be overridden using
+ *   {@link Registry#register(Registry.Key, Object, int)}.
+ * </p>
+ *
+ * @since 2.12
+ * @author Willi Schoenborn
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface Priority {
+
+    /**
+     * The priority of listeners which are not annotated.
+     */
+    int DEFAULT = 0;
+    
+    /**
+     * The priority.
+     */
+    int value();
+    
+}
@@ -0,0 +1,182 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.cosmocode.palava.core;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Supplier;
+import com.google.common.collect.Maps;
+
+import de.cosmocode.palava.core.Registry.Key;
+
+/**
+ * Caches canonical proxy instances per {@link Key} and notification mode
+ * for a single {@link Registry}.
+ * 
+ * <p>
+ *   Proxies are held weakly. As long as a proxy is in use, identical requests
+ *   return the same instance. Once it is no longer referenced, the proxy can be
+ *   collected and its entry is expunged on the next request, so the cache never
+ *   pins the class loader of a key's type and does not grow with keys which are
+ *   no longer used, e.g. keys with meta information per tenant or session.
+ * </p>
+ * 
+ * <p>
+ *   Failures of listeners notified by asynchronous proxies are reported to the
+ *   configured {@link FailureLog}, because those proxies have no caller to report to.
+ * </p>
+ *
+ * @since 2.12
+ * @author Willi Schoenborn
+ */
+final class ProxyCache {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ProxyCache.class);
+
+    // maximum number of collected proxies being expunged per request
+    private static final int EXPUNGE_LIMIT = 64;
+    
+    private final Registry registry;
+    
+    private final Map<ProxyMode, ConcurrentMap<Key<?>, Entry>> caches = Maps.newEnumMap(ProxyMode.class);
+    
+    private final ReferenceQueue<Object> queue = new ReferenceQueue<Object>();
+    
+    private volatile FailureLog failures;
+    
+    // read on every failure, so proxies created before setFailureLog report to the current log
+    private final Supplier<FailureLog> reporter = new Supplier<FailureLog>() {
+        
+        @Override
+        public FailureLog get() {
+            return failures;
+        }
+        
+    };
+    
+    public ProxyCache(Registry registry) {
+        this(registry, new FailureLog());
+    }
+    
+    public ProxyCache(Registry registry, FailureLog failures) {
+        this.registry = Preconditions.checkNotNull(registry, "Registry");
+        this.failures = Preconditions.checkNotNull(failures, "Failures");
+        for (ProxyMode mode : ProxyMode.values()) {
+            final ConcurrentMap<Key<?>, Entry> cache = Maps.newConcurrentMap();
+            caches.put(mode, cache);
+        }
+    }
+    
+    /**
+     * Sets the log failures of asynchronous proxies are reported to.
+     * 
+     * @param failures the new failure log
+     * @throws NullPointerException if failures is null
+     */
+    public void setFailureLog(FailureLog failures) {
+        this.failures = Preconditions.checkNotNull(failures, "Failures");
+    }
+    
+    /**
+     * Provides the proxy for the specified key, creating it if necessary.
+     * 
+     * @param <T> the generic type
+     * @param key the binding key
+     * @param mode the notification mode used by the proxy
+     * @return the canonical proxy for key and mode
+     * @throws NullPointerException if key or mode is null
+     * @throws IllegalArgumentException if the key's type is not an interface
+     */
+    public <T> T get(Key<T> key, ProxyMode mode) {
+        Preconditions.checkNotNull(key, "Key");
+        Preconditions.checkNotNull(mode, "Mode");
+        expunge();
+        final ConcurrentMap<Key<?>, Entry> cache = caches.get(mode);
+        
+        final Entry cached = cache.get(key);
+        final Object existing = cached == null ? null : cached.get();
+        if (existing != null) {
+            @SuppressWarnings("unchecked")
+            final T proxy = (T) existing;
+            return proxy;
+        }
+        
+        final T proxy = ProxyHandler.newProxy(registry, key, mode, reporter);
+        final Entry entry = new Entry(key, mode, proxy, queue);
+        while (true) {
+            final Entry current = cache.get(key);
+            final Object other = current == null ? null : current.get();
+            if (other != null) {
+                @SuppressWarnings("unchecked")
+                final T concurrent = (T) other;
+                return concurrent;
+            }
+            final boolean stored;
+            if (current == null) {
+                stored = cache.putIfAbsent(key, entry) == null;
+            } else {
+                // replaces the entry of a collected proxy
+                stored = cache.replace(key, current, entry);
+            }
+            if (stored) {
+                LOG.debug("Created proxy for {}", key);
+                return proxy;
+            }
+        }
+    }
+    
+    /**
+     * Removes the entries of collected proxies. Does at most {@link #EXPUNGE_LIMIT}
+     * removals to keep the overhead per request bounded.
+     */
+    private void expunge() {
+        for (int i = 0; i < EXPUNGE_LIMIT; i++) {
+            final Entry entry = (Entry) queue.poll();
+            if (entry == null) return;
+            caches.get(entry.mode).remove(entry.key, entry);
+        }
+    }
+    
+    /**
+     * A weak reference to a cached proxy.
+     *
+     * @since 2.12
+     * @author Willi Schoenborn
+     */
+    private static final class Entry extends WeakReference<Object> {
+        
+        private final Key<?> key;
+        
+        private final ProxyMode mode;
+        
+        public Entry(Key<?> key, ProxyMode mode, Object proxy, ReferenceQueue<Object> queue) {
+            super(proxy, queue);
+            this.key = key;
+            this.mode = mode;
+        }
+        
+    }
+    
+}
@@ -0,0 +1,529 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.MapMaker;
+import com.google.common.collect.Maps;
+
+import de.cosmocode.collections.Procedure;
+
+/**
+ * Generates the classes of registry proxies for public listener interfaces.
+ *
+ * <p>
+ *   For every interface a proxy class is generated which implements all its methods.
+ *   Each method allocates an invoker holding its arguments and passes it to the
+ *   {@link Procedure} the proxy has been created with. Invokers are generated per method
+ *   and call the listener using a plain {@code invokeinterface}, so there is neither
+ *   reflection nor boxing on the way from the caller to the listeners and the JIT is
+ *   free to inline the listener methods.
+ * </p>
+ *
+ * <p>
+ *   Classes are defined by a class loader per interface, which delegates to the
+ *   class loader of the interface. Generated classes are held weakly and never pin
+ *   the class loader of their interface. Interfaces which are not public, refer to
+ *   types which are not public or declare methods not returning void are not
+ *   supported, proxies for them fall back to {@link java.lang.reflect.Proxy}.
+ * </p>
+ *
+ * @since 2.12
+ * @author Willi Schoenborn
+ */
+final class ProxyGenerator {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ProxyGenerator.class);
+
+    private static final String OBJECT = "java/lang/Object";
+
+    private static final String PROCEDURE = Procedure.class.getName().replace('.', '/');
+
+    private static final String PROCEDURE_DESCRIPTOR = "L" + PROCEDURE + ";";
+
+    private static final String SINK = "sink";
+
+    // class file format of Java 5, which does not require stack map frames
+    private static final int VERSION = 49;
+
+    private static final int ACC_PUBLIC = 0x0001;
+    private static final int ACC_PRIVATE = 0x0002;
+    private static final int ACC_FINAL = 0x0010;
+    private static final int ACC_SUPER = 0x0020;
+
+    private static final int ICONST_0 = 0x03;
+    private static final int ILOAD = 0x15;
+    private static final int LLOAD = 0x16;
+    private static final int FLOAD = 0x17;
+    private static final int DLOAD = 0x18;
+    private static final int ALOAD = 0x19;
+    private static final int ALOAD_0 = 0x2a;
+    private static final int ALOAD_1 = 0x2b;
+    private static final int DUP = 0x59;
+    private static final int IFEQ = 0x99;
+    private static final int IRETURN = 0xac;
+    private static final int ARETURN = 0xb0;
+    private static final int RETURN = 0xb1;
+    private static final int GETFIELD = 0xb4;
+    private static final int PUTFIELD = 0xb5;
+    private static final int INVOKEVIRTUAL = 0xb6;
+    private static final int INVOKESPECIAL = 0xb7;
+    private static final int INVOKEINTERFACE = 0xb9;
+    private static final int NEW = 0xbb;
+    private static final int CHECKCAST = 0xc0;
+    private static final int INSTANCEOF = 0xc1;
+
+    private static final Map<Class<?>, String> PRIMITIVES = ImmutableMap.<Class<?>, String>builder().
+        put(boolean.class, "Z").put(byte.class, "B").put(char.class, "C").put(short.class, "S").
+        put(int.class, "I").put(long.class, "J").put(float.class, "F").put(double.class, "D").
+        put(void.class, "V").build();
+
+    // weak keys and values, generated classes are kept alive by their proxies only
+    private static final ConcurrentMap<Class<?>, Class<?>> CLASSES =
+        new MapMaker().weakKeys().weakValues().makeMap();
+
+    private static final AtomicInteger COUNTER = new AtomicInteger();
+
+    private ProxyGenerator() {
+
+    }
+
+    /**
+     * Creates a new instance of the generated proxy class of the specified interface.
+     *
+     * @param type the listener interface
+     * @param sink the procedure all invocations of the proxy are passed to
+     * @return a new proxy or null if type is not supported
+     */
+    static Object newProxy(Class<?> type, Procedure<?> sink) {
+        Class<?> generated = CLASSES.get(type);
+        if (generated == null) {
+            final List<Method> methods = methodsOf(type);
+            if (methods == null) return null;
+            try {
+                generated = generate(type, methods);
+                /*CHECKSTYLE:OFF*/
+            } catch (LinkageError e) {
+                /*CHECKSTYLE:ON*/
+                LOG.warn(String.format("Generating proxy class for %s failed, falling back to reflection", type), e);
+                return null;
+            }
+            final Class<?> existing = CLASSES.putIfAbsent(type, generated);
+            if (existing != null) {
+                generated = existing;
+            }
+        }
+        try {
+            return generated.getConstructor(Procedure.class).newInstance(sink);
+        } catch (NoSuchMethodException e) {
+            throw new AssertionError(e);
+        } catch (InstantiationException e) {
+            throw new AssertionError(e);
+        } catch (IllegalAccessException e) {
+            throw new AssertionError(e);
+        } catch (InvocationTargetException e) {
+            throw new AssertionError(e.getCause());
+        }
+    }
+
+    /**
+     * Collects all methods of the specified interface which need to be implemented,
+     * one per signature.
+     *
+     * @param type the listener interface
+     * @return all methods or null if type is not supported
+     */
+    private static List<Method> methodsOf(Class<?> type) {
+        if (!isPublic(type)) return null;
+        final Map<String, Method> methods = Maps.newLinkedHashMap();
+        for (Method method : type.getMethods()) {
+            if (Modifier.isStatic(method.getModifiers())) continue;
+            if (method.getReturnType() != void.class) return null;
+            for (Class<?> parameter : method.getParameterTypes()) {
+                if (!isPublic(parameter)) return null;
+            }
+            if (overridesObject(method)) return null;
+            methods.put(method.getName() + descriptorOf(method), method);
+        }
+        return ImmutableList.copyOf(methods.values());
+    }
+
+    private static boolean isPublic(Class<?> type) {
+        Class<?> component = type;
+        while (component.isArray()) {
+            component = component.getComponentType();
+        }
+        return component.isPrimitive() || Modifier.isPublic(component.getModifiers());
+    }
+
+    private static boolean overridesObject(Method method) {
+        try {
+            Object.class.getDeclaredMethod(method.getName(), method.getParameterTypes());
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    private static Class<?> generate(Class<?> type, List<Method> methods) {
+        final Loader loader = new Loader(type.getClassLoader());
+        final String name = ProxyGenerator.class.getName() + "$Proxy" + COUNTER.incrementAndGet();
+        final String proxy = name.replace('.', '/');
+        for (int i = 0; i < methods.size(); i++) {
+            final String invoker = name + "$" + i;
+            loader.define(invoker, invoker(invoker.replace('.', '/'), type, methods.get(i)));
+        }
+        LOG.debug("Generating proxy class {} for {}", name, type);
+        return loader.define(name, proxy(proxy, type, methods));
+    }
+
+    /**
+     * Generates a procedure which calls the specified method on every listener
+     * it is applied to, using the arguments passed to its constructor.
+     */
+    private static byte[] invoker(String name, Class<?> type, Method method) {
+        final ClassFile file = new ClassFile();
+        final Class<?>[] parameters = method.getParameterTypes();
+
+        final Buffer constructor = new Buffer();
+        constructor.u1(ALOAD_0);
+        constructor.u1(INVOKESPECIAL).u2(file.method(OBJECT, "<init>", "()V"));
+        int slot = 1;
+        for (int i = 0; i < parameters.length; i++) {
+            file.field(ACC_PRIVATE | ACC_FINAL, "a" + i, descriptorOf(parameters[i]));
+            constructor.u1(ALOAD_0);
+            constructor.u1(loadOf(parameters[i])).u1(slot);
+            constructor.u1(PUTFIELD).u2(file.field(name, "a" + i, descriptorOf(parameters[i])));
+            slot += sizeOf(parameters[i]);
+        }
+        constructor.u1(RETURN);
+        file.method(ACC_PUBLIC, "<init>", descriptorOf(parameters, void.class), 3, slot, constructor);
+
+        final Buffer apply = new Buffer();
+        apply.u1(ALOAD_1);
+        apply.u1(CHECKCAST).u2(file.type(internalNameOf(type)));
+        for (int i = 0; i < parameters.length; i++) {
+            apply.u1(ALOAD_0);
+            apply.u1(GETFIELD).u2(file.field(name, "a" + i, descriptorOf(parameters[i])));
+        }
+        apply.u1(INVOKEINTERFACE).u2(file.interfaceMethod(internalNameOf(type), method.getName(),
+            descriptorOf(method))).u1(slot).u1(0);
+        apply.u1(RETURN);
+        file.method(ACC_PUBLIC, "apply", "(Ljava/lang/Object;)V", slot + 1, 2, apply);
+
+        return file.toByteArray(name, PROCEDURE);
+    }
+
+    /**
+     * Generates the proxy class implementing the specified interface.
+     */
+    private static byte[] proxy(String name, Class<?> type, List<Method> methods) {
+        final ClassFile file = new ClassFile();
+        file.field(ACC_PRIVATE | ACC_FINAL, SINK, PROCEDURE_DESCRIPTOR);
+        final int sink = file.field(name, SINK, PROCEDURE_DESCRIPTOR);
+
+        final Buffer constructor = new Buffer();
+        constructor.u1(ALOAD_0);
+        constructor.u1(INVOKESPECIAL).u2(file.method(OBJECT, "<init>", "()V"));
+        constructor.u1(ALOAD_0);
+        constructor.u1(ALOAD_1);
+        constructor.u1(PUTFIELD).u2(sink);
+        constructor.u1(RETURN);
+        file.method(ACC_PUBLIC, "<init>", "(" + PROCEDURE_DESCRIPTOR + ")V", 2, 2, constructor);
+
+        for (int i = 0; i < methods.size(); i++) {
+            final Method method = methods.get(i);
+            final Class<?>[] parameters = method.getParameterTypes();
+            final String invoker = name + "$" + i;
+            final Buffer code = new Buffer();
+            code.u1(ALOAD_0);
+            code.u1(GETFIELD).u2(sink);
+            code.u1(NEW).u2(file.type(invoker));
+            code.u1(DUP);
+            int slot = 1;
+            for (Class<?> parameter : parameters) {
+                code.u1(loadOf(parameter)).u1(slot);
+                slot += sizeOf(parameter);
+            }
+            code.u1(INVOKESPECIAL).u2(file.method(invoker, "<init>", descriptorOf(parameters, void.class)));
+            code.u1(INVOKEINTERFACE).u2(file.interfaceMethod(PROCEDURE, "apply", "(Ljava/lang/Object;)V")).u1(2).u1(0);
+            code.u1(RETURN);
+            file.method(ACC_PUBLIC, method.getName(), descriptorOf(method), slot + 2, slot, code);
+        }
+
+        final Buffer toString = new Buffer();
+        toString.u1(ALOAD_0);
+        toString.u1(GETFIELD).u2(sink);
+        toString.u1(INVOKEVIRTUAL).u2(file.method(OBJECT, "toString", "()Ljava/lang/String;"));
+        toString.u1(ARETURN);
+        file.method(ACC_PUBLIC, "toString", "()Ljava/lang/String;", 1, 1, toString);
+
+        final Buffer hashCode = new Buffer();
+        hashCode.u1(ALOAD_0);
+        hashCode.u1(GETFIELD).u2(sink);
+        hashCode.u1(INVOKEVIRTUAL).u2(file.method(OBJECT, "hashCode", "()I"));
+        hashCode.u1(IRETURN);
+        file.method(ACC_PUBLIC, "hashCode", "()I", 1, 1, hashCode);
+
+        // proxies are equal if their sinks are
+        final Buffer equals = new Buffer();
+        equals.u1(ALOAD_1);
+        equals.u1(INSTANCEOF).u2(file.type(name));
+        final int branch = equals.size();
+        equals.u1(IFEQ).u2(0);
+        equals.u1(ALOAD_0);
+        equals.u1(GETFIELD).u2(sink);
+        equals.u1(ALOAD_1);
+        equals.u1(CHECKCAST).u2(file.type(name));
+        equals.u1(GETFIELD).u2(sink);
+        equals.u1(INVOKEVIRTUAL).u2(file.method(OBJECT, "equals", "(Ljava/lang/Object;)Z"));
+        equals.u1(IRETURN);
+        equals.patch(branch + 1, equals.size() - branch);
+        equals.u1(ICONST_0);
+        equals.u1(IRETURN);
+        file.method(ACC_PUBLIC, "equals", "(Ljava/lang/Object;)Z", 3, 2, equals);
+
+        return file.toByteArray(name, internalNameOf(type));
+    }
+
+    private static String internalNameOf(Class<?> type) {
+        return type.getName().replace('.', '/');
+    }
+
+    private static String descriptorOf(Class<?> type) {
+        if (type.isPrimitive()) {
+            return PRIMITIVES.get(type);
+        } else if (type.isArray()) {
+            return internalNameOf(type);
+        } else {
+            return "L" + internalNameOf(type) + ";";
+        }
+    }
+
+    private static String descriptorOf(Class<?>[] parameters, Class<?> returnType) {
+        final StringBuilder builder = new StringBuilder("(");
+        for (Class<?> parameter : parameters) {
+            builder.append(descriptorOf(parameter));
+        }
+        return builder.append(')').append(descriptorOf(returnType)).toString();
+    }
+
+    private static String descriptorOf(Method method) {
+        return descriptorOf(method.getParameterTypes(), method.getReturnType());
+    }
+
+    private static int loadOf(Class<?> type) {
+        if (!type.isPrimitive()) {
+            return ALOAD;
+        } else if (type == long.class) {
+            return LLOAD;
+        } else if (type == float.class) {
+            return FLOAD;
+        } else if (type == double.class) {
+            return DLOAD;
+        } else {
+            return ILOAD;
+        }
+    }
+
+    private static int sizeOf(Class<?> type) {
+        return type == long.class || type == double.class ? 2 : 1;
+    }
+
+    /**
+     * Defines the generated classes of a single interface. Resolves {@link Procedure}
+     * itself, because the class loader of the interface may not see it.
+     *
+     * @since 2.12
+     * @author Willi Schoenborn
+     */
+    private static final class Loader extends ClassLoader {
+
+        public Loader(ClassLoader parent) {
+            super(parent);
+        }
+
+        @Override
+        protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            if (Procedure.class.getName().equals(name)) {
+                return Procedure.class;
+            } else {
+                return super.loadClass(name, resolve);
+            }
+        }
+
+        public Class<?> define(String name, byte[] bytes) {
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+
+    }
+
+    /**
+     * A growing byte array writing big endian values, as used by the class file format.
+     *
+     * @since 2.12
+     * @author Willi Schoenborn
+     */
+    private static final class Buffer extends ByteArrayOutputStream {
+
+        public Buffer u1(int value) {
+            write(value);
+            return this;
+        }
+
+        public Buffer u2(int value) {
+            write(value >>> 8);
+            write(value);
+            return this;
+        }
+
+        public Buffer u4(int value) {
+            return u2(value >>> 16).u2(value);
+        }
+
+        public Buffer bytes(ByteArrayOutputStream bytes) {
+            write(bytes.toByteArray(), 0, bytes.size());
+            return this;
+        }
+
+        public void patch(int position, int value) {
+            buf[position] = (byte) (value >>> 8);
+            buf[position + 1] = (byte) value;
+        }
+
+    }
+
+    /**
+     * A minimal writer of public final classes with a constant pool, fields and methods.
+     *
+     * @since 2.12
+     * @author Willi Schoenborn
+     */
+    private static final class ClassFile {
+
+        private static final int UTF8 = 1;
+        private static final int CLASS = 7;
+        private static final int FIELD = 9;
+        private static final int METHOD = 10;
+        private static final int INTERFACE_METHOD = 11;
+        private static final int NAME_AND_TYPE = 12;
+
+        private final Map<String, Integer> constants = Maps.newHashMap();
+
+        private final Buffer pool = new Buffer();
+
+        private final Buffer fields = new Buffer();
+
+        private final Buffer methods = new Buffer();
+
+        private int fieldCount;
+
+        private int methodCount;
+
+        private int constant(String signature, Buffer entry) {
+            final Integer existing = constants.get(signature);
+            if (existing != null) return existing.intValue();
+            final int index = constants.size() + 1;
+            pool.bytes(entry);
+            constants.put(signature, Integer.valueOf(index));
+            return index;
+        }
+
+        public int utf8(String value) {
+            final Buffer entry = new Buffer();
+            entry.u1(UTF8);
+            try {
+                new DataOutputStream(entry).writeUTF(value);
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            }
+            return constant("U" + value, entry);
+        }
+
+        public int type(String name) {
+            return constant("C" + name, new Buffer().u1(CLASS).u2(utf8(name)));
+        }
+
+        private int nameAndType(String name, String descriptor) {
+            return constant("N" + name + ":" + descriptor,
+                new Buffer().u1(NAME_AND_TYPE).u2(utf8(name)).u2(utf8(descriptor)));
+        }
+
+        private int member(int tag, String owner, String name, String descriptor) {
+            return constant(tag + owner + "." + name + ":" + descriptor,
+                new Buffer().u1(tag).u2(type(owner)).u2(nameAndType(name, descriptor)));
+        }
+
+        public int field(String owner, String name, String descriptor) {
+            return member(FIELD, owner, name, descriptor);
+        }
+
+        public int method(String owner, String name, String descriptor) {
+            return member(METHOD, owner, name, descriptor);
+        }
+
+        public int interfaceMethod(String owner, String name, String descriptor) {
+            return member(INTERFACE_METHOD, owner, name, descriptor);
+        }
+
+        public void field(int access, String name, String descriptor) {
+            fields.u2(access).u2(utf8(name)).u2(utf8(descriptor)).u2(0);
+            fieldCount++;
+        }
+
+        public void method(int access, String name, String descriptor, int maxStack, int maxLocals, Buffer code) {
+            methods.u2(access).u2(utf8(name)).u2(utf8(descriptor));
+            methods.u2(1).u2(utf8("Code")).u4(12 + code.size());
+            methods.u2(maxStack).u2(maxLocals).u4(code.size()).bytes(code);
+            // neither exception handlers nor attributes
+            methods.u2(0).u2(0);
+            methodCount++;
+        }
+
+        public byte[] toByteArray(String name, String implemented) {
+            final int self = type(name);
+            final int parent = type(OBJECT);
+            final int implementedIndex = type(implemented);
+            final Buffer file = new Buffer();
+            file.u4(0xcafebabe).u2(0).u2(VERSION);
+            file.u2(constants.size() + 1).bytes(pool);
+            file.u2(ACC_PUBLIC | ACC_FINAL | ACC_SUPER).u2(self).u2(parent);
+            file.u2(1).u2(implementedIndex);
+            file.u2(fieldCount).bytes(fields);
+            file.u2(methodCount).bytes(methods);
+            file.u2(0);
+            return file.toByteArray();
+        }
+
+    }
+
+}
@@ -0,0 +1,290 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.cosmocode.palava.core;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Map;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Supplier;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableMap;
+
+import de.cosmocode.collections.Procedure;
+import de.cosmocode.palava.core.Registry.Key;
+
+/**
+ * Handler for proxies created by {@link Registry#proxy(Key)},
+ * {@link Registry#silentProxy(Key)} and {@link Registry#asyncProxy(Key)}.
+ * Shared by all registry implementations in this package.
+ *
+ * <p>
+ *   Proxies of public interfaces are instances of classes generated by the {@link ProxyGenerator},
+ *   which pass one invoker per call to {@link #apply(Procedure)}. Invokers call every listener
+ *   directly, without reflection. All other proxies are plain {@link java.lang.reflect.Proxy}
+ *   instances using this class as their {@link InvocationHandler}, which calls every
+ *   listener using {@link Method#invoke(Object, Object...)}.
+ * </p>
+ *
+ * @since 2.12
+ * @author Willi Schoenborn
+ * @param <T> the generic proxy type
+ */
+final class ProxyHandler<T> implements InvocationHandler, Procedure<Procedure<? super T>> {
+
+    private final Registry registry;
+
+    private final Key<T> key;
+
+    private final ProxyMode mode;
+    
+    private final Supplier<FailureLog> failures;
+    
+    private final Map<Method, Method> targets;
+
+    private ProxyHandler(Registry registry, Key<T> key, ProxyMode mode, Supplier<FailureLog> failures) {
+        this.registry = Preconditions.checkNotNull(registry, "Registry");
+        this.key = Preconditions.checkNotNull(key, "Key");
+        this.mode = Preconditions.checkNotNull(mode, "Mode");
+        this.failures = Preconditions.checkNotNull(failures, "Failures");
+        this.targets = targetsOf(key.getType());
+    }
+    
+    /**
+     * Resolves all void methods of the specified interface once, so invocations
+     * only need a single lookup instead of comparing against every supported method.
+     * Methods of non-public interfaces are made accessible to skip the access check
+     * on every reflective call.
+     * 
+     * @param type the proxy interface
+     * @return a map of all void methods of type to their invocation targets
+     */
+    private static Map<Method, Method> targetsOf(Class<?> type) {
+        final ImmutableMap.Builder<Method, Method> builder = ImmutableMap.builder();
+        for (Method method : type.getMethods()) {
+            if (method.getReturnType() != void.class) {
+                continue;
+            }
+            if (!Modifier.isPublic(method.getDeclaringClass().getModifiers())) {
+                method.setAccessible(true);
+            }
+            builder.put(method, method);
+        }
+        return builder.build();
+    }
+
+    /**
+     * Creates a new proxy for the specified key which delegates to all listeners
+     * registered in the given registry at invocation time.
+     *
+     * @param <T> the generic type
+     * @param registry the registry used for notification
+     * @param key the binding key
+     * @param mode the notification mode used by the proxy
+     * @param failures the log failures of asynchronous notifications are reported to
+     * @return a new proxy
+     * @throws NullPointerException if registry, key, mode or failures is null
+     * @throws IllegalArgumentException if the key's type is not an interface
+     */
+    static <T> T newProxy(Registry registry, Key<T> key, ProxyMode mode, Supplier<FailureLog> failures) {
+        Preconditions.checkNotNull(key, "Key");
+        Preconditions.checkArgument(key.getType().isInterface(), "Type must be an interface");
+        Preconditions.checkArgument(!key.getType().isAnnotation(), "Type must not be an annotation");
+
+        final ProxyHandler<T> handler = new ProxyHandler<T>(registry, key, mode, failures);
+        final Object generated = ProxyGenerator.newProxy(key.getType(), handler);
+        if (generated != null) {
+            return key.getType().cast(generated);
+        }
+
+        // defines the proxy class next to its interface, which keeps it unloadable
+        final ClassLoader loader = key.getType().getClassLoader();
+        final Class<?>[] interfaces = {key.getType()};
+
+        @SuppressWarnings("unchecked")
+        final T proxy = (T) java.lang.reflect.Proxy.newProxyInstance(loader, interfaces, handler);
+        return proxy;
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) {
+        if (method.getDeclaringClass() == Object.class) {
+            final String name = method.getName();
+            if ("toString".equals(name)) {
+                return toString();
+            } else if ("equals".equals(name)) {
+                // compares the handlers, the argument is a proxy, not a handler
+                final Object that = args[0];
+                return Boolean.valueOf(that != null && java.lang.reflect.Proxy.isProxyClass(that.getClass()) &&
+                    equals(java.lang.reflect.Proxy.getInvocationHandler(that)));
+            } else {
+                return hashCode();
+            }
+        }
+        
+        final Method target = targets.get(method);
+        if (target == null) {
+            throw new IllegalStateException(String.format("%s must return void", method));
+        }
+        
+        apply(new Invocation<T>(target, args));
+        return null;
+    }
+
+    /**
+     * Notifies all listeners using the specified invocation, according to the mode of this proxy.
+     *
+     * @param invocation the invocation of a single proxy method
+     */
+    @Override
+    public void apply(Procedure<? super T> invocation) {
+        switch (mode) {
+            case SILENT: {
+                registry.notifySilently(key, invocation);
+                break;
+            }
+            case ASYNC: {
+                registry.notifyAsync(key, new Reporting<T>(key, invocation, failures));
+                break;
+            }
+            default: {
+                registry.notify(key, invocation);
+                break;
+            }
+        }
+    }
+
+    /**
+     * A procedure which invokes a listener method using fixed arguments.
+     *
+     * @since 2.12
+     * @author Willi Schoenborn
+     * @param <T> the generic listener type
+     */
+    private static final class Invocation<T> implements Procedure<T> {
+        
+        private final Method method;
+        
+        private final Object[] args;
+        
+        public Invocation(Method method, Object[] args) {
+            this.method = method;
+            this.args = args;
+        }
+        
+        @Override
+        public void apply(T listener) {
+            try {
+                method.invoke(listener, args);
+            } catch (IllegalAccessException e) {
+                throw new AssertionError(e);
+            } catch (InvocationTargetException e) {
+                throw propagate(e.getCause(), method.getExceptionTypes());
+            }
+        }
+        
+    }
+
+    /**
+     * A procedure which reports failures of its delegate to a {@link FailureLog}.
+     * Used by asynchronous proxies which have no caller to report to.
+     *
+     * @since 2.12
+     * @author Willi Schoenborn
+     * @param <T> the generic listener type
+     */
+    private static final class Reporting<T> implements Procedure<T> {
+        
+        private final Key<T> key;
+        
+        private final Procedure<? super T> delegate;
+        
+        private final Supplier<FailureLog> failures;
+        
+        public Reporting(Key<T> key, Procedure<? super T> delegate, Supplier<FailureLog> failures) {
+            this.key = key;
+            this.delegate = delegate;
+            this.failures = failures;
+        }
+        
+        @Override
+        public void apply(T listener) {
+            try {
+                delegate.apply(listener);
+                /*CHECKSTYLE:OFF*/
+            } catch (RuntimeException e) {
+                /*CHECKSTYLE:ON*/
+                failures.get().report(key, listener, e);
+            }
+        }
+        
+    }
+
+    /**
+     * Propagates the specified throwable as is if it is unchecked or declared by
+     * one of the specified exception types, wrapped into a runtime exception otherwise.
+     */
+    static RuntimeException propagate(Throwable throwable, Class<?>[] types) {
+        Throwables.propagateIfPossible(throwable);
+
+        @SuppressWarnings("unchecked")
+        final Class<? extends RuntimeException>[] exceptionTypes = Class[].class.cast(types);
+
+        for (Class<? extends RuntimeException> type : exceptionTypes) {
+            Throwables.propagateIfInstanceOf(throwable, type);
+        }
+
+        throw Throwables.propagate(throwable);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s.proxy(%s)", registry, key);
+    }
+
+    @Override
+    public int hashCode() {
+        final int prime = 31;
+        int result = 1;
+        result = prime * result + registry.hashCode();
+        result = prime * result + key.hashCode();
+        return result;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (obj == null) {
+            return false;
+        }
+        if (!(obj instanceof ProxyHandler<?>)) {
+            return false;
+        }
+        final ProxyHandler<?> other = (ProxyHandler<?>) obj;
+        if (!registry.equals(other.registry)) {
+            return false;
+        }
+        return key.equals(other.key);
+    }
+
+}
@@ -0,0 +1,65 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.cosmocode.palava.core;
+
+/**
+ * Combines the results of a method invoked on multiple listeners
+ * into a single result. Used by {@link GatheringProxy}.
+ *
+ * @since 2.12
+ * @author Willi Schoenborn
+ * @param <F> the type of the single results
+ * @param <T> the type of the combined result
+ */
+public interface Reducer<F, T> {
+
+    /**
+     * Starts a new reduction for a single proxy invocation.
+     * 
+     * @return a new reduction
+     */
+    Reduction<F, T> newReduction();
+    
+    /**
+     * The state of a single reduction. Reductions are only accessed by
+     * one thread at a time.
+     *
+     * @since 2.12
+     * @author Willi Schoenborn
+     * @param <F> the type of the single results
+     * @param <T> the type of the combined result
+     */
+    interface Reduction<F, T> {
+        
+        /**
+         * Adds the result of a single listener.
+         * 
+         * @param result the result, may be null
+         * @return true if the combined result is decided, in which case
+         *         all remaining invocations are skipped or cancelled
+         */
+        boolean add(F result);
+        
+        /**
+         * Provides the combined result.
+         * 
+         * @return the combined result, may be null
+         */
+        T getResult();
+        
+    }
+    
+}
@@ -0,0 +1,257 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.cosmocode.palava.core;
+
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+
+import de.cosmocode.palava.core.Reducer.Reduction;
+
+/**
+ * Static factory methods for common {@link Reducer}s.
+ *
+ * @since 2.12
+ * @author Willi Schoenborn
+ */
+public final class Reducers {
+
+    private Reducers() {
+        
+    }
+    
+    /**
+     * Provides a reducer which returns the first non-null result and
+     * skips all remaining listeners afterwards.
+     * 
+     * @param <T> the generic result type
+     * @return a reducer returning the first non-null result, or null if all results are null
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> Reducer<T, T> firstNonNull() {
+        return (Reducer<T, T>) FirstNonNull.INSTANCE;
+    }
+    
+    /**
+     * Provides a reducer which returns all non-null results.
+     * 
+     * @param <T> the generic result type
+     * @return a reducer returning an immutable list of all non-null results
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> Reducer<T, List<T>> all() {
+        return (Reducer<T, List<T>>) (Reducer<?, ?>) All.INSTANCE;
+    }
+    
+    /**
+     * Provides a reducer which returns true if all listeners returned true.
+     * Skips all remaining listeners once a listener returned false.
+     * Null results count as false.
+     * 
+     * @return a reducer combining boolean results using a logical and
+     */
+    public static Reducer<Boolean, Boolean> and() {
+        return Logical.AND;
+    }
+    
+    /**
+     * Provides a reducer which returns true if at least one listener returned true.
+     * Skips all remaining listeners once a listener returned true.
+     * Null results count as false.
+     * 
+     * @return a reducer combining boolean results using a logical or
+     */
+    public static Reducer<Boolean, Boolean> or() {
+        return Logical.OR;
+    }
+    
+    /**
+     * Provides a reducer which sums up all non-null numeric results. The sum
+     * has the type of the first non-null result, integral sums may overflow.
+     * 
+     * @return a reducer summing up all results
+     */
+    public static Reducer<Number, Number> sum() {
+        return Sum.INSTANCE;
+    }
+    
+    /**
+     * Implementation of {@link Reducers#firstNonNull()}.
+     *
+     * @since 2.12
+     * @author Willi Schoenborn
+     */
+    private enum FirstNonNull implements Reducer<Object, Object> {
+        
+        INSTANCE;
+        
+        @Override
+        public Reduction<Object, Object> newReduction() {
+            return new Reduction<Object, Object>() {
+                
+                private Object result;
+                
+                @Override
+                public boolean add(Object value) {
+                    result = value;
+                    return value != null;
+                }
+                
+                @Override
+                public Object getResult() {
+                    return result;
+                }
+                
+            };
+        }
+        
+    }
+    
+    /**
+     * Implementation of {@link Reducers#all()}.
+     *
+     * @since 2.12
+     * @author Willi Schoenborn
+     */
+    private enum All implements Reducer<Object, List<Object>> {
+        
+        INSTANCE;
+        
+        @Override
+        public Reduction<Object, List<Object>> newReduction() {
+            return new Reduction<Object, List<Object>>() {
+                
+                private final ImmutableList.Builder<Object> builder = ImmutableList.builder();
+                
+                @Override
+                public boolean add(Object value) {
+                    if (value != null) {
+                        builder.add(value);
+                    }
+                    return false;
+                }
+                
+                @Override
+                public List<Object> getResult() {
+                    return builder.build();
+                }
+                
+            };
+        }
+        
+    }
+    
+    /**
+     * Implementation of {@link Reducers#and()} and {@link Reducers#or()}.
+     *
+     * @since 2.12
+     * @author Willi Schoenborn
+     */
+    private enum Logical implements Reducer<Boolean, Boolean> {
+        
+        AND(false),
+        
+        OR(true);
+        
+        // the result which decides the reduction
+        private final boolean decisive;
+        
+        private Logical(boolean decisive) {
+            this.decisive = decisive;
+        }
+        
+        @Override
+        public Reduction<Boolean, Boolean> newReduction() {
+            return new Reduction<Boolean, Boolean>() {
+                
+                private boolean result = !decisive;
+                
+                @Override
+                public boolean add(Boolean value) {
+                    if (Boolean.TRUE.equals(value) == decisive) {
+                        result = decisive;
+                        return true;
+                    } else {
+                        return false;
+                    }
+                }
+                
+                @Override
+                public Boolean getResult() {
+                    return Boolean.valueOf(result);
+                }
+                
+            };
+        }
+        
+    }
+    
+    /**
+     * Implementation of {@link Reducers#sum()}.
+     *
+     * @since 2.12
+     * @author Willi Schoenborn
+     */
+    private enum Sum implements Reducer<Number, Number> {
+        
+        INSTANCE;
+        
+        @Override
+        public Reduction<Number, Number> newReduction() {
+            return new Reduction<Number, Number>() {
+                
+                private Class<?> type;
+                
+                private long integral;
+                
+                private double decimal;
+                
+                @Override
+                public boolean add(Number value) {
+                    if (value == null) return false;
+                    if (type == null) {
+                        type = value.getClass();
+                    }
+                    integral += value.longValue();
+                    decimal += value.doubleValue();
+                    return false;
+                }
+                
+                @Override
+                public Number getResult() {
+                    if (type == null) {
+                        return null;
+                    } else if (type == Integer.class) {
+                        return Integer.valueOf((int) integral);
+                    } else if (type == Short.class) {
+                        return Short.valueOf((short) integral);
+                    } else if (type == Byte.class) {
+                        return Byte.valueOf((byte) integral);
+                    } else if (type == Float.class) {
+                        return Float.valueOf((float) decimal);
+                    } else if (type == Double.class) {
+                        return Double.valueOf(decimal);
+                    } else {
+                        return Long.valueOf(integral);
+                    }
+                }
+                
+            };
+        }
+        
+    }
+    
+}
@@ -20,9 +20,15 @@ import java.lang.annotation.ElementType;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.lang.annotation.Target;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import com.google.common.base.Preconditions;
 import com.google.common.base.Predicate;
+import com.google.common.collect.MapMaker;
+import com.google.common.collect.Multimap;
 import com.google.inject.BindingAnnotation;
 
 import de.cosmocode.collections.Procedure;
@@ -39,29 +45,47 @@ public interface Registry {
     /**
      * A key which can be used to add meta information to a type/listener
      * binding in a registry.
+     * 
+     * <p>
+     *   Keys without meta information are canonical: {@link #get(Class)} returns
+     *   the same instance for the same type as long as that instance is referenced,
+     *   which allows to compare them by identity. The hash code of every key is
+     *   computed once on creation.
+     * </p>
      *
      * @author Willi Schoenborn
      * @param <T>
      */
     public static final class Key<T> {
         
+        // canonical keys without meta information, discarded once unreferenced
+        private static final ConcurrentMap<Class<?>, Key<?>> CANONICAL = 
+            new MapMaker().weakKeys().weakValues().makeMap();
+        
         private final Class<T> type;
         
         private final Object meta;
         
+        private final int hash;
+        
         private Key(Class<T> type, Object meta) {
             this.type = Preconditions.checkNotNull(type, "Type");
             this.meta = meta;
+            this.hash = computeHash(type, meta);
         }
         
-        @Override
-        public int hashCode() {
+        private static int computeHash(Class<?> type, Object meta) {
             final int prime = 31;
             int result = 1;
             result = prime * result + ((meta == null) ? 0 : meta.hashCode());
-            result = prime * result + ((type == null) ? 0 : type.hashCode());
+            result = prime * result + type.hashCode();
             return result;
         }
+        
+        @Override
+        public int hashCode() {
+            return hash;
+        }
 
         @Override
         public boolean equals(Object obj) {
@@ -75,6 +99,13 @@ public interface Registry {
                 return false;
             }
             final Key<?> other = (Key<?>) obj;
+            if (meta == null && other.meta == null) {
+                // both are canonical and not identical
+                return false;
+            }
+            if (hash != other.hash) {
+                return false;
+            }
             if (meta == null) {
                 if (other.meta != null) {
                     return false;
@@ -106,15 +137,26 @@ public interface Registry {
         }
 
         /**
-         * Creates a new key using the given type.
+         * Provides the canonical key of the given type. Does not allocate if the
+         * key of type is already referenced elsewhere, e.g. by a registration.
          * 
          * @param <T> the generic type
          * @param type the type's class literal
-         * @return a new key
+         * @return the canonical key of type
          * @throws NullPointerException if type is null
          */
         public static <T> Key<T> get(Class<T> type) {
-            return new Key<T>(type, null);
+            Preconditions.checkNotNull(type, "Type");
+            @SuppressWarnings("unchecked")
+            final Key<T> key = (Key<T>) CANONICAL.get(type);
+            if (key == null) {
+                final Key<T> created = new Key<T>(type, null);
+                @SuppressWarnings("unchecked")
+                final Key<T> existing = (Key<T>) CANONICAL.putIfAbsent(type, created);
+                return existing == null ? created : existing;
+            } else {
+                return key;
+            }
         }
         
         /**
@@ -178,6 +220,83 @@ public interface Registry {
         
     }
     
+    /**
+     * Binding annotation for {@link Registry} proxies provided by {@link Registry#asyncProxy(Key)}.
+     *
+     * @since 2.12
+     * @author Willi Schoenborn
+     */
+    @Retention(RetentionPolicy.RUNTIME)
+    @Target({
+        ElementType.METHOD,
+        ElementType.PARAMETER
+    })
+    @BindingAnnotation
+    public static @interface AsyncProxy {
+        
+    }
+    
+    /**
+     * Binding annotation for the {@link Executor} used by
+     * {@link Registry#notifyAsync(Key, Procedure)}. Registry implementations
+     * fall back to an internal pool of daemon threads if no such executor is bound.
+     *
+     * @since 2.12
+     * @author Willi Schoenborn
+     */
+    @Retention(RetentionPolicy.RUNTIME)
+    @Target({
+        ElementType.FIELD,
+        ElementType.METHOD,
+        ElementType.PARAMETER
+    })
+    @BindingAnnotation
+    public static @interface AsyncExecutor {
+        
+    }
+    
+    /**
+     * Binding annotation for the {@link Executor} used by
+     * {@link Registry#notifyParallel(Key, Procedure)} and
+     * {@link Registry#notifySilentlyParallel(Key, Procedure)}. Registry implementations
+     * fall back to an internal pool of daemon threads, one per available processor,
+     * if no such executor is bound.
+     *
+     * @since 2.12
+     * @author Willi Schoenborn
+     */
+    @Retention(RetentionPolicy.RUNTIME)
+    @Target({
+        ElementType.FIELD,
+        ElementType.METHOD,
+        ElementType.PARAMETER
+    })
+    @BindingAnnotation
+    public static @interface ParallelExecutor {
+        
+    }
+    
+    /**
+     * Binding annotation for the {@link Executor} used by
+     * {@link Registry#notifyConcurrently(Key, Procedure)}. The executor should
+     * not bound its number of threads, as the registry limits the number of
+     * concurrent invocations per key itself. Registry implementations fall back
+     * to an internal cached pool of daemon threads if no such executor is bound.
+     *
+     * @since 2.12
+     * @author Willi Schoenborn
+     */
+    @Retention(RetentionPolicy.RUNTIME)
+    @Target({
+        ElementType.FIELD,
+        ElementType.METHOD,
+        ElementType.PARAMETER
+    })
+    @BindingAnnotation
+    public static @interface ConcurrentExecutor {
+        
+    }
+    
     /**
      * Register a listener for a specific type. Registering the same listener
      * for a type twice does not result in a double binding. The listener
@@ -200,12 +319,103 @@ public interface Registry {
      * for a key twice does not result in a double binding. The listener
      * will be notified once and only once per notify invocation.
      * 
+     * <p>
+     *   The listener is registered using the priority defined by its
+     *   {@link Priority} annotation or {@link Priority#DEFAULT} if absent.
+     * </p>
+     * 
      * @param <T> the generic type
      * @param key the binding key
      * @param listener the listener
      * @throws NullPointerException if key or listener is null
      */
     <T> void register(Key<T> key, T listener);
+    
+    /**
+     * Registers a listener for a specific type using the given priority.
+     * 
+     * <p>
+     *   Using this method is equivalent to: <br />
+     *   {@code registry.register(Key.get(type), listener, priority);}
+     * </p>
+     *
+     * @since 2.12
+     * @param <T> the generic type
+     * @param type the type's class
+     * @param listener the listener
+     * @param priority the priority, lower values are notified first
+     * @throws NullPointerException if type or listener is null
+     */
+    <T> void register(Class<T> type, T listener, int priority);
+    
+    /**
+     * Registers a listener for a specific key using the given priority. Listeners
+     * are notified in ascending priority order, listeners with equal priorities
+     * in registration order. The priority overrides any {@link Priority} annotation
+     * present on the listener's class. Registering a listener again using a different
+     * priority moves it to its new priority, where it keeps its original registration order.
+     *
+     * @since 2.12
+     * @param <T> the generic type
+     * @param key the binding key
+     * @param listener the listener
+     * @param priority the priority, lower values are notified first
+     * @throws NullPointerException if key or listener is null
+     */
+    <T> void register(Key<T> key, T listener, int priority);
+
+    /**
+     * Registers a listener for a specific type using a weak reference. The registry
+     * does not prevent the listener from being garbage collected. Collected listeners
+     * are removed automatically and will never be notified.
+     * 
+     * <p>
+     *   Using this method is equivalent to: <br />
+     *   {@code registry.registerWeak(Key.get(type), listener);}
+     * </p>
+     *
+     * @since 2.12
+     * @param <T> the generic type
+     * @param type the type's class
+     * @param listener the listener
+     * @throws NullPointerException if type or listener is null
+     */
+    <T> void registerWeak(Class<T> type, T listener);
+    
+    /**
+     * Registers a listener for a specific key using a weak reference. The registry
+     * does not prevent the listener from being garbage collected. Collected listeners
+     * are removed automatically and will never be notified. This is intended for short-lived
+     * listeners which would otherwise need to be removed explicitly.
+     * 
+     * <p>
+     *   Weak registrations are identity based. Registering a listener weakly which is
+     *   already registered for key has no effect. Registering a weakly registered listener
+     *   using {@link #register(Key, Object)} replaces the weak registration with
+     *   a strong one.
+     * </p>
+     * 
+     * @since 2.12
+     * @param <T> the generic type
+     * @param key the binding key
+     * @param listener the listener
+     * @throws NullPointerException if key or listener is null
+     */
+    <T> void registerWeak(Key<T> key, T listener);
+    
+    /**
+     * Registers all listeners of the specified multimap for their keys.
+     * Each listener is registered like {@link #register(Key, Object)}, using the priority
+     * defined by its {@link Priority} annotation. The default implementations apply
+     * the whole batch atomically, using a single structural update per key, which
+     * is considerably faster than registering listeners one by one.
+     * 
+     * @since 2.12
+     * @param listeners the listeners to register, keyed by their binding key
+     * @throws NullPointerException if listeners is null
+     * @throws IllegalArgumentException if a listener is not an instance of its key's type
+     */
+    void registerAll(Multimap<? extends Key<?>, ?> listeners);
 
     /**
      * Provide all listeners for a specific type. The returned
@@ -247,6 +457,11 @@ public interface Registry {
      *   {@code registry.find(T.class, Predicates.alwaysTrue());}
      * </p>
      * 
+     * <p>
+     *   Predicates created by {@link Meta} are answered using an index and
+     *   only visit matching keys.
+     * </p>
+     * 
      * @since 2.4
      * @param <T> the generic type
      * @param type the type's class literal
@@ -352,6 +567,59 @@ public interface Registry {
      */
     <T> T silentProxy(Key<T> key);
     
+    /**
+     * Creates a proxy of type T which can be used in third-party
+     * event/callback frameworks to integrate in this registry.
+     * 
+     * <p>
+     *   Using this method is equivalent to: <br />
+     *   {@code registry.asyncProxy(Key.get(type));}
+     * </p>
+     * 
+     * <p>
+     *   This method differs from {@link #proxy(Class)} as the returned proxy uses asynchronous
+     *   notifying as defined by {@link #notifyAsync(Class, Procedure)}. Invocations return
+     *   immediately, failing listeners will be logged.
+     * </p>
+     * 
+     * @since 2.12
+     * @param <T> the generic type
+     * @param type the type's class literal
+     * @return an instance of type T which itself is not registered
+     *         in this registry but delegates to all listeners registered 
+     *         in this registry at invocation time
+     * @throws NullPointerException if type is null
+     * @throws IllegalArgumentException if type is not an interface (annotations are not allowed)
+     * @throws IllegalStateException when a method is invoked which does not return
+     *         void. <strong>Note</strong>: This exception is thrown at invocation time
+     *         not at construction time. (toString, equals and hashCode are supported)
+     */
+    <T> T asyncProxy(Class<T> type);
+    
+    /**
+     * Creates a proxy of type T which can be used in third-party
+     * event/callback frameworks to integrate in this registry.
+     * 
+     * <p>
+     *   This method differs from {@link #proxy(Key)} as the returned proxy uses asynchronous
+     *   notifying as defined by {@link #notifyAsync(Key, Procedure)}. Invocations return
+     *   immediately, failing listeners will be logged.
+     * </p>
+     * 
+     * @since 2.12
+     * @param <T> the generic type
+     * @param key the binding key
+     * @return an instance of type T which itself is not registered
+     *         in this registry but delegates to all listeners registered 
+     *         in this registry at invocation time
+     * @throws NullPointerException if key is null
+     * @throws IllegalArgumentException if T is not an interface (annotations are not allowed)
+     * @throws IllegalStateException when a method is invoked which does not return
+     *         void. <strong>Note</strong>: This exception is thrown at invocation time
+     *         not at construction time. (toString, equals and hashCode are supported)
+     */
+    <T> T asyncProxy(Key<T> key);
+    
     /**
      * Notify all listeners for a specific type
      * by invoking command on every found listener.
@@ -374,6 +642,19 @@ public interface Registry {
      * Notify all listeners for a specific binding key
      * by invoking command on every found listener.
      * 
+     * <p>
+     *   If hierarchical notification is enabled using {@link CoreConfig#REGISTRY_HIERARCHICAL},
+     *   the default implementations also notify all listeners registered for keys with
+     *   the same meta information whose type is a subtype of the key's type. This
+     *   applies to all notify methods and proxies.
+     * </p>
+     * 
+     * <p>
+     *   Keys whose type is annotated with {@link Parallel} are notified like
+     *   {@link #notifyParallel(Key, Procedure)}, listeners of those keys are
+     *   notified in no particular order.
+     * </p>
+     * 
      * @param <T> the generic type
      * @param key the binding key
      * @param command the command being invoked on every listener
@@ -432,7 +713,8 @@ public interface Registry {
 
     /**
      * Notify all listeners for a specific binding key
-     * by invoking command on every found listener.
+     * by invoking command on every found listener. Keys whose type is annotated
+     * with {@link Parallel} are notified like {@link #notifySilentlyParallel(Key, Procedure)}.
      * 
      * @param <T> the generic type
      * @param key the binding key
@@ -441,6 +723,191 @@ public interface Registry {
      */
     <T> void notifySilently(Key<T> key, Procedure<? super T> command);
     
+    /**
+     * Notify all listeners of a specific type where the associated meta
+     * information of the key satisfies the specified predicate by invoking
+     * command on every listener found by {@link #find(Class, Predicate)}.
+     * 
+     * <p>
+     *   Use predicates created by {@link Meta} to notify the listeners of
+     *   matching keys without visiting every key of the specified type.
+     * </p>
+     * 
+     * @since 2.12
+     * @param <T> the generic type
+     * @param type the type's class literal
+     * @param predicate a predicate which defines matching meta information
+     * @param command the command being invoked on every listener
+     * @throws NullPointerException if type, predicate or command is null
+     * @throws RuntimeException if notifying a listener failed, which
+     *         will abort all following notifications
+     */
+    <T> void notifyMatching(Class<T> type, Predicate<? super Object> predicate, Procedure<? super T> command);
+    
+    /**
+     * Notify all listeners for a specific type asynchronously
+     * by invoking command on every found listener.
+     * 
+     * <p>
+     *   Using this method is equivalent to: <br />
+     *   {@code registry.notifyAsync(Key.get(type), command);}
+     * </p>
+     * 
+     * @since 2.12
+     * @param <T> the generic type
+     * @param type the type's class
+     * @param command the command being invoked on every listener
+     * @return a future which completes when all listeners have been notified
+     * @throws NullPointerException if type or command is null
+     */
+    <T> Future<Void> notifyAsync(Class<T> type, Procedure<? super T> command);
+    
+    /**
+     * Notify all listeners for a specific type in parallel
+     * by invoking command on every found listener.
+     * 
+     * <p>
+     *   Using this method is equivalent to: <br />
+     *   {@code registry.notifyParallel(Key.get(type), command);}
+     * </p>
+     * 
+     * @since 2.12
+     * @param <T> the generic type
+     * @param type the type's class
+     * @param command the command being invoked on every listener
+     * @throws NullPointerException if type or command is null
+     * @throws RuntimeException if notifying a listener failed, which
+     *         will abort all notifications which have not been started yet
+     */
+    <T> void notifyParallel(Class<T> type, Procedure<? super T> command);
+    
+    /**
+     * Notify all listeners for a specific binding key in parallel
+     * by invoking command on every found listener. The listeners registered at
+     * the time of this call are split across the {@link ParallelExecutor} and this
+     * method returns when all of them have been notified. Small listener sets are notified
+     * sequentially on the calling thread, as the parallel dispatch would not pay off.
+     * The size at which parallel dispatch starts can be configured using
+     * {@link CoreConfig#REGISTRY_PARALLEL_THRESHOLD}.
+     * 
+     * <p>
+     *   This method is intended for keys with many listeners doing cpu bound work.
+     *   Listeners will be notified in no particular order.
+     * </p>
+     * 
+     * @since 2.12
+     * @param <T> the generic type
+     * @param key the binding key
+     * @param command the command being invoked on every listener
+     * @throws NullPointerException if key or command is null
+     * @throws RuntimeException if notifying a listener failed, which
+     *         will abort all notifications which have not been started yet
+     */
+    <T> void notifyParallel(Key<T> key, Procedure<? super T> command);
+    
+    /**
+     * Notify all listeners for a specific type in parallel
+     * by invoking command on every found listener.
+     * 
+     * <p>
+     *   Using this method is equivalent to: <br />
+     *   {@code registry.notifySilentlyParallel(Key.get(type), command);}
+     * </p>
+     * 
+     * @since 2.12
+     * @param <T> the generic type
+     * @param type the type's class
+     * @param command the command being invoked on every listener
+     * @throws NullPointerException if type or command is null
+     */
+    <T> void notifySilentlyParallel(Class<T> type, Procedure<? super T> command);
+    
+    /**
+     * Notify all listeners for a specific binding key in parallel
+     * by invoking command on every found listener. This method behaves like
+     * {@link #notifyParallel(Key, Procedure)} but logs failing listeners
+     * like {@link #notifySilently(Key, Procedure)}.
+     * 
+     * @since 2.12
+     * @param <T> the generic type
+     * @param key the binding key
+     * @param command the command being invoked on every listener
+     * @throws NullPointerException if key or command is null
+     */
+    <T> void notifySilentlyParallel(Key<T> key, Procedure<? super T> command);
+    
+    /**
+     * Notify all listeners for a specific binding key asynchronously
+     * by invoking command on every found listener. The listeners registered
+     * at the time of this call will be notified one after another using
+     * the {@link AsyncExecutor}.
+     * 
+     * <p>
+     *   Like {@link #notifySilently(Key, Procedure)} a failing listener does not
+     *   abort the notification of the following listeners. All failures are collected
+     *   and reported by the returned future, whose {@link Future#get()} throws an
+     *   {@link ExecutionException} caused by a {@link NotificationException}.
+     * </p>
+     * 
+     * @since 2.12
+     * @param <T> the generic type
+     * @param key the binding key
+     * @param command the command being invoked on every listener
+     * @return a future which completes when all listeners have been notified
+     * @throws NullPointerException if key or command is null
+     */
+    <T> Future<Void> notifyAsync(Key<T> key, Procedure<? super T> command);
+    
+    /**
+     * Notify all listeners for a specific type concurrently
+     * by invoking command on every found listener.
+     * 
+     * <p>
+     *   Using this method is equivalent to: <br />
+     *   {@code registry.notifyConcurrently(Key.get(type), command);}
+     * </p>
+     * 
+     * @since 2.12
+     * @param <T> the generic type
+     * @param type the type's class
+     * @param command the command being invoked on every listener
+     * @return a future which completes when all listeners have been notified
+     * @throws NullPointerException if type or command is null
+     */
+    <T> Future<Void> notifyConcurrently(Class<T> type, Procedure<? super T> command);
+    
+    /**
+     * Notify all listeners for a specific binding key concurrently
+     * by invoking command on every found listener. Every listener registered
+     * at the time of this call is notified by a task of its own using the
+     * {@link ConcurrentExecutor}, which makes the total latency of a notification
+     * the latency of the slowest listener instead of the sum of all latencies.
+     * Use this method if listeners do blocking I/O.
+     * 
+     * <p>
+     *   At most {@link CoreConfig#REGISTRY_CONCURRENCY_LIMIT} listeners of the same key
+     *   are invoked at the same time, across all concurrent notifications of that key.
+     *   Further invocations are queued without blocking the caller.
+     * </p>
+     * 
+     * <p>
+     *   Listeners are notified in no particular order. Like {@link #notifySilently(Key, Procedure)}
+     *   a failing listener does not abort the notification of other listeners. All failures
+     *   are collected and reported by the returned future, whose {@link Future#get()} throws an
+     *   {@link ExecutionException} caused by a {@link NotificationException}. Calling
+     *   {@link Future#get()} joins the notification, cancelling the future skips
+     *   all invocations which have not been started yet.
+     * </p>
+     * 
+     * @since 2.12
+     * @param <T> the generic type
+     * @param key the binding key
+     * @param command the command being invoked on every listener
+     * @return a future which completes when all listeners have been notified
+     * @throws NullPointerException if key or command is null
+     */
+    <T> Future<Void> notifyConcurrently(Key<T> key, Procedure<? super T> command);
+    
     /**
      * Remove a specific listener interested in type from this registry.
      * If the same listener is also registered for other types,
@@ -483,6 +950,18 @@ public interface Registry {
      * @throws NullPointerException if listener is null
      */
     <T> boolean remove(T listener);
+    
+    /**
+     * Removes all specified listeners completely from this registry, like
+     * {@link #remove(Object)}. The default implementations apply the whole
+     * batch atomically, using a single structural update per affected key.
+     * 
+     * @since 2.12
+     * @param listeners the listeners being removed
+     * @return true if at least one of the listeners was registered before
+     * @throws NullPointerException if listeners is or contains null
+     */
+    boolean removeAll(Iterable<?> listeners);
 
     /**
      * Removes a type and its listeners completely from this registry.
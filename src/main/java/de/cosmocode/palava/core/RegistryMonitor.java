@@ -0,0 +1,205 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.core;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+import de.cosmocode.palava.core.InstrumentedRegistry.KeyStatistics;
+import de.cosmocode.palava.core.Registry.Key;
+import de.cosmocode.palava.core.lifecycle.Disposable;
+import de.cosmocode.palava.core.lifecycle.Initializable;
+import de.cosmocode.palava.core.lifecycle.LifecycleException;
+
+/**
+ * Exposes the topology and dispatch statistics of the bound {@link Registry}
+ * via JMX. The monitor registers itself on {@link #initialize()} and unregisters
+ * on {@link #dispose()}.
+ * 
+ * <p>
+ *   Topology is read from the registry implementation, unwrapping any
+ *   {@link ForwardingRegistry} decorators. Statistics are only available if the
+ *   registry is decorated by an {@link InstrumentedRegistry},
+ *   see {@link DefaultRegistryModule#instrumented()}. All reads work on snapshots
+ *   and never block registrations or notifications.
+ * </p>
+ *
+ * @since 2.12
+ * @author Willi Schoenborn
+ */
+@Singleton
+public final class RegistryMonitor implements RegistryMonitorMBean, Initializable, Disposable {
+
+    public static final String OBJECT_NAME = "de.cosmocode.palava.core:type=Registry";
+    
+    private static final Logger LOG = LoggerFactory.getLogger(RegistryMonitor.class);
+    
+    private final Topology topology;
+    
+    private final InstrumentedRegistry instrumented;
+    
+    private MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    
+    private ObjectName name;
+    
+    @Inject
+    public RegistryMonitor(Registry registry) {
+        Preconditions.checkNotNull(registry, "Registry");
+        Registry current = registry;
+        InstrumentedRegistry found = null;
+        while (current instanceof ForwardingRegistry) {
+            if (found == null && current instanceof InstrumentedRegistry) {
+                found = InstrumentedRegistry.class.cast(current);
+            }
+            current = ForwardingRegistry.class.cast(current).delegate();
+        }
+        this.instrumented = found;
+        if (current instanceof Topology) {
+            this.topology = Topology.class.cast(current);
+        } else {
+            LOG.warn("{} does not provide its topology", current);
+            this.topology = null;
+        }
+    }
+    
+    @Inject(optional = true)
+    void setServer(MBeanServer server) {
+        this.server = Preconditions.checkNotNull(server, "Server");
+    }
+    
+    @Override
+    public void initialize() throws LifecycleException {
+        try {
+            name = new ObjectName(OBJECT_NAME);
+            server.registerMBean(this, name);
+        } catch (JMException e) {
+            throw new LifecycleException(e);
+        }
+        LOG.info("Registered {} as {}", this, name);
+    }
+    
+    private Map<Key<?>, List<Object>> topology() {
+        return topology == null ? ImmutableMap.<Key<?>, List<Object>>of() : topology.getTopology();
+    }
+    
+    @Override
+    public int getKeyCount() {
+        return topology().size();
+    }
+    
+    @Override
+    public int getRegistrationCount() {
+        int count = 0;
+        for (List<Object> listeners : topology().values()) {
+            count += listeners.size();
+        }
+        return count;
+    }
+    
+    @Override
+    public String[] getKeys() {
+        final List<String> keys = Lists.newArrayList();
+        for (Map.Entry<Key<?>, List<Object>> entry : topology().entrySet()) {
+            final List<String> classes = Lists.newArrayList();
+            for (Object listener : entry.getValue()) {
+                classes.add(listener.getClass().getName());
+            }
+            keys.add(String.format("%s: %s listener(s) %s", entry.getKey(), entry.getValue().size(), classes));
+        }
+        return keys.toArray(new String[keys.size()]);
+    }
+    
+    @Override
+    public long getNotificationCount() {
+        if (instrumented == null) {
+            return -1L;
+        }
+        long count = 0;
+        for (KeyStatistics statistics : instrumented.getKeyStatistics().values()) {
+            count += statistics.getNotifications();
+        }
+        return count;
+    }
+    
+    @Override
+    public double getNotificationRate() {
+        if (instrumented == null) {
+            return -1D;
+        }
+        double rate = 0D;
+        for (KeyStatistics statistics : instrumented.getKeyStatistics().values()) {
+            rate += statistics.getNotificationRate();
+        }
+        return rate;
+    }
+    
+    @Override
+    public String[] getKeyStatistics() {
+        if (instrumented == null) {
+            return new String[0];
+        }
+        final List<String> keys = Lists.newArrayList();
+        for (KeyStatistics statistics : instrumented.getKeyStatistics().values()) {
+            keys.add(statistics.toString());
+        }
+        return keys.toArray(new String[keys.size()]);
+    }
+    
+    @Override
+    public String[] getSlowListeners() {
+        if (instrumented == null) {
+            return new String[0];
+        }
+        final List<String> listeners = Lists.newArrayList();
+        for (Object listener : instrumented.getSlowListeners()) {
+            listeners.add(String.valueOf(instrumented.getListenerStatistics(listener)));
+        }
+        return listeners.toArray(new String[listeners.size()]);
+    }
+    
+    @Override
+    public void resetStatistics() {
+        if (instrumented != null) {
+            instrumented.reset();
+        }
+    }
+    
+    @Override
+    public void dispose() throws LifecycleException {
+        if (name == null) return;
+        try {
+            server.unregisterMBean(name);
+        } catch (JMException e) {
+            throw new LifecycleException(e);
+        }
+    }
+    
+}
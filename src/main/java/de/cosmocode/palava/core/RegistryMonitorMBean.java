@@ -0,0 +1,85 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.core;
+
+/**
+ * Management interface of the {@link RegistryMonitor}.
+ *
+ * @since 2.12
+ * @author Willi Schoenborn
+ */
+public interface RegistryMonitorMBean {
+
+    /**
+     * Provides the number of keys with at least one listener.
+     * 
+     * @return the number of keys
+     */
+    int getKeyCount();
+    
+    /**
+     * Provides the total number of key/listener registrations.
+     * 
+     * @return the number of registrations
+     */
+    int getRegistrationCount();
+    
+    /**
+     * Provides every key with its number of listeners and their classes.
+     * 
+     * @return one line per key
+     */
+    String[] getKeys();
+    
+    /**
+     * Provides the total number of notifications. Requires an
+     * {@link InstrumentedRegistry}.
+     * 
+     * @return the number of notifications or -1 if the registry is not instrumented
+     */
+    long getNotificationCount();
+    
+    /**
+     * Provides the notification throughput, summed up over all keys. Requires an
+     * {@link InstrumentedRegistry}.
+     * 
+     * @return the number of notifications per second or -1 if the registry is not instrumented
+     */
+    double getNotificationRate();
+    
+    /**
+     * Provides every notified key with its notification and failure counts. Requires an
+     * {@link InstrumentedRegistry}.
+     * 
+     * @return one line per key, empty if the registry is not instrumented
+     */
+    String[] getKeyStatistics();
+    
+    /**
+     * Provides all listeners which exceeded the slow threshold. Requires an
+     * {@link InstrumentedRegistry}.
+     * 
+     * @return one line per slow listener, empty if the registry is not instrumented
+     */
+    String[] getSlowListeners();
+    
+    /**
+     * Discards all recorded statistics.
+     */
+    void resetStatistics();
+    
+}
@@ -0,0 +1,343 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.core;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Supplier;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import de.cosmocode.collections.Procedure;
+import de.cosmocode.palava.core.Registry.Key;
+import de.cosmocode.palava.core.lifecycle.Disposable;
+import de.cosmocode.palava.core.lifecycle.LifecycleException;
+
+/**
+ * A single-producer publisher on top of a {@link Registry} which passes events
+ * through a preallocated ring of mutable event slots.
+ * 
+ * <p>
+ *   The producer claims the next slot using {@link #next()}, fills the
+ *   event returned by {@link #get(long)} and makes it visible using {@link #publish(long)}.
+ *   A dedicated dispatcher thread notifies all listeners of the configured {@link Key}
+ *   for every published event using {@link Registry#notifySilently(Key, Procedure)}.
+ *   Neither side allocates in steady state: events are reused and the procedure
+ *   passed to the registry is a single instance owned by the dispatcher thread.
+ *   Listeners must therefore not keep references to events beyond their invocation.
+ * </p>
+ * 
+ * <p>
+ *   This publisher supports exactly one producer thread. If the ring is full,
+ *   the producer waits for the dispatcher using the configured {@link WaitStrategy}.
+ * </p>
+ *
+ * @since 2.12
+ * @author Willi Schoenborn
+ * @param <T> the generic listener type
+ * @param <E> the generic event type
+ */
+public final class RingBufferPublisher<T, E> implements Disposable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RingBufferPublisher.class);
+    
+    private static final ThreadFactory FACTORY = new ThreadFactoryBuilder()
+        .setNameFormat("palava-ring-buffer-publisher-%d").setDaemon(true).build();
+    
+    private final Registry registry;
+    
+    private final Key<T> key;
+    
+    private final Object[] events;
+    
+    private final int mask;
+    
+    private final WaitStrategy strategy;
+    
+    private final Dispatch dispatch;
+    
+    // highest published sequence
+    private final AtomicLong cursor = new AtomicLong(-1L);
+    
+    // highest sequence completely dispatched
+    private final AtomicLong consumed = new AtomicLong(-1L);
+    
+    // highest claimed sequence, only accessed by the producer
+    private long claimed = -1L;
+    
+    private final Thread dispatcher;
+    
+    private volatile boolean running = true;
+    
+    /**
+     * Strategies used by the dispatcher to wait for events and by
+     * the producer to wait for free slots.
+     *
+     * @since 2.12
+     * @author Willi Schoenborn
+     */
+    public static enum WaitStrategy {
+        
+        /**
+         * Spins without releasing the cpu. Lowest latency, but occupies a core.
+         */
+        BUSY_SPIN {
+            
+            @Override
+            void idle() {
+                
+            }
+            
+        },
+        
+        /**
+         * Spins and yields to other threads.
+         */
+        YIELD {
+            
+            @Override
+            void idle() {
+                Thread.yield();
+            }
+            
+        },
+        
+        /**
+         * Parks the waiting thread for a short period. Highest latency, lowest cpu usage.
+         */
+        PARK {
+            
+            @Override
+            void idle() {
+                LockSupport.parkNanos(PARK_NANOS);
+            }
+            
+        };
+        
+        private static final long PARK_NANOS = 1000L;
+        
+        abstract void idle();
+        
+    }
+    
+    /**
+     * Dispatches a single event to a listener.
+     *
+     * @since 2.12
+     * @author Willi Schoenborn
+     * @param <T> the generic listener type
+     * @param <E> the generic event type
+     */
+    public static interface Handler<T, E> {
+        
+        /**
+         * Handles the event by invoking the listener.
+         * 
+         * @param listener the listener
+         * @param event the current event, only valid during this call
+         */
+        void handle(T listener, E event);
+        
+    }
+    
+    /**
+     * Creates a new publisher and starts its dispatcher thread.
+     * 
+     * @param registry the registry whose listeners are notified
+     * @param key the binding key of the notified listeners
+     * @param handler the handler invoking a listener for an event
+     * @param factory the factory used to preallocate all events
+     * @param capacity the number of slots, must be a power of two
+     * @param strategy the wait strategy
+     * @throws NullPointerException if any argument is null or factory returns null
+     * @throws IllegalArgumentException if capacity is not a positive power of two
+     */
+    public RingBufferPublisher(Registry registry, Key<T> key, Handler<? super T, ? super E> handler,
+        Supplier<? extends E> factory, int capacity, WaitStrategy strategy) {
+        Preconditions.checkArgument(capacity > 0 && Integer.bitCount(capacity) == 1,
+            "Capacity %s must be a positive power of two", capacity);
+        this.registry = Preconditions.checkNotNull(registry, "Registry");
+        this.key = Preconditions.checkNotNull(key, "Key");
+        this.strategy = Preconditions.checkNotNull(strategy, "Strategy");
+        Preconditions.checkNotNull(factory, "Factory");
+        this.dispatch = new Dispatch(Preconditions.checkNotNull(handler, "Handler"));
+        this.events = new Object[capacity];
+        this.mask = capacity - 1;
+        for (int i = 0; i < capacity; i++) {
+            events[i] = Preconditions.checkNotNull(factory.get(), "Factory returned null");
+        }
+        this.dispatcher = FACTORY.newThread(new Runnable() {
+            
+            @Override
+            public void run() {
+                dispatch();
+            }
+            
+        });
+        dispatcher.start();
+    }
+    
+    /**
+     * Claims the next slot. Waits if the ring is full.
+     * Must only be called by the producer thread.
+     * 
+     * @return the sequence of the claimed slot
+     * @throws IllegalStateException if this publisher has been disposed or its dispatcher died
+     */
+    public long next() {
+        final long sequence = claimed + 1;
+        final long wrap = sequence - events.length;
+        while (wrap > consumed.get()) {
+            Preconditions.checkState(running, "%s has been disposed or its dispatcher died", this);
+            strategy.idle();
+        }
+        claimed = sequence;
+        return sequence;
+    }
+    
+    /**
+     * Provides the event of the specified slot.
+     * 
+     * @param sequence a sequence returned by {@link #next()}
+     * @return the preallocated event of that slot
+     */
+    public E get(long sequence) {
+        @SuppressWarnings("unchecked")
+        final E event = (E) events[(int) sequence & mask];
+        return event;
+    }
+    
+    /**
+     * Publishes the specified slot, which makes it available to the dispatcher.
+     * Slots must be published in the order they have been claimed.
+     * 
+     * @param sequence the sequence returned by {@link #next()}
+     * @throws IllegalArgumentException if sequence is not the next unpublished sequence
+     */
+    public void publish(long sequence) {
+        Preconditions.checkArgument(sequence == cursor.get() + 1 && sequence <= claimed,
+            "Sequence %s is not the next claimed sequence", sequence);
+        cursor.lazySet(sequence);
+    }
+    
+    /**
+     * Claims the next slot, fills its event using the given translator and
+     * publishes it. Reusing the translator keeps this method allocation free.
+     * The slot is published even if the translator fails.
+     * 
+     * @param translator the procedure filling the event
+     * @throws NullPointerException if translator is null
+     */
+    public void publish(Procedure<? super E> translator) {
+        Preconditions.checkNotNull(translator, "Translator");
+        final long sequence = next();
+        try {
+            translator.apply(get(sequence));
+        } finally {
+            publish(sequence);
+        }
+    }
+    
+    /**
+     * Provides the number of events which have been published but not dispatched yet.
+     * 
+     * @return the backlog of the dispatcher
+     */
+    public long getBacklog() {
+        return cursor.get() - consumed.get();
+    }
+    
+    private void dispatch() {
+        long next = consumed.get() + 1;
+        try {
+            while (running) {
+                final long available = cursor.get();
+                if (available < next) {
+                    strategy.idle();
+                    continue;
+                }
+                while (next <= available) {
+                    dispatch.event = get(next);
+                    try {
+                        registry.notifySilently(key, dispatch);
+                        /*CHECKSTYLE:OFF*/
+                    } catch (Throwable e) {
+                        /*CHECKSTYLE:ON*/
+                        LOG.error(String.format("Dispatching event %s of %s failed", next, this), e);
+                    }
+                    next++;
+                }
+                consumed.lazySet(available);
+            }
+        } finally {
+            // lets a producer waiting for a free slot fail instead of spinning forever
+            running = false;
+            LOG.debug("Dispatcher of {} stopped", this);
+        }
+    }
+    
+    /**
+     * Stops the dispatcher thread. Events which have been published
+     * but not dispatched yet are discarded.
+     */
+    @Override
+    public void dispose() throws LifecycleException {
+        running = false;
+        try {
+            dispatcher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new LifecycleException(e);
+        }
+    }
+    
+    @Override
+    public String toString() {
+        return String.format("RingBufferPublisher [key=%s, capacity=%s, strategy=%s]",
+            key, events.length, strategy);
+    }
+    
+    /**
+     * The reusable procedure invoked by the dispatcher thread.
+     *
+     * @since 2.12
+     * @author Willi Schoenborn
+     */
+    private final class Dispatch implements Procedure<T> {
+        
+        private final Handler<? super T, ? super E> handler;
+        
+        // only accessed by the dispatcher thread
+        private E event;
+        
+        public Dispatch(Handler<? super T, ? super E> handler) {
+            this.handler = handler;
+        }
+        
+        @Override
+        public void apply(T listener) {
+            handler.handle(listener, event);
+        }
+        
+    }
+    
+}
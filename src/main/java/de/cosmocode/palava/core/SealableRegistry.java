@@ -0,0 +1,617 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.core;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Function;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Predicate;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableListMultimap;
+import com.google.common.collect.ImmutableSetMultimap;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Multimap;
+import com.google.common.collect.Sets;
+
+import de.cosmocode.collections.Procedure;
+import de.cosmocode.palava.core.event.PostFrameworkStart;
+
+/**
+ * A {@link Registry} decorator which freezes the listener topology once
+ * the framework has been started.
+ *
+ * <p>
+ *   Until it is sealed, this registry behaves exactly like its backing registry.
+ *   On {@link PostFrameworkStart} (or when calling {@link #seal()} manually) all
+ *   registrations are compiled into immutable tables. Every sealed key is assigned
+ *   a slot in an open addressed array, found using its precomputed hash code and
+ *   an identity check for canonical keys. From then on {@link #notify(Key, Procedure)},
+ *   {@link #notifySilently(Key, Procedure)}, {@link #getListeners(Key)} and
+ *   {@link #find(Class, Predicate)} neither lock nor copy, they iterate a precomputed
+ *   array in notification order. Keys which are not part of the tables are
+ *   looked up in the backing registry.
+ * </p>
+ *
+ * <p>
+ *   Modifications after sealing are handled according to the configured {@link Policy}.
+ *   Overlaid modifications only clear the slots of the affected keys, until the
+ *   registry is sealed again.
+ *   Listeners registered weakly before sealing are held strongly by the tables.
+ * </p>
+ *
+ * @since 2.12
+ * @author Willi Schoenborn
+ */
+public final class SealableRegistry extends ForwardingRegistry implements Topology {
+    
+    private static final Logger LOG = LoggerFactory.getLogger(SealableRegistry.class);
+    
+    /**
+     * Defines how modifications are handled once the registry has been sealed.
+     *
+     * @since 2.12
+     * @author Willi Schoenborn
+     */
+    public static enum Policy {
+        
+        /**
+         * Rejects all modifications using an {@link IllegalStateException}.
+         */
+        FAIL,
+        
+        /**
+         * Applies modifications to the backing registry and drops all affected
+         * keys from the sealed tables. Those keys are served by the slower
+         * backing registry from then on, all other keys stay sealed.
+         */
+        OVERLAY;
+    
+    }
+    
+    private final Registry registry;
+    
+    private final Topology topology;
+    
+    private final Policy policy;
+    
+    private final FailureLog failures;
+    
+    private final ProxyCache proxies = new ProxyCache(this);
+    
+    private final Object lock = new Object();
+    
+    // null until sealed, replaced as a whole when keys are dropped
+    private volatile Tables tables;
+    
+    /**
+     * Creates a new {@link SealableRegistry} which seals itself on {@link PostFrameworkStart}.
+     *
+     * @param registry the backing registry, must provide its topology
+     * @param policy the policy for modifications after sealing
+     * @param failures the log failures of sealed silent notifications are reported to
+     * @throws NullPointerException if registry, policy or failures is null
+     * @throws IllegalArgumentException if registry does not provide its topology
+     */
+    SealableRegistry(Registry registry, Policy policy, FailureLog failures) {
+        this.registry = Preconditions.checkNotNull(registry, "Registry");
+        Preconditions.checkArgument(registry instanceof Topology, "%s does not provide its topology", registry);
+        this.topology = Topology.class.cast(registry);
+        this.policy = Preconditions.checkNotNull(policy, "Policy");
+        this.failures = Preconditions.checkNotNull(failures, "Failures");
+        proxies.setFailureLog(failures);
+        registry.register(PostFrameworkStart.class, new PostFrameworkStart() {
+            
+            @Override
+            public void eventPostFrameworkStart() {
+                seal();
+            }
+        
+        });
+    }
+    
+    @Override
+    protected Registry delegate() {
+        return registry;
+    }
+    
+    /**
+     * Seals this registry by compiling all current registrations. Sealing an already
+     * sealed registry recompiles its tables, which brings overlaid keys back into them.
+     */
+    public void seal() {
+        synchronized (lock) {
+            tables = new Tables(topology);
+            LOG.info("Sealed registry with {} keys", Integer.valueOf(tables.size()));
+        }
+    }
+    
+    /**
+     * Checks whether this registry has been sealed.
+     *
+     * @return true if this registry is sealed, false otherwise
+     */
+    public boolean isSealed() {
+        return tables != null;
+    }
+    
+    /**
+     * Checks whether modifications may proceed. Requires lock.
+     */
+    private void checkModifiable() {
+        Preconditions.checkState(tables == null || policy == Policy.OVERLAY, "Registry has been sealed");
+    }
+    
+    /**
+     * Drops the slots affected by modifications of the specified keys. Requires lock.
+     */
+    private void drop(Collection<? extends Key<?>> modified) {
+        final Tables current = tables;
+        if (current == null || modified.isEmpty()) return;
+        for (Key<?> key : modified) {
+            current.drop(key);
+        }
+        LOG.debug("Dropped sealed slots affected by modifications of {}", modified);
+    }
+    
+    /**
+     * Drops the slots of all keys the specified listeners were sealed with. Requires lock.
+     */
+    private void dropAll(Iterable<?> removed) {
+        final Tables current = tables;
+        if (current == null) return;
+        final Set<Key<?>> modified = Sets.newLinkedHashSet();
+        for (Object listener : removed) {
+            modified.addAll(current.registrations.get(listener));
+        }
+        drop(modified);
+    }
+    
+    @Override
+    public <T> void register(Class<T> type, T listener) {
+        Preconditions.checkNotNull(type, "Type");
+        register(Key.get(type), listener);
+    }
+    
+    @Override
+    public <T> void register(Key<T> key, T listener) {
+        synchronized (lock) {
+            checkModifiable();
+            super.register(key, listener);
+            drop(ImmutableList.of(key));
+        }
+    }
+    
+    @Override
+    public <T> void register(Class<T> type, T listener, int priority) {
+        Preconditions.checkNotNull(type, "Type");
+        register(Key.get(type), listener, priority);
+    }
+    
+    @Override
+    public <T> void register(Key<T> key, T listener, int priority) {
+        synchronized (lock) {
+            checkModifiable();
+            super.register(key, listener, priority);
+            drop(ImmutableList.of(key));
+        }
+    }
+    
+    @Override
+    public <T> void registerWeak(Class<T> type, T listener) {
+        Preconditions.checkNotNull(type, "Type");
+        registerWeak(Key.get(type), listener);
+    }
+    
+    @Override
+    public <T> void registerWeak(Key<T> key, T listener) {
+        synchronized (lock) {
+            checkModifiable();
+            super.registerWeak(key, listener);
+            drop(ImmutableList.of(key));
+        }
+    }
+    
+    @Override
+    public void registerAll(Multimap<? extends Key<?>, ?> listeners) {
+        synchronized (lock) {
+            checkModifiable();
+            super.registerAll(listeners);
+            drop(ImmutableList.copyOf(listeners.keySet()));
+        }
+    }
+    
+    @Override
+    public <T> Iterable<T> getListeners(Class<T> type) {
+        Preconditions.checkNotNull(type, "Type");
+        return getListeners(Key.get(type));
+    }
+    
+    @Override
+    public <T> Iterable<T> getListeners(final Key<T> key) {
+        Preconditions.checkNotNull(key, "Key");
+        final Iterable<T> backing = super.getListeners(key);
+        return new Iterable<T>() {
+            
+            @Override
+            public Iterator<T> iterator() {
+                // re-read on every iteration, the key may be sealed, dropped or sealed again
+                final Tables current = tables;
+                final List<Object> listeners = current == null ? null : current.listeners(key);
+                if (listeners == null) {
+                    return backing.iterator();
+                } else {
+                    @SuppressWarnings("unchecked")
+                    final Iterator<T> iterator = (Iterator<T>) listeners.iterator();
+                    return iterator;
+                }
+            }
+            
+        };
+    }
+    
+    @Override
+    public <T> Iterable<T> find(Class<T> type, final Predicate<? super Object> predicate) {
+        Preconditions.checkNotNull(type, "Type");
+        Preconditions.checkNotNull(predicate, "Predicate");
+        final Tables current = tables;
+        // indexed predicates are answered by the backing registry without visiting every key
+        if (current == null || predicate instanceof Meta.Match || !current.types.containsKey(type)
+            || current.overlaid.contains(type)) {
+            return super.find(type, predicate);
+        }
+        final Iterable<Key<?>> keys = Iterables.filter(current.types.get(type), new Predicate<Key<?>>() {
+            
+            @Override
+            public boolean apply(Key<?> key) {
+                return predicate.apply(key.getMeta());
+            }
+        
+        });
+        @SuppressWarnings("unchecked")
+        final Iterable<T> listeners = (Iterable<T>) Iterables.concat(Iterables.transform(keys,
+            new Function<Key<?>, Iterable<?>>() {
+                
+                @Override
+                public Iterable<?> apply(Key<?> key) {
+                    final List<Object> sealed = current.listeners(key);
+                    // dropped concurrently
+                    return sealed == null ? registry.getListeners(key) : sealed;
+                }
+            
+            }));
+        return listeners;
+    }
+    
+    @Override
+    public <T> T proxy(Class<T> type) {
+        Preconditions.checkNotNull(type, "Type");
+        return proxy(Key.get(type));
+    }
+    
+    @Override
+    public <T> T proxy(Key<T> key) {
+        return proxies.get(key, ProxyMode.NOTIFY);
+    }
+    
+    @Override
+    public <T> T silentProxy(Class<T> type) {
+        Preconditions.checkNotNull(type, "Type");
+        return silentProxy(Key.get(type));
+    }
+    
+    @Override
+    public <T> T silentProxy(Key<T> key) {
+        return proxies.get(key, ProxyMode.SILENT);
+    }
+    
+    @Override
+    public <T> T asyncProxy(Class<T> type) {
+        Preconditions.checkNotNull(type, "Type");
+        return asyncProxy(Key.get(type));
+    }
+    
+    @Override
+    public <T> T asyncProxy(Key<T> key) {
+        return proxies.get(key, ProxyMode.ASYNC);
+    }
+    
+    @Override
+    public <T> void notify(Class<T> type, Procedure<? super T> command) {
+        Preconditions.checkNotNull(type, "Type");
+        notify(Key.get(type), command);
+    }
+    
+    @Override
+    public <T> void notify(Key<T> key, Procedure<? super T> command) {
+        Preconditions.checkNotNull(key, "Key");
+        Preconditions.checkNotNull(command, "Command");
+        final Tables current = tables;
+        // parallel keys are notified by the backing registry
+        final Object[] listeners = current == null || AbstractRegistry.isParallel(key) ? null : current.dispatch(key);
+        if (listeners == null) {
+            super.notify(key, command);
+            return;
+        }
+        for (int i = 0; i < listeners.length; i++) {
+            @SuppressWarnings("unchecked")
+            final T listener = (T) listeners[i];
+            command.apply(listener);
+        }
+    }
+    
+    @Override
+    @SuppressWarnings("deprecation")
+    public <T> void notifySilent(Class<T> type, Procedure<? super T> command) {
+        Preconditions.checkNotNull(type, "Type");
+        notifySilently(Key.get(type), command);
+    }
+    
+    @Override
+    @SuppressWarnings("deprecation")
+    public <T> void notifySilent(Key<T> key, Procedure<? super T> command) {
+        notifySilently(key, command);
+    }
+    
+    @Override
+    public <T> void notifySilently(Class<T> type, Procedure<? super T> command) {
+        Preconditions.checkNotNull(type, "Type");
+        notifySilently(Key.get(type), command);
+    }
+    
+    @Override
+    public <T> void notifySilently(Key<T> key, Procedure<? super T> command) {
+        Preconditions.checkNotNull(key, "Key");
+        Preconditions.checkNotNull(command, "Command");
+        final Tables current = tables;
+        // parallel keys are notified by the backing registry
+        final Object[] listeners = current == null || AbstractRegistry.isParallel(key) ? null : current.dispatch(key);
+        if (listeners == null) {
+            super.notifySilently(key, command);
+            return;
+        }
+        for (int i = 0; i < listeners.length; i++) {
+            @SuppressWarnings("unchecked")
+            final T listener = (T) listeners[i];
+            try {
+                command.apply(listener);
+                /*CHECKSTYLE:OFF*/
+            } catch (RuntimeException e) {
+                /*CHECKSTYLE:ON*/
+                failures.report(key, listener, e);
+            }
+        }
+    }
+    
+    @Override
+    public <T> boolean remove(Class<T> type, T listener) {
+        Preconditions.checkNotNull(type, "Type");
+        return remove(Key.get(type), listener);
+    }
+    
+    @Override
+    public <T> boolean remove(Key<T> key, T listener) {
+        synchronized (lock) {
+            checkModifiable();
+            final boolean removed = super.remove(key, listener);
+            if (removed) {
+                drop(ImmutableList.of(key));
+            }
+            return removed;
+        }
+    }
+    
+    @Override
+    public <T> boolean remove(T listener) {
+        synchronized (lock) {
+            checkModifiable();
+            final boolean removed = super.remove(listener);
+            if (removed) {
+                dropAll(ImmutableList.of(listener));
+            }
+            return removed;
+        }
+    }
+    
+    @Override
+    public boolean removeAll(Iterable<?> listeners) {
+        synchronized (lock) {
+            checkModifiable();
+            final List<?> copy = ImmutableList.copyOf(Preconditions.checkNotNull(listeners, "Listeners"));
+            final boolean removed = super.removeAll(copy);
+            if (removed) {
+                dropAll(copy);
+            }
+            return removed;
+        }
+    }
+    
+    @Override
+    public <T> Iterable<T> removeAll(Class<T> type) {
+        Preconditions.checkNotNull(type, "Type");
+        return removeAll(Key.get(type));
+    }
+    
+    @Override
+    public <T> Iterable<T> removeAll(Key<T> key) {
+        synchronized (lock) {
+            checkModifiable();
+            final Iterable<T> removed = super.removeAll(key);
+            drop(ImmutableList.of(key));
+            return removed;
+        }
+    }
+    
+    @Override
+    public Map<Key<?>, List<Object>> getTopology() {
+        return topology.getTopology();
+    }
+    
+    @Override
+    public List<Key<?>> getKeys(Class<?> type, Predicate<? super Object> predicate) {
+        return topology.getKeys(type, predicate);
+    }
+    
+    @Override
+    public List<Object> getDispatch(Key<?> key) {
+        Preconditions.checkNotNull(key, "Key");
+        final Tables current = tables;
+        final Object[] listeners = current == null ? null : current.dispatch(key);
+        return listeners == null ? topology.getDispatch(key) : ImmutableList.copyOf(listeners);
+    }
+    
+    @Override
+    public String toString() {
+        return String.format("SealableRegistry [%s, sealed=%s]", policy, Boolean.valueOf(isSealed()));
+    }
+    
+    /**
+     * The tables of a sealed registry. Sealed keys and their slots never change,
+     * modifications after sealing only clear slots.
+     *
+     * @since 2.12
+     * @author Willi Schoenborn
+     */
+    private static final class Tables {
+        
+        // open addressed by hash code, parallel to listeners and dispatch
+        private final Key<?>[] keys;
+        
+        private final int mask;
+        
+        // listeners per slot as returned by getListeners, null once dropped
+        private final AtomicReferenceArray<List<Object>> listeners;
+        
+        // listeners per slot in notification order, null once dropped
+        private final AtomicReferenceArray<Object[]> dispatch;
+        
+        private final ImmutableListMultimap<Class<?>, Key<?>> types;
+        
+        // the sealed keys of every listener
+        private final ImmutableSetMultimap<Object, Key<?>> registrations;
+        
+        // types whose keys have been modified after sealing
+        private final Set<Class<?>> overlaid = Sets.newSetFromMap(new ConcurrentHashMap<Class<?>, Boolean>());
+        
+        public Tables(Topology topology) {
+            final Map<Key<?>, List<Object>> snapshot = topology.getTopology();
+            // at most half of all slots are used, which keeps probe sequences short
+            final int capacity = Integer.highestOneBit(Math.max(snapshot.size(), 1) * 2 - 1) << 1;
+            this.keys = new Key<?>[capacity];
+            this.mask = capacity - 1;
+            this.listeners = new AtomicReferenceArray<List<Object>>(capacity);
+            this.dispatch = new AtomicReferenceArray<Object[]>(capacity);
+            final ImmutableListMultimap.Builder<Class<?>, Key<?>> byType = ImmutableListMultimap.builder();
+            final ImmutableSetMultimap.Builder<Object, Key<?>> byListener = ImmutableSetMultimap.builder();
+            for (Map.Entry<Key<?>, List<Object>> entry : snapshot.entrySet()) {
+                final Key<?> key = entry.getKey();
+                int index = spread(key.hashCode()) & mask;
+                while (keys[index] != null) {
+                    index = (index + 1) & mask;
+                }
+                keys[index] = key;
+                final List<Object> exact = ImmutableList.copyOf(entry.getValue());
+                listeners.set(index, exact);
+                // honors hierarchical notification of the backing registry
+                dispatch.set(index, topology.getDispatch(key).toArray());
+                byType.put(key.getType(), key);
+                for (Object listener : exact) {
+                    byListener.put(listener, key);
+                }
+            }
+            this.types = byType.build();
+            this.registrations = byListener.build();
+        }
+        
+        private static int spread(int hash) {
+            return hash ^ (hash >>> 16);
+        }
+        
+        /**
+         * Provides the slot of the specified key.
+         * 
+         * @param key the key
+         * @return the slot of key or -1 if key has not been sealed
+         */
+        private int indexOf(Key<?> key) {
+            int index = spread(key.hashCode()) & mask;
+            while (true) {
+                final Key<?> candidate = keys[index];
+                if (candidate == null) return -1;
+                if (candidate == key || candidate.equals(key)) return index;
+                index = (index + 1) & mask;
+            }
+        }
+        
+        public int size() {
+            return types.size();
+        }
+        
+        /**
+         * Provides the sealed listeners of the specified key.
+         * 
+         * @param key the key
+         * @return the listeners or null if key is not sealed or has been dropped
+         */
+        public List<Object> listeners(Key<?> key) {
+            final int index = indexOf(key);
+            return index == -1 ? null : listeners.get(index);
+        }
+        
+        /**
+         * Provides the sealed listeners notified for the specified key.
+         * 
+         * @param key the key
+         * @return the listeners in notification order or null if key is not sealed or has been dropped
+         */
+        public Object[] dispatch(Key<?> key) {
+            final int index = indexOf(key);
+            return index == -1 ? null : dispatch.get(index);
+        }
+        
+        /**
+         * Clears the slots containing listeners of the specified key, which are
+         * the slot of key itself and the slots of all keys notifying it hierarchically.
+         * 
+         * @param key the modified key
+         */
+        public void drop(Key<?> key) {
+            overlaid.add(key.getType());
+            final int index = indexOf(key);
+            if (index != -1) {
+                listeners.set(index, null);
+            }
+            for (Class<?> supertype : DispatchCache.supertypesOf(key.getType())) {
+                final int including = indexOf(DispatchCache.keyOf(supertype, key.getMeta()));
+                if (including != -1) {
+                    dispatch.set(including, null);
+                }
+            }
+        }
+    
+    }
+
+}
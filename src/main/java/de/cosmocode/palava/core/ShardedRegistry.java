@@ -0,0 +1,775 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.core;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Function;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Predicate;
+import com.google.common.base.Predicates;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.LinkedHashMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Multimap;
+import com.google.common.collect.SetMultimap;
+import com.google.common.collect.Sets;
+import com.google.common.primitives.Ints;
+import com.google.common.primitives.Longs;
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+
+import de.cosmocode.collections.Procedure;
+
+/**
+ * A write-optimized implementation of the {@link Registry} interface which
+ * stripes keys across independently locked segments.
+ * 
+ * <p>
+ *   Registrations, removals and notifications for different keys only contend
+ *   if their keys share a segment. All listeners of a key live in the same segment,
+ *   in a tree ordered by priority and registration, so a single registration or
+ *   removal finds its position in O(log n) instead of re-sorting all listeners of the key.
+ *   Readers never see the tree: every modification publishes a copy-on-write snapshot of
+ *   each modified key while still holding the segment lock. Iteration and notification
+ *   order per key are the same as in the {@link DefaultRegistry}.
+ *   {@link #find(Class, Predicate)} and the topology span all segments.
+ * </p>
+ * 
+ * <p>
+ *   Batches are applied atomically: {@link #registerAll(Multimap)} locks all segments
+ *   of its keys, {@link #remove(Object)} and {@link #removeAll(Iterable)} lock all segments
+ *   holding one of the listeners, always in ascending order. Snapshots are published once
+ *   per batch, so a notification sees either none or all of its listeners for a key.
+ *   Notifiers, proxies and the failure log are shared by all segments.
+ * </p>
+ * 
+ * <p>
+ *   Hierarchical notification is not supported, because the keys
+ *   of a type hierarchy are usually spread across segments.
+ * </p>
+ *
+ * @since 2.12
+ * @author Willi Schoenborn
+ */
+final class ShardedRegistry extends AbstractRegistry implements Topology {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ShardedRegistry.class);
+    
+    private static final int MIN_SEGMENTS = 16;
+    
+    // maximum number of collected listeners being expunged per operation
+    private static final int EXPUNGE_LIMIT = 64;
+    
+    private final Segment[] segments;
+    
+    private final int mask;
+    
+    private volatile FailureLog failures = new FailureLog();
+    
+    private final ProxyCache proxies = new ProxyCache(this, failures);
+    
+    private final AsyncNotifier async = new AsyncNotifier();
+    
+    private final ParallelNotifier parallel = new ParallelNotifier();
+    
+    private final ConcurrentNotifier concurrent = new ConcurrentNotifier();
+    
+    private final ReferenceQueue<Object> queue = new ReferenceQueue<Object>();
+    
+    public ShardedRegistry() {
+        this(Math.max(MIN_SEGMENTS, Runtime.getRuntime().availableProcessors() * 4));
+    }
+    
+    /**
+     * Creates a new {@link ShardedRegistry}.
+     * 
+     * @param concurrency the estimated number of concurrently modifying threads,
+     *        will be rounded up to the next power of two
+     * @throws IllegalArgumentException if concurrency is not positive
+     */
+    ShardedRegistry(int concurrency) {
+        Preconditions.checkArgument(concurrency > 0, "Concurrency must be positive, but was %s", concurrency);
+        final int size = Integer.highestOneBit(concurrency - 1) << 1;
+        this.segments = new Segment[Math.max(1, size)];
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = new Segment();
+        }
+        this.mask = segments.length - 1;
+    }
+    
+    @Inject(optional = true)
+    void setAsyncExecutor(@AsyncExecutor Executor executor) {
+        async.setExecutor(executor);
+    }
+    
+    @Inject(optional = true)
+    void setParallelExecutor(@ParallelExecutor Executor executor) {
+        parallel.setExecutor(executor);
+    }
+    
+    @Inject(optional = true)
+    void setParallelThreshold(@Named(CoreConfig.REGISTRY_PARALLEL_THRESHOLD) int threshold) {
+        parallel.setThreshold(threshold);
+    }
+    
+    @Inject(optional = true)
+    void setFailureLog(FailureLog failures) {
+        this.failures = Preconditions.checkNotNull(failures, "Failures");
+        proxies.setFailureLog(failures);
+    }
+    
+    @Inject(optional = true)
+    void setConcurrentExecutor(@ConcurrentExecutor Executor executor) {
+        concurrent.setExecutor(executor);
+    }
+    
+    @Inject(optional = true)
+    void setConcurrencyLimit(@Named(CoreConfig.REGISTRY_CONCURRENCY_LIMIT) int limit) {
+        concurrent.setLimit(limit);
+    }
+    
+    private int indexOf(Key<?> key) {
+        Preconditions.checkNotNull(key, "Key");
+        final int hash = key.hashCode();
+        return (hash ^ (hash >>> 16)) & mask;
+    }
+    
+    private Segment segmentFor(Key<?> key) {
+        return segments[indexOf(key)];
+    }
+    
+    /**
+     * Runs the specified action while holding the locks of all given segments.
+     * Locks are acquired in ascending index order to prevent deadlocks.
+     */
+    private void atomically(int[] indices, int from, Runnable action) {
+        if (from == indices.length) {
+            action.run();
+        } else {
+            synchronized (segments[indices[from]]) {
+                atomically(indices, from + 1, action);
+            }
+        }
+    }
+    
+    /**
+     * Removes collected weak listeners. Does at most {@link #EXPUNGE_LIMIT}
+     * removals to keep the overhead per operation bounded.
+     */
+    private void expunge() {
+        for (int i = 0; i < EXPUNGE_LIMIT; i++) {
+            final Reference<?> reference = queue.poll();
+            if (reference == null) return;
+            final WeakListener listener = WeakListener.class.cast(reference);
+            LOG.trace("Expunging collected listener from {}", listener.getKey());
+            final Segment segment = segmentFor(listener.getKey());
+            synchronized (segment) {
+                segment.removeElement(listener.getKey(), listener);
+                segment.publish();
+            }
+        }
+    }
+    
+    /**
+     * Copies all listeners in the specified elements, unwrapping weakly
+     * referenced ones and skipping those which have been garbage collected.
+     */
+    private static <T> List<T> live(Object[] elements) {
+        @SuppressWarnings("unchecked")
+        final Iterable<T> listeners = (Iterable<T>) Iterables.filter(
+            Iterables.transform(Arrays.asList(elements), WeakListener.UNWRAP), Predicates.notNull());
+        return ImmutableList.copyOf(listeners);
+    }
+    
+    private <T> List<T> snapshot(Key<T> key) {
+        return live(segmentFor(key).elements(key));
+    }
+    
+    @Override
+    public <T> void register(Key<T> key, T listener, int priority) {
+        Preconditions.checkNotNull(key, "Key");
+        Preconditions.checkNotNull(listener, "Listener");
+        LOG.trace("Registering {} for {}", listener, key);
+        expunge();
+        final Segment segment = segmentFor(key);
+        synchronized (segment) {
+            // replaces a weak registration of the same listener
+            segment.removeElement(key, WeakListener.probe(listener));
+            segment.putElement(key, listener, priority);
+            segment.publish();
+        }
+    }
+    
+    @Override
+    public <T> void registerWeak(Key<T> key, T listener) {
+        Preconditions.checkNotNull(key, "Key");
+        Preconditions.checkNotNull(listener, "Listener");
+        LOG.trace("Weakly registering {} for {}", listener, key);
+        expunge();
+        final Segment segment = segmentFor(key);
+        synchronized (segment) {
+            if (segment.contains(key, listener) || segment.contains(key, WeakListener.probe(listener))) {
+                return;
+            }
+            segment.putElement(key, new WeakListener(key, listener, queue), priorityOf(listener));
+            segment.publish();
+        }
+    }
+    
+    /**
+     * Validates the whole batch before any segment is modified and applies
+     * it while holding the locks of all affected segments.
+     */
+    @Override
+    public void registerAll(Multimap<? extends Key<?>, ?> listeners) {
+        Preconditions.checkNotNull(listeners, "Listeners");
+        final List<Map.Entry<Key<?>, Object>> entries = Lists.newArrayList();
+        final Set<Integer> involved = Sets.newTreeSet();
+        for (Map.Entry<? extends Key<?>, ?> entry : listeners.entries()) {
+            final Key<?> key = entry.getKey();
+            entries.add(Maps.<Key<?>, Object>immutableEntry(key, checkInstance(key, entry.getValue())));
+            involved.add(Integer.valueOf(indexOf(key)));
+        }
+        LOG.trace("Registering {} listeners", Integer.valueOf(entries.size()));
+        expunge();
+        atomically(Ints.toArray(involved), 0, new Runnable() {
+            
+            @Override
+            public void run() {
+                for (Map.Entry<Key<?>, Object> entry : entries) {
+                    final Key<?> key = entry.getKey();
+                    final Object listener = entry.getValue();
+                    final Segment segment = segmentFor(key);
+                    segment.removeElement(key, WeakListener.probe(listener));
+                    segment.putElement(key, listener, priorityOf(listener));
+                }
+                for (Integer index : involved) {
+                    segments[index.intValue()].publish();
+                }
+            }
+            
+        });
+    }
+    
+    @Override
+    public <T> Iterable<T> getListeners(final Key<T> key) {
+        Preconditions.checkNotNull(key, "Key");
+        return new Iterable<T>() {
+            
+            @Override
+            public Iterator<T> iterator() {
+                @SuppressWarnings("unchecked")
+                final Iterator<T> listeners = (Iterator<T>) Iterators.filter(
+                    Iterators.transform(Iterators.forArray(segmentFor(key).elements(key)), WeakListener.UNWRAP),
+                    Predicates.notNull());
+                return listeners;
+            }
+            
+        };
+    }
+    
+    @Override
+    public <T> Iterable<T> find(final Class<T> type, final Predicate<? super Object> predicate) {
+        Preconditions.checkNotNull(type, "Type");
+        Preconditions.checkNotNull(predicate, "Predicate");
+        
+        return new Iterable<T>() {
+            
+            @Override
+            public Iterator<T> iterator() {
+                final List<Key<?>> keys = getKeys(type, predicate);
+                
+                return new AbstractIterator<T>() {
+                    
+                    private final Iterator<Key<?>> iterator = keys.iterator();
+                    
+                    private Iterator<Object> listeners = ImmutableList.of().iterator();
+                    
+                    @Override
+                    protected T computeNext() {
+                        while (!listeners.hasNext()) {
+                            if (!iterator.hasNext()) {
+                                return endOfData();
+                            }
+                            final Key<?> key = iterator.next();
+                            listeners = live(segmentFor(key).elements(key)).iterator();
+                        }
+                        @SuppressWarnings("unchecked")
+                        final T listener = (T) listeners.next();
+                        return listener;
+                    }
+                    
+                };
+            }
+            
+        };
+    }
+    
+    @Override
+    public <T> T proxy(Key<T> key) {
+        return proxies.get(key, ProxyMode.NOTIFY);
+    }
+    
+    @Override
+    public <T> T silentProxy(Key<T> key) {
+        return proxies.get(key, ProxyMode.SILENT);
+    }
+    
+    @Override
+    public <T> T asyncProxy(Key<T> key) {
+        return proxies.get(key, ProxyMode.ASYNC);
+    }
+    
+    @Override
+    public <T> void notify(Key<T> key, Procedure<? super T> command) {
+        Preconditions.checkNotNull(key, "Key");
+        Preconditions.checkNotNull(command, "Command");
+        if (isParallel(key)) {
+            notifyParallel(key, command);
+            return;
+        }
+        LOG.trace("Notifying all listeners for {} using {}", key, command);
+        expunge();
+        for (Object element : segmentFor(key).elements(key)) {
+            @SuppressWarnings("unchecked")
+            final T listener = (T) WeakListener.unwrap(element);
+            if (listener == null) continue;
+            LOG.trace("notifying {} for {}", listener, key);
+            command.apply(listener);
+        }
+    }
+    
+    @Override
+    public <T> void notifySilent(Key<T> key, Procedure<? super T> command) {
+        notifySilently(key, command);
+    }
+    
+    @Override
+    public <T> void notifySilently(Key<T> key, Procedure<? super T> command) {
+        Preconditions.checkNotNull(key, "Key");
+        Preconditions.checkNotNull(command, "Command");
+        if (isParallel(key)) {
+            notifySilentlyParallel(key, command);
+            return;
+        }
+        LOG.trace("Notifying all listeners for {} using {}", key, command);
+        expunge();
+        for (Object element : segmentFor(key).elements(key)) {
+            @SuppressWarnings("unchecked")
+            final T listener = (T) WeakListener.unwrap(element);
+            if (listener == null) continue;
+            LOG.trace("notifying {} for {}", listener, key);
+            try {
+                command.apply(listener);
+                /*CHECKSTYLE:OFF*/
+            } catch (RuntimeException e) {
+                /*CHECKSTYLE:ON*/
+                failures.report(key, listener, e);
+            }
+        }
+    }
+    
+    @Override
+    public <T> Future<Void> notifyAsync(Key<T> key, Procedure<? super T> command) {
+        Preconditions.checkNotNull(key, "Key");
+        Preconditions.checkNotNull(command, "Command");
+        LOG.trace("Asynchronously notifying all listeners for {} using {}", key, command);
+        return async.submit(key, snapshot(key), command);
+    }
+    
+    @Override
+    public <T> Future<Void> notifyConcurrently(Key<T> key, Procedure<? super T> command) {
+        Preconditions.checkNotNull(key, "Key");
+        Preconditions.checkNotNull(command, "Command");
+        LOG.trace("Concurrently notifying all listeners for {} using {}", key, command);
+        return concurrent.submit(key, snapshot(key), command);
+    }
+    
+    @Override
+    public <T> void notifyParallel(Key<T> key, Procedure<? super T> command) {
+        Preconditions.checkNotNull(key, "Key");
+        Preconditions.checkNotNull(command, "Command");
+        LOG.trace("Notifying all listeners for {} in parallel using {}", key, command);
+        parallel.notify(key, snapshot(key), command, null);
+    }
+    
+    @Override
+    public <T> void notifySilentlyParallel(Key<T> key, Procedure<? super T> command) {
+        Preconditions.checkNotNull(key, "Key");
+        Preconditions.checkNotNull(command, "Command");
+        LOG.trace("Notifying all listeners for {} in parallel using {}", key, command);
+        parallel.notify(key, snapshot(key), command, failures);
+    }
+    
+    @Override
+    public <T> boolean remove(Key<T> key, T listener) {
+        Preconditions.checkNotNull(key, "Key");
+        Preconditions.checkNotNull(listener, "Listener");
+        LOG.trace("Removing {} from {}", listener, key);
+        final Segment segment = segmentFor(key);
+        synchronized (segment) {
+            final boolean removed = segment.removeElement(key, listener) ||
+                segment.removeElement(key, WeakListener.probe(listener));
+            segment.publish();
+            return removed;
+        }
+    }
+    
+    @Override
+    public <T> boolean remove(T listener) {
+        Preconditions.checkNotNull(listener, "Listener");
+        LOG.trace("Removing {}", listener);
+        return removeAll(ImmutableList.of(listener));
+    }
+    
+    /**
+     * Locks only the segments holding at least one of the specified listeners.
+     * A listener registered concurrently to a segment which did not hold any of them
+     * is considered registered after the removal.
+     */
+    @Override
+    public boolean removeAll(Iterable<?> listeners) {
+        Preconditions.checkNotNull(listeners, "Listeners");
+        final List<?> copy = ImmutableList.copyOf(listeners);
+        LOG.trace("Removing {} listeners", Integer.valueOf(copy.size()));
+        final List<Integer> involved = Lists.newArrayList();
+        for (int i = 0; i < segments.length; i++) {
+            for (Object listener : copy) {
+                if (segments[i].holds(listener)) {
+                    involved.add(Integer.valueOf(i));
+                    break;
+                }
+            }
+        }
+        if (involved.isEmpty()) return false;
+        final boolean[] removed = new boolean[1];
+        atomically(Ints.toArray(involved), 0, new Runnable() {
+            
+            @Override
+            public void run() {
+                for (Integer index : involved) {
+                    final Segment segment = segments[index.intValue()];
+                    for (Object listener : copy) {
+                        if (segment.removeElements(listener)) {
+                            removed[0] = true;
+                        }
+                    }
+                    segment.publish();
+                }
+            }
+            
+        });
+        return removed[0];
+    }
+    
+    @Override
+    public <T> Iterable<T> removeAll(Key<T> key) {
+        Preconditions.checkNotNull(key, "Key");
+        LOG.trace("Removing all listeners from {}", key);
+        final Segment segment = segmentFor(key);
+        synchronized (segment) {
+            return ShardedRegistry.<T>live(segment.removeKey(key));
+        }
+    }
+    
+    @Override
+    public List<Key<?>> getKeys(Class<?> type, Predicate<? super Object> predicate) {
+        Preconditions.checkNotNull(type, "Type");
+        Preconditions.checkNotNull(predicate, "Predicate");
+        final List<Key<?>> candidates = Lists.newArrayList();
+        if (predicate instanceof Meta.Match && Meta.Match.class.cast(predicate).getExtractor() == null) {
+            // the only matching key lives in exactly one segment, if it is registered at all
+            final Key<?> key = Key.get(type, Meta.Match.class.cast(predicate).getValue());
+            if (segmentFor(key).elements(key).length > 0) {
+                candidates.add(key);
+            }
+        } else {
+            for (Segment segment : segments) {
+                segment.collect(type, predicate, candidates);
+            }
+        }
+        final ImmutableList.Builder<Key<?>> builder = ImmutableList.builder();
+        for (Key<?> key : candidates) {
+            if (predicate.apply(key.getMeta())) {
+                builder.add(key);
+            }
+        }
+        return builder.build();
+    }
+
+    @Override
+    public List<Object> getDispatch(Key<?> key) {
+        Preconditions.checkNotNull(key, "Key");
+        return live(segmentFor(key).elements(key));
+    }
+
+    @Override
+    public Map<Key<?>, List<Object>> getTopology() {
+        final ImmutableMap.Builder<Key<?>, List<Object>> builder = ImmutableMap.builder();
+        for (Segment segment : segments) {
+            for (Map.Entry<Key<?>, Chain> entry : segment.chains.entrySet()) {
+                final Object[] elements = entry.getValue().snapshot;
+                if (elements.length == 0) continue;
+                builder.put(entry.getKey(), live(elements));
+            }
+        }
+        return builder.build();
+    }
+    
+    /**
+     * A registered element, ordered by priority and then by registration.
+     *
+     * @since 2.12
+     * @author Willi Schoenborn
+     */
+    private static final class Entry implements Comparable<Entry> {
+        
+        private final Object element;
+        
+        private final int priority;
+        
+        private final long sequence;
+        
+        public Entry(Object element, int priority, long sequence) {
+            this.element = element;
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+        
+        @Override
+        public int compareTo(Entry that) {
+            final int result = Ints.compare(priority, that.priority);
+            return result == 0 ? Longs.compare(sequence, that.sequence) : result;
+        }
+        
+    }
+    
+    /**
+     * The listeners of a single key. The snapshot can be read without locking,
+     * everything else requires the lock of the owning segment.
+     *
+     * @since 2.12
+     * @author Willi Schoenborn
+     */
+    private static final class Chain {
+        
+        private final Key<?> key;
+        
+        // guarded by segment
+        private final SortedSet<Entry> order = Sets.newTreeSet();
+        
+        // guarded by segment
+        private final Map<Object, Entry> entries = Maps.newHashMap();
+        
+        // replaced by the segment once per modification, never modified in place
+        private volatile Object[] snapshot = Segment.EMPTY;
+        
+        public Chain(Key<?> key) {
+            this.key = key;
+        }
+        
+        public Object[] toArray() {
+            final List<Object> elements = Lists.newArrayList();
+            for (Entry entry : order) {
+                elements.add(entry.element);
+            }
+            return elements.toArray();
+        }
+        
+    }
+    
+    /**
+     * A segment owns all keys hashing to it. Modifications lock the segment itself.
+     *
+     * @since 2.12
+     * @author Willi Schoenborn
+     */
+    private static final class Segment {
+        
+        private static final Object[] EMPTY = {};
+        
+        private final ConcurrentMap<Key<?>, Chain> chains = Maps.newConcurrentMap();
+        
+        // guarded by this
+        private final SetMultimap<Class<?>, Key<?>> types = LinkedHashMultimap.create();
+        
+        // modified while holding this
+        private final MetaIndex metas = new MetaIndex(this, new Function<Class<?>, Iterable<Key<?>>>() {
+            
+            @Override
+            public Iterable<Key<?>> apply(Class<?> type) {
+                return types.get(type);
+            }
+            
+        });
+        
+        // guarded by this, reverse index of chains, weak listeners are matched by identity
+        private final SetMultimap<Object, Key<?>> keys = HashMultimap.create();
+        
+        // the elements of keys, readable without locking
+        private final Set<Object> members = Sets.newSetFromMap(Maps.<Object, Boolean>newConcurrentMap());
+        
+        // guarded by this, chains whose snapshot is outdated
+        private final Set<Chain> modified = Sets.newHashSet();
+        
+        // guarded by this, preserves registration order among equal priorities
+        private long sequence;
+        
+        public Object[] elements(Key<?> key) {
+            final Chain chain = chains.get(key);
+            return chain == null ? EMPTY : chain.snapshot;
+        }
+        
+        public boolean holds(Object listener) {
+            return members.contains(listener) || members.contains(WeakListener.probe(listener));
+        }
+        
+        // requires lock, makes all pending modifications visible to readers
+        public void publish() {
+            for (Chain chain : modified) {
+                if (chain.entries.isEmpty()) {
+                    chain.snapshot = EMPTY;
+                    if (chains.remove(chain.key, chain) && types.remove(chain.key.getType(), chain.key)) {
+                        metas.remove(chain.key);
+                    }
+                } else {
+                    chain.snapshot = chain.toArray();
+                }
+            }
+            modified.clear();
+        }
+        
+        // requires lock
+        public boolean contains(Key<?> key, Object element) {
+            final Chain chain = chains.get(key);
+            return chain != null && chain.entries.containsKey(element);
+        }
+        
+        // requires lock, re-registering keeps the original position among equal priorities
+        public void putElement(Key<?> key, Object element, int priority) {
+            Chain chain = chains.get(key);
+            if (chain == null) {
+                chain = new Chain(key);
+                chains.put(key, chain);
+                if (types.put(key.getType(), key)) {
+                    metas.add(key);
+                }
+            }
+            final Entry existing = chain.entries.get(element);
+            if (existing == null) {
+                final Entry entry = new Entry(element, priority, sequence++);
+                chain.entries.put(element, entry);
+                chain.order.add(entry);
+                keys.put(element, key);
+                members.add(element);
+                modified.add(chain);
+            } else if (existing.priority != priority) {
+                final Entry entry = new Entry(existing.element, priority, existing.sequence);
+                chain.entries.put(element, entry);
+                chain.order.remove(existing);
+                chain.order.add(entry);
+                modified.add(chain);
+            }
+        }
+        
+        // requires lock, empty chains are dropped when publishing
+        public boolean removeElement(Key<?> key, Object element) {
+            final Chain chain = chains.get(key);
+            if (chain == null) return false;
+            final Entry entry = chain.entries.remove(element);
+            if (entry == null) return false;
+            chain.order.remove(entry);
+            unindex(entry.element, key);
+            modified.add(chain);
+            return true;
+        }
+        
+        // requires lock
+        private void unindex(Object element, Key<?> key) {
+            keys.remove(element, key);
+            if (!keys.containsKey(element)) {
+                members.remove(element);
+            }
+        }
+        
+        // requires lock, removes listener from all keys of this segment
+        public boolean removeElements(Object listener) {
+            boolean removed = false;
+            final WeakListener probe = WeakListener.probe(listener);
+            for (Key<?> key : ImmutableList.copyOf(keys.get(listener))) {
+                if (removeElement(key, listener)) {
+                    removed = true;
+                }
+            }
+            for (Key<?> key : ImmutableList.copyOf(keys.get(probe))) {
+                if (removeElement(key, probe)) {
+                    removed = true;
+                }
+            }
+            return removed;
+        }
+        
+        // requires lock
+        public Object[] removeKey(Key<?> key) {
+            final Chain chain = chains.remove(key);
+            if (chain == null) return EMPTY;
+            modified.remove(chain);
+            if (types.remove(key.getType(), key)) {
+                metas.remove(key);
+            }
+            for (Entry entry : chain.entries.values()) {
+                unindex(entry.element, key);
+            }
+            final Object[] elements = chain.toArray();
+            chain.snapshot = EMPTY;
+            return elements;
+        }
+        
+        public void collect(Class<?> type, Predicate<? super Object> predicate, List<Key<?>> target) {
+            final Iterable<Key<?>> indexed = metas.lookup(type, predicate);
+            if (indexed == null) {
+                synchronized (this) {
+                    target.addAll(types.get(type));
+                }
+            } else {
+                Iterables.addAll(target, indexed);
+            }
+        }
+        
+    }
+    
+}
@@ -0,0 +1,581 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.core;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import de.cosmocode.collections.Procedure;
+import de.cosmocode.palava.core.RingBufferPublisher.Handler;
+import de.cosmocode.palava.core.RingBufferPublisher.WaitStrategy;
+import de.cosmocode.palava.core.Registry.Key;
+import de.cosmocode.palava.core.lifecycle.Disposable;
+import de.cosmocode.palava.core.lifecycle.LifecycleException;
+
+/**
+ * A bridge which passes events between several JVMs on the same host
+ * using memory mapped ring files in a shared directory.
+ * 
+ * <p>
+ *   Every bridge owns exactly one ring file in the directory, which only it writes.
+ *   {@link #publish(Object)} encodes the event using the configured {@link Codec}
+ *   into the next slot of that ring. A dedicated reader thread tails the ring files
+ *   of all peers in the same directory, decodes every new event and notifies all
+ *   local listeners of the configured {@link Key} using
+ *   {@link Registry#notifySilently(Key, Procedure)}. Events are never dispatched to
+ *   the listeners of the publishing JVM, neither sockets nor system calls are
+ *   involved once a ring is mapped.
+ * </p>
+ * 
+ * <p>
+ *   Publishers never wait for readers. Every slot carries the sequence number
+ *   of its event, which allows readers to detect that they have been overtaken
+ *   by the publisher. Lost events are logged and counted by {@link #getLost()}.
+ *   New peers are discovered once per second and start reading at the
+ *   most recent event.
+ * </p>
+ * 
+ * <p>
+ *   A ring file keeps its sequence across restarts of its owner, but its
+ *   layout can't be changed while it exists. Ring files must not be deleted
+ *   while any peer is running.
+ * </p>
+ *
+ * @since 2.12
+ * @author Willi Schoenborn
+ * @param <T> the generic listener type
+ * @param <E> the generic event type
+ */
+public final class SharedMemoryBridge<T, E> implements Disposable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SharedMemoryBridge.class);
+    
+    private static final ThreadFactory FACTORY = new ThreadFactoryBuilder()
+        .setNameFormat("palava-shared-memory-bridge-%d").setDaemon(true).build();
+    
+    private static final String SUFFIX = ".ring";
+    
+    private static final long SCAN_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+    
+    private final Registry registry;
+    
+    private final Key<T> key;
+    
+    private final Codec<E> codec;
+    
+    private final WaitStrategy strategy;
+    
+    private final File file;
+    
+    private final Ring ring;
+    
+    // guarded by this
+    private final ByteBuffer encoded;
+    
+    // guarded by this, the sequence of the last published event
+    private long sequence;
+    
+    private final Dispatch dispatch;
+    
+    // only accessed by the reader thread once started
+    private final Map<File, Peer> peers = Maps.newHashMap();
+    
+    // only accessed by the reader thread once started
+    private long scanned;
+    
+    private final AtomicLong lost = new AtomicLong();
+    
+    private final Thread reader;
+    
+    private volatile boolean running = true;
+    
+    /**
+     * Converts events from and to their binary representation.
+     *
+     * @since 2.12
+     * @author Willi Schoenborn
+     * @param <E> the generic event type
+     */
+    public static interface Codec<E> {
+        
+        /**
+         * Writes the specified event into the given buffer, starting at
+         * its position.
+         * 
+         * @param event the event
+         * @param target the target buffer, its remaining bytes are the maximum event size
+         * @throws BufferOverflowException if event exceeds the maximum event size
+         */
+        void encode(E event, ByteBuffer target);
+        
+        /**
+         * Reads an event from the given buffer.
+         * 
+         * @param source a buffer whose remaining bytes contain exactly one encoded event
+         * @return the decoded event
+         */
+        E decode(ByteBuffer source);
+        
+    }
+    
+    /**
+     * Creates a new bridge, maps its ring file and starts its reader thread.
+     * 
+     * @param registry the registry whose listeners are notified
+     * @param key the binding key of the notified listeners
+     * @param handler the handler invoking a listener for an event
+     * @param codec the codec used to encode and decode events
+     * @param file the ring file owned by this bridge, its directory is shared by all peers
+     * @param capacity the number of slots, must be a power of two
+     * @param size the maximum size of an encoded event in bytes
+     * @param strategy the wait strategy of the reader thread
+     * @throws NullPointerException if any argument is null
+     * @throws IllegalArgumentException if capacity is not a positive power of two, size is not positive
+     *         or file exists with a different capacity or size
+     * @throws IOException if mapping the ring file failed
+     */
+    public SharedMemoryBridge(Registry registry, Key<T> key, Handler<? super T, ? super E> handler,
+        Codec<E> codec, File file, int capacity, int size, WaitStrategy strategy) throws IOException {
+        Preconditions.checkArgument(capacity > 0 && Integer.bitCount(capacity) == 1,
+            "Capacity %s must be a positive power of two", capacity);
+        Preconditions.checkArgument(size > 0, "Size %s must be positive", size);
+        this.registry = Preconditions.checkNotNull(registry, "Registry");
+        this.key = Preconditions.checkNotNull(key, "Key");
+        this.codec = Preconditions.checkNotNull(codec, "Codec");
+        this.file = Preconditions.checkNotNull(file, "File").getAbsoluteFile();
+        this.strategy = Preconditions.checkNotNull(strategy, "Strategy");
+        this.dispatch = new Dispatch(Preconditions.checkNotNull(handler, "Handler"));
+        Preconditions.checkArgument(file.getName().endsWith(SUFFIX), "%s must end with %s", file, SUFFIX);
+        
+        this.ring = Ring.create(this.file, capacity, Ring.slotSize(size));
+        this.encoded = ByteBuffer.allocate(size);
+        this.sequence = ring.cursor();
+        scan();
+        this.reader = FACTORY.newThread(new Runnable() {
+            
+            @Override
+            public void run() {
+                read();
+            }
+            
+        });
+        reader.start();
+    }
+    
+    /**
+     * Publishes the specified event to all peers.
+     * 
+     * @param event the event
+     * @return the sequence number of the published event
+     * @throws NullPointerException if event is null
+     * @throws IllegalArgumentException if the encoded event exceeds the maximum size
+     * @throws IllegalStateException if this bridge has been disposed
+     */
+    public synchronized long publish(E event) {
+        Preconditions.checkNotNull(event, "Event");
+        Preconditions.checkState(running, "%s has been disposed", this);
+        encoded.clear();
+        try {
+            codec.encode(event, encoded);
+        } catch (BufferOverflowException e) {
+            throw new IllegalArgumentException(String.format("%s exceeds the maximum size of %s bytes",
+                event, encoded.capacity()), e);
+        }
+        encoded.flip();
+        sequence++;
+        ring.write(sequence, encoded);
+        return sequence;
+    }
+    
+    /**
+     * Provides the number of events of peers which have been overwritten
+     * before they could be read.
+     * 
+     * @return the number of lost events
+     */
+    public long getLost() {
+        return lost.get();
+    }
+    
+    private void read() {
+        while (running) {
+            if (System.nanoTime() - scanned > SCAN_INTERVAL) {
+                scan();
+            }
+            int read = 0;
+            for (Peer peer : peers.values()) {
+                read += peer.poll();
+            }
+            if (read == 0) {
+                strategy.idle();
+            }
+        }
+        LOG.debug("Reader of {} stopped", this);
+    }
+    
+    private void scan() {
+        scanned = System.nanoTime();
+        final Iterator<File> iterator = peers.keySet().iterator();
+        while (iterator.hasNext()) {
+            final File existing = iterator.next();
+            if (!existing.exists()) {
+                LOG.info("Detached from {}", existing);
+                iterator.remove();
+            }
+        }
+        
+        final File[] files = file.getParentFile().listFiles(new FileFilter() {
+            
+            @Override
+            public boolean accept(File candidate) {
+                return candidate.getName().endsWith(SUFFIX) && !candidate.equals(file);
+            }
+            
+        });
+        if (files == null) return;
+        for (File candidate : files) {
+            if (peers.containsKey(candidate)) continue;
+            try {
+                final Ring peer = Ring.open(candidate);
+                if (peer == null) continue;
+                LOG.info("Attached to {}", candidate);
+                peers.put(candidate, new Peer(candidate, peer));
+            } catch (IOException e) {
+                LOG.warn("Unable to map " + candidate, e);
+            }
+        }
+    }
+    
+    /**
+     * Stops the reader thread. The ring file is kept to allow
+     * peers to read all events published so far.
+     */
+    @Override
+    public void dispose() throws LifecycleException {
+        running = false;
+        try {
+            reader.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new LifecycleException(e);
+        }
+    }
+    
+    @Override
+    public String toString() {
+        return String.format("SharedMemoryBridge [key=%s, file=%s, capacity=%s]", key, file, ring.capacity);
+    }
+    
+    /**
+     * Reads the ring of a single peer. Only accessed by the reader thread.
+     *
+     * @since 2.12
+     * @author Willi Schoenborn
+     */
+    private final class Peer {
+        
+        private final File file;
+        
+        private final Ring ring;
+        
+        private final ByteBuffer scratch;
+        
+        // the sequence of the next expected event
+        private long next;
+        
+        public Peer(File file, Ring ring) {
+            this.file = file;
+            this.ring = ring;
+            this.scratch = ByteBuffer.allocate(ring.slotSize - Ring.PAYLOAD);
+            this.next = ring.cursor() + 1;
+        }
+        
+        /**
+         * Dispatches available events, at most one lap of the ring.
+         * 
+         * @return the number of dispatched events
+         */
+        public int poll() {
+            for (int read = 0; read < ring.capacity; read++) {
+                final long stamp = ring.stamp(next);
+                if (stamp < next) {
+                    // not published yet or being written
+                    return read;
+                } else if (stamp == next && ring.read(next, scratch)) {
+                    dispatch(next);
+                    next++;
+                } else {
+                    skip();
+                }
+            }
+            return ring.capacity;
+        }
+        
+        private void dispatch(long current) {
+            final E event;
+            try {
+                event = codec.decode(scratch);
+                /*CHECKSTYLE:OFF*/
+            } catch (RuntimeException e) {
+                /*CHECKSTYLE:ON*/
+                LOG.warn(String.format("Unable to decode event %s of %s", current, file), e);
+                return;
+            }
+            dispatch.event = event;
+            try {
+                registry.notifySilently(key, dispatch);
+            } finally {
+                dispatch.event = null;
+            }
+        }
+        
+        /**
+         * Skips all events which have been or are about to be overwritten. Resumes
+         * in the middle of the ring to give this reader some slack.
+         */
+        private void skip() {
+            final long resume = Math.max(next + 1, ring.cursor() - ring.capacity / 2 + 1);
+            LOG.warn("Lost events {} to {} of {}", new Object[] {next, resume - 1, file});
+            lost.addAndGet(resume - next);
+            next = resume;
+        }
+        
+    }
+    
+    /**
+     * The reusable procedure invoked by the reader thread.
+     *
+     * @since 2.12
+     * @author Willi Schoenborn
+     */
+    private final class Dispatch implements Procedure<T> {
+        
+        private final Handler<? super T, ? super E> handler;
+        
+        // only accessed by the reader thread
+        private E event;
+        
+        public Dispatch(Handler<? super T, ? super E> handler) {
+            this.handler = handler;
+        }
+        
+        @Override
+        public void apply(T listener) {
+            handler.handle(listener, event);
+        }
+        
+    }
+    
+    /**
+     * A memory mapped ring file.
+     * 
+     * <p>
+     *   The header contains a magic number, the capacity, the slot size and the
+     *   sequence of the last published event. Each slot contains the sequence of its event,
+     *   the length of the encoded event and the encoded event. Sequences start at 1,
+     *   a slot whose sequence is being replaced is marked as {@link #WRITING}.
+     *   Readers copy an event and check afterwards whether its sequence is unchanged.
+     * </p>
+     *
+     * @since 2.12
+     * @author Willi Schoenborn
+     */
+    private static final class Ring {
+        
+        static final int PAYLOAD = 16;
+        
+        private static final int MAGIC = 0x50524E47;
+        
+        private static final int MAGIC_OFFSET = 0;
+        
+        private static final int CAPACITY_OFFSET = 4;
+        
+        private static final int SLOT_SIZE_OFFSET = 8;
+        
+        // on its own cache line
+        private static final int CURSOR_OFFSET = 64;
+        
+        private static final int HEADER = 128;
+        
+        private static final int STAMP = 0;
+        
+        private static final int LENGTH = 8;
+        
+        private static final long WRITING = -1L;
+        
+        private final MappedByteBuffer buffer;
+        
+        private final int capacity;
+        
+        private final int mask;
+        
+        private final int slotSize;
+        
+        private volatile int barrier;
+        
+        private Ring(MappedByteBuffer buffer, int capacity, int slotSize) {
+            this.buffer = buffer;
+            this.capacity = capacity;
+            this.mask = capacity - 1;
+            this.slotSize = slotSize;
+        }
+        
+        /**
+         * Computes the slot size for the specified maximum event size, keeping
+         * all slots aligned to eight bytes.
+         */
+        static int slotSize(int size) {
+            return (PAYLOAD + size + 7) & ~7;
+        }
+        
+        /**
+         * Maps the specified file for writing, initializing it if necessary.
+         */
+        static Ring create(File file, int capacity, int slotSize) throws IOException {
+            final long length = HEADER + (long) capacity * slotSize;
+            Preconditions.checkArgument(length <= Integer.MAX_VALUE, "Ring of %s bytes is too large", length);
+            final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                final MappedByteBuffer buffer = raf.getChannel().map(MapMode.READ_WRITE, 0, length);
+                buffer.order(ByteOrder.nativeOrder());
+                final Ring ring = new Ring(buffer, capacity, slotSize);
+                if (buffer.getInt(MAGIC_OFFSET) == MAGIC) {
+                    Preconditions.checkArgument(buffer.getInt(CAPACITY_OFFSET) == capacity &&
+                        buffer.getInt(SLOT_SIZE_OFFSET) == slotSize, "%s has a different layout", file);
+                } else {
+                    buffer.putInt(CAPACITY_OFFSET, capacity);
+                    buffer.putInt(SLOT_SIZE_OFFSET, slotSize);
+                    buffer.putLong(CURSOR_OFFSET, 0L);
+                    for (int i = 0; i < capacity; i++) {
+                        buffer.putLong(HEADER + i * slotSize + STAMP, 0L);
+                    }
+                    ring.fence();
+                    buffer.putInt(MAGIC_OFFSET, MAGIC);
+                }
+                return ring;
+            } finally {
+                raf.close();
+            }
+        }
+        
+        /**
+         * Maps the specified file for reading.
+         * 
+         * @return the ring or null if the file has not been initialized yet
+         */
+        static Ring open(File file) throws IOException {
+            final RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                final long length = raf.length();
+                if (length < HEADER || length > Integer.MAX_VALUE) return null;
+                final MappedByteBuffer buffer = raf.getChannel().map(MapMode.READ_ONLY, 0, length);
+                buffer.order(ByteOrder.nativeOrder());
+                if (buffer.getInt(MAGIC_OFFSET) != MAGIC) return null;
+                final int capacity = buffer.getInt(CAPACITY_OFFSET);
+                final int slotSize = buffer.getInt(SLOT_SIZE_OFFSET);
+                if (capacity <= 0 || Integer.bitCount(capacity) != 1 || slotSize <= PAYLOAD || slotSize % 8 != 0 ||
+                    length < HEADER + (long) capacity * slotSize) {
+                    LOG.warn("Ignoring {} with invalid layout", file);
+                    return null;
+                }
+                return new Ring(buffer, capacity, slotSize);
+            } finally {
+                raf.close();
+            }
+        }
+        
+        /**
+         * A volatile write followed by a volatile read, which keeps all preceding
+         * accesses to the mapped memory before and all following behind this call.
+         */
+        private int fence() {
+            barrier = 0;
+            return barrier;
+        }
+        
+        private int offset(long sequence) {
+            return HEADER + ((int) sequence & mask) * slotSize;
+        }
+        
+        long cursor() {
+            return buffer.getLong(CURSOR_OFFSET);
+        }
+        
+        long stamp(long sequence) {
+            return buffer.getLong(offset(sequence) + STAMP);
+        }
+        
+        /**
+         * Writes the remaining bytes of payload into the slot of sequence. Single writer only.
+         */
+        void write(long sequence, ByteBuffer payload) {
+            final int offset = offset(sequence);
+            buffer.putLong(offset + STAMP, WRITING);
+            fence();
+            buffer.putInt(offset + LENGTH, payload.remaining());
+            buffer.position(offset + PAYLOAD);
+            buffer.put(payload);
+            fence();
+            buffer.putLong(offset + STAMP, sequence);
+            buffer.putLong(CURSOR_OFFSET, sequence);
+        }
+        
+        /**
+         * Copies the event of sequence into target, which is flipped afterwards.
+         * 
+         * @return false if the slot has been overwritten in the meantime
+         */
+        boolean read(long sequence, ByteBuffer target) {
+            final int offset = offset(sequence);
+            fence();
+            final int length = buffer.getInt(offset + LENGTH);
+            target.clear();
+            if (length < 0 || length > target.capacity()) {
+                // torn by a concurrent write
+                return false;
+            }
+            buffer.limit(offset + PAYLOAD + length);
+            buffer.position(offset + PAYLOAD);
+            target.put(buffer);
+            buffer.limit(buffer.capacity());
+            target.flip();
+            fence();
+            return stamp(sequence) == sequence;
+        }
+        
+    }
+    
+}
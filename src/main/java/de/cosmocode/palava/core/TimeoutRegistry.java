@@ -0,0 +1,427 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.core;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Predicate;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.MapMaker;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import de.cosmocode.collections.Procedure;
+
+/**
+ * A {@link Registry} decorator which enforces a deadline per listener invocation.
+ * 
+ * <p>
+ *   {@link #notify(Key, Procedure)}, {@link #notifySilently(Key, Procedure)} and
+ *   proxies created by this registry invoke every listener on a worker thread and
+ *   wait at most the deadline of the notified key, which defaults to the global
+ *   timeout of this registry. A listener exceeding its deadline is interrupted,
+ *   abandoned and reported to the {@link FailureLog}, the notification proceeds
+ *   with the next listener.
+ *   An overrun never fails a notification, so a single stuck listener can not
+ *   wedge callers like the framework shutdown.
+ * </p>
+ * 
+ * <p>
+ *   If quarantine is enabled, overrun listeners are skipped by all further
+ *   notifications, including asynchronous and parallel ones, until they are
+ *   {@link #release(Object) released}. Quarantined listeners are held weakly.
+ *   Keys with a deadline of zero are notified on the calling thread without
+ *   any overhead but the quarantine check.
+ * </p>
+ * 
+ * <p>
+ *   <strong>Note</strong>: Listeners of keys with a deadline run on a pooled worker
+ *   thread, a stuck listener could not be abandoned otherwise. Thread locals of the
+ *   notifying thread, including Guice scopes bound to it, are not visible to those
+ *   listeners. Disable the deadline of keys whose listeners depend on them using
+ *   {@link #setTimeout(Key, long, TimeUnit)}.
+ * </p>
+ *
+ * @since 2.12
+ * @author Willi Schoenborn
+ */
+public final class TimeoutRegistry extends ForwardingRegistry {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TimeoutRegistry.class);
+    
+    private static final Executor EXECUTOR = Executors.newCachedThreadPool(
+        new ThreadFactoryBuilder().setNameFormat("palava-registry-timeout-%d").setDaemon(true).build()
+    );
+    
+    private final Registry registry;
+    
+    private final boolean quarantine;
+    
+    private volatile long timeout;
+    
+    private final ConcurrentMap<Key<?>, Long> timeouts = Maps.newConcurrentMap();
+    
+    // weak identity keys, quarantine never prevents listeners from being collected
+    private final Set<Object> quarantined = Collections.newSetFromMap(
+        new MapMaker().weakKeys().<Object, Boolean>makeMap());
+    
+    private final ProxyCache proxies = new ProxyCache(this);
+    
+    private final FailureLog failures;
+    
+    /**
+     * Creates a new {@link TimeoutRegistry} which reports overruns to its own {@link FailureLog}.
+     * 
+     * @param registry the backing registry
+     * @param timeout the global deadline per listener invocation, zero disables it
+     * @param unit the unit of timeout
+     * @param quarantine true if overrun listeners should be skipped by further notifications
+     * @throws NullPointerException if registry or unit is null
+     * @throws IllegalArgumentException if timeout is negative
+     */
+    public TimeoutRegistry(Registry registry, long timeout, TimeUnit unit, boolean quarantine) {
+        this(registry, timeout, unit, quarantine, new FailureLog());
+    }
+    
+    /**
+     * Creates a new {@link TimeoutRegistry}.
+     * 
+     * @param registry the backing registry
+     * @param timeout the global deadline per listener invocation, zero disables it
+     * @param unit the unit of timeout
+     * @param quarantine true if overrun listeners should be skipped by further notifications
+     * @param failures the log overruns are reported to
+     * @throws NullPointerException if registry, unit or failures is null
+     * @throws IllegalArgumentException if timeout is negative
+     */
+    public TimeoutRegistry(Registry registry, long timeout, TimeUnit unit, boolean quarantine, FailureLog failures) {
+        this.registry = Preconditions.checkNotNull(registry, "Registry");
+        this.quarantine = quarantine;
+        this.failures = Preconditions.checkNotNull(failures, "Failures");
+        proxies.setFailureLog(failures);
+        setTimeout(timeout, unit);
+    }
+    
+    @Override
+    protected Registry delegate() {
+        return registry;
+    }
+    
+    /**
+     * Sets the global deadline per listener invocation.
+     * 
+     * @param timeout the deadline, zero disables it
+     * @param unit the unit of timeout
+     * @throws NullPointerException if unit is null
+     * @throws IllegalArgumentException if timeout is negative
+     */
+    public void setTimeout(long timeout, TimeUnit unit) {
+        Preconditions.checkArgument(timeout >= 0, "Timeout must not be negative, but was %s", timeout);
+        Preconditions.checkNotNull(unit, "Unit");
+        this.timeout = unit.toNanos(timeout);
+    }
+    
+    /**
+     * Sets the deadline per listener invocation for the specified key,
+     * which overrides the global deadline.
+     * 
+     * @param key the binding key
+     * @param timeout the deadline, zero disables it for key
+     * @param unit the unit of timeout
+     * @throws NullPointerException if key or unit is null
+     * @throws IllegalArgumentException if timeout is negative
+     */
+    public void setTimeout(Key<?> key, long timeout, TimeUnit unit) {
+        Preconditions.checkNotNull(key, "Key");
+        Preconditions.checkArgument(timeout >= 0, "Timeout must not be negative, but was %s", timeout);
+        Preconditions.checkNotNull(unit, "Unit");
+        timeouts.put(key, Long.valueOf(unit.toNanos(timeout)));
+    }
+    
+    /**
+     * Removes the deadline of the specified key, which falls back
+     * to the global deadline afterwards.
+     * 
+     * @param key the binding key
+     * @throws NullPointerException if key is null
+     */
+    public void removeTimeout(Key<?> key) {
+        Preconditions.checkNotNull(key, "Key");
+        timeouts.remove(key);
+    }
+    
+    private long timeoutOf(Key<?> key) {
+        final Long value = timeouts.get(key);
+        return value == null ? timeout : value.longValue();
+    }
+    
+    /**
+     * Provides all listeners which are currently quarantined.
+     * 
+     * @return an immutable snapshot of all quarantined listeners
+     */
+    public List<Object> getQuarantined() {
+        return ImmutableList.copyOf(quarantined);
+    }
+    
+    /**
+     * Releases the specified listener from quarantine.
+     * 
+     * @param listener the listener
+     * @return true if listener was quarantined before
+     * @throws NullPointerException if listener is null
+     */
+    public boolean release(Object listener) {
+        Preconditions.checkNotNull(listener, "Listener");
+        return quarantined.remove(listener);
+    }
+    
+    private <T> Procedure<T> filter(Key<T> key, final Procedure<? super T> command) {
+        Preconditions.checkNotNull(key, "Key");
+        Preconditions.checkNotNull(command, "Command");
+        return new Procedure<T>() {
+            
+            @Override
+            public void apply(T listener) {
+                if (quarantined.isEmpty() || !quarantined.contains(listener)) {
+                    command.apply(listener);
+                }
+            }
+            
+        };
+    }
+    
+    private <T> Procedure<T> deadline(Key<T> key, Procedure<? super T> command) {
+        Preconditions.checkNotNull(key, "Key");
+        Preconditions.checkNotNull(command, "Command");
+        final long nanos = timeoutOf(key);
+        return nanos == 0 ? filter(key, command) : new Deadline<T>(key, command, nanos);
+    }
+    
+    @Override
+    public <T> void notify(Class<T> type, Procedure<? super T> command) {
+        Preconditions.checkNotNull(type, "Type");
+        notify(Key.get(type), command);
+    }
+    
+    @Override
+    public <T> void notify(Key<T> key, Procedure<? super T> command) {
+        super.notify(key, deadline(key, command));
+    }
+    
+    @Override
+    @SuppressWarnings("deprecation")
+    public <T> void notifySilent(Class<T> type, Procedure<? super T> command) {
+        Preconditions.checkNotNull(type, "Type");
+        notifySilently(Key.get(type), command);
+    }
+    
+    @Override
+    @SuppressWarnings("deprecation")
+    public <T> void notifySilent(Key<T> key, Procedure<? super T> command) {
+        notifySilently(key, command);
+    }
+    
+    @Override
+    public <T> void notifySilently(Class<T> type, Procedure<? super T> command) {
+        Preconditions.checkNotNull(type, "Type");
+        notifySilently(Key.get(type), command);
+    }
+    
+    @Override
+    public <T> void notifySilently(Key<T> key, Procedure<? super T> command) {
+        super.notifySilently(key, deadline(key, command));
+    }
+    
+    @Override
+    public <T> Future<Void> notifyAsync(Class<T> type, Procedure<? super T> command) {
+        Preconditions.checkNotNull(type, "Type");
+        return notifyAsync(Key.get(type), command);
+    }
+    
+    @Override
+    public <T> Future<Void> notifyAsync(Key<T> key, Procedure<? super T> command) {
+        return super.notifyAsync(key, filter(key, command));
+    }
+    
+    @Override
+    public <T> void notifyMatching(Class<T> type, Predicate<? super Object> predicate, 
+        Procedure<? super T> command) {
+        Preconditions.checkNotNull(type, "Type");
+        super.notifyMatching(type, predicate, deadline(Key.get(type), command));
+    }
+    
+    @Override
+    public <T> Future<Void> notifyConcurrently(Class<T> type, Procedure<? super T> command) {
+        Preconditions.checkNotNull(type, "Type");
+        return notifyConcurrently(Key.get(type), command);
+    }
+    
+    @Override
+    public <T> Future<Void> notifyConcurrently(Key<T> key, Procedure<? super T> command) {
+        return super.notifyConcurrently(key, filter(key, command));
+    }
+    
+    @Override
+    public <T> void notifyParallel(Class<T> type, Procedure<? super T> command) {
+        Preconditions.checkNotNull(type, "Type");
+        notifyParallel(Key.get(type), command);
+    }
+    
+    @Override
+    public <T> void notifyParallel(Key<T> key, Procedure<? super T> command) {
+        super.notifyParallel(key, filter(key, command));
+    }
+    
+    @Override
+    public <T> void notifySilentlyParallel(Class<T> type, Procedure<? super T> command) {
+        Preconditions.checkNotNull(type, "Type");
+        notifySilentlyParallel(Key.get(type), command);
+    }
+    
+    @Override
+    public <T> void notifySilentlyParallel(Key<T> key, Procedure<? super T> command) {
+        super.notifySilentlyParallel(key, filter(key, command));
+    }
+    
+    @Override
+    public <T> T proxy(Class<T> type) {
+        Preconditions.checkNotNull(type, "Type");
+        return proxy(Key.get(type));
+    }
+    
+    @Override
+    public <T> T proxy(Key<T> key) {
+        return proxies.get(key, ProxyMode.NOTIFY);
+    }
+    
+    @Override
+    public <T> T silentProxy(Class<T> type) {
+        Preconditions.checkNotNull(type, "Type");
+        return silentProxy(Key.get(type));
+    }
+    
+    @Override
+    public <T> T silentProxy(Key<T> key) {
+        return proxies.get(key, ProxyMode.SILENT);
+    }
+    
+    @Override
+    public <T> T asyncProxy(Class<T> type) {
+        Preconditions.checkNotNull(type, "Type");
+        return asyncProxy(Key.get(type));
+    }
+    
+    @Override
+    public <T> T asyncProxy(Key<T> key) {
+        return proxies.get(key, ProxyMode.ASYNC);
+    }
+    
+    /**
+     * Rethrows the specified throwable unchanged, including checked exceptions
+     * thrown by listener methods invoked through proxies.
+     */
+    @SuppressWarnings("unchecked")
+    private static <X extends Throwable> X rethrow(Throwable throwable) throws X {
+        throw (X) throwable;
+    }
+    
+    /**
+     * Invokes a command on a worker thread and abandons it once the deadline passed.
+     * Interrupting the notifying thread neither shortens the deadline nor cancels the
+     * invocation, the interrupt is restored once the invocation completed or timed out.
+     *
+     * @since 2.12
+     * @author Willi Schoenborn
+     * @param <T> the generic listener type
+     */
+    private final class Deadline<T> implements Procedure<T> {
+        
+        private final Key<T> key;
+        
+        private final Procedure<? super T> command;
+        
+        private final long nanos;
+        
+        public Deadline(Key<T> key, Procedure<? super T> command, long nanos) {
+            this.key = key;
+            this.command = command;
+            this.nanos = nanos;
+        }
+        
+        @Override
+        public void apply(final T listener) {
+            if (!quarantined.isEmpty() && quarantined.contains(listener)) return;
+            final FutureTask<Void> task = new FutureTask<Void>(new Callable<Void>() {
+                
+                @Override
+                public Void call() {
+                    command.apply(listener);
+                    return null;
+                }
+                
+            });
+            EXECUTOR.execute(task);
+            final long deadline = System.nanoTime() + nanos;
+            boolean interrupted = false;
+            try {
+                while (true) {
+                    try {
+                        task.get(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                        return;
+                    } catch (InterruptedException e) {
+                        // an interrupted caller keeps waiting, the listener is not at fault
+                        interrupted = true;
+                    }
+                }
+            } catch (ExecutionException e) {
+                throw TimeoutRegistry.<RuntimeException>rethrow(e.getCause());
+            } catch (TimeoutException e) {
+                task.cancel(true);
+                final String message = String.format("Exceeded deadline of %sms, abandoned", 
+                    TimeUnit.NANOSECONDS.toMillis(nanos));
+                // rate limited, a listener stuck during an event storm would flood the logs otherwise
+                failures.report(key, listener, new TimeoutException(message));
+                if (quarantine) {
+                    quarantined.add(listener);
+                    LOG.warn("Quarantined {}", listener);
+                }
+            } finally {
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+        
+    }
+    
+}
@@ -0,0 +1,65 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.core;
+
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.base.Predicate;
+
+import de.cosmocode.palava.core.Registry.Key;
+
+/**
+ * Provides a read-only view of the keys and listeners of a {@link Registry}
+ * for monitoring purposes.
+ *
+ * @since 2.12
+ * @author Willi Schoenborn
+ */
+interface Topology {
+
+    /**
+     * Provides a snapshot of all keys and their listeners in notification order.
+     * Implementations must neither block nor be blocked by concurrent
+     * registrations or notifications. The snapshot is not necessarily
+     * consistent across keys.
+     * 
+     * @return an immutable snapshot of all keys and their listeners
+     */
+    Map<Key<?>, List<Object>> getTopology();
+    
+    /**
+     * Provides all keys of the specified type whose meta information satisfies the
+     * given predicate, like {@link Registry#find(Class, Predicate)} does for listeners.
+     * Keys found using a {@link Meta} index may have no listeners.
+     * 
+     * @param type the type's class literal
+     * @param predicate the predicate matching the meta information
+     * @return an immutable snapshot of all matching keys
+     */
+    List<Key<?>> getKeys(Class<?> type, Predicate<? super Object> predicate);
+    
+    /**
+     * Provides all listeners notified for the specified key in notification order,
+     * including listeners of other keys which are notified hierarchically.
+     * 
+     * @param key the binding key
+     * @return an immutable snapshot of all notified listeners
+     */
+    List<Object> getDispatch(Key<?> key);
+    
+}
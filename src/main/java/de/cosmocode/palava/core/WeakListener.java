@@ -0,0 +1,132 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.core;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+
+import com.google.common.base.Function;
+import com.google.common.base.Preconditions;
+
+import de.cosmocode.palava.core.Registry.Key;
+
+/**
+ * A weak reference to a listener registered using {@link Registry#registerWeak(Key, Object)}.
+ * 
+ * <p>
+ *   Two instances are equal if they refer to the same listener. The hash code is
+ *   the hash code of the listener at creation time, which allows to look up the
+ *   registration of a listener using a probe created by {@link #probe(Object)}.
+ * </p>
+ *
+ * @since 2.12
+ * @author Willi Schoenborn
+ */
+final class WeakListener extends WeakReference<Object> {
+
+    /**
+     * A function which unwraps weakly referenced listeners and returns
+     * all other listeners unchanged. Cleared references result in null.
+     */
+    static final Function<Object, Object> UNWRAP = new Function<Object, Object>() {
+        
+        @Override
+        public Object apply(Object from) {
+            return unwrap(from);
+        }
+        
+    };
+    
+    private final Key<?> key;
+    
+    private final int hash;
+    
+    public WeakListener(Key<?> key, Object listener, ReferenceQueue<Object> queue) {
+        super(Preconditions.checkNotNull(listener, "Listener"), queue);
+        this.key = key;
+        this.hash = listener.hashCode();
+    }
+    
+    /**
+     * Creates a reference which is equal to every weak registration of the
+     * specified listener.
+     * 
+     * @param listener the listener
+     * @return a new probe
+     */
+    static WeakListener probe(Object listener) {
+        return new WeakListener(null, listener, null);
+    }
+    
+    /**
+     * Unwraps the specified listener if it is weakly referenced.
+     * 
+     * @param listener a listener or a weak reference to a listener
+     * @return the listener or null if it has been garbage collected
+     */
+    static Object unwrap(Object listener) {
+        return listener instanceof WeakListener ? WeakListener.class.cast(listener).get() : listener;
+    }
+    
+    /**
+     * Checks whether the specified element, a listener or a weak reference, represents
+     * the given listener.
+     * 
+     * @param element the registered element
+     * @param listener the listener
+     * @return true if element represents listener
+     */
+    static boolean matches(Object element, Object listener) {
+        if (element instanceof WeakListener) {
+            return WeakListener.class.cast(element).get() == listener;
+        } else {
+            return element.equals(listener);
+        }
+    }
+    
+    /**
+     * Provides the key this listener has been registered for.
+     * 
+     * @return the binding key
+     */
+    public Key<?> getKey() {
+        return key;
+    }
+    
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+    
+    @Override
+    public boolean equals(Object that) {
+        if (this == that) {
+            return true;
+        } else if (that instanceof WeakListener) {
+            final Object listener = get();
+            return listener != null && listener == WeakListener.class.cast(that).get();
+        } else {
+            return false;
+        }
+    }
+    
+    @Override
+    public String toString() {
+        return String.format("WeakListener [%s]", get());
+    }
+    
+}
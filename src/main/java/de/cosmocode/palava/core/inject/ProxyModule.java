@@ -22,7 +22,9 @@ import com.google.inject.Module;
 import com.google.inject.Provider;
 import com.google.inject.Singleton;
 
+import de.cosmocode.palava.core.ProxyMode;
 import de.cosmocode.palava.core.Registry;
+import de.cosmocode.palava.core.Registry.AsyncProxy;
 import de.cosmocode.palava.core.Registry.Proxy;
 import de.cosmocode.palava.core.Registry.SilentProxy;
 
@@ -53,7 +55,7 @@ public abstract class ProxyModule extends AbstractModule {
     protected <T> void bindProxy(Class<T> type) {
         Preconditions.checkNotNull(type, "Type");
         bind(type).annotatedWith(Proxy.class).toProvider(new ProxyProvider<T>(
-            getProvider(Registry.class), type
+            getProvider(Registry.class), type, ProxyMode.NOTIFY
         )).in(Singleton.class);
     }
 
@@ -75,7 +77,29 @@ public abstract class ProxyModule extends AbstractModule {
     protected <T> void bindSilentProxy(Class<T> type) {
         Preconditions.checkNotNull(type, "Type");
         bind(type).annotatedWith(SilentProxy.class).toProvider(new ProxyProvider<T>(
-            getProvider(Registry.class), type, true
+            getProvider(Registry.class), type, ProxyMode.SILENT
+        )).in(Singleton.class);
+    }
+
+    /**
+     * Binds a dynamic asynchronous proxy for the specified type which can
+     * be injected using the following code.
+     * {@code @AsyncProxy Interface instance}
+     * 
+     * <p>
+     *   The same restrictions mentioned on {@link Registry#asyncProxy(Class)}
+     *   apply to the provided type.
+     * </p>
+     * 
+     * @since 2.12
+     * @param <T> the generic proxy type
+     * @param type the proxy's class literal
+     * @throws NullPointerException if type is null
+     */
+    protected <T> void bindAsyncProxy(Class<T> type) {
+        Preconditions.checkNotNull(type, "Type");
+        bind(type).annotatedWith(AsyncProxy.class).toProvider(new ProxyProvider<T>(
+            getProvider(Registry.class), type, ProxyMode.ASYNC
         )).in(Singleton.class);
     }
     
@@ -92,22 +116,28 @@ public abstract class ProxyModule extends AbstractModule {
         
         private final Class<T> type;
         
-        private final boolean silent;
-
-        public ProxyProvider(Provider<Registry> provider, Class<T> type) {
-            this(provider, type, false);
-        }
+        private final ProxyMode mode;
 
-        public ProxyProvider(Provider<Registry> provider, Class<T> type, boolean silent) {
+        public ProxyProvider(Provider<Registry> provider, Class<T> type, ProxyMode mode) {
             this.provider = Preconditions.checkNotNull(provider, "Provider");
             this.type = Preconditions.checkNotNull(type, "Type");
-            this.silent = silent;
+            this.mode = Preconditions.checkNotNull(mode, "Mode");
         }
         
         @Override
         public T get() {
             final Registry registry = provider.get();
-            return silent ? registry.silentProxy(type) : registry.proxy(type);
+            switch (mode) {
+                case SILENT: {
+                    return registry.silentProxy(type);
+                }
+                case ASYNC: {
+                    return registry.asyncProxy(type);
+                }
+                default: {
+                    return registry.proxy(type);
+                }
+            }
         }
         
     }
@@ -16,9 +16,14 @@
 
 package de.cosmocode.palava.core;
 
+import com.google.common.base.Function;
 import com.google.common.base.Predicate;
 import com.google.common.base.Predicates;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
+import com.google.common.collect.LinkedHashMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Multimap;
 import com.google.common.collect.Sets;
 import de.cosmocode.collections.Procedure;
 import de.cosmocode.commons.Throwables;
@@ -26,12 +31,19 @@ import de.cosmocode.junit.UnitProvider;
 import de.cosmocode.palava.core.Registry.Key;
 import org.easymock.EasyMock;
 import org.junit.Assert;
+import org.junit.Assume;
 import org.junit.Test;
 
 import java.io.IOException;
 import java.lang.reflect.UndeclaredThrowableException;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Tests {@link Registry} implementations.
@@ -40,6 +52,15 @@ import java.util.concurrent.TimeUnit;
  */
 public abstract class AbstractRegistryTest implements UnitProvider<Registry> {
 
+    /**
+     * Provides a new registry with hierarchical notification enabled.
+     * 
+     * @return a new hierarchical registry or null if not supported
+     */
+    protected Registry hierarchicalUnit() {
+        return null;
+    }
+
     /**
      * Tests {@link Registry#register(Class, Object)}.
      */
@@ -201,6 +222,294 @@ public abstract class AbstractRegistryTest implements UnitProvider<Registry> {
         unit().register(nullKey, null);
     }
     
+    /**
+     * Tests {@link Registry#register(Key, Object, int)}.
+     */
+    @Test
+    public void registerKeyPriority() {
+        final Registry unit = unit();
+        final Key<Object> key = Key.get(Object.class, Deprecated.class);
+        final Object first = new Object();
+        final Object second = new Object();
+        final Object third = new Object();
+        final Object fourth = new Object();
+        unit.register(key, third, 5);
+        unit.register(key, second);
+        unit.register(key, fourth, 5);
+        unit.register(key, first, -5);
+        Assert.assertEquals(ImmutableList.of(first, second, third, fourth), 
+            ImmutableList.copyOf(unit.getListeners(key)));
+        
+        final List<Object> notified = Lists.newArrayList();
+        unit.notify(key, new Procedure<Object>() {
+            
+            @Override
+            public void apply(Object input) {
+                notified.add(input);
+            }
+            
+        });
+        Assert.assertEquals(ImmutableList.of(first, second, third, fourth), notified);
+        
+        unit.register(key, first, 10);
+        unit.register(key, third, 5);
+        Assert.assertEquals(ImmutableList.of(second, third, fourth, first), 
+            ImmutableList.copyOf(unit.getListeners(key)));
+        Assert.assertTrue(unit.remove(key, third));
+        Assert.assertEquals(ImmutableList.of(second, fourth, first), 
+            ImmutableList.copyOf(unit.getListeners(key)));
+    }
+    
+    /**
+     * Tests that listeners registered again using a different priority keep
+     * their original registration order within their new priority.
+     */
+    @Test
+    public void registerKeyPriorityChanged() {
+        final Registry unit = unit();
+        final Key<Object> key = Key.get(Object.class, Deprecated.class);
+        final Object first = new Object();
+        final Object second = new Object();
+        final Object third = new Object();
+        final Object fourth = new Object();
+        unit.register(key, first, 5);
+        unit.register(key, second);
+        unit.register(key, third);
+        unit.register(key, fourth, 5);
+        Assert.assertEquals(ImmutableList.of(second, third, first, fourth), 
+            ImmutableList.copyOf(unit.getListeners(key)));
+        
+        unit.register(key, first, Priority.DEFAULT);
+        unit.register(key, third, 5);
+        Assert.assertEquals(ImmutableList.of(first, second, third, fourth), 
+            ImmutableList.copyOf(unit.getListeners(key)));
+        
+        unit.register(key, first, 5);
+        Assert.assertEquals(ImmutableList.of(second, first, third, fourth), 
+            ImmutableList.copyOf(unit.getListeners(key)));
+        
+        final Multimap<Key<?>, Object> batch = LinkedHashMultimap.create();
+        batch.put(key, first);
+        unit.registerAll(batch);
+        Assert.assertEquals(ImmutableList.of(first, second, third, fourth), 
+            ImmutableList.copyOf(unit.getListeners(key)));
+    }
+    
+    /**
+     * Tests {@link Registry#register(Class, Object)} using a listener
+     * annotated with {@link Priority}.
+     */
+    @Test
+    public void registerTypePriorityAnnotation() {
+        final Registry unit = unit();
+        final Object listener = new Object();
+        final Object urgent = new Urgent();
+        final Object weak = new Urgent();
+        unit.register(Object.class, listener);
+        unit.register(Object.class, urgent);
+        unit.registerWeak(Object.class, weak);
+        Assert.assertEquals(ImmutableList.of(urgent, weak, listener), 
+            ImmutableList.copyOf(unit.getListeners(Object.class)));
+        unit.register(Object.class, urgent, Priority.DEFAULT);
+        Assert.assertEquals(ImmutableList.of(weak, listener, urgent), 
+            ImmutableList.copyOf(unit.getListeners(Object.class)));
+    }
+    
+    /**
+     * Tests {@link Registry#register(Class, Object, int)} with a null type.
+     */
+    @Test(expected = NullPointerException.class)
+    public void registerTypePriorityNullType() {
+        final Class<Object> nullType = null;
+        unit().register(nullType, new Object(), 1);
+    }
+    
+    /**
+     * Tests {@link Registry#register(Key, Object, int)} with a null listener.
+     */
+    @Test(expected = NullPointerException.class)
+    public void registerKeyPriorityNullListener() {
+        unit().register(Key.get(Object.class), null, 1);
+    }
+    
+    /**
+     * Tests {@link Registry#registerAll(com.google.common.collect.Multimap)}.
+     */
+    @Test
+    public void registerAll() {
+        final Registry unit = unit();
+        final Key<Object> key = Key.get(Object.class, Deprecated.class);
+        final Object listener = new Object();
+        final Object urgent = new Urgent();
+        final Object existing = new Object();
+        final Runnable runnable = EasyMock.createMock("runnable", Runnable.class);
+        EasyMock.replay(runnable);
+        unit.register(key, existing);
+        unit.registerWeak(key, listener);
+        
+        final Multimap<Key<?>, Object> batch = LinkedHashMultimap.create();
+        batch.put(key, listener);
+        batch.put(key, urgent);
+        batch.put(key, existing);
+        batch.put(Key.get(Runnable.class), runnable);
+        batch.put(Key.get(Object.class), runnable);
+        unit.registerAll(batch);
+        
+        Assert.assertEquals(ImmutableList.of(urgent, existing, listener), 
+            ImmutableList.copyOf(unit.getListeners(key)));
+        Assert.assertSame(runnable, Iterables.getOnlyElement(unit.getListeners(Runnable.class)));
+        Assert.assertSame(runnable, Iterables.getOnlyElement(unit.getListeners(Object.class)));
+        
+        // the former weak registration has been replaced by a strong one
+        Assert.assertTrue(unit.remove(key, listener));
+        Assert.assertFalse(unit.remove(key, listener));
+        EasyMock.verify(runnable);
+    }
+    
+    /**
+     * Tests {@link Registry#registerAll(com.google.common.collect.Multimap)} with
+     * a listener of the wrong type. Expects nothing to be registered.
+     */
+    @Test
+    public void registerAllWrongType() {
+        final Registry unit = unit();
+        final Multimap<Key<?>, Object> batch = LinkedHashMultimap.create();
+        batch.put(Key.get(Object.class), new Object());
+        batch.put(Key.get(Runnable.class), new Object());
+        try {
+            unit.registerAll(batch);
+            Assert.fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            Assert.assertTrue(Iterables.isEmpty(unit.getListeners(Object.class)));
+        }
+    }
+    
+    /**
+     * Tests {@link Registry#registerAll(com.google.common.collect.Multimap)} with null.
+     */
+    @Test(expected = NullPointerException.class)
+    public void registerAllNull() {
+        unit().registerAll(null);
+    }
+    
+    /**
+     * A listener with a high priority.
+     *
+     * @author Willi Schoenborn
+     */
+    @Priority(-10)
+    private static final class Urgent {
+        
+    }
+    
+    /**
+     * Tests {@link Registry#registerWeak(Key, Object)}.
+     */
+    @Test
+    public void registerWeakKey() {
+        final Registry unit = unit();
+        final Listener listener = EasyMock.createMock("listener", Listener.class);
+        listener.doAnything();
+        EasyMock.expectLastCall();
+        EasyMock.replay(listener);
+        final Key<Listener> key = Key.get(Listener.class, Deprecated.class);
+        unit.registerWeak(key, listener);
+        unit.registerWeak(key, listener);
+        Assert.assertSame(listener, Iterables.getOnlyElement(unit.getListeners(key)));
+        Assert.assertSame(listener, Iterables.getOnlyElement(unit.find(Listener.class, Predicates.alwaysTrue())));
+        unit.notify(key, new Procedure<Listener>() {
+            
+            @Override
+            public void apply(Listener input) {
+                input.doAnything();
+            }
+            
+        });
+        EasyMock.verify(listener);
+    }
+    
+    /**
+     * Tests {@link Registry#registerWeak(Class, Object)} and {@link Registry#register(Class, Object)}
+     * using the same listener.
+     */
+    @Test
+    public void registerWeakTypeSame() {
+        final Registry unit = unit();
+        final Listener listener = EasyMock.createMock("listener", Listener.class);
+        EasyMock.replay(listener);
+        unit.registerWeak(Listener.class, listener);
+        unit.register(Listener.class, listener);
+        unit.registerWeak(Listener.class, listener);
+        Assert.assertSame(listener, Iterables.getOnlyElement(unit.getListeners(Listener.class)));
+        EasyMock.verify(listener);
+    }
+    
+    /**
+     * Tests {@link Registry#remove(Key, Object)} and {@link Registry#remove(Object)}
+     * using weakly registered listeners.
+     */
+    @Test
+    public void registerWeakRemove() {
+        final Registry unit = unit();
+        final Listener listener = EasyMock.createMock("listener", Listener.class);
+        EasyMock.replay(listener);
+        final Key<Listener> key = Key.get(Listener.class, Deprecated.class);
+        unit.registerWeak(key, listener);
+        unit.registerWeak(Object.class, listener);
+        Assert.assertTrue(unit.remove(key, listener));
+        Assert.assertFalse(unit.remove(key, listener));
+        Assert.assertTrue(Iterables.isEmpty(unit.getListeners(key)));
+        Assert.assertTrue(unit.remove(listener));
+        Assert.assertTrue(Iterables.isEmpty(unit.getListeners(Object.class)));
+        EasyMock.verify(listener);
+    }
+    
+    /**
+     * Tests {@link Registry#registerWeak(Key, Object)} with a listener
+     * which becomes garbage collected.
+     * 
+     * @throws InterruptedException should not happen
+     */
+    @Test
+    public void registerWeakCollected() throws InterruptedException {
+        final Registry unit = unit();
+        final Key<Object> key = Key.get(Object.class, Deprecated.class);
+        unit.registerWeak(key, new Object());
+        final long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+        while (!Iterables.isEmpty(unit.getListeners(key)) && System.currentTimeMillis() < deadline) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        Assert.assertTrue(Iterables.isEmpty(unit.getListeners(key)));
+        Assert.assertTrue(Iterables.isEmpty(unit.find(Object.class, Predicates.alwaysTrue())));
+        unit.notify(key, new Procedure<Object>() {
+            
+            @Override
+            public void apply(Object input) {
+                Assert.fail("Collected listener " + input + " has been notified");
+            }
+            
+        });
+        Assert.assertTrue(Iterables.isEmpty(unit.removeAll(key)));
+    }
+    
+    /**
+     * Tests {@link Registry#registerWeak(Class, Object)} with a null type.
+     */
+    @Test(expected = NullPointerException.class)
+    public void registerWeakTypeNullType() {
+        final Class<Object> nullType = null;
+        unit().registerWeak(nullType, new Object());
+    }
+    
+    /**
+     * Tests {@link Registry#registerWeak(Key, Object)} with a null listener.
+     */
+    @Test(expected = NullPointerException.class)
+    public void registerWeakKeyNullListener() {
+        unit().registerWeak(Key.get(Object.class), null);
+    }
+    
     /**
      * Tests {@link Registry#getListeners(Class)}.
      */
@@ -319,6 +628,27 @@ public abstract class AbstractRegistryTest implements UnitProvider<Registry> {
         unit().getListeners(nullKey);
     }
 
+    /**
+     * Tests that {@link Key#get(Class)} provides canonical keys which are
+     * interchangeable with the registry's type based methods.
+     */
+    @Test
+    public void keyCanonical() {
+        final Key<Listener> key = Key.get(Listener.class);
+        Assert.assertSame(key, Key.get(Listener.class));
+        Assert.assertFalse(key.equals(Key.get(Object.class)));
+        Assert.assertFalse(key.equals(Key.get(Listener.class, "meta")));
+        Assert.assertEquals(Key.get(Listener.class, "meta"), Key.get(Listener.class, "meta"));
+        Assert.assertEquals(Key.get(Listener.class, "meta").hashCode(), Key.get(Listener.class, "meta").hashCode());
+        
+        final Listener listener = EasyMock.createMock("listener", Listener.class);
+        EasyMock.replay(listener);
+        final Registry unit = unit();
+        unit.register(key, listener);
+        Assert.assertEquals(ImmutableList.of(listener), ImmutableList.copyOf(unit.getListeners(Listener.class)));
+        EasyMock.verify(listener);
+    }
+    
     /**
      * Tests {@link Registry#find(Class, Predicate)} without expected matches.
      */
@@ -424,6 +754,153 @@ public abstract class AbstractRegistryTest implements UnitProvider<Registry> {
         EasyMock.verify(a, b);
     }
     
+    /**
+     * Extracts the region of "tenant/region" meta information.
+     */
+    private static final Function<Object, Object> REGION = new Function<Object, Object>() {
+        
+        @Override
+        public Object apply(Object meta) {
+            if (meta instanceof String) {
+                final String value = String.class.cast(meta);
+                return value.substring(value.indexOf('/') + 1);
+            } else {
+                return null;
+            }
+        }
+        
+    };
+    
+    /**
+     * Tests {@link Registry#find(Class, Predicate)} using {@link Meta#equalTo(Object)}.
+     */
+    @Test
+    public void findMetaEqualTo() {
+        final Listener a = EasyMock.createMock("a", Listener.class);
+        final Listener b = EasyMock.createMock("b", Listener.class);
+        final Listener c = EasyMock.createMock("c", Listener.class);
+        EasyMock.replay(a, b, c);
+        final Registry unit = unit();
+        unit.register(Listener.class, a);
+        unit.register(Key.get(Listener.class, "first"), b);
+        unit.register(Key.get(Listener.class, "second"), c);
+        
+        Assert.assertEquals(ImmutableList.of(b), ImmutableList.copyOf(
+            unit.find(Listener.class, Meta.equalTo("first"))));
+        Assert.assertTrue(Iterables.isEmpty(unit.find(Listener.class, Meta.equalTo("third"))));
+        Assert.assertTrue(Iterables.isEmpty(unit.find(Object.class, Meta.equalTo("first"))));
+        EasyMock.verify(a, b, c);
+    }
+    
+    /**
+     * Tests {@link Registry#find(Class, Predicate)} using {@link Meta#where(Function, Object)}
+     * while modifying the registry after the index has been built.
+     */
+    @Test
+    public void findMetaWhere() {
+        final Listener a = EasyMock.createMock("a", Listener.class);
+        final Listener b = EasyMock.createMock("b", Listener.class);
+        final Listener c = EasyMock.createMock("c", Listener.class);
+        final Listener d = EasyMock.createMock("d", Listener.class);
+        EasyMock.replay(a, b, c, d);
+        final Registry unit = unit();
+        unit.register(Listener.class, a);
+        unit.register(Key.get(Listener.class, "first/eu"), b);
+        unit.register(Key.get(Listener.class, "second/us"), c);
+        unit.register(Key.get(Object.class, "third/eu"), d);
+        
+        final Iterable<Listener> listeners = unit.find(Listener.class, Meta.where(REGION, "eu"));
+        Assert.assertEquals(ImmutableList.of(b), ImmutableList.copyOf(listeners));
+        
+        unit.register(Key.get(Listener.class, "fourth/eu"), d);
+        unit.register(Key.get(Listener.class, "first/eu"), c);
+        Assert.assertEquals(Sets.newHashSet(b, c, d), Sets.newHashSet(listeners));
+        Assert.assertEquals(3, Iterables.size(listeners));
+        
+        unit.remove(b);
+        unit.removeAll(Key.get(Listener.class, "fourth/eu"));
+        Assert.assertEquals(ImmutableList.of(c), ImmutableList.copyOf(listeners));
+        unit.remove(c);
+        Assert.assertTrue(Iterables.isEmpty(listeners));
+        Assert.assertTrue(Iterables.isEmpty(unit.find(Listener.class, Meta.where(REGION, "us"))));
+        EasyMock.verify(a, b, c, d);
+    }
+    
+    /**
+     * Tests {@link Registry#notifyMatching(Class, Predicate, Procedure)}.
+     */
+    @Test
+    public void notifyMatching() {
+        final Listener a = EasyMock.createMock("a", Listener.class);
+        final Listener b = EasyMock.createMock("b", Listener.class);
+        final Listener c = EasyMock.createMock("c", Listener.class);
+        b.doAnything();
+        EasyMock.expectLastCall().times(2);
+        c.doAnything();
+        EasyMock.expectLastCall();
+        EasyMock.replay(a, b, c);
+        final Registry unit = unit();
+        unit.register(Listener.class, a);
+        unit.register(Key.get(Listener.class, "first/eu"), b);
+        unit.register(Key.get(Listener.class, "second/us"), c);
+        
+        final Procedure<Listener> command = new Procedure<Listener>() {
+            
+            @Override
+            public void apply(Listener input) {
+                input.doAnything();
+            }
+            
+        };
+        
+        unit.notifyMatching(Listener.class, Meta.where(REGION, "eu"), command);
+        unit.notifyMatching(Listener.class, Meta.equalTo("first/eu"), command);
+        unit.notifyMatching(Listener.class, Predicates.equalTo((Object) "second/us"), command);
+        unit.notifyMatching(Listener.class, Meta.where(REGION, "asia"), command);
+        EasyMock.verify(a, b, c);
+    }
+    
+    /**
+     * Tests {@link Registry#notifyMatching(Class, Predicate, Procedure)} with a null predicate.
+     */
+    @Test(expected = NullPointerException.class)
+    public void notifyMatchingNull() {
+        unit().notifyMatching(Listener.class, null, new Procedure<Listener>() {
+            
+            @Override
+            public void apply(Listener input) {
+                
+            }
+            
+        });
+    }
+    
+    /**
+     * Tests {@link Registry#find(Class, Predicate)} while modifying the registry
+     * during iteration.
+     */
+    @Test
+    public void findConcurrentModification() {
+        final Listener a = EasyMock.createMock("a", Listener.class);
+        final Listener b = EasyMock.createMock("b", Listener.class);
+        final Listener c = EasyMock.createMock("c", Listener.class);
+        EasyMock.replay(a, b, c);
+        final Registry unit = unit();
+        unit.register(Listener.class, a);
+        unit.register(Key.get(Listener.class, Deprecated.class), b);
+        unit.register(Object.class, c);
+        
+        for (Listener listener : unit.find(Listener.class, Predicates.alwaysTrue())) {
+            unit.remove(listener);
+            unit.register(Key.get(Object.class, listener), listener);
+        }
+        
+        Assert.assertTrue(Iterables.isEmpty(unit.find(Listener.class, Predicates.alwaysTrue())));
+        Assert.assertEquals(3, Iterables.size(unit.find(Object.class, Predicates.alwaysTrue())));
+        Assert.assertSame(c, Iterables.getOnlyElement(unit.getListeners(Object.class)));
+        EasyMock.verify(a, b, c);
+    }
+    
     /**
      * Tests {@link Registry#find(Class, Predicate)} whether it returns
      * an immutable iterable.
@@ -763,6 +1240,21 @@ public abstract class AbstractRegistryTest implements UnitProvider<Registry> {
         Assert.assertTrue(Iterables.isEmpty(unit.getListeners(key)));
     }
     
+    /**
+     * Tests that {@link Registry#proxy(Key)} and {@link Registry#silentProxy(Key)}
+     * return canonical instances.
+     */
+    @Test
+    public void proxyKeyCanonical() {
+        final Registry unit = unit();
+        final Listener proxy = unit.proxy(Key.get(Listener.class, Deprecated.class));
+        final Listener silentProxy = unit.silentProxy(Key.get(Listener.class, Deprecated.class));
+        Assert.assertSame(proxy, unit.proxy(Key.get(Listener.class, Deprecated.class)));
+        Assert.assertSame(silentProxy, unit.silentProxy(Key.get(Listener.class, Deprecated.class)));
+        Assert.assertNotSame(proxy, silentProxy);
+        Assert.assertNotSame(proxy, unit.proxy(Listener.class));
+    }
+    
     /**
      * Tests {@link Object#toString()} of {@link Registry#proxy(Key)}.
      */
@@ -784,23 +1276,131 @@ public abstract class AbstractRegistryTest implements UnitProvider<Registry> {
     }
     
     /**
-     * Tests {@link Registry#proxy(Class)} using an interface
-     * providing a method which does not return void.
+     * A public listener interface, whose proxies are generated, taking every kind of argument.
+     *
+     * @author Willi Schoenborn
      */
-    @Test(expected = IllegalStateException.class)
-    public void proxyTypeNoVoid() {
-        final Registry unit = unit();
-        final Predicate<?> proxy = unit.proxy(Predicate.class);
-        proxy.apply(null);
+    public static interface Arguments {
+        
+        /**
+         * Accepts arguments of every kind.
+         */
+        void accept(boolean z, byte b, char c, short s, int i, long j, float f, double d, String string, int[] array);
+        
     }
-
+    
     /**
-     * Tests {@link Registry#proxy(Key)} using an interface
-     * providing a method which does not return void.
+     * A public listener interface, whose proxies are generated, declaring a checked exception.
+     *
+     * @author Willi Schoenborn
      */
-    @Test(expected = IllegalStateException.class)
-    public void proxyKeyNoVoid() {
-        final Registry unit = unit();
+    public static interface Checked {
+        
+        /**
+         * Fails.
+         * 
+         * @throws IOException if it fails
+         */
+        void fail() throws IOException;
+        
+    }
+    
+    /**
+     * Tests that proxies of public interfaces pass all kinds of arguments.
+     */
+    @Test
+    public void proxyKeyArguments() {
+        final Registry unit = unit();
+        final List<Object> values = Lists.newArrayList();
+        final Key<Arguments> key = Key.get(Arguments.class, Deprecated.class);
+        unit.register(key, new Arguments() {
+            
+            @Override
+            public void accept(boolean z, byte b, char c, short s, int i, long j, float f, double d, 
+                String string, int[] array) {
+                values.add(Arrays.<Object>asList(Boolean.valueOf(z), Byte.valueOf(b), Character.valueOf(c), 
+                    Short.valueOf(s), Integer.valueOf(i), Long.valueOf(j), Float.valueOf(f), Double.valueOf(d), 
+                    string, array));
+            }
+            
+        });
+        Assert.assertFalse(java.lang.reflect.Proxy.isProxyClass(unit.proxy(key).getClass()));
+        
+        final int[] array = {1, 2};
+        unit.proxy(key).accept(true, (byte) 1, 'c', (short) 2, 3, Long.MAX_VALUE, 4.5f, Double.MIN_VALUE, "s", array);
+        unit.silentProxy(key).accept(false, (byte) -1, 'd', (short) -2, -3, Long.MIN_VALUE, -4.5f, -1d, null, null);
+        Assert.assertEquals(Arrays.asList(
+            Arrays.<Object>asList(Boolean.TRUE, Byte.valueOf((byte) 1), Character.valueOf('c'), 
+                Short.valueOf((short) 2), Integer.valueOf(3), Long.valueOf(Long.MAX_VALUE), Float.valueOf(4.5f), 
+                Double.valueOf(Double.MIN_VALUE), "s", array),
+            Arrays.<Object>asList(Boolean.FALSE, Byte.valueOf((byte) -1), Character.valueOf('d'), 
+                Short.valueOf((short) -2), Integer.valueOf(-3), Long.valueOf(Long.MIN_VALUE), Float.valueOf(-4.5f), 
+                Double.valueOf(-1d), null, null)
+        ), values);
+    }
+    
+    /**
+     * Tests that generated proxies propagate checked exceptions declared by their interface.
+     * 
+     * @throws IOException expected
+     */
+    @Test(expected = IOException.class)
+    public void proxyKeyGeneratedCheckedException() throws IOException {
+        final Registry unit = unit();
+        final Key<Checked> key = Key.get(Checked.class, Deprecated.class);
+        unit.register(key, new Checked() {
+            
+            @Override
+            public void fail() throws IOException {
+                throw new IOException();
+            }
+            
+        });
+        unit.proxy(key).fail();
+    }
+    
+    /**
+     * Tests {@link Object#equals(Object)} of generated and reflective proxies.
+     */
+    @Test
+    public void proxyKeyEquals() {
+        final Registry unit = unit();
+        final Object[] proxies = {
+            unit.proxy(Key.get(Listener.class, Deprecated.class)),
+            unit.proxy(Key.get(Arguments.class, Deprecated.class))
+        };
+        final Object[] others = {
+            unit.proxy(Listener.class),
+            unit.proxy(Arguments.class)
+        };
+        for (int i = 0; i < proxies.length; i++) {
+            Assert.assertTrue(proxies[i].equals(proxies[i]));
+            Assert.assertEquals(proxies[i].hashCode(), proxies[i].hashCode());
+            Assert.assertFalse(proxies[i].equals(others[i]));
+            Assert.assertFalse(proxies[i].equals(proxies[1 - i]));
+            Assert.assertFalse(proxies[i].equals(null));
+            Assert.assertFalse(proxies[i].equals(new Object()));
+        }
+    }
+    
+    /**
+     * Tests {@link Registry#proxy(Class)} using an interface
+     * providing a method which does not return void.
+     */
+    @Test(expected = IllegalStateException.class)
+    public void proxyTypeNoVoid() {
+        final Registry unit = unit();
+        final Predicate<?> proxy = unit.proxy(Predicate.class);
+        proxy.apply(null);
+    }
+
+    /**
+     * Tests {@link Registry#proxy(Key)} using an interface
+     * providing a method which does not return void.
+     */
+    @Test(expected = IllegalStateException.class)
+    public void proxyKeyNoVoid() {
+        final Registry unit = unit();
         final Predicate<?> proxy = unit.proxy(Key.get(Predicate.class, Deprecated.class));
         proxy.apply(null);
     }
@@ -1009,6 +1609,17 @@ public abstract class AbstractRegistryTest implements UnitProvider<Registry> {
         
     }
     
+    /**
+     * A custom error to check that errors thrown by listeners do not stall notifications.
+     *
+     * @author Willi Schoenborn
+     */
+    private static final class CustomError extends Error {
+        
+        private static final long serialVersionUID = 4181398718530213416L;
+        
+    }
+    
     /**
      * Tests {@link Registry#notify(Class, Procedure)} with a failing procedure.
      */
@@ -1266,6 +1877,588 @@ public abstract class AbstractRegistryTest implements UnitProvider<Registry> {
         EasyMock.verify(first, second);  
     }
     
+    /**
+     * Tests {@link Registry#notifyAsync(Key, Procedure)}.
+     * 
+     * @throws Exception should not happen
+     */
+    @Test
+    public void notifyAsyncKey() throws Exception {
+        final Registry unit = unit();
+        final Key<Listener> key = Key.get(Listener.class, Deprecated.class);
+        
+        final Listener first = EasyMock.createMock("first", Listener.class);
+        first.doAnything();
+        EasyMock.expectLastCall();
+        
+        final Listener second = EasyMock.createMock("second", Listener.class);
+        second.doAnything();
+        EasyMock.expectLastCall();
+        
+        EasyMock.replay(first, second);
+        unit.register(key, first);
+        unit.register(key, second);
+        
+        final Procedure<? super Listener> procedure = new Procedure<Listener>() {
+            
+            @Override
+            public void apply(Listener input) {
+                input.doAnything();
+            }
+            
+        };
+        
+        Assert.assertNull(unit.notifyAsync(key, procedure).get(5, TimeUnit.SECONDS));
+        EasyMock.verify(first, second);
+    }
+    
+    /**
+     * Tests {@link Registry#notifyAsync(Key, Procedure)} with failing listeners.
+     * 
+     * @throws Exception should not happen
+     */
+    @Test
+    public void notifyAsyncKeyRuntime() throws Exception {
+        final Registry unit = unit();
+        final Key<Listener> key = Key.get(Listener.class, Deprecated.class);
+        
+        final Listener first = EasyMock.createMock("first", Listener.class);
+        first.doAnything();
+        EasyMock.expectLastCall().andThrow(new CustomRuntimeException());
+        
+        final Listener second = EasyMock.createMock("second", Listener.class);
+        second.doAnything();
+        EasyMock.expectLastCall().andThrow(new CustomRuntimeException());
+        
+        EasyMock.replay(first, second);
+        unit.register(key, first);
+        unit.register(key, second);
+        
+        final Procedure<? super Listener> procedure = new Procedure<Listener>() {
+            
+            @Override
+            public void apply(Listener input) {
+                input.doAnything();
+            }
+            
+        };
+        
+        try {
+            unit.notifyAsync(key, procedure).get(5, TimeUnit.SECONDS);
+            Assert.fail("Expected ExecutionException");
+        } catch (ExecutionException e) {
+            final NotificationException cause = (NotificationException) e.getCause();
+            Assert.assertEquals(key, cause.getKey());
+            Assert.assertEquals(2, cause.getFailures().size());
+            Assert.assertTrue(cause.getCause() instanceof CustomRuntimeException);
+        }
+        EasyMock.verify(first, second);
+    }
+    
+    /**
+     * Tests {@link Registry#notifyAsync(Class, Procedure)} with no listeners
+     * being registered.
+     * 
+     * @throws Exception should not happen
+     */
+    @Test
+    public void notifyAsyncTypeEmpty() throws Exception {
+        @SuppressWarnings("unchecked")
+        final Procedure<? super Listener> procedure = EasyMock.createMock("procedure", Procedure.class);
+        EasyMock.replay(procedure);
+        Assert.assertNull(unit().notifyAsync(Listener.class, procedure).get(5, TimeUnit.SECONDS));
+        EasyMock.verify(procedure);
+    }
+    
+    /**
+     * Tests {@link Registry#notifyAsync(Key, Procedure)} with a null key.
+     */
+    @Test(expected = NullPointerException.class)
+    public void notifyAsyncKeyNullKey() {
+        @SuppressWarnings("unchecked")
+        final Procedure<? super Object> procedure = EasyMock.createMock("procedure", Procedure.class);
+        EasyMock.replay(procedure);
+        final Key<Object> nullKey = null;
+        unit().notifyAsync(nullKey, procedure);
+    }
+    
+    /**
+     * Tests {@link Registry#notifyAsync(Key, Procedure)} with a null procedure.
+     */
+    @Test(expected = NullPointerException.class)
+    public void notifyAsyncKeyNullProcedure() {
+        unit().notifyAsync(Key.get(Listener.class, Deprecated.class), null);
+    }
+    
+    /**
+     * Tests {@link Registry#notifyConcurrently(Key, Procedure)} with listeners which
+     * can only complete if all of them are notified at the same time.
+     * 
+     * @throws Exception should not happen
+     */
+    @Test
+    public void notifyConcurrentlyKey() throws Exception {
+        final Registry unit = unit();
+        final Key<Object> key = Key.get(Object.class, Deprecated.class);
+        final int size = 4;
+        for (int i = 0; i < size; i++) {
+            unit.register(key, new Object());
+        }
+        
+        final CountDownLatch latch = new CountDownLatch(size);
+        final AtomicInteger completed = new AtomicInteger();
+        final Future<Void> future = unit.notifyConcurrently(key, new Procedure<Object>() {
+            
+            @Override
+            public void apply(Object input) {
+                latch.countDown();
+                try {
+                    if (latch.await(5, TimeUnit.SECONDS)) {
+                        completed.incrementAndGet();
+                    }
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+            
+        });
+        Assert.assertNull(future.get(10, TimeUnit.SECONDS));
+        Assert.assertEquals(size, completed.get());
+    }
+    
+    /**
+     * Tests {@link Registry#notifyConcurrently(Key, Procedure)} with failing listeners.
+     * 
+     * @throws Exception should not happen
+     */
+    @Test
+    public void notifyConcurrentlyKeyRuntime() throws Exception {
+        final Registry unit = unit();
+        final Key<Listener> key = Key.get(Listener.class, Deprecated.class);
+        final Listener first = EasyMock.createMock("first", Listener.class);
+        first.doAnything();
+        EasyMock.expectLastCall().andThrow(new CustomRuntimeException());
+        final Listener second = EasyMock.createMock("second", Listener.class);
+        second.doAnything();
+        EasyMock.expectLastCall().andThrow(new CustomRuntimeException());
+        final Listener third = EasyMock.createMock("third", Listener.class);
+        third.doAnything();
+        
+        EasyMock.replay(first, second, third);
+        unit.register(key, first);
+        unit.register(key, second);
+        unit.register(key, third);
+        
+        try {
+            unit.notifyConcurrently(key, new Procedure<Listener>() {
+                
+                @Override
+                public void apply(Listener input) {
+                    input.doAnything();
+                }
+                
+            }).get(5, TimeUnit.SECONDS);
+            Assert.fail("Expected ExecutionException");
+        } catch (ExecutionException e) {
+            final NotificationException cause = (NotificationException) e.getCause();
+            Assert.assertEquals(key, cause.getKey());
+            Assert.assertEquals(2, cause.getFailures().size());
+            Assert.assertTrue(cause.getCause() instanceof CustomRuntimeException);
+        }
+        EasyMock.verify(first, second, third);
+    }
+    
+    /**
+     * Tests {@link Registry#notifyConcurrently(Key, Procedure)} with more listeners
+     * throwing errors than the concurrency limit.
+     * 
+     * @throws Exception should not happen
+     */
+    @Test
+    public void notifyConcurrentlyKeyError() throws Exception {
+        final Registry unit = unit();
+        final Key<Object> key = Key.get(Object.class, Deprecated.class);
+        final int size = ConcurrentNotifier.DEFAULT_LIMIT * 4;
+        for (int i = 0; i < size; i++) {
+            unit.register(key, new Object());
+        }
+        
+        try {
+            unit.notifyConcurrently(key, new Procedure<Object>() {
+                
+                @Override
+                public void apply(Object input) {
+                    throw new CustomError();
+                }
+                
+            }).get(5, TimeUnit.SECONDS);
+            Assert.fail("Expected ExecutionException");
+        } catch (ExecutionException e) {
+            final NotificationException cause = (NotificationException) e.getCause();
+            Assert.assertEquals(size, cause.getFailures().size());
+        }
+    }
+    
+    /**
+     * Tests {@link Registry#notifyConcurrently(Class, Procedure)} with no listeners
+     * being registered.
+     * 
+     * @throws Exception should not happen
+     */
+    @Test
+    public void notifyConcurrentlyTypeEmpty() throws Exception {
+        @SuppressWarnings("unchecked")
+        final Procedure<? super Listener> procedure = EasyMock.createMock("procedure", Procedure.class);
+        EasyMock.replay(procedure);
+        Assert.assertNull(unit().notifyConcurrently(Listener.class, procedure).get(5, TimeUnit.SECONDS));
+        EasyMock.verify(procedure);
+    }
+    
+    /**
+     * Tests {@link Registry#notifyConcurrently(Class, Procedure)} with a null type.
+     */
+    @Test(expected = NullPointerException.class)
+    public void notifyConcurrentlyTypeNullType() {
+        @SuppressWarnings("unchecked")
+        final Procedure<? super Object> procedure = EasyMock.createMock("procedure", Procedure.class);
+        EasyMock.replay(procedure);
+        final Class<Object> nullType = null;
+        unit().notifyConcurrently(nullType, procedure);
+    }
+    
+    /**
+     * Tests {@link Registry#notifyConcurrently(Key, Procedure)} with a null procedure.
+     */
+    @Test(expected = NullPointerException.class)
+    public void notifyConcurrentlyKeyNullProcedure() {
+        unit().notifyConcurrently(Key.get(Listener.class, Deprecated.class), null);
+    }
+    
+    /**
+     * Tests {@link Registry#asyncProxy(Key)} with a single listener.
+     * 
+     * @throws InterruptedException should not happen
+     */
+    @Test
+    public void asyncProxyKeySingle() throws InterruptedException {
+        final Registry unit = unit();
+        final Key<Listener> key = Key.get(Listener.class, Deprecated.class);
+        final CountDownLatch latch = new CountDownLatch(1);
+        
+        unit.register(key, new Listener() {
+            
+            @Override
+            public void doAnything() {
+                latch.countDown();
+            }
+            
+        });
+        
+        unit.asyncProxy(key).doAnything();
+        Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+    }
+    
+    /**
+     * Tests {@link Registry#notify(Class, Procedure)} does not notify listeners
+     * of subtypes by default.
+     */
+    @Test
+    public void notifyTypeNotHierarchical() {
+        final Registry unit = unit();
+        final Listener listener = EasyMock.createMock("listener", Listener.class);
+        EasyMock.replay(listener);
+        unit.register(Listener.class, listener);
+        unit.notify(Object.class, new Procedure<Object>() {
+            
+            @Override
+            public void apply(Object input) {
+                Assert.fail("Listener of subtype " + input + " has been notified");
+            }
+            
+        });
+        EasyMock.verify(listener);
+    }
+    
+    /**
+     * Tests {@link Registry#notify(Key, Procedure)} using hierarchical notification.
+     */
+    @Test
+    public void notifyKeyHierarchical() {
+        final Registry unit = hierarchicalUnit();
+        Assume.assumeNotNull(unit);
+        final Listener first = EasyMock.createMock("first", Listener.class);
+        final Listener second = EasyMock.createMock("second", Listener.class);
+        final Listener other = EasyMock.createMock("other", Listener.class);
+        final Runnable fourth = EasyMock.createMock("fourth", Runnable.class);
+        EasyMock.replay(first, second, other, fourth);
+        final Object third = new Object();
+        
+        unit.register(Key.get(Object.class, Deprecated.class), third);
+        unit.register(Key.get(Listener.class, Deprecated.class), second);
+        unit.register(Key.get(Listener.class, Deprecated.class), first, -1);
+        unit.register(Key.get(Object.class, Deprecated.class), second);
+        unit.register(Key.get(Listener.class, Override.class), other);
+        
+        final List<Object> notified = Lists.newArrayList();
+        final Procedure<Object> procedure = new Procedure<Object>() {
+            
+            @Override
+            public void apply(Object input) {
+                notified.add(input);
+            }
+            
+        };
+        unit.notify(Key.get(Object.class, Deprecated.class), procedure);
+        Assert.assertEquals(ImmutableList.of(first, third, second), notified);
+        
+        notified.clear();
+        unit.notify(Key.get(Listener.class, Deprecated.class), procedure);
+        Assert.assertEquals(ImmutableList.of(first, second), notified);
+        
+        notified.clear();
+        unit.register(Key.get(Runnable.class, Deprecated.class), fourth);
+        unit.remove(Key.get(Listener.class, Deprecated.class), first);
+        unit.notify(Key.get(Object.class, Deprecated.class), procedure);
+        Assert.assertEquals(ImmutableList.of(third, second, fourth), notified);
+        
+        EasyMock.verify(first, second, other, fourth);
+    }
+    
+    /**
+     * Tests that hierarchical notification sees modifications of subtypes
+     * after notifying a key without any listeners.
+     */
+    @Test
+    public void notifyKeyHierarchicalModified() {
+        final Registry unit = hierarchicalUnit();
+        Assume.assumeNotNull(unit);
+        final Key<Object> key = Key.get(Object.class, Deprecated.class);
+        final List<Object> notified = Lists.newArrayList();
+        final Procedure<Object> procedure = new Procedure<Object>() {
+            
+            @Override
+            public void apply(Object input) {
+                notified.add(input);
+            }
+            
+        };
+        unit.notify(key, procedure);
+        Assert.assertEquals(ImmutableList.of(), notified);
+        
+        final Runnable runnable = EasyMock.createMock("runnable", Runnable.class);
+        final Listener listener = EasyMock.createMock("listener", Listener.class);
+        EasyMock.replay(runnable, listener);
+        unit.register(Key.get(Runnable.class, Deprecated.class), runnable);
+        unit.register(Key.get(Listener.class, Override.class), listener);
+        unit.notify(key, procedure);
+        Assert.assertEquals(ImmutableList.of(runnable), notified);
+        
+        notified.clear();
+        unit.removeAll(Key.get(Runnable.class, Deprecated.class));
+        unit.notify(key, procedure);
+        Assert.assertEquals(ImmutableList.of(), notified);
+        EasyMock.verify(runnable, listener);
+    }
+    
+    /**
+     * Tests {@link Registry#proxy(Class)} using hierarchical notification.
+     */
+    @Test
+    public void proxyTypeHierarchical() {
+        final Registry unit = hierarchicalUnit();
+        Assume.assumeNotNull(unit);
+        final Listener listener = EasyMock.createMock("listener", Listener.class);
+        listener.doAnything();
+        EasyMock.expectLastCall();
+        EasyMock.replay(listener);
+        final Runnable runnable = EasyMock.createMock("runnable", Runnable.class);
+        EasyMock.replay(runnable);
+        unit.register(Listener.class, listener);
+        unit.register(Runnable.class, runnable);
+        unit.proxy(Listener.class).doAnything();
+        EasyMock.verify(listener, runnable);
+    }
+    
+    /**
+     * Tests {@link Registry#notifyParallel(Key, Procedure)} with enough listeners
+     * to trigger the parallel dispatch.
+     */
+    @Test
+    public void notifyParallelKey() {
+        final Registry unit = unit();
+        final Key<Listener> key = Key.get(Listener.class, Deprecated.class);
+        final AtomicInteger counter = new AtomicInteger();
+        
+        for (int i = 0; i < 1000; i++) {
+            unit.register(key, new Listener() {
+                
+                @Override
+                public void doAnything() {
+                    counter.incrementAndGet();
+                }
+                
+            });
+        }
+        
+        unit.notifyParallel(key, new Procedure<Listener>() {
+            
+            @Override
+            public void apply(Listener input) {
+                input.doAnything();
+            }
+            
+        });
+        
+        Assert.assertEquals(1000, counter.get());
+    }
+    
+    /**
+     * A listener type selected for parallel notification.
+     *
+     * @author Willi Schoenborn
+     */
+    @Parallel
+    public static interface ParallelListener {
+        
+        /**
+         * Is doing anything.
+         */
+        void doAnything();
+        
+    }
+    
+    /**
+     * Tests that {@link Registry#notify(Key, Procedure)} and {@link Registry#notifySilently(Key, Procedure)}
+     * notify keys of types annotated with {@link Parallel} in parallel. Every listener waits
+     * until a second listener runs, which never happens on a single thread.
+     * 
+     * @throws InterruptedException should not happen
+     */
+    @Test
+    public void notifyKeyParallelAnnotated() throws InterruptedException {
+        Assume.assumeTrue(Runtime.getRuntime().availableProcessors() > 1);
+        final Registry unit = unit();
+        final Key<ParallelListener> key = Key.get(ParallelListener.class, Deprecated.class);
+        final AtomicInteger counter = new AtomicInteger();
+        final AtomicInteger waited = new AtomicInteger();
+        final CountDownLatch[] latch = {new CountDownLatch(2)};
+        
+        for (int i = 0; i < 100; i++) {
+            unit.register(key, new ParallelListener() {
+                
+                @Override
+                public void doAnything() {
+                    counter.incrementAndGet();
+                    final CountDownLatch current = latch[0];
+                    current.countDown();
+                    try {
+                        if (!current.await(5, TimeUnit.SECONDS)) {
+                            waited.incrementAndGet();
+                        }
+                    } catch (InterruptedException e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+                
+            });
+        }
+        
+        unit.proxy(key).doAnything();
+        Assert.assertEquals(100, counter.get());
+        Assert.assertEquals(0, waited.get());
+        
+        latch[0] = new CountDownLatch(2);
+        unit.silentProxy(key).doAnything();
+        Assert.assertEquals(200, counter.get());
+        Assert.assertEquals(0, waited.get());
+    }
+    
+    /**
+     * Tests {@link Registry#notifyParallel(Key, Procedure)} with a failing listener.
+     */
+    @Test(expected = CustomRuntimeException.class)
+    public void notifyParallelKeyRuntime() {
+        final Registry unit = unit();
+        final Key<Listener> key = Key.get(Listener.class, Deprecated.class);
+        
+        for (int i = 0; i < 1000; i++) {
+            final boolean failing = i == 500;
+            unit.register(key, new Listener() {
+                
+                @Override
+                public void doAnything() {
+                    if (failing) {
+                        throw new CustomRuntimeException();
+                    }
+                }
+                
+            });
+        }
+        
+        unit.notifyParallel(key, new Procedure<Listener>() {
+            
+            @Override
+            public void apply(Listener input) {
+                input.doAnything();
+            }
+            
+        });
+    }
+    
+    /**
+     * Tests {@link Registry#notifySilentlyParallel(Key, Procedure)} with failing listeners.
+     */
+    @Test
+    public void notifySilentlyParallelKeyRuntime() {
+        final Registry unit = unit();
+        final Key<Listener> key = Key.get(Listener.class, Deprecated.class);
+        final AtomicInteger counter = new AtomicInteger();
+        
+        for (int i = 0; i < 1000; i++) {
+            unit.register(key, new Listener() {
+                
+                @Override
+                public void doAnything() {
+                    if (counter.incrementAndGet() % 250 == 0) {
+                        throw new CustomRuntimeException();
+                    }
+                }
+                
+            });
+        }
+        
+        unit.notifySilentlyParallel(key, new Procedure<Listener>() {
+            
+            @Override
+            public void apply(Listener input) {
+                input.doAnything();
+            }
+            
+        });
+        
+        Assert.assertEquals(1000, counter.get());
+    }
+    
+    /**
+     * Tests {@link Registry#notifyParallel(Class, Procedure)} with a null type.
+     */
+    @Test(expected = NullPointerException.class)
+    public void notifyParallelTypeNullType() {
+        @SuppressWarnings("unchecked")
+        final Procedure<? super Object> procedure = EasyMock.createMock("procedure", Procedure.class);
+        EasyMock.replay(procedure);
+        final Class<Object> nullType = null;
+        unit().notifyParallel(nullType, procedure);
+    }
+    
+    /**
+     * Tests {@link Registry#notifySilentlyParallel(Key, Procedure)} with a null procedure.
+     */
+    @Test(expected = NullPointerException.class)
+    public void notifySilentlyParallelKeyNullProcedure() {
+        unit().notifySilentlyParallel(Key.get(Listener.class, Deprecated.class), null);
+    }
+    
     /**
      * Tests the return value of {@link Registry#remove(Class, Object)}.
      */
@@ -1431,6 +2624,45 @@ public abstract class AbstractRegistryTest implements UnitProvider<Registry> {
         EasyMock.verify(listener);
     }
     
+    /**
+     * Tests {@link Registry#remove(Object)} for a listener which has been
+     * registered strongly and weakly for multiple keys and partially removed before.
+     */
+    @Test
+    public void removeListenerMixed() {
+        final Registry unit = unit();
+        
+        final Listener listener = EasyMock.createMock("listener", Listener.class);
+        final Listener other = EasyMock.createMock("other", Listener.class);
+        EasyMock.replay(listener, other);
+        
+        final Key<Listener> key = Key.get(Listener.class, Deprecated.class);
+        unit.register(Listener.class, listener);
+        unit.register(Listener.class, other);
+        unit.registerWeak(key, listener);
+        unit.register(Object.class, listener);
+        unit.register(Runnable.class, new Runnable() {
+            
+            @Override
+            public void run() {
+                
+            }
+            
+        });
+        Assert.assertEquals(ImmutableList.of(listener), ImmutableList.copyOf(unit.removeAll(Object.class)));
+        
+        Assert.assertTrue(unit.remove(listener));
+        Assert.assertFalse(unit.remove(listener));
+        Assert.assertSame(other, Iterables.getOnlyElement(unit.getListeners(Listener.class)));
+        Assert.assertTrue(Iterables.isEmpty(unit.getListeners(key)));
+        Assert.assertFalse(Iterables.isEmpty(unit.getListeners(Runnable.class)));
+        
+        unit.register(Object.class, listener);
+        Assert.assertTrue(unit.remove(listener));
+        Assert.assertTrue(Iterables.isEmpty(unit.getListeners(Object.class)));
+        EasyMock.verify(listener, other);
+    }
+    
     /**
      * Tests {@link Registry#remove(Object)} for a listener which is 
      * registered for multiple types.
@@ -1462,6 +2694,44 @@ public abstract class AbstractRegistryTest implements UnitProvider<Registry> {
         unit().remove(null);
     }
     
+    /**
+     * Tests {@link Registry#removeAll(Iterable)} with listeners being registered
+     * strongly and weakly for multiple keys.
+     */
+    @Test
+    public void removeAllListeners() {
+        final Registry unit = unit();
+        
+        final Listener listener = EasyMock.createMock("listener", Listener.class);
+        final Listener other = EasyMock.createMock("other", Listener.class);
+        final Listener remaining = EasyMock.createMock("remaining", Listener.class);
+        EasyMock.replay(listener, other, remaining);
+        
+        final Key<Listener> key = Key.get(Listener.class, Deprecated.class);
+        unit.register(Listener.class, listener);
+        unit.register(Listener.class, other);
+        unit.register(Listener.class, remaining);
+        unit.registerWeak(key, listener);
+        unit.register(key, other);
+        unit.register(Object.class, other);
+        
+        Assert.assertTrue(unit.removeAll(ImmutableList.of(listener, other)));
+        Assert.assertSame(remaining, Iterables.getOnlyElement(unit.getListeners(Listener.class)));
+        Assert.assertTrue(Iterables.isEmpty(unit.getListeners(key)));
+        Assert.assertTrue(Iterables.isEmpty(unit.getListeners(Object.class)));
+        Assert.assertFalse(unit.removeAll(ImmutableList.of(listener, other)));
+        Assert.assertFalse(unit.removeAll(ImmutableList.of()));
+        EasyMock.verify(listener, other, remaining);
+    }
+    
+    /**
+     * Tests {@link Registry#removeAll(Iterable)} with null.
+     */
+    @Test(expected = NullPointerException.class)
+    public void removeAllListenersNull() {
+        unit().removeAll((Iterable<?>) null);
+    }
+    
     /**
      * Tests the return value of {@link Registry#removeAll(Class)}.
      */
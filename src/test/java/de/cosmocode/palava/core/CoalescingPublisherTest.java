@@ -0,0 +1,219 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.cosmocode.palava.core;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import de.cosmocode.collections.Procedure;
+import de.cosmocode.palava.core.Registry.Key;
+
+/**
+ * Tests {@link CoalescingPublisher}.
+ *
+ * @author Willi Schoenborn
+ */
+public final class CoalescingPublisherTest {
+
+    private final Registry registry = new DefaultRegistry();
+    
+    private final CoalescingPublisher unit = new CoalescingPublisher(registry, 50, TimeUnit.MILLISECONDS);
+    
+    /**
+     * Disposes the unit.
+     */
+    @After
+    public void dispose() {
+        unit.dispose();
+    }
+    
+    /**
+     * A listener which receives the latest state.
+     *
+     * @author Willi Schoenborn
+     */
+    private interface StateListener {
+        
+        void stateChanged(int state);
+        
+    }
+    
+    /**
+     * A procedure which publishes a fixed state.
+     *
+     * @author Willi Schoenborn
+     */
+    private static final class StateChanged implements Procedure<StateListener> {
+        
+        private final int state;
+        
+        public StateChanged(int state) {
+            this.state = state;
+        }
+        
+        @Override
+        public void apply(StateListener input) {
+            input.stateChanged(state);
+        }
+        
+    }
+    
+    /**
+     * Tests that repeated notifications collapse into a delivery of the latest one.
+     * 
+     * @throws InterruptedException should not happen
+     */
+    @Test
+    public void coalesce() throws InterruptedException {
+        final AtomicInteger deliveries = new AtomicInteger();
+        final CountDownLatch latch = new CountDownLatch(1);
+        
+        registry.register(StateListener.class, new StateListener() {
+            
+            @Override
+            public void stateChanged(int state) {
+                deliveries.incrementAndGet();
+                if (state == 999) {
+                    latch.countDown();
+                }
+            }
+            
+        });
+        
+        for (int i = 0; i < 1000; i++) {
+            unit.notify(StateListener.class, new StateChanged(i));
+        }
+        
+        Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+        Assert.assertTrue(deliveries.get() < 1000);
+        Assert.assertEquals(1000, unit.getNotifications());
+        Assert.assertEquals(deliveries.get(), unit.getDeliveries());
+        Assert.assertEquals(1000, unit.getMerged() + unit.getDeliveries());
+    }
+    
+    /**
+     * Tests that notifications for different keys are not merged.
+     * 
+     * @throws InterruptedException should not happen
+     */
+    @Test
+    public void differentKeys() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(2);
+        final StateListener listener = new StateListener() {
+            
+            @Override
+            public void stateChanged(int state) {
+                latch.countDown();
+            }
+            
+        };
+        
+        registry.register(Key.get(StateListener.class, "first"), listener);
+        registry.register(Key.get(StateListener.class, "second"), listener);
+        
+        unit.notify(Key.get(StateListener.class, "first"), new StateChanged(1));
+        unit.notify(Key.get(StateListener.class, "second"), new StateChanged(2));
+        
+        Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals(0, unit.getMerged());
+    }
+    
+    /**
+     * Tests that deliveries for the same key neither overlap nor overtake each other,
+     * even if the lane uses multiple threads.
+     * 
+     * @throws InterruptedException should not happen
+     */
+    @Test
+    public void ordered() throws InterruptedException {
+        final ScheduledExecutorService lane = Executors.newScheduledThreadPool(4);
+        final CoalescingPublisher publisher = new CoalescingPublisher(registry, 0, TimeUnit.MILLISECONDS, lane);
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger latest = new AtomicInteger(-1);
+        final AtomicInteger violations = new AtomicInteger();
+        final CountDownLatch latch = new CountDownLatch(1);
+        final int last = 20000;
+        
+        registry.register(StateListener.class, new StateListener() {
+            
+            @Override
+            public void stateChanged(int state) {
+                if (running.incrementAndGet() > 1) {
+                    violations.incrementAndGet();
+                }
+                if (latest.getAndSet(state) >= state) {
+                    violations.incrementAndGet();
+                }
+                running.decrementAndGet();
+                if (state == last) {
+                    latch.countDown();
+                }
+            }
+            
+        });
+        
+        try {
+            for (int i = 0; i <= last; i++) {
+                publisher.notify(StateListener.class, new StateChanged(i));
+                // lets slots drain, which races notifications with their removal
+                for (int j = 0; j < i % 64; j++) {
+                    Thread.yield();
+                }
+            }
+            Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+            Assert.assertEquals(0, violations.get());
+        } finally {
+            publisher.dispose();
+            lane.shutdownNow();
+        }
+    }
+    
+    /**
+     * Tests {@link CoalescingPublisher#notify(Key, Procedure)} with a null key.
+     */
+    @Test(expected = NullPointerException.class)
+    public void notifyNullKey() {
+        final Key<StateListener> nullKey = null;
+        unit.notify(nullKey, new StateChanged(0));
+    }
+    
+    /**
+     * Tests {@link CoalescingPublisher#notify(Class, Procedure)} with a null command.
+     */
+    @Test(expected = NullPointerException.class)
+    public void notifyNullCommand() {
+        unit.notify(StateListener.class, null);
+    }
+    
+    /**
+     * Tests {@link CoalescingPublisher#notify(Class, Procedure)} after disposing the publisher.
+     */
+    @Test(expected = IllegalStateException.class)
+    public void notifyDisposed() {
+        unit.dispose();
+        unit.notify(StateListener.class, new StateChanged(0));
+    }
+    
+}
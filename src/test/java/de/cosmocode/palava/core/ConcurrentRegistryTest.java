@@ -0,0 +1,38 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.core;
+
+/**
+ * Tests {@link ConcurrentRegistry}.
+ *
+ * @author Willi Schoenborn
+ */
+public final class ConcurrentRegistryTest extends AbstractRegistryTest {
+
+    @Override
+    public Registry unit() {
+        return new ConcurrentRegistry();
+    }
+    
+    @Override
+    protected Registry hierarchicalUnit() {
+        final ConcurrentRegistry unit = new ConcurrentRegistry();
+        unit.setHierarchical(true);
+        return unit;
+    }
+
+}
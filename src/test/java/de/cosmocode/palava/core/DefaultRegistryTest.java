@@ -16,6 +16,20 @@
 
 package de.cosmocode.palava.core;
 
+import java.lang.ref.WeakReference;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import de.cosmocode.collections.Procedure;
+import de.cosmocode.palava.core.Registry.Key;
+
 /**
  * Tests {@link DefaultRegistry}.
  *
@@ -27,5 +41,116 @@ public final class DefaultRegistryTest extends AbstractRegistryTest {
     public Registry unit() {
         return new DefaultRegistry();
     }
+    
+    @Override
+    protected Registry hierarchicalUnit() {
+        final DefaultRegistry unit = new DefaultRegistry();
+        unit.setHierarchical(true);
+        return unit;
+    }
+    
+    /**
+     * Tests that {@link Registry#notifyConcurrently(Key, Procedure)} reaches
+     * but never exceeds the configured concurrency limit.
+     *
+     * @throws Exception should not happen
+     */
+    @Test
+    public void notifyConcurrentlyLimit() throws Exception {
+        final DefaultRegistry unit = new DefaultRegistry();
+        unit.setConcurrencyLimit(2);
+        final Key<Object> key = Key.get(Object.class);
+        for (int i = 0; i < 3; i++) {
+            unit.register(key, new Object());
+        }
+        
+        final AtomicInteger entered = new AtomicInteger();
+        final AtomicInteger active = new AtomicInteger();
+        final AtomicInteger max = new AtomicInteger();
+        final CountDownLatch two = new CountDownLatch(2);
+        final CountDownLatch three = new CountDownLatch(3);
+        final CountDownLatch[] releases = {new CountDownLatch(1), new CountDownLatch(1), new CountDownLatch(1)};
+        final Procedure<Object> procedure = new Procedure<Object>() {
+            
+            @Override
+            public void apply(Object input) {
+                final int index = entered.getAndIncrement();
+                final int current = active.incrementAndGet();
+                while (true) {
+                    final int previous = max.get();
+                    if (current <= previous || max.compareAndSet(previous, current)) break;
+                }
+                two.countDown();
+                three.countDown();
+                try {
+                    releases[index].await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                } finally {
+                    active.decrementAndGet();
+                }
+            }
+            
+        };
+        final Future<Void> future = unit.notifyConcurrently(key, procedure);
+        Assert.assertTrue(two.await(5, TimeUnit.SECONDS));
+        Assert.assertFalse(three.await(100, TimeUnit.MILLISECONDS));
+        Assert.assertEquals(2, active.get());
+        Assert.assertEquals(2, entered.get());
+        
+        releases[0].countDown();
+        Assert.assertTrue(three.await(5, TimeUnit.SECONDS));
+        releases[1].countDown();
+        releases[2].countDown();
+        future.get(5, TimeUnit.SECONDS);
+        Assert.assertEquals(2, max.get());
+        Assert.assertEquals(0, active.get());
+    }
+
+    
+    /**
+     * A public interface which can be loaded by an isolated class loader.
+     *
+     * @author Willi Schoenborn
+     */
+    public static interface Unloadable {
+        
+        /**
+         * Does nothing.
+         */
+        void unload();
+        
+    }
+    
+    /**
+     * Creates a proxy for {@link Unloadable} loaded by a new class loader.
+     */
+    private static WeakReference<ClassLoader> proxyOfUnloadable(Registry registry) throws ClassNotFoundException {
+        final URL location = Unloadable.class.getProtectionDomain().getCodeSource().getLocation();
+        final ClassLoader loader = new URLClassLoader(new URL[] {location}, null);
+        final Class<?> type = loader.loadClass(Unloadable.class.getName());
+        Assert.assertNotSame(Unloadable.class, type);
+        final Object proxy = registry.proxy(type);
+        Assert.assertSame(proxy, registry.proxy(type));
+        return new WeakReference<ClassLoader>(loader);
+    }
+    
+    /**
+     * Tests that cached proxies do not prevent their types from being unloaded.
+     * 
+     * @throws Exception should not happen
+     */
+    @Test
+    public void proxyUnloaded() throws Exception {
+        final DefaultRegistry unit = new DefaultRegistry();
+        final WeakReference<ClassLoader> loader = proxyOfUnloadable(unit);
+        for (int i = 0; i < 100 && loader.get() != null; i++) {
+            System.gc();
+            TimeUnit.MILLISECONDS.sleep(10);
+            // expunges collected proxies
+            unit.proxy(Runnable.class);
+        }
+        Assert.assertNull(loader.get());
+    }
 
 }
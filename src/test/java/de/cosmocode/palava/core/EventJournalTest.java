@@ -0,0 +1,214 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+import de.cosmocode.collections.Procedure;
+import de.cosmocode.palava.core.lifecycle.LifecycleException;
+
+/**
+ * Tests {@link EventJournal}.
+ *
+ * @author Willi Schoenborn
+ */
+public final class EventJournalTest {
+
+    private final List<EventJournal> journals = Lists.newArrayList();
+    
+    private File directory;
+    
+    /**
+     * Creates a temporary directory.
+     * 
+     * @throws IOException should not happen
+     */
+    @Before
+    public void createDirectory() throws IOException {
+        directory = File.createTempFile("journal", "");
+        Assert.assertTrue(directory.delete());
+        Assert.assertTrue(directory.mkdir());
+    }
+    
+    /**
+     * Disposes all journals and deletes the temporary directory.
+     * 
+     * @throws LifecycleException should not happen
+     */
+    @After
+    public void dispose() throws LifecycleException {
+        for (EventJournal journal : journals) {
+            journal.dispose();
+        }
+        for (File file : directory.listFiles()) {
+            Assert.assertTrue(file.delete());
+        }
+        Assert.assertTrue(directory.delete());
+    }
+    
+    private EventJournal open(int segmentSize) throws IOException {
+        final EventJournal journal = new EventJournal(directory, segmentSize, 1, TimeUnit.MILLISECONDS);
+        journals.add(journal);
+        return journal;
+    }
+    
+    private static ByteBuffer record(long value) {
+        final ByteBuffer buffer = ByteBuffer.allocate(8);
+        buffer.putLong(value).flip();
+        return buffer;
+    }
+    
+    private static List<Long> replay(EventJournal journal, long offset) {
+        final List<Long> values = Lists.newArrayList();
+        journal.replay(offset, new Procedure<ByteBuffer>() {
+            
+            @Override
+            public void apply(ByteBuffer input) {
+                values.add(input.getLong());
+            }
+            
+        });
+        return values;
+    }
+    
+    /**
+     * Tests {@link EventJournal#append(ByteBuffer)} and {@link EventJournal#replay(long, Procedure)}.
+     * 
+     * @throws IOException should not happen
+     */
+    @Test
+    public void replay() throws IOException {
+        final EventJournal unit = open(1024);
+        Assert.assertEquals(0L, unit.append(record(1)));
+        final long second = unit.append(record(2));
+        unit.append(record(3));
+        Assert.assertEquals(ImmutableList.of(1L, 2L, 3L), replay(unit, 0));
+        Assert.assertEquals(ImmutableList.of(2L, 3L), replay(unit, second));
+        Assert.assertEquals(ImmutableList.of(), replay(unit, unit.getEnd()));
+    }
+    
+    /**
+     * Tests replaying records spread across several segments.
+     * 
+     * @throws IOException should not happen
+     */
+    @Test
+    public void replaySegments() throws IOException {
+        final EventJournal unit = open(40);
+        final List<Long> expected = Lists.newArrayList();
+        for (long i = 0; i < 20; i++) {
+            unit.append(record(i));
+            expected.add(i);
+        }
+        Assert.assertTrue(directory.listFiles().length > 1);
+        Assert.assertEquals(expected, replay(unit, 0));
+    }
+    
+    /**
+     * Tests {@link EventJournal#truncate(long)}.
+     * 
+     * @throws IOException should not happen
+     * @throws InterruptedException should not happen
+     */
+    @Test
+    public void truncate() throws IOException, InterruptedException {
+        final EventJournal unit = open(40);
+        final List<Long> offsets = Lists.newArrayList();
+        for (long i = 0; i < 20; i++) {
+            offsets.add(unit.append(record(i)));
+        }
+        final int segments = directory.listFiles().length;
+        Assert.assertTrue(unit.awaitFlushed(unit.getEnd(), 5, TimeUnit.SECONDS));
+        final long start = unit.truncate(offsets.get(10));
+        Assert.assertTrue(start > 0);
+        Assert.assertTrue(start <= offsets.get(10));
+        Assert.assertEquals(start, unit.getStart());
+        Assert.assertTrue(directory.listFiles().length < segments);
+        final List<Long> values = replay(unit, 0);
+        Assert.assertEquals(19L, values.get(values.size() - 1).longValue());
+        Assert.assertTrue(values.contains(10L));
+        Assert.assertFalse(values.contains(0L));
+        unit.truncate(unit.getEnd());
+        Assert.assertEquals(1, directory.listFiles().length);
+    }
+    
+    /**
+     * Tests reopening a journal whose last record has been torn.
+     * 
+     * @throws IOException should not happen
+     * @throws LifecycleException should not happen
+     */
+    @Test
+    public void recover() throws IOException, LifecycleException {
+        final EventJournal first = open(1024);
+        first.append(record(1));
+        final long torn = first.append(record(2));
+        first.dispose();
+        journals.remove(first);
+        
+        final RandomAccessFile file = new RandomAccessFile(directory.listFiles()[0], "rw");
+        try {
+            file.seek(torn + 12);
+            file.write(42);
+        } finally {
+            file.close();
+        }
+        
+        final EventJournal second = open(1024);
+        Assert.assertEquals(torn, second.getEnd());
+        Assert.assertEquals(torn, second.append(record(3)));
+        Assert.assertEquals(ImmutableList.of(1L, 3L), replay(second, 0));
+    }
+    
+    /**
+     * Tests {@link EventJournal#awaitFlushed(long, long, TimeUnit)}.
+     * 
+     * @throws IOException should not happen
+     * @throws InterruptedException should not happen
+     */
+    @Test
+    public void awaitFlushed() throws IOException, InterruptedException {
+        final EventJournal unit = open(1024);
+        final long offset = unit.append(record(1));
+        Assert.assertTrue(unit.awaitFlushed(offset, 10, TimeUnit.SECONDS));
+        Assert.assertTrue(unit.getFlushed() > offset);
+    }
+    
+    /**
+     * Tests appending a record which exceeds the segment size.
+     * 
+     * @throws IOException should not happen
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void appendTooLarge() throws IOException {
+        open(12).append(ByteBuffer.allocate(8));
+    }
+    
+}
@@ -0,0 +1,238 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.core;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.collect.Iterables;
+
+import de.cosmocode.collections.Procedure;
+import de.cosmocode.junit.UnitProvider;
+import de.cosmocode.palava.core.FailureLog.Failure;
+import de.cosmocode.palava.core.Registry.Key;
+
+/**
+ * Tests {@link FailureLog}.
+ *
+ * @author Willi Schoenborn
+ */
+public final class FailureLogTest implements UnitProvider<FailureLog> {
+
+    @Override
+    public FailureLog unit() {
+        return new FailureLog();
+    }
+    
+    /**
+     * Tests aggregation of failures per key, listener and exception type.
+     */
+    @Test
+    public void report() {
+        final FailureLog unit = unit();
+        final Key<Object> key = Key.get(Object.class);
+        final Object listener = new Object();
+        final Object other = new Object();
+        
+        final IllegalStateException last = new IllegalStateException();
+        unit.report(key, listener, new IllegalStateException());
+        unit.report(key, listener, new IllegalStateException());
+        unit.report(key, listener, last);
+        
+        final Failure failure = Iterables.getOnlyElement(unit.getFailures());
+        Assert.assertEquals(key, failure.getKey());
+        Assert.assertEquals(listener.toString(), failure.getListener());
+        Assert.assertEquals(IllegalStateException.class, failure.getType());
+        Assert.assertEquals(3, failure.getCount());
+        Assert.assertSame(last, failure.getSample());
+        Assert.assertTrue(failure.getFirstOccurrence() <= failure.getLastOccurrence());
+        
+        unit.report(key, listener, new IllegalArgumentException());
+        unit.report(Key.get(Object.class, Deprecated.class), listener, new IllegalStateException());
+        unit.report(key, other, new IllegalStateException());
+        Assert.assertEquals(4, unit.getFailures().size());
+        
+        unit.reset();
+        Assert.assertTrue(unit.getFailures().isEmpty());
+    }
+    
+    /**
+     * Tests summaries without any interval.
+     */
+    @Test
+    public void reportWithoutInterval() {
+        final FailureLog unit = unit();
+        unit.setInterval(0);
+        final Key<Object> key = Key.get(Object.class);
+        final Object listener = new Object();
+        for (int i = 0; i < 5; i++) {
+            unit.report(key, listener, new IllegalStateException());
+        }
+        Assert.assertEquals(5, Iterables.getOnlyElement(unit.getFailures()).getCount());
+    }
+    
+    /**
+     * Tests that {@link FailureLog#dispose()} summarizes pending failures.
+     */
+    @Test
+    public void dispose() {
+        final FailureLog unit = unit();
+        final Key<Object> key = Key.get(Object.class);
+        final Object listener = new Object();
+        for (int i = 0; i < 3; i++) {
+            unit.report(key, listener, new IllegalStateException());
+        }
+        final Failure failure = Iterables.getOnlyElement(unit.getFailures());
+        Assert.assertEquals(2, failure.getPending());
+        unit.dispose();
+        Assert.assertEquals(0, failure.getPending());
+        Assert.assertEquals(3, failure.getCount());
+    }
+    
+    /**
+     * Tests that pending failures are summarized without further failures.
+     * 
+     * @throws InterruptedException should not happen
+     */
+    @Test
+    public void flushPeriodically() throws InterruptedException {
+        final FailureLog unit = unit();
+        unit.initialize();
+        unit.setInterval(1);
+        final Key<Object> key = Key.get(Object.class);
+        final Object listener = new Object();
+        unit.report(key, listener, new IllegalStateException());
+        unit.report(key, listener, new IllegalStateException());
+        final Failure failure = Iterables.getOnlyElement(unit.getFailures());
+        Assert.assertEquals(1, failure.getPending());
+        final long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(5);
+        while (failure.getPending() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        Assert.assertEquals(0, failure.getPending());
+        unit.dispose();
+    }
+    
+    /**
+     * Tests that {@link FailureLog#dispose()} stops the background task
+     * started by {@link FailureLog#initialize()}.
+     * 
+     * @throws InterruptedException should not happen
+     */
+    @Test
+    public void disposeStopsFlusher() throws InterruptedException {
+        final FailureLog unit = unit();
+        unit.initialize();
+        unit.initialize();
+        Assert.assertEquals(1, flushers());
+        unit.dispose();
+        final long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(5);
+        while (flushers() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        Assert.assertEquals(0, flushers());
+    }
+    
+    private static int flushers() {
+        int count = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.isAlive() && thread.getName().startsWith("palava-failure-log-")) {
+                count++;
+            }
+        }
+        return count;
+    }
+    
+    /**
+     * Tests that silent notifications report to the configured log.
+     */
+    @Test
+    public void notifySilently() {
+        final FailureLog unit = unit();
+        final DefaultRegistry registry = new DefaultRegistry();
+        registry.setFailureLog(unit);
+        final Object listener = new Object();
+        registry.register(Object.class, listener);
+        
+        final Procedure<Object> procedure = new Procedure<Object>() {
+            
+            @Override
+            public void apply(Object input) {
+                throw new UnsupportedOperationException();
+            }
+            
+        };
+        for (int i = 0; i < 10; i++) {
+            registry.notifySilently(Object.class, procedure);
+        }
+        registry.notifySilentlyParallel(Object.class, procedure);
+        
+        final List<Failure> failures = unit.getFailures();
+        Assert.assertEquals(11, Iterables.getOnlyElement(failures).getCount());
+        Assert.assertEquals(UnsupportedOperationException.class, failures.get(0).getType());
+    }
+    
+    /**
+     * Tests that failures of asynchronous proxies report to the configured log.
+     * 
+     * @throws InterruptedException should not happen
+     */
+    @Test
+    public void asyncProxy() throws InterruptedException {
+        final FailureLog unit = unit();
+        final DefaultRegistry registry = new DefaultRegistry();
+        final Runnable proxy = registry.asyncProxy(Runnable.class);
+        registry.setFailureLog(unit);
+        registry.register(Runnable.class, new Runnable() {
+            
+            @Override
+            public void run() {
+                throw new UnsupportedOperationException();
+            }
+            
+        });
+        
+        proxy.run();
+        final long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(5);
+        while (unit.getFailures().isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        final Failure failure = Iterables.getOnlyElement(unit.getFailures());
+        Assert.assertEquals(Key.get(Runnable.class), failure.getKey());
+        Assert.assertEquals(UnsupportedOperationException.class, failure.getType());
+    }
+    
+    /**
+     * Tests {@link FailureLog#report(Key, Object, Throwable)} with a null throwable.
+     */
+    @Test(expected = NullPointerException.class)
+    public void reportNull() {
+        unit().report(Key.get(Object.class), new Object(), null);
+    }
+    
+    /**
+     * Tests {@link FailureLog#setInterval(long)} with a negative interval.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeInterval() {
+        unit().setInterval(-1);
+    }
+
+}
@@ -0,0 +1,298 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.core;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+
+import de.cosmocode.palava.core.Registry.Key;
+
+/**
+ * Tests {@link GatheringProxy}.
+ *
+ * @author Willi Schoenborn
+ */
+public final class GatheringProxyTest {
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    
+    /**
+     * Shuts down the executor.
+     */
+    @After
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+    
+    /**
+     * A listener interface with non-void methods.
+     *
+     * @author Willi Schoenborn
+     */
+    public interface Resolver {
+        
+        String resolve(String name);
+        
+        boolean accepts(String name);
+        
+        int count();
+        
+        void clear();
+        
+        String read() throws IOException;
+        
+    }
+    
+    /**
+     * A resolver returning fixed values and counting its invocations.
+     *
+     * @author Willi Schoenborn
+     */
+    private static class Fixed implements Resolver {
+        
+        private final String value;
+        
+        private final boolean accepts;
+        
+        private final AtomicInteger invocations = new AtomicInteger();
+        
+        public Fixed(String value, boolean accepts) {
+            this.value = value;
+            this.accepts = accepts;
+        }
+        
+        @Override
+        public String resolve(String name) {
+            invocations.incrementAndGet();
+            return value;
+        }
+        
+        @Override
+        public boolean accepts(String name) {
+            invocations.incrementAndGet();
+            return accepts;
+        }
+        
+        @Override
+        public int count() {
+            invocations.incrementAndGet();
+            return 2;
+        }
+        
+        @Override
+        public void clear() {
+            invocations.incrementAndGet();
+        }
+        
+        @Override
+        public String read() throws IOException {
+            throw new IOException();
+        }
+        
+    }
+    
+    /**
+     * Tests {@link Reducers#firstNonNull()} using sequential invocation.
+     */
+    @Test
+    public void firstNonNull() {
+        final Registry registry = new DefaultRegistry();
+        final Fixed none = new Fixed(null, false);
+        final Fixed first = new Fixed("first", true);
+        final Fixed second = new Fixed("second", true);
+        registry.register(Resolver.class, none);
+        registry.register(Resolver.class, first);
+        registry.register(Resolver.class, second);
+        
+        final Resolver unit = GatheringProxy.create(registry, Key.get(Resolver.class), Reducers.firstNonNull());
+        Assert.assertEquals("first", unit.resolve("name"));
+        Assert.assertEquals(1, none.invocations.get());
+        Assert.assertEquals(1, first.invocations.get());
+        Assert.assertEquals(0, second.invocations.get());
+    }
+    
+    /**
+     * Tests {@link Reducers#all()}.
+     */
+    @Test
+    public void all() {
+        final Registry registry = new DefaultRegistry();
+        registry.register(Resolver.class, new Fixed("first", true));
+        registry.register(Resolver.class, new Fixed(null, true));
+        registry.register(Resolver.class, new Fixed("second", true));
+        
+        final GatheringResolver unit = GatheringProxy.create(registry, Key.get(GatheringResolver.class), 
+            Reducers.all());
+        Assert.assertTrue(unit.resolveAll("name").isEmpty());
+        
+        registry.register(GatheringResolver.class, new GatheringResolver() {
+            
+            @Override
+            public List<String> resolveAll(String name) {
+                return ImmutableList.of(name);
+            }
+            
+        });
+        Assert.assertEquals(ImmutableList.of(ImmutableList.of("name")), unit.resolveAll("name"));
+    }
+    
+    /**
+     * A resolver returning a list.
+     *
+     * @author Willi Schoenborn
+     */
+    public interface GatheringResolver {
+        
+        List<?> resolveAll(String name);
+        
+    }
+    
+    /**
+     * Tests {@link Reducers#and()} and {@link Reducers#or()}.
+     */
+    @Test
+    public void logical() {
+        final Registry registry = new DefaultRegistry();
+        final Fixed accepting = new Fixed(null, true);
+        final Fixed rejecting = new Fixed(null, false);
+        final Fixed last = new Fixed(null, true);
+        registry.register(Resolver.class, accepting);
+        registry.register(Resolver.class, rejecting);
+        registry.register(Resolver.class, last);
+        
+        Assert.assertFalse(GatheringProxy.create(registry, Key.get(Resolver.class), Reducers.and()).accepts("a"));
+        Assert.assertEquals(0, last.invocations.get());
+        Assert.assertTrue(GatheringProxy.create(registry, Key.get(Resolver.class), Reducers.or()).accepts("a"));
+        Assert.assertEquals(2, accepting.invocations.get());
+        Assert.assertEquals(1, rejecting.invocations.get());
+        
+        Assert.assertTrue(GatheringProxy.create(new DefaultRegistry(), Key.get(Resolver.class), 
+            Reducers.and()).accepts("a"));
+    }
+    
+    /**
+     * Tests {@link Reducers#sum()} and primitive defaults.
+     */
+    @Test
+    public void sum() {
+        final Registry registry = new DefaultRegistry();
+        final Resolver unit = GatheringProxy.create(registry, Key.get(Resolver.class), Reducers.sum());
+        Assert.assertEquals(0, unit.count());
+        registry.register(Resolver.class, new Fixed(null, true));
+        registry.register(Resolver.class, new Fixed(null, true));
+        registry.register(Resolver.class, new Fixed(null, true));
+        Assert.assertEquals(6, unit.count());
+    }
+    
+    /**
+     * Tests void methods and checked exceptions.
+     * 
+     * @throws IOException expected
+     */
+    @Test(expected = IOException.class)
+    public void voidAndChecked() throws IOException {
+        final Registry registry = new DefaultRegistry();
+        final Fixed first = new Fixed(null, true);
+        final Fixed second = new Fixed(null, true);
+        registry.register(Resolver.class, first);
+        registry.register(Resolver.class, second);
+        final Resolver unit = GatheringProxy.create(registry, Key.get(Resolver.class), Reducers.firstNonNull());
+        unit.clear();
+        Assert.assertEquals(1, first.invocations.get());
+        Assert.assertEquals(1, second.invocations.get());
+        unit.read();
+    }
+    
+    /**
+     * Tests parallel invocation which cancels slow listeners once the result is decided.
+     * 
+     * @throws InterruptedException should not happen
+     */
+    @Test
+    public void parallel() throws InterruptedException {
+        final Registry registry = new DefaultRegistry();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch interrupted = new CountDownLatch(1);
+        registry.register(Resolver.class, new Fixed("slow", true) {
+            
+            @Override
+            public String resolve(String name) {
+                started.countDown();
+                try {
+                    Thread.sleep(TimeUnit.SECONDS.toMillis(10));
+                    return super.resolve(name);
+                } catch (InterruptedException e) {
+                    interrupted.countDown();
+                    return null;
+                }
+            }
+            
+        });
+        registry.register(Resolver.class, new Fixed("fast", true) {
+            
+            @Override
+            public String resolve(String name) {
+                // otherwise the slow listener may be cancelled before it runs
+                try {
+                    started.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return super.resolve(name);
+            }
+            
+        });
+        
+        final Resolver unit = GatheringProxy.create(registry, Key.get(Resolver.class), 
+            Reducers.firstNonNull(), executor);
+        Assert.assertEquals("fast", unit.resolve("name"));
+        Assert.assertTrue(interrupted.await(5, TimeUnit.SECONDS));
+    }
+    
+    /**
+     * Tests parallel invocation with checked exceptions.
+     * 
+     * @throws IOException expected
+     */
+    @Test(expected = IOException.class)
+    public void parallelChecked() throws IOException {
+        final Registry registry = new DefaultRegistry();
+        registry.register(Resolver.class, new Fixed(null, true));
+        registry.register(Resolver.class, new Fixed(null, true));
+        GatheringProxy.create(registry, Key.get(Resolver.class), Reducers.all(), executor).read();
+    }
+    
+    /**
+     * Tests {@link GatheringProxy#create(Registry, Key, Reducer)} with a class.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void createClass() {
+        GatheringProxy.create(new DefaultRegistry(), Key.get(Object.class), Reducers.all());
+    }
+
+}
@@ -0,0 +1,185 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.core;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.base.Predicate;
+import com.google.common.base.Predicates;
+import com.google.common.collect.Iterables;
+
+import de.cosmocode.collections.Procedure;
+import de.cosmocode.palava.core.InstrumentedRegistry.KeyStatistics;
+import de.cosmocode.palava.core.InstrumentedRegistry.ListenerStatistics;
+import de.cosmocode.palava.core.Registry.Key;
+
+/**
+ * Tests {@link InstrumentedRegistry}.
+ *
+ * @author Willi Schoenborn
+ */
+public final class InstrumentedRegistryTest extends AbstractRegistryTest {
+
+    @Override
+    public InstrumentedRegistry unit() {
+        return new InstrumentedRegistry(new DefaultRegistry(), 20, TimeUnit.MILLISECONDS);
+    }
+    
+    @Override
+    protected Registry hierarchicalUnit() {
+        final DefaultRegistry registry = new DefaultRegistry();
+        registry.setHierarchical(true);
+        return new InstrumentedRegistry(registry);
+    }
+    
+    /**
+     * Tests key and listener statistics of {@link InstrumentedRegistry#notifySilently(Key, Procedure)}.
+     */
+    @Test
+    public void statistics() {
+        final InstrumentedRegistry unit = unit();
+        final Key<Object> key = Key.get(Object.class, Deprecated.class);
+        final Object fast = new Object();
+        final Object failing = new Object();
+        unit.register(key, fast);
+        unit.register(key, failing);
+        
+        for (int i = 0; i < 3; i++) {
+            unit.notifySilently(key, new Procedure<Object>() {
+                
+                @Override
+                public void apply(Object input) {
+                    if (input == failing) {
+                        throw new IllegalStateException();
+                    }
+                }
+                
+            });
+        }
+        
+        final KeyStatistics statistics = unit.getKeyStatistics(key);
+        Assert.assertSame(statistics, Iterables.getOnlyElement(unit.getKeyStatistics().values()));
+        Assert.assertEquals(3, statistics.getNotifications());
+        Assert.assertEquals(6, statistics.getInvocations());
+        Assert.assertEquals(3, statistics.getFailures());
+        Assert.assertTrue(statistics.getNotificationRate() > 0);
+        
+        Assert.assertEquals(3, unit.getListenerStatistics(fast).getInvocations());
+        Assert.assertEquals(0, unit.getListenerStatistics(fast).getFailures());
+        Assert.assertEquals(3, unit.getListenerStatistics(failing).getFailures());
+        Assert.assertNull(unit.getKeyStatistics(Key.get(Object.class)));
+        
+        unit.reset();
+        Assert.assertNull(unit.getKeyStatistics(key));
+        Assert.assertNull(unit.getListenerStatistics(fast));
+    }
+    
+    /**
+     * Tests that {@link InstrumentedRegistry#notifyMatching(Class, Predicate, Procedure)}
+     * records statistics for every notified key.
+     */
+    @Test
+    public void notifyMatchingStatistics() {
+        final InstrumentedRegistry unit = unit();
+        final Key<Object> deprecated = Key.get(Object.class, Deprecated.class);
+        final Key<Object> override = Key.get(Object.class, Override.class);
+        unit.register(deprecated, new Object());
+        unit.register(override, new Object());
+        unit.register(override, new Object());
+        
+        unit.notifyMatching(Object.class, Predicates.alwaysTrue(), new Procedure<Object>() {
+            
+            @Override
+            public void apply(Object input) {
+                
+            }
+            
+        });
+        
+        Assert.assertEquals(1, unit.getKeyStatistics(deprecated).getInvocations());
+        Assert.assertEquals(2, unit.getKeyStatistics(override).getInvocations());
+        Assert.assertNull(unit.getKeyStatistics(Key.get(Object.class)));
+    }
+    
+    /**
+     * Tests that statistics are recorded for a bounded number of keys.
+     */
+    @Test
+    public void maxKeys() {
+        final InstrumentedRegistry unit = new InstrumentedRegistry(new DefaultRegistry(), 20, 
+            TimeUnit.MILLISECONDS, 1);
+        final Procedure<Object> procedure = new Procedure<Object>() {
+            
+            @Override
+            public void apply(Object input) {
+                
+            }
+            
+        };
+        unit.notify(Key.get(Object.class, Deprecated.class), procedure);
+        unit.notify(Key.get(Object.class, Override.class), procedure);
+        Assert.assertEquals(1, unit.getKeyStatistics().size());
+        Assert.assertNull(unit.getKeyStatistics(Key.get(Object.class, Override.class)));
+        
+        unit.reset();
+        unit.notify(Key.get(Object.class, Override.class), procedure);
+        Assert.assertNotNull(unit.getKeyStatistics(Key.get(Object.class, Override.class)));
+    }
+    
+    /**
+     * Tests slow listener detection using the proxy of {@link InstrumentedRegistry}.
+     */
+    @Test
+    public void slowListener() {
+        final InstrumentedRegistry unit = unit();
+        final Runnable fast = new Runnable() {
+            
+            @Override
+            public void run() {
+                
+            }
+            
+        };
+        final Runnable slow = new Runnable() {
+            
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            
+        };
+        unit.register(Runnable.class, fast);
+        unit.register(Runnable.class, slow);
+        unit.proxy(Runnable.class).run();
+        
+        Assert.assertSame(slow, Iterables.getOnlyElement(unit.getSlowListeners()));
+        final ListenerStatistics statistics = unit.getListenerStatistics(slow);
+        Assert.assertTrue(statistics.isSlow());
+        Assert.assertEquals(1, statistics.getSlowInvocations());
+        Assert.assertTrue(statistics.getMaxLatency(TimeUnit.MILLISECONDS) >= 50);
+        Assert.assertTrue(statistics.getLatencyPercentile(99, TimeUnit.MILLISECONDS) >= 25);
+        Assert.assertFalse(unit.getListenerStatistics(fast).isSlow());
+    }
+    
+}
@@ -0,0 +1,222 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+import de.cosmocode.collections.Procedure;
+import de.cosmocode.palava.core.Registry.Key;
+import de.cosmocode.palava.core.SharedMemoryBridge.Codec;
+import de.cosmocode.palava.core.lifecycle.LifecycleException;
+
+/**
+ * Tests {@link JournalingRegistry}.
+ *
+ * @author Willi Schoenborn
+ */
+public final class JournalingRegistryTest {
+
+    private File directory;
+    
+    private EventJournal journal;
+    
+    /**
+     * A listener for ticks.
+     *
+     * @author Willi Schoenborn
+     */
+    private interface TickListener {
+        
+        void tick(long value);
+        
+    }
+    
+    /**
+     * A command carrying its event.
+     *
+     * @author Willi Schoenborn
+     */
+    private static final class Tick implements Procedure<TickListener> {
+        
+        private final long value;
+        
+        public Tick(long value) {
+            this.value = value;
+        }
+        
+        @Override
+        public void apply(TickListener input) {
+            input.tick(value);
+        }
+        
+    }
+    
+    private final Codec<Procedure<? super TickListener>> codec = new Codec<Procedure<? super TickListener>>() {
+        
+        @Override
+        public void encode(Procedure<? super TickListener> event, ByteBuffer target) {
+            target.putLong(Tick.class.cast(event).value);
+        }
+        
+        @Override
+        public Procedure<? super TickListener> decode(ByteBuffer source) {
+            return new Tick(source.getLong());
+        }
+        
+    };
+    
+    /**
+     * Opens a journal in a temporary directory.
+     * 
+     * @throws IOException should not happen
+     */
+    @Before
+    public void open() throws IOException {
+        directory = File.createTempFile("journal", "");
+        Assert.assertTrue(directory.delete());
+        Assert.assertTrue(directory.mkdir());
+        journal = new EventJournal(directory, 4096, 10, TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * Disposes the journal and deletes the temporary directory.
+     * 
+     * @throws LifecycleException should not happen
+     */
+    @After
+    public void dispose() throws LifecycleException {
+        journal.dispose();
+        for (File file : directory.listFiles()) {
+            Assert.assertTrue(file.delete());
+        }
+        Assert.assertTrue(directory.delete());
+    }
+    
+    /**
+     * A listener recording all ticks.
+     *
+     * @author Willi Schoenborn
+     */
+    private static final class Recorder implements TickListener {
+        
+        private final List<Long> values = Lists.newArrayList();
+        
+        @Override
+        public void tick(long value) {
+            values.add(value);
+        }
+        
+    }
+    
+    /**
+     * Tests journaling notifications and replaying them into a fresh registry.
+     */
+    @Test
+    public void replay() {
+        final JournalingRegistry unit = new JournalingRegistry(new DefaultRegistry(), journal, 64);
+        unit.journal(Key.get(TickListener.class), "ticks", codec);
+        final Recorder live = new Recorder();
+        unit.register(TickListener.class, live);
+        unit.register(Key.get(TickListener.class, "other"), live);
+        
+        unit.notify(TickListener.class, new Tick(1));
+        unit.notifySilently(Key.get(TickListener.class), new Tick(2));
+        final long end = journal.getEnd();
+        unit.notify(Key.get(TickListener.class, "other"), new Tick(3));
+        Assert.assertEquals(end, journal.getEnd());
+        unit.notifyParallel(TickListener.class, new Tick(4));
+        Assert.assertEquals(ImmutableList.of(1L, 2L, 3L, 4L), live.values);
+        
+        final Registry fresh = new DefaultRegistry();
+        final Recorder replayed = new Recorder();
+        fresh.register(TickListener.class, replayed);
+        Assert.assertEquals(journal.getEnd(), unit.replay(0, fresh));
+        Assert.assertEquals(ImmutableList.of(1L, 2L, 4L), replayed.values);
+    }
+    
+    /**
+     * Tests {@link JournalingRegistry#journal(Key, String, Codec)} with a name which is already in use.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void journalDuplicateName() {
+        final JournalingRegistry unit = new JournalingRegistry(new DefaultRegistry(), journal, 64);
+        unit.journal(Key.get(TickListener.class), "ticks", codec);
+        unit.journal(Key.get(TickListener.class, "other"), "ticks", codec);
+    }
+    
+    /**
+     * Tests notifying a command which exceeds the maximum record size.
+     */
+    @Test
+    public void notifyTooLarge() {
+        final JournalingRegistry unit = new JournalingRegistry(new DefaultRegistry(), journal, 8);
+        unit.journal(Key.get(TickListener.class), "ticks", codec);
+        final Recorder recorder = new Recorder();
+        unit.register(TickListener.class, recorder);
+        unit.notify(TickListener.class, new Tick(1));
+        Assert.assertEquals(ImmutableList.of(1L), recorder.values);
+        Assert.assertEquals(0, journal.getEnd());
+    }
+    
+    /**
+     * Tests that invocations of proxies created by {@link JournalingRegistry} are journaled.
+     */
+    @Test
+    public void proxyJournaled() {
+        final JournalingRegistry unit = new JournalingRegistry(new DefaultRegistry(), journal, 64);
+        // captures the value of any command, including proxy invocations
+        unit.journal(Key.get(TickListener.class), "ticks", new Codec<Procedure<? super TickListener>>() {
+            
+            @Override
+            public void encode(Procedure<? super TickListener> event, ByteBuffer target) {
+                final Recorder recorder = new Recorder();
+                event.apply(recorder);
+                target.putLong(recorder.values.get(0).longValue());
+            }
+            
+            @Override
+            public Procedure<? super TickListener> decode(ByteBuffer source) {
+                return new Tick(source.getLong());
+            }
+            
+        });
+        final Recorder recorder = new Recorder();
+        unit.register(TickListener.class, recorder);
+        unit.proxy(TickListener.class).tick(3);
+        unit.silentProxy(TickListener.class).tick(4);
+        Assert.assertEquals(ImmutableList.of(3L, 4L), recorder.values);
+        
+        final Registry fresh = new DefaultRegistry();
+        final Recorder replayed = new Recorder();
+        fresh.register(TickListener.class, replayed);
+        unit.replay(0, fresh);
+        Assert.assertEquals(ImmutableList.of(3L, 4L), replayed.values);
+    }
+    
+}
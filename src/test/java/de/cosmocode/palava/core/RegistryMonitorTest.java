@@ -0,0 +1,93 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.core;
+
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import de.cosmocode.collections.Procedure;
+import de.cosmocode.palava.core.Registry.Key;
+
+/**
+ * Tests {@link RegistryMonitor}.
+ *
+ * @author Willi Schoenborn
+ */
+public final class RegistryMonitorTest {
+
+    private final Procedure<Object> noop = new Procedure<Object>() {
+        
+        @Override
+        public void apply(Object input) {
+            
+        }
+        
+    };
+    
+    /**
+     * Tests the attributes of an instrumented registry using an {@link MBeanServer}.
+     * 
+     * @throws Exception should not happen
+     */
+    @Test
+    public void instrumented() throws Exception {
+        final Registry registry = new InstrumentedRegistry(new ConcurrentRegistry());
+        registry.register(Object.class, new Object());
+        registry.register(Object.class, "listener");
+        registry.register(Key.get(Runnable.class, Deprecated.class), new Thread());
+        registry.notify(Object.class, noop);
+        registry.notify(Object.class, noop);
+        
+        final MBeanServer server = MBeanServerFactory.newMBeanServer();
+        final RegistryMonitor unit = new RegistryMonitor(registry);
+        unit.setServer(server);
+        unit.initialize();
+        
+        final ObjectName name = new ObjectName(RegistryMonitor.OBJECT_NAME);
+        Assert.assertTrue(server.isRegistered(name));
+        Assert.assertEquals(2, server.getAttribute(name, "KeyCount"));
+        Assert.assertEquals(3, server.getAttribute(name, "RegistrationCount"));
+        Assert.assertEquals(2, String[].class.cast(server.getAttribute(name, "Keys")).length);
+        Assert.assertEquals(2L, server.getAttribute(name, "NotificationCount"));
+        Assert.assertEquals(1, String[].class.cast(server.getAttribute(name, "KeyStatistics")).length);
+        
+        server.invoke(name, "resetStatistics", null, null);
+        Assert.assertEquals(0L, server.getAttribute(name, "NotificationCount"));
+        
+        unit.dispose();
+        Assert.assertFalse(server.isRegistered(name));
+    }
+    
+    /**
+     * Tests {@link RegistryMonitor} using a registry which is not instrumented.
+     */
+    @Test
+    public void notInstrumented() {
+        final Registry registry = new DefaultRegistry();
+        registry.register(Object.class, new Object());
+        final RegistryMonitor unit = new RegistryMonitor(registry);
+        Assert.assertEquals(1, unit.getKeyCount());
+        Assert.assertEquals(1, unit.getRegistrationCount());
+        Assert.assertEquals(-1L, unit.getNotificationCount());
+        Assert.assertEquals(0, unit.getSlowListeners().length);
+    }
+    
+}
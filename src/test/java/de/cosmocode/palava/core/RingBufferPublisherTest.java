@@ -0,0 +1,219 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.core;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.base.Supplier;
+
+import de.cosmocode.collections.Procedure;
+import de.cosmocode.palava.core.Registry.Key;
+import de.cosmocode.palava.core.RingBufferPublisher.Handler;
+import de.cosmocode.palava.core.RingBufferPublisher.WaitStrategy;
+
+/**
+ * Tests {@link RingBufferPublisher}.
+ *
+ * @author Willi Schoenborn
+ */
+public final class RingBufferPublisherTest {
+
+    private static final int EVENTS = 10000;
+    
+    private final Registry registry = new ConcurrentRegistry();
+    
+    /**
+     * A mutable event.
+     *
+     * @author Willi Schoenborn
+     */
+    private static final class Tick {
+        
+        private long value;
+        
+    }
+    
+    /**
+     * A listener for ticks.
+     *
+     * @author Willi Schoenborn
+     */
+    private interface TickListener {
+        
+        void tick(long value);
+        
+    }
+    
+    private final Supplier<Tick> factory = new Supplier<Tick>() {
+        
+        @Override
+        public Tick get() {
+            return new Tick();
+        }
+        
+    };
+    
+    private final Handler<TickListener, Tick> handler = new Handler<TickListener, Tick>() {
+        
+        @Override
+        public void handle(TickListener listener, Tick event) {
+            listener.tick(event.value);
+        }
+        
+    };
+    
+    private void publish(WaitStrategy strategy) throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(EVENTS);
+        final List<Long> failures = new CopyOnWriteArrayList<Long>();
+        registry.register(TickListener.class, new TickListener() {
+            
+            private long expected;
+            
+            @Override
+            public void tick(long value) {
+                if (value != expected++) {
+                    failures.add(value);
+                }
+                latch.countDown();
+            }
+            
+        });
+        
+        final RingBufferPublisher<TickListener, Tick> unit = new RingBufferPublisher<TickListener, Tick>(
+            registry, Key.get(TickListener.class), handler, factory, 64, strategy);
+        try {
+            final Fill fill = new Fill();
+            for (int i = 0; i < EVENTS; i++) {
+                fill.value = i;
+                unit.publish(fill);
+            }
+            Assert.assertTrue(latch.await(10, TimeUnit.SECONDS));
+            Assert.assertTrue(failures.toString(), failures.isEmpty());
+        } finally {
+            unit.dispose();
+        }
+    }
+    
+    /**
+     * A reusable translator.
+     *
+     * @author Willi Schoenborn
+     */
+    private static final class Fill implements Procedure<Tick> {
+        
+        private long value;
+        
+        @Override
+        public void apply(Tick input) {
+            input.value = value;
+        }
+        
+    }
+    
+    /**
+     * Tests ordered delivery using {@link WaitStrategy#BUSY_SPIN}.
+     * 
+     * @throws InterruptedException should not happen
+     */
+    @Test
+    public void busySpin() throws InterruptedException {
+        publish(WaitStrategy.BUSY_SPIN);
+    }
+    
+    /**
+     * Tests ordered delivery using {@link WaitStrategy#YIELD}.
+     * 
+     * @throws InterruptedException should not happen
+     */
+    @Test
+    public void yield() throws InterruptedException {
+        publish(WaitStrategy.YIELD);
+    }
+    
+    /**
+     * Tests ordered delivery using {@link WaitStrategy#PARK}.
+     * 
+     * @throws InterruptedException should not happen
+     */
+    @Test
+    public void park() throws InterruptedException {
+        publish(WaitStrategy.PARK);
+    }
+    
+    /**
+     * Tests that a listener throwing an {@link Error} neither stops the dispatcher
+     * nor blocks the producer once the ring is full.
+     * 
+     * @throws InterruptedException should not happen
+     */
+    @Test
+    public void listenerThrowsError() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(EVENTS);
+        registry.register(TickListener.class, new TickListener() {
+            
+            @Override
+            public void tick(long value) {
+                latch.countDown();
+                throw new AssertionError(value);
+            }
+            
+        });
+        
+        final RingBufferPublisher<TickListener, Tick> unit = new RingBufferPublisher<TickListener, Tick>(
+            registry, Key.get(TickListener.class), handler, factory, 8, WaitStrategy.PARK);
+        try {
+            final Fill fill = new Fill();
+            for (int i = 0; i < EVENTS; i++) {
+                fill.value = i;
+                unit.publish(fill);
+            }
+            Assert.assertTrue(latch.await(10, TimeUnit.SECONDS));
+        } finally {
+            unit.dispose();
+        }
+    }
+    
+    /**
+     * Tests {@link RingBufferPublisher#publish(long)} using an unclaimed sequence.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void publishUnclaimed() {
+        final RingBufferPublisher<TickListener, Tick> unit = new RingBufferPublisher<TickListener, Tick>(
+            registry, Key.get(TickListener.class), handler, factory, 8, WaitStrategy.PARK);
+        try {
+            unit.publish(0L);
+        } finally {
+            unit.dispose();
+        }
+    }
+    
+    /**
+     * Tests the constructor using a capacity which is not a power of two.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void capacityNotPowerOfTwo() {
+        new RingBufferPublisher<TickListener, Tick>(
+            registry, Key.get(TickListener.class), handler, factory, 12, WaitStrategy.PARK);
+    }
+    
+}
@@ -0,0 +1,390 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.core;
+
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.base.Predicates;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Multimap;
+
+import de.cosmocode.collections.Procedure;
+import de.cosmocode.palava.core.Registry.Key;
+import de.cosmocode.palava.core.SealableRegistry.Policy;
+import de.cosmocode.palava.core.event.PostFrameworkStart;
+
+/**
+ * Tests {@link SealableRegistry}.
+ *
+ * @author Willi Schoenborn
+ */
+public final class SealableRegistryTest extends AbstractRegistryTest {
+
+    /**
+     * Provides a registry which is sealed again after every modification, so all
+     * reads are answered by the sealed tables. Weak registrations stay overlaid,
+     * because the sealed tables hold their listeners strongly.
+     */
+    @Override
+    public Registry unit() {
+        final SealableRegistry unit = new SealableRegistry(new DefaultRegistry(), Policy.OVERLAY, new FailureLog());
+        unit.seal();
+        return new Resealing(unit);
+    }
+    
+    @Override
+    protected Registry hierarchicalUnit() {
+        final DefaultRegistry registry = new DefaultRegistry();
+        registry.setHierarchical(true);
+        return new SealableRegistry(registry, Policy.OVERLAY, new FailureLog());
+    }
+    
+    /**
+     * Creates a procedure which adds all notified listeners to the specified list.
+     */
+    private static Procedure<Object> collect(final List<Object> notified) {
+        return new Procedure<Object>() {
+            
+            @Override
+            public void apply(Object input) {
+                notified.add(input);
+            }
+            
+        };
+    }
+    
+    /**
+     * Tests that {@link SealableRegistry#getListeners(Key)} stays a live view
+     * across sealing, overlaying and sealing again.
+     */
+    @Test
+    public void getListenersLive() {
+        final SealableRegistry unit = new SealableRegistry(new DefaultRegistry(), Policy.OVERLAY, new FailureLog());
+        final Key<Object> key = Key.get(Object.class, Deprecated.class);
+        final Object listener = new Object();
+        final Object added = new Object();
+        final Iterable<Object> listeners = unit.getListeners(key);
+        Assert.assertTrue(Iterables.isEmpty(listeners));
+        
+        unit.register(key, listener);
+        unit.seal();
+        Assert.assertEquals(ImmutableList.of(listener), ImmutableList.copyOf(listeners));
+        
+        unit.register(key, added);
+        Assert.assertEquals(ImmutableList.of(listener, added), ImmutableList.copyOf(listeners));
+        
+        unit.seal();
+        Assert.assertEquals(ImmutableList.of(listener, added), ImmutableList.copyOf(listeners));
+        Assert.assertEquals(ImmutableList.of(listener, added), ImmutableList.copyOf(unit.getListeners(key)));
+        
+        unit.remove(listener);
+        Assert.assertEquals(ImmutableList.of(added), ImmutableList.copyOf(listeners));
+    }
+    
+    /**
+     * Tests that {@link SealableRegistry} seals itself on {@link PostFrameworkStart}.
+     */
+    @Test
+    public void sealOnPostFrameworkStart() {
+        final SealableRegistry unit = new SealableRegistry(new DefaultRegistry(), Policy.FAIL, new FailureLog());
+        Assert.assertFalse(unit.isSealed());
+        unit.notifySilently(PostFrameworkStart.class, PostFrameworkStart.PROCEDURE);
+        Assert.assertTrue(unit.isSealed());
+    }
+    
+    /**
+     * Tests notifications and lookups of a sealed registry.
+     */
+    @Test
+    public void sealed() {
+        final SealableRegistry unit = new SealableRegistry(new DefaultRegistry(), Policy.FAIL, new FailureLog());
+        final Key<Object> key = Key.get(Object.class, Deprecated.class);
+        final Object first = new Object();
+        final Object second = new Object();
+        final Object failing = new Object();
+        unit.register(key, second);
+        unit.register(key, failing);
+        unit.register(key, first, -1);
+        unit.seal();
+        
+        Assert.assertEquals(ImmutableList.of(first, second, failing), ImmutableList.copyOf(unit.getListeners(key)));
+        Assert.assertEquals(ImmutableList.of(first, second, failing), 
+            ImmutableList.copyOf(unit.find(Object.class, Predicates.<Object>equalTo(Deprecated.class))));
+        Assert.assertTrue(Iterables.isEmpty(unit.find(Object.class, Predicates.alwaysFalse())));
+        
+        final List<Object> notified = Lists.newArrayList();
+        unit.notifySilently(key, new Procedure<Object>() {
+            
+            @Override
+            public void apply(Object input) {
+                notified.add(input);
+                if (input == failing) {
+                    throw new IllegalStateException();
+                }
+            }
+            
+        });
+        Assert.assertEquals(ImmutableList.of(first, second, failing), notified);
+        
+        notified.clear();
+        unit.notify(Key.get(Object.class), collect(notified));
+        Assert.assertTrue(notified.isEmpty());
+    }
+    
+    /**
+     * Tests {@link Policy#FAIL}.
+     */
+    @Test
+    public void fail() {
+        final SealableRegistry unit = new SealableRegistry(new DefaultRegistry(), Policy.FAIL, new FailureLog());
+        final Object listener = new Object();
+        unit.register(Object.class, listener);
+        unit.seal();
+        
+        try {
+            unit.register(Object.class, new Object());
+            Assert.fail("Expected IllegalStateException");
+        } catch (IllegalStateException e) {
+            Assert.assertSame(listener, Iterables.getOnlyElement(unit.getListeners(Object.class)));
+        }
+        
+        try {
+            unit.remove(listener);
+            Assert.fail("Expected IllegalStateException");
+        } catch (IllegalStateException e) {
+            Assert.assertSame(listener, Iterables.getOnlyElement(unit.getListeners(Object.class)));
+        }
+    }
+    
+    /**
+     * Tests {@link Policy#OVERLAY} with keys being sealed before.
+     */
+    @Test
+    public void overlay() {
+        final SealableRegistry unit = new SealableRegistry(new DefaultRegistry(), Policy.OVERLAY, new FailureLog());
+        final Key<Object> key = Key.get(Object.class, Deprecated.class);
+        final Object listener = new Object();
+        final Object other = new Object();
+        final Object added = new Object();
+        unit.register(key, listener);
+        unit.register(Object.class, other);
+        unit.seal();
+        
+        unit.register(key, added, -1);
+        Assert.assertEquals(ImmutableList.of(added, listener), ImmutableList.copyOf(unit.getListeners(key)));
+        Assert.assertEquals(ImmutableList.of(added, listener), 
+            ImmutableList.copyOf(unit.find(Object.class, Predicates.<Object>equalTo(Deprecated.class))));
+        
+        final List<Object> notified = Lists.newArrayList();
+        unit.notify(key, collect(notified));
+        Assert.assertEquals(ImmutableList.of(added, listener), notified);
+        
+        Assert.assertTrue(unit.remove(other));
+        notified.clear();
+        unit.notify(Object.class, collect(notified));
+        Assert.assertTrue(notified.isEmpty());
+    }
+    
+    /**
+     * Tests lookups of a sealed registry with many keys, some of them overlaid.
+     */
+    @Test
+    public void sealedManyKeys() {
+        final SealableRegistry unit = new SealableRegistry(new DefaultRegistry(), Policy.OVERLAY, new FailureLog());
+        final List<Object> listeners = Lists.newArrayList();
+        for (int i = 0; i < 100; i++) {
+            final Object listener = new Object();
+            listeners.add(listener);
+            unit.register(Key.get(Object.class, Integer.valueOf(i)), listener);
+        }
+        unit.seal();
+        
+        final Object added = new Object();
+        unit.register(Key.get(Object.class, Integer.valueOf(7)), added);
+        Assert.assertTrue(unit.remove(listeners.get(42)));
+        
+        for (int i = 0; i < 100; i++) {
+            final Key<Object> key = Key.get(Object.class, Integer.valueOf(i));
+            final List<Object> expected;
+            if (i == 7) {
+                expected = ImmutableList.of(listeners.get(i), added);
+            } else if (i == 42) {
+                expected = ImmutableList.of();
+            } else {
+                expected = ImmutableList.of(listeners.get(i));
+            }
+            Assert.assertEquals(expected, ImmutableList.copyOf(unit.getListeners(key)));
+            final List<Object> notified = Lists.newArrayList();
+            unit.notify(key, collect(notified));
+            Assert.assertEquals(expected, notified);
+            Assert.assertEquals(expected, unit.getDispatch(key));
+        }
+        Assert.assertEquals(ImmutableList.of(listeners.get(7), added), 
+            ImmutableList.copyOf(unit.find(Object.class, Predicates.<Object>equalTo(Integer.valueOf(7)))));
+    }
+    
+    /**
+     * Tests sealing a hierarchical registry.
+     */
+    @Test
+    public void sealedHierarchical() {
+        final DefaultRegistry registry = new DefaultRegistry();
+        registry.setHierarchical(true);
+        final SealableRegistry unit = new SealableRegistry(registry, Policy.OVERLAY, new FailureLog());
+        final Runnable runnable = new Runnable() {
+            
+            @Override
+            public void run() {
+                
+            }
+            
+        };
+        final Object listener = new Object();
+        unit.register(Key.get(Object.class, Deprecated.class), listener);
+        unit.register(Key.get(Runnable.class, Deprecated.class), runnable, -1);
+        unit.seal();
+        
+        final List<Object> notified = Lists.newArrayList();
+        unit.notify(Key.get(Object.class, Deprecated.class), collect(notified));
+        Assert.assertEquals(ImmutableList.of(runnable, listener), notified);
+        Assert.assertSame(listener, 
+            Iterables.getOnlyElement(unit.getListeners(Key.get(Object.class, Deprecated.class))));
+        
+        unit.remove(runnable);
+        notified.clear();
+        unit.notify(Key.get(Object.class, Deprecated.class), collect(notified));
+        Assert.assertEquals(ImmutableList.of(listener), notified);
+    }
+
+    
+    /**
+     * Seals the decorated registry again after every modification.
+     *
+     * @author Willi Schoenborn
+     */
+    private static final class Resealing extends ForwardingRegistry {
+        
+        private final SealableRegistry registry;
+        
+        private boolean weak;
+        
+        public Resealing(SealableRegistry registry) {
+            this.registry = registry;
+        }
+        
+        @Override
+        protected Registry delegate() {
+            return registry;
+        }
+        
+        private void reseal() {
+            if (weak) return;
+            registry.seal();
+        }
+        
+        @Override
+        public <T> void register(Class<T> type, T listener) {
+            super.register(type, listener);
+            reseal();
+        }
+        
+        @Override
+        public <T> void register(Key<T> key, T listener) {
+            super.register(key, listener);
+            reseal();
+        }
+        
+        @Override
+        public <T> void register(Class<T> type, T listener, int priority) {
+            super.register(type, listener, priority);
+            reseal();
+        }
+        
+        @Override
+        public <T> void register(Key<T> key, T listener, int priority) {
+            super.register(key, listener, priority);
+            reseal();
+        }
+        
+        @Override
+        public <T> void registerWeak(Class<T> type, T listener) {
+            weak = true;
+            super.registerWeak(type, listener);
+        }
+        
+        @Override
+        public <T> void registerWeak(Key<T> key, T listener) {
+            weak = true;
+            super.registerWeak(key, listener);
+        }
+        
+        @Override
+        public void registerAll(Multimap<? extends Key<?>, ?> listeners) {
+            super.registerAll(listeners);
+            reseal();
+        }
+        
+        @Override
+        public <T> boolean remove(Class<T> type, T listener) {
+            final boolean removed = super.remove(type, listener);
+            reseal();
+            return removed;
+        }
+        
+        @Override
+        public <T> boolean remove(Key<T> key, T listener) {
+            final boolean removed = super.remove(key, listener);
+            reseal();
+            return removed;
+        }
+        
+        @Override
+        public <T> boolean remove(T listener) {
+            final boolean removed = super.remove(listener);
+            reseal();
+            return removed;
+        }
+        
+        @Override
+        public boolean removeAll(Iterable<?> listeners) {
+            final boolean removed = super.removeAll(listeners);
+            reseal();
+            return removed;
+        }
+        
+        @Override
+        public <T> Iterable<T> removeAll(Class<T> type) {
+            final Iterable<T> removed = super.removeAll(type);
+            reseal();
+            return removed;
+        }
+        
+        @Override
+        public <T> Iterable<T> removeAll(Key<T> key) {
+            final Iterable<T> removed = super.removeAll(key);
+            reseal();
+            return removed;
+        }
+        
+    }
+
+}
@@ -0,0 +1,77 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.core;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSetMultimap;
+import com.google.common.collect.Iterables;
+
+import de.cosmocode.palava.core.Registry.Key;
+
+/**
+ * Tests {@link ShardedRegistry}.
+ *
+ * @author Willi Schoenborn
+ */
+public final class ShardedRegistryTest extends AbstractRegistryTest {
+
+    @Override
+    public Registry unit() {
+        return new ShardedRegistry(4);
+    }
+    
+    /**
+     * Tests {@link ShardedRegistry#getKeys(Class, com.google.common.base.Predicate)}
+     * with a meta which has never been registered.
+     */
+    @Test
+    public void getKeysUnregistered() {
+        final ShardedRegistry unit = new ShardedRegistry(4);
+        unit.register(Key.get(Object.class, "first"), new Object());
+        Assert.assertEquals(ImmutableList.of(), unit.getKeys(Object.class, Meta.equalTo("second")));
+        Assert.assertEquals(ImmutableList.of(Key.get(Object.class, "first")),
+            unit.getKeys(Object.class, Meta.equalTo("first")));
+    }
+    
+    /**
+     * Tests {@link ShardedRegistry#removeAll(Iterable)} with listeners spread across segments.
+     */
+    @Test
+    public void removeAllSegments() {
+        final Registry unit = unit();
+        final Object listener = new Object();
+        final Object other = new Object();
+        final ImmutableSetMultimap.Builder<Key<?>, Object> builder = ImmutableSetMultimap.builder();
+        for (int i = 0; i < 16; i++) {
+            builder.put(Key.get(Object.class, Integer.valueOf(i)), listener);
+            builder.put(Key.get(Object.class, Integer.valueOf(i)), other);
+        }
+        unit.registerAll(builder.build());
+        Assert.assertTrue(unit.removeAll(ImmutableList.of(listener)));
+        Assert.assertFalse(unit.removeAll(ImmutableList.of(listener)));
+        for (int i = 0; i < 16; i++) {
+            Assert.assertEquals(ImmutableList.of(other),
+                ImmutableList.copyOf(unit.getListeners(Key.get(Object.class, Integer.valueOf(i)))));
+        }
+        Assert.assertTrue(unit.remove(other));
+        Assert.assertTrue(Iterables.isEmpty(unit.find(Object.class, Meta.equalTo(Integer.valueOf(0)))));
+    }
+
+}
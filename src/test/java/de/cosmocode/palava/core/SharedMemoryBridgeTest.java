@@ -0,0 +1,261 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+
+import de.cosmocode.palava.core.Registry.Key;
+import de.cosmocode.palava.core.RingBufferPublisher.Handler;
+import de.cosmocode.palava.core.RingBufferPublisher.WaitStrategy;
+import de.cosmocode.palava.core.SharedMemoryBridge.Codec;
+import de.cosmocode.palava.core.lifecycle.LifecycleException;
+
+/**
+ * Tests {@link SharedMemoryBridge}.
+ *
+ * @author Willi Schoenborn
+ */
+public final class SharedMemoryBridgeTest {
+
+    private static final int EVENTS = 1000;
+    
+    private final List<SharedMemoryBridge<?, ?>> bridges = Lists.newArrayList();
+    
+    private File directory;
+    
+    /**
+     * A listener for ticks.
+     *
+     * @author Willi Schoenborn
+     */
+    private interface TickListener {
+        
+        void tick(long value);
+        
+    }
+    
+    private final Handler<TickListener, Long> handler = new Handler<TickListener, Long>() {
+        
+        @Override
+        public void handle(TickListener listener, Long event) {
+            listener.tick(event.longValue());
+        }
+        
+    };
+    
+    private final Codec<Long> codec = new Codec<Long>() {
+        
+        @Override
+        public void encode(Long event, ByteBuffer target) {
+            target.putLong(event.longValue());
+        }
+        
+        @Override
+        public Long decode(ByteBuffer source) {
+            return Long.valueOf(source.getLong());
+        }
+        
+    };
+    
+    /**
+     * Creates a temporary directory.
+     * 
+     * @throws IOException should not happen
+     */
+    @Before
+    public void createDirectory() throws IOException {
+        directory = File.createTempFile("bridge", "");
+        Assert.assertTrue(directory.delete());
+        Assert.assertTrue(directory.mkdir());
+    }
+    
+    /**
+     * Disposes all bridges and deletes the temporary directory.
+     * 
+     * @throws LifecycleException should not happen
+     */
+    @After
+    public void dispose() throws LifecycleException {
+        for (SharedMemoryBridge<?, ?> bridge : bridges) {
+            bridge.dispose();
+        }
+        for (File file : directory.listFiles()) {
+            Assert.assertTrue(file.delete());
+        }
+        Assert.assertTrue(directory.delete());
+    }
+    
+    private SharedMemoryBridge<TickListener, Long> bridge(Registry registry, String name, int capacity) 
+        throws IOException {
+        final SharedMemoryBridge<TickListener, Long> bridge = new SharedMemoryBridge<TickListener, Long>(
+            registry, Key.get(TickListener.class), handler, codec, new File(directory, name), 
+            capacity, 8, WaitStrategy.YIELD);
+        bridges.add(bridge);
+        return bridge;
+    }
+    
+    /**
+     * Tests that events published by one bridge are dispatched in order by its peer
+     * but not by the publishing side.
+     * 
+     * @throws IOException should not happen
+     * @throws InterruptedException should not happen
+     */
+    @Test
+    public void publish() throws IOException, InterruptedException {
+        final Registry local = new ConcurrentRegistry();
+        final Registry remote = new ConcurrentRegistry();
+        final SharedMemoryBridge<TickListener, Long> publisher = bridge(local, "local.ring", 1024);
+        final SharedMemoryBridge<TickListener, Long> subscriber = bridge(remote, "remote.ring", 1024);
+        
+        local.register(TickListener.class, new TickListener() {
+            
+            @Override
+            public void tick(long value) {
+                Assert.fail("Dispatched " + value + " locally");
+            }
+            
+        });
+        
+        final CountDownLatch latch = new CountDownLatch(EVENTS);
+        final List<Long> received = new CopyOnWriteArrayList<Long>();
+        remote.register(TickListener.class, new TickListener() {
+            
+            @Override
+            public void tick(long value) {
+                received.add(value);
+                latch.countDown();
+            }
+            
+        });
+        
+        for (long i = 0; i < EVENTS; i++) {
+            Assert.assertEquals(i + 1, publisher.publish(Long.valueOf(i)));
+        }
+        
+        Assert.assertTrue(latch.await(10, TimeUnit.SECONDS));
+        for (int i = 0; i < EVENTS; i++) {
+            Assert.assertEquals(i, received.get(i).longValue());
+        }
+        Assert.assertEquals(0L, subscriber.getLost());
+    }
+    
+    /**
+     * Tests that a reader which has been overtaken detects and counts the lost events.
+     * 
+     * @throws IOException should not happen
+     * @throws InterruptedException should not happen
+     */
+    @Test
+    public void lost() throws IOException, InterruptedException {
+        final Registry remote = new ConcurrentRegistry();
+        final SharedMemoryBridge<TickListener, Long> publisher = bridge(new ConcurrentRegistry(), "local.ring", 4);
+        final SharedMemoryBridge<TickListener, Long> subscriber = bridge(remote, "remote.ring", 4);
+        
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch last = new CountDownLatch(1);
+        final List<Long> received = new CopyOnWriteArrayList<Long>();
+        remote.register(TickListener.class, new TickListener() {
+            
+            @Override
+            public void tick(long value) {
+                received.add(value);
+                if (value == 0) {
+                    blocked.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        throw new IllegalStateException(e);
+                    }
+                } else if (value == 99) {
+                    last.countDown();
+                }
+            }
+            
+        });
+        
+        publisher.publish(0L);
+        Assert.assertTrue(blocked.await(10, TimeUnit.SECONDS));
+        for (long i = 1; i < 100; i++) {
+            publisher.publish(i);
+        }
+        release.countDown();
+        
+        Assert.assertTrue(last.await(10, TimeUnit.SECONDS));
+        Assert.assertTrue(subscriber.getLost() > 0);
+        Assert.assertEquals(100, received.size() + subscriber.getLost());
+        for (int i = 1; i < received.size(); i++) {
+            Assert.assertTrue(received.get(i) > received.get(i - 1));
+        }
+    }
+    
+    /**
+     * Tests that a ring keeps its sequence when being reopened.
+     * 
+     * @throws IOException should not happen
+     * @throws LifecycleException should not happen
+     */
+    @Test
+    public void reopen() throws IOException, LifecycleException {
+        final SharedMemoryBridge<TickListener, Long> first = bridge(new ConcurrentRegistry(), "local.ring", 4);
+        first.publish(1L);
+        first.publish(2L);
+        first.dispose();
+        bridges.remove(first);
+        Assert.assertEquals(3L, bridge(new ConcurrentRegistry(), "local.ring", 4).publish(3L));
+    }
+    
+    /**
+     * Tests reopening a ring using a different layout.
+     * 
+     * @throws IOException should not happen
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void reopenDifferentLayout() throws IOException {
+        bridge(new ConcurrentRegistry(), "local.ring", 4);
+        bridge(new ConcurrentRegistry(), "local.ring", 8);
+    }
+    
+    /**
+     * Tests publishing an event which exceeds the maximum size.
+     * 
+     * @throws IOException should not happen
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void publishTooLarge() throws IOException {
+        final SharedMemoryBridge<TickListener, Long> bridge = new SharedMemoryBridge<TickListener, Long>(
+            new ConcurrentRegistry(), Key.get(TickListener.class), handler, codec, new File(directory, "small.ring"), 
+            4, 4, WaitStrategy.PARK);
+        bridges.add(bridge);
+        bridge.publish(1L);
+    }
+    
+}
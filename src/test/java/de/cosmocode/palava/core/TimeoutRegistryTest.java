@@ -0,0 +1,176 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.core;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+
+import de.cosmocode.collections.Procedure;
+import de.cosmocode.palava.core.Registry.Key;
+
+/**
+ * Tests {@link TimeoutRegistry}.
+ *
+ * @author Willi Schoenborn
+ */
+public final class TimeoutRegistryTest extends AbstractRegistryTest {
+
+    @Override
+    public TimeoutRegistry unit() {
+        return new TimeoutRegistry(new DefaultRegistry(), 5, TimeUnit.SECONDS, true);
+    }
+    
+    @Override
+    protected Registry hierarchicalUnit() {
+        final DefaultRegistry registry = new DefaultRegistry();
+        registry.setHierarchical(true);
+        return new TimeoutRegistry(registry, 5, TimeUnit.SECONDS, true);
+    }
+    
+    /**
+     * Tests that a stuck listener is abandoned and quarantined while
+     * the following listeners are still notified.
+     */
+    @Test
+    public void overrun() {
+        final TimeoutRegistry unit = new TimeoutRegistry(new DefaultRegistry(), 50, TimeUnit.MILLISECONDS, true);
+        final Key<Object> key = Key.get(Object.class, Deprecated.class);
+        final Object stuck = new Object();
+        final Object listener = new Object();
+        unit.register(key, stuck);
+        unit.register(key, listener);
+        
+        final CountDownLatch latch = new CountDownLatch(1);
+        final List<Object> notified = Lists.newArrayList();
+        final Procedure<Object> procedure = new Procedure<Object>() {
+            
+            @Override
+            public void apply(Object input) {
+                if (input == stuck) {
+                    try {
+                        latch.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                synchronized (notified) {
+                    notified.add(input);
+                }
+            }
+            
+        };
+        
+        unit.notifySilently(key, procedure);
+        Assert.assertEquals(ImmutableList.of(listener), notified);
+        Assert.assertSame(stuck, Iterables.getOnlyElement(unit.getQuarantined()));
+        
+        notified.clear();
+        unit.notify(key, procedure);
+        Assert.assertEquals(ImmutableList.of(listener), notified);
+        
+        Assert.assertTrue(unit.release(stuck));
+        Assert.assertFalse(unit.release(stuck));
+        latch.countDown();
+        notified.clear();
+        unit.notify(key, procedure);
+        Assert.assertEquals(ImmutableList.of(stuck, listener), notified);
+    }
+    
+    /**
+     * Tests that an interrupted caller still notifies every listener
+     * and keeps its interrupt status.
+     */
+    @Test
+    public void interruptedCaller() {
+        final TimeoutRegistry unit = unit();
+        final Key<Object> key = Key.get(Object.class, Deprecated.class);
+        final Object first = new Object();
+        final Object second = new Object();
+        unit.register(key, first);
+        unit.register(key, second);
+        
+        final List<Object> notified = Lists.newArrayList();
+        Thread.currentThread().interrupt();
+        try {
+            unit.notify(key, new Procedure<Object>() {
+                
+                @Override
+                public void apply(Object input) {
+                    try {
+                        Thread.sleep(20);
+                    } catch (InterruptedException e) {
+                        throw new IllegalStateException(e);
+                    }
+                    synchronized (notified) {
+                        notified.add(input);
+                    }
+                }
+                
+            });
+            Assert.assertTrue(Thread.currentThread().isInterrupted());
+        } finally {
+            Thread.interrupted();
+        }
+        Assert.assertEquals(ImmutableList.of(first, second), notified);
+        Assert.assertTrue(unit.getQuarantined().isEmpty());
+    }
+    
+    /**
+     * Tests that a deadline of zero for a key notifies on the calling thread.
+     */
+    @Test
+    public void keyWithoutDeadline() {
+        final TimeoutRegistry unit = unit();
+        final Key<Object> key = Key.get(Object.class, Deprecated.class);
+        unit.register(key, new Object());
+        unit.setTimeout(key, 0, TimeUnit.SECONDS);
+        
+        final List<Thread> threads = Lists.newArrayList();
+        final Procedure<Object> procedure = new Procedure<Object>() {
+            
+            @Override
+            public void apply(Object input) {
+                threads.add(Thread.currentThread());
+            }
+            
+        };
+        unit.notify(key, procedure);
+        Assert.assertSame(Thread.currentThread(), Iterables.getOnlyElement(threads));
+        
+        threads.clear();
+        unit.removeTimeout(key);
+        unit.notify(key, procedure);
+        Assert.assertNotSame(Thread.currentThread(), Iterables.getOnlyElement(threads));
+    }
+    
+    /**
+     * Tests {@link TimeoutRegistry#setTimeout(long, TimeUnit)} with a negative timeout.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeTimeout() {
+        unit().setTimeout(-1, TimeUnit.SECONDS);
+    }
+
+}